@@ -0,0 +1,214 @@
+package fi.lmarkk.litepaint;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Autosaves the drawing into a TileJournal in the background.
+ *
+ * A change only schedules a checkpoint DELAY_MILLIS later, so a burst of strokes is saved at
+ * once. Taking the checkpoint on the UI thread just copies the tiles that changed, and writing
+ * them to disk happens on the writer. Every autosave of the app shares one writer thread, so a
+ * journal opened by a recreated activity is only read once the previous activity's last
+ * checkpoint is on disk, and the journal is opened there too, so the UI thread never waits for
+ * the disk. The tiles of a checkpoint that fails to be written count as changed again and are
+ * written with the checkpoint of the next change.
+ *
+ * @version 2020.0419
+ */
+class Autosave {
+    /** Time from a change to the checkpoint that saves it. */
+    static final long DELAY_MILLIS = 2000L;
+    private static final String TAG = "Autosave";
+
+    /**
+     * Collects the changes since the previous checkpoint on the UI thread.
+     */
+    interface Source {
+        TileJournal.Checkpoint createCheckpoint();
+
+        /**
+         * Marks the tiles of a checkpoint that could not be written as changed again.
+         */
+        void writeFailed(TileJournal.Checkpoint checkpoint);
+    }
+
+    /**
+     * Receives the journal opened by open on the thread of the handler given to it.
+     */
+    interface OpenCallback {
+        void onOpened(TileJournal journal);
+
+        void onFailed(IOException error);
+    }
+
+    private static ExecutorService sharedWriter;
+
+    private final TileJournal journal;
+    private final Executor writer;
+    private final Handler handler;
+    private final Source source;
+    /** Whether there are changes not in a checkpoint, and whether a checkpoint is scheduled. */
+    private boolean changed, scheduled;
+    private boolean closed;
+    private final Runnable checkpointTask = new Runnable() {
+        @Override
+        public void run() {
+            saveNow();
+        }
+    };
+
+    /**
+     * @param journal Journal to write, used only by the writer from now on.
+     * @param writer Executor running one task at a time, usually getSharedWriter().
+     * @param handler Handler of the thread owning the drawing, which takes the checkpoints.
+     * @param source Source of the checkpoints.
+     */
+    Autosave(TileJournal journal, Executor writer, Handler handler, Source source) {
+        this.journal = journal;
+        this.writer = writer;
+        this.handler = handler;
+        this.source = source;
+    }
+
+    static synchronized ExecutorService getSharedWriter() {
+        if (sharedWriter == null) {
+            sharedWriter = Executors.newSingleThreadExecutor();
+        }
+        return sharedWriter;
+    }
+
+    /**
+     * Opens a journal on the shared writer thread, after the writes queued before have finished,
+     * and passes it to the callback.
+     *
+     * @param file Journal file.
+     * @param handler Handler of the thread the callback is run on.
+     * @param callback Callback receiving the journal or the error opening it.
+     */
+    static void open(final File file, final Handler handler, final OpenCallback callback) {
+        getSharedWriter().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final TileJournal journal = TileJournal.open(file);
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onOpened(journal);
+                        }
+                    });
+                } catch (final IOException e) {
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onFailed(e);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Closes a journal opened by open on the shared writer thread, for when it is not used.
+     */
+    static void close(final TileJournal journal) {
+        getSharedWriter().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    journal.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Closing the autosave failed", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Schedules a checkpoint unless one is already scheduled.
+     */
+    void changed() {
+        if (closed) {
+            return;
+        }
+        changed = true;
+        if (!scheduled) {
+            scheduled = true;
+            handler.postDelayed(checkpointTask, DELAY_MILLIS);
+        }
+    }
+
+    /**
+     * Takes the scheduled checkpoint right away, for example when the app is paused.
+     */
+    void saveNow() {
+        handler.removeCallbacks(checkpointTask);
+        scheduled = false;
+        if (!changed || closed) {
+            return;
+        }
+        changed = false;
+        final TileJournal.Checkpoint checkpoint = source.createCheckpoint();
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(checkpoint);
+            }
+        });
+    }
+
+    /**
+     * Saves what is left and closes the journal once it is written.
+     */
+    void close() {
+        saveNow();
+        closed = true;
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    journal.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Closing the autosave failed", e);
+                }
+            }
+        });
+    }
+
+    private void write(final TileJournal.Checkpoint checkpoint) {
+        try {
+            long start = System.nanoTime();
+            journal.write(checkpoint);
+            Log.d(TAG, checkpoint.getTileCount() + " tiles saved in "
+                    + (System.nanoTime() - start) / 1000000 + " ms");
+        } catch (IOException e) {
+            Log.w(TAG, "Autosave failed, retrying with the next change", e);
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    writeFailed(checkpoint);
+                }
+            });
+        }
+    }
+
+    /**
+     * Keeps the tiles of a checkpoint that was not written for the checkpoint of the next change,
+     * or for saveNow when the app is paused.
+     */
+    private void writeFailed(TileJournal.Checkpoint checkpoint) {
+        if (closed) {
+            return;
+        }
+        source.writeFailed(checkpoint);
+        changed = true;
+    }
+}
@@ -0,0 +1,181 @@
+package fi.lmarkk.litepaint;
+
+import android.graphics.Bitmap;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Keeps dropped bitmaps for reuse, so clearing the drawing or resizing the view does not leave
+ * megabytes of garbage behind only to allocate them again.
+ *
+ * A bitmap is reused through Bitmap.reconfigure when its allocation is large enough for the size
+ * asked for, so a bitmap freed at one size serves another of the same area, as when the view is
+ * rotated. The smallest allocation that fits is chosen. A released bitmap may still be referenced
+ * by a frame the render thread is drawing, so it is only handed out again after the two following
+ * frames have started, and not at all while a background reader such as a fill being traced has
+ * pinned the pool. The pool keeps at most its byte budget; bitmaps past it are left to the
+ * garbage collector.
+ *
+ * @version 2020.0419
+ */
+class BitmapPool {
+    /** Frames that must start after a bitmap was released before it is reused. */
+    private static final int QUARANTINE_FRAMES = 2;
+
+    private final long maxBytes;
+    private final List<Bitmap> available = new ArrayList<>();
+    private final List<Bitmap> released = new ArrayList<>();
+    private final List<Long> releasedFrames = new ArrayList<>();
+    private long pooledBytes;
+    private long frame;
+    private int pins;
+    private int hits, misses;
+
+    /**
+     * @param maxBytes Largest allocation size the pool keeps in total.
+     */
+    BitmapPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Takes the smallest pooled bitmap that fits, reconfigured to the given size and cleared.
+     *
+     * @return A transparent bitmap owned by the caller, or null if none fits and the caller has
+     *         to allocate one.
+     */
+    Bitmap acquire(int width, int height, Bitmap.Config config) {
+        long needed = (long) width * height * bytesPerPixel(config);
+        int best = -1;
+        for (int i = 0; i < available.size(); i++) {
+            int size = available.get(i).getAllocationByteCount();
+            if (size >= needed
+                    && (best < 0 || size < available.get(best).getAllocationByteCount())) {
+                best = i;
+            }
+        }
+        if (best < 0) {
+            misses++;
+            return null;
+        }
+        hits++;
+        Bitmap bitmap = available.remove(best);
+        pooledBytes -= bitmap.getAllocationByteCount();
+        if (bitmap.getWidth() != width || bitmap.getHeight() != height
+                || bitmap.getConfig() != config) {
+            bitmap.reconfigure(width, height, config);
+        }
+        bitmap.eraseColor(0);
+        return bitmap;
+    }
+
+    /**
+     * Reconfigures a bitmap of the caller to a new size in place and clears it, if its
+     * allocation is large enough. Only for a bitmap no frame in flight needs the pixels of.
+     *
+     * @return false if the allocation is too small, leaving the bitmap as it was.
+     */
+    boolean reconfigure(Bitmap bitmap, int width, int height, Bitmap.Config config) {
+        if ((long) width * height * bytesPerPixel(config) > bitmap.getAllocationByteCount()) {
+            return false;
+        }
+        hits++;
+        bitmap.reconfigure(width, height, config);
+        bitmap.eraseColor(0);
+        return true;
+    }
+
+    /**
+     * Gives a bitmap back to the pool. The caller must not use it afterwards.
+     */
+    void release(Bitmap bitmap) {
+        if (!bitmap.isMutable() || bitmap.isRecycled()
+                || pooledBytes + bitmap.getAllocationByteCount() > maxBytes) {
+            return;
+        }
+        pooledBytes += bitmap.getAllocationByteCount();
+        released.add(bitmap);
+        releasedFrames.add(frame);
+    }
+
+    /**
+     * Called when a frame starts drawing. Bitmaps released early enough become reusable.
+     */
+    void advanceFrame() {
+        frame++;
+        if (pins > 0) {
+            return;
+        }
+        int ready = 0;
+        while (ready < released.size()
+                && frame - releasedFrames.get(ready) >= QUARANTINE_FRAMES) {
+            ready++;
+        }
+        if (ready > 0) {
+            List<Bitmap> done = released.subList(0, ready);
+            available.addAll(done);
+            done.clear();
+            releasedFrames.subList(0, ready).clear();
+        }
+    }
+
+    /**
+     * Holds released bitmaps back from reuse until unpin, for a reader on another thread that
+     * may still use bitmaps released meanwhile. Pins nest.
+     */
+    void pin() {
+        pins++;
+    }
+
+    void unpin() {
+        pins--;
+    }
+
+    /**
+     * Drops every pooled bitmap, for example when the system runs low on memory.
+     */
+    void clear() {
+        available.clear();
+        released.clear();
+        releasedFrames.clear();
+        pooledBytes = 0;
+    }
+
+    /**
+     * @return Number of bitmaps handed out by reusing an allocation.
+     */
+    int getHits() {
+        return hits;
+    }
+
+    /**
+     * @return Number of bitmaps that had to be allocated.
+     */
+    int getMisses() {
+        return misses;
+    }
+
+    long getPooledBytes() {
+        return pooledBytes;
+    }
+
+    void dump(PrintWriter writer) {
+        writer.println(String.format(Locale.US, "bitmap pool: hits=%d misses=%d pooled=%d kB",
+                hits, misses, pooledBytes / 1024));
+    }
+
+    private static int bytesPerPixel(Bitmap.Config config) {
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+}
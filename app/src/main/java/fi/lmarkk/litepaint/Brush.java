@@ -0,0 +1,128 @@
+package fi.lmarkk.litepaint;
+
+import android.graphics.Bitmap;
+
+/**
+ * Tips strokes can be drawn with.
+ *
+ * PATH strokes the smoothed path with one fixed width like strokes always were. The other brushes
+ * stamp dabs of a precomputed tip texture along the path. The size of each dab follows the pressure
+ * and gets thinner the faster the finger moves, and AIRBRUSH dabs also get fainter with less
+ * pressure.
+ *
+ * @version 2020.0419
+ */
+public enum Brush {
+    PATH(1f, 1f, 0f, 0f, false),
+    INK(0.9f, 0.35f, 0.12f, 0.1f, false),
+    AIRBRUSH(0f, 0.7f, 0.05f, 0.05f, true);
+
+    /** Size of the tip textures in pixels. */
+    static final int TIP_SIZE = 64;
+    private static final float MIN_VELOCITY_FACTOR = 0.4f;
+
+    /** Radius from which the tip fades out, as a fraction of its radius. */
+    final float hardness;
+    /** Width at zero pressure as a fraction of the brush size. */
+    final float minPressureWidth;
+    /** How much thinner a stroke gets for every pixel per millisecond of speed. */
+    final float velocityThinning;
+    /** Distance between dabs as a fraction of the dab diameter. */
+    final float spacing;
+    /** Whether pressure changes the opacity of dabs as well. */
+    final boolean pressureFlow;
+    private Bitmap tip;
+
+    Brush(float hardness, float minPressureWidth, float velocityThinning, float spacing,
+          boolean pressureFlow) {
+        this.hardness = hardness;
+        this.minPressureWidth = minPressureWidth;
+        this.velocityThinning = velocityThinning;
+        this.spacing = spacing;
+        this.pressureFlow = pressureFlow;
+    }
+
+    boolean usesDabs() {
+        return this != PATH;
+    }
+
+    /**
+     * @param pressure Pressure of a sample.
+     * @param velocity Speed at the sample in pixels per millisecond.
+     * @return Width of the stroke at the sample as a fraction of the brush size.
+     */
+    float widthFactor(float pressure, float velocity) {
+        float clamped = Math.max(0f, Math.min(1f, pressure));
+        float pressureFactor = minPressureWidth + (1f - minPressureWidth) * clamped;
+        return pressureFactor * Math.max(MIN_VELOCITY_FACTOR, 1f - velocity * velocityThinning);
+    }
+
+    /**
+     * @param pressure Pressure of a sample.
+     * @return Opacity of a dab stamped at the sample, between 0 and 1.
+     */
+    float flow(float pressure) {
+        if (!pressureFlow) {
+            return 1f;
+        }
+        return 0.15f + 0.85f * Math.max(0f, Math.min(1f, pressure));
+    }
+
+    /**
+     * Returns the alpha-only tip texture, computed the first time it is needed. The texture is
+     * never modified afterwards.
+     *
+     * @return TIP_SIZE x TIP_SIZE ALPHA_8 bitmap of one dab.
+     */
+    synchronized Bitmap getTip() {
+        if (tip == null) {
+            tip = createTip(hardness);
+        }
+        return tip;
+    }
+
+    /**
+     * Stores the brush in the stroke flags of a StrokeRecord.
+     */
+    int toFlags() {
+        return ordinal() << StrokeRecord.FLAG_BRUSH_SHIFT;
+    }
+
+    static Brush fromFlags(int flags) {
+        int index = (flags & StrokeRecord.FLAG_BRUSH_MASK) >> StrokeRecord.FLAG_BRUSH_SHIFT;
+        Brush[] brushes = values();
+        return index < brushes.length ? brushes[index] : PATH;
+    }
+
+    /**
+     * Renders a round dab which is opaque up to hardness times its radius and then fades out
+     * smoothly to its edge. The texture has a transparent border so it can be sampled with
+     * filtering and clamped at its edges.
+     */
+    private static Bitmap createTip(float hardness) {
+        int[] pixels = new int[TIP_SIZE * TIP_SIZE];
+        float center = TIP_SIZE / 2f;
+        float radius = center - 1f;
+        for (int y = 0; y < TIP_SIZE; y++) {
+            for (int x = 0; x < TIP_SIZE; x++) {
+                float dx = x + 0.5f - center;
+                float dy = y + 0.5f - center;
+                float distance = (float) Math.sqrt(dx * dx + dy * dy) / radius;
+                float alpha;
+                if (distance >= 1f) {
+                    alpha = 0f;
+                } else if (distance <= hardness) {
+                    alpha = 1f;
+                } else {
+                    float t = (distance - hardness) / (1f - hardness);
+                    alpha = 1f - t * t * (3f - 2f * t);
+                }
+                pixels[y * TIP_SIZE + x] = Math.round(alpha * 255) << 24;
+            }
+        }
+        Bitmap argb = Bitmap.createBitmap(pixels, TIP_SIZE, TIP_SIZE, Bitmap.Config.ARGB_8888);
+        Bitmap alphaTip = argb.extractAlpha();
+        argb.recycle();
+        return alphaTip;
+    }
+}
@@ -0,0 +1,75 @@
+package fi.lmarkk.litepaint;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.io.OutputStream;
+
+/**
+ * Image formats a drawing can be exported as.
+ *
+ * The quality passed to an export means what the encoder makes of it: JPEG's quality, and the
+ * compression effort of lossless WebP, where a higher value gives a smaller file in more time.
+ * PNG ignores it. JPEG has no alpha channel, so erased pixels are always flattened onto white.
+ *
+ * @version 2020.0419
+ */
+enum ExportFormat {
+    PNG("png", "image/png", true, 100, 21),
+    // Until Android 10 WebP is always lossy, and only 10 turns quality 100 into lossless.
+    WEBP_LOSSLESS("webp", "image/webp", true, 75, 29),
+    JPEG("jpg", "image/jpeg", false, 90, 21);
+
+    private static final int SDK_R = 30;
+
+    final String extension;
+    final String mimeType;
+    final boolean supportsAlpha;
+    final int defaultQuality;
+    private final int minSdk;
+
+    ExportFormat(String extension, String mimeType, boolean supportsAlpha, int defaultQuality,
+                 int minSdk) {
+        this.extension = extension;
+        this.mimeType = mimeType;
+        this.supportsAlpha = supportsAlpha;
+        this.defaultQuality = defaultQuality;
+        this.minSdk = minSdk;
+    }
+
+    /**
+     * @return Whether the format can be encoded on this device.
+     */
+    boolean isSupported() {
+        return Build.VERSION.SDK_INT >= minSdk;
+    }
+
+    /**
+     * @return The format to use when the preferred one is not supported on this device.
+     */
+    ExportFormat orFallback() {
+        return isSupported() ? this : PNG;
+    }
+
+    /**
+     * Encodes the bitmap into the stream.
+     *
+     * @param bitmap Bitmap to encode.
+     * @param quality Quality or compression effort from 0 to 100.
+     * @param stream Stream the encoded image is written to.
+     * @return false if the encoder failed.
+     */
+    boolean compress(Bitmap bitmap, int quality, OutputStream stream) {
+        quality = Math.max(0, Math.min(100, quality));
+        if (this == WEBP_LOSSLESS) {
+            if (Build.VERSION.SDK_INT >= SDK_R) {
+                // Not in the SDK this app compiles against.
+                return bitmap.compress(Bitmap.CompressFormat.valueOf("WEBP_LOSSLESS"), quality,
+                        stream);
+            }
+            return bitmap.compress(Bitmap.CompressFormat.WEBP, 100, stream);
+        }
+        return bitmap.compress(this == JPEG ? Bitmap.CompressFormat.JPEG
+                : Bitmap.CompressFormat.PNG, quality, stream);
+    }
+}
@@ -0,0 +1,365 @@
+package fi.lmarkk.litepaint;
+
+import android.graphics.Bitmap;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Paint bucket fill over a plain int[] copy of the canvas pixels.
+ *
+ * A fill takes four passes. The pixels are copied out of the tile bitmaps, every pixel is
+ * compared to the seed color once, the area connected to the seed is traced with a scanline fill
+ * over the resulting byte mask, and the filled pixels are turned into a bitmap covering just the
+ * bounds of the fill. The copy, compare and bitmap passes work on independent rows, so on large
+ * canvases they are split into bands of ROWS_PER_TASK rows and run on a fork-join pool. The
+ * scanline pass only reads the mask and is cheap next to the others.
+ *
+ * The buffers are kept between fills and only grow, so repeated fills on the same canvas do not
+ * allocate anything but the result bitmap. An instance must only be used by one thread at a time.
+ *
+ * @version 2020.0419
+ */
+class FloodFill {
+    /** Largest difference of any ARGB channel from the seed pixel that is still filled. */
+    static final int DEFAULT_TOLERANCE = 32;
+    /** Rows one fork-join task handles. */
+    static final int ROWS_PER_TASK = 64;
+    /** Passes over fewer pixels than this are run on the calling thread. */
+    static final int PARALLEL_THRESHOLD = 1 << 18;
+
+    private static final byte OUTSIDE = 0;
+    private static final byte MATCH = 1;
+    private static final byte FILLED = 2;
+    private static final int PASS_READ = 0;
+    private static final int PASS_MATCH = 1;
+    private static final int PASS_PAINT = 2;
+
+    private static ForkJoinPool sharedPool;
+
+    private final ForkJoinPool pool;
+    private int[] pixels = new int[0];
+    private byte[] mask = new byte[0];
+    private int[] stack = new int[256];
+    private int width, height;
+    private int left, top, right, bottom;
+    // Inputs of the current pass, read by the fork-join tasks.
+    private Bitmap[] tiles;
+    private int tileSize;
+    private int seedColor, tolerance;
+    private int[] region;
+    private int regionColor;
+
+    /**
+     * Creates a fill which splits large passes across every core.
+     */
+    FloodFill() {
+        this(getSharedPool());
+    }
+
+    /**
+     * @param pool Pool to run large passes on, or null to run every pass on the calling thread.
+     */
+    FloodFill(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    private static synchronized ForkJoinPool getSharedPool() {
+        if (sharedPool == null) {
+            sharedPool = new ForkJoinPool();
+        }
+        return sharedPool;
+    }
+
+    /**
+     * Copies the pixels of a tiled image. Missing tiles read as transparent. Tile bitmaps may be
+     * changed by another thread meanwhile, in which case the copy must be thrown away.
+     *
+     * @param tiles Tile bitmaps in row-major order, null for missing tiles.
+     * @param tileSize Width and height of a tile in pixels.
+     * @param imageWidth Width of the image, which may end inside the last column of tiles.
+     * @param imageHeight Height of the image.
+     */
+    void load(Bitmap[] tiles, int tileSize, int imageWidth, int imageHeight) {
+        resize(imageWidth, imageHeight);
+        this.tiles = tiles;
+        this.tileSize = tileSize;
+        runPass(PASS_READ, 0, height);
+        this.tiles = null;
+    }
+
+    /**
+     * Uses the given pixels as the image, without copying them.
+     *
+     * @param image Unpremultiplied ARGB pixels, width * height of them.
+     */
+    void wrap(int[] image, int imageWidth, int imageHeight) {
+        pixels = image;
+        width = imageWidth;
+        height = imageHeight;
+        if (mask.length < width * height) {
+            mask = new byte[width * height];
+        }
+    }
+
+    /**
+     * Finds the area connected to the seed pixel whose colors are within the tolerance of it.
+     *
+     * @param x Column of the seed pixel.
+     * @param y Row of the seed pixel.
+     * @param maxDifference Largest difference of any ARGB channel that is still filled.
+     * @return Number of pixels filled, 0 if the seed is outside the image.
+     */
+    int fill(int x, int y, int maxDifference) {
+        left = width;
+        top = height;
+        right = 0;
+        bottom = 0;
+        if (x < 0 || y < 0 || x >= width || y >= height) {
+            return 0;
+        }
+        seedColor = pixels[y * width + x];
+        tolerance = maxDifference;
+        runPass(PASS_MATCH, 0, height);
+        return scan(x, y);
+    }
+
+    /**
+     * @return Whether the pixel was filled by the latest fill.
+     */
+    boolean isFilled(int x, int y) {
+        return mask[y * width + x] == FILLED;
+    }
+
+    int getLeft() {
+        return left;
+    }
+
+    int getTop() {
+        return top;
+    }
+
+    /**
+     * @return Right edge of the filled area, exclusive.
+     */
+    int getRight() {
+        return right;
+    }
+
+    /**
+     * @return Bottom edge of the filled area, exclusive.
+     */
+    int getBottom() {
+        return bottom;
+    }
+
+    /**
+     * Creates a bitmap covering the bounds of the latest fill, holding the color where pixels
+     * were filled and transparent pixels elsewhere.
+     *
+     * @param color ARGB color of the filled pixels.
+     * @return The bitmap, to be drawn at getLeft(), getTop(). Null if nothing was filled.
+     */
+    Bitmap createRegion(int color) {
+        if (right <= left || bottom <= top) {
+            return null;
+        }
+        region = new int[(right - left) * (bottom - top)];
+        regionColor = color;
+        runPass(PASS_PAINT, top, bottom);
+        Bitmap bitmap = Bitmap.createBitmap(region, right - left, bottom - top,
+                Bitmap.Config.ARGB_8888);
+        region = null;
+        return bitmap;
+    }
+
+    /**
+     * Draws a region created with createRegion into a tiled canvas.
+     *
+     * @param erase Whether the region is cut out of the canvas instead of painted over it.
+     */
+    static void drawRegion(TiledCanvas target, Bitmap region, int x, int y, boolean erase) {
+        Paint paint = new Paint();
+        if (erase) {
+            paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.DST_OUT));
+        }
+        target.drawBitmap(region, x, y, paint, !erase);
+    }
+
+    private void resize(int imageWidth, int imageHeight) {
+        width = imageWidth;
+        height = imageHeight;
+        if (pixels.length < width * height) {
+            pixels = new int[width * height];
+        }
+        if (mask.length < width * height) {
+            mask = new byte[width * height];
+        }
+    }
+
+    /**
+     * Runs a pass over rows [from, to), on the pool if it covers enough pixels.
+     */
+    private void runPass(int pass, int from, int to) {
+        if (pool == null || (long) (to - from) * width < PARALLEL_THRESHOLD) {
+            runRows(pass, from, to);
+        } else {
+            pool.invoke(new RowTask(pass, from, to));
+        }
+    }
+
+    private void runRows(int pass, int from, int to) {
+        switch (pass) {
+            case PASS_READ:
+                readRows(from, to);
+                break;
+            case PASS_MATCH:
+                matchRows(from, to);
+                break;
+            default:
+                paintRows(from, to);
+        }
+    }
+
+    private void readRows(int from, int to) {
+        int columns = (width + tileSize - 1) / tileSize;
+        for (int y = from; y < to; ) {
+            int tileRow = y / tileSize;
+            int rowsInTile = Math.min(to, (tileRow + 1) * tileSize) - y;
+            for (int column = 0; column < columns; column++) {
+                int x = column * tileSize;
+                int tileWidth = Math.min(tileSize, width - x);
+                Bitmap tile = tiles[tileRow * columns + column];
+                if (tile != null) {
+                    tile.getPixels(pixels, y * width + x, width, 0, y - tileRow * tileSize,
+                            tileWidth, rowsInTile);
+                } else {
+                    for (int row = y; row < y + rowsInTile; row++) {
+                        Arrays.fill(pixels, row * width + x, row * width + x + tileWidth, 0);
+                    }
+                }
+            }
+            y += rowsInTile;
+        }
+    }
+
+    private void matchRows(int from, int to) {
+        int seed = seedColor;
+        int maxDifference = tolerance;
+        for (int i = from * width, end = to * width; i < end; i++) {
+            int color = pixels[i];
+            boolean match = color == seed
+                    || Math.abs((color >>> 24) - (seed >>> 24)) <= maxDifference
+                    && Math.abs((color >> 16 & 0xFF) - (seed >> 16 & 0xFF)) <= maxDifference
+                    && Math.abs((color >> 8 & 0xFF) - (seed >> 8 & 0xFF)) <= maxDifference
+                    && Math.abs((color & 0xFF) - (seed & 0xFF)) <= maxDifference;
+            mask[i] = match ? MATCH : OUTSIDE;
+        }
+    }
+
+    private void paintRows(int from, int to) {
+        int regionWidth = right - left;
+        for (int y = from; y < to; y++) {
+            int offset = y * width + left;
+            int out = (y - top) * regionWidth;
+            for (int x = 0; x < regionWidth; x++) {
+                if (mask[offset + x] == FILLED) {
+                    region[out + x] = regionColor;
+                }
+            }
+        }
+    }
+
+    /**
+     * Fills the matching span around each seed and queues the matching spans above and below it.
+     *
+     * @return Number of pixels filled.
+     */
+    private int scan(int seedX, int seedY) {
+        int filled = 0;
+        int size = 0;
+        size = push(size, seedX, seedY);
+        while (size > 0) {
+            size -= 2;
+            int x = stack[size];
+            int y = stack[size + 1];
+            int row = y * width;
+            if (mask[row + x] != MATCH) {
+                continue;
+            }
+            int spanLeft = x;
+            while (spanLeft > 0 && mask[row + spanLeft - 1] == MATCH) {
+                spanLeft--;
+            }
+            int spanRight = x;
+            while (spanRight < width - 1 && mask[row + spanRight + 1] == MATCH) {
+                spanRight++;
+            }
+            Arrays.fill(mask, row + spanLeft, row + spanRight + 1, FILLED);
+            filled += spanRight - spanLeft + 1;
+            left = Math.min(left, spanLeft);
+            right = Math.max(right, spanRight + 1);
+            top = Math.min(top, y);
+            bottom = Math.max(bottom, y + 1);
+            if (y > 0) {
+                size = pushSpans(size, spanLeft, spanRight, y - 1);
+            }
+            if (y < height - 1) {
+                size = pushSpans(size, spanLeft, spanRight, y + 1);
+            }
+        }
+        return filled;
+    }
+
+    /**
+     * Queues the first pixel of every matching run in [from, to] of the row.
+     */
+    private int pushSpans(int size, int from, int to, int y) {
+        int row = y * width;
+        boolean inRun = false;
+        for (int x = from; x <= to; x++) {
+            boolean match = mask[row + x] == MATCH;
+            if (match && !inRun) {
+                size = push(size, x, y);
+            }
+            inRun = match;
+        }
+        return size;
+    }
+
+    private int push(int size, int x, int y) {
+        if (size + 2 > stack.length) {
+            stack = Arrays.copyOf(stack, stack.length * 2);
+        }
+        stack[size] = x;
+        stack[size + 1] = y;
+        return size + 2;
+    }
+
+    /**
+     * Runs one pass over a band of rows, halving the band until it has ROWS_PER_TASK rows.
+     */
+    private class RowTask extends RecursiveAction {
+        private final int pass, from, to;
+
+        RowTask(int pass, int from, int to) {
+            this.pass = pass;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= ROWS_PER_TASK) {
+                runRows(pass, from, to);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new RowTask(pass, from, middle), new RowTask(pass, middle, to));
+        }
+    }
+}
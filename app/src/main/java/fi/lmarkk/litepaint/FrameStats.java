@@ -0,0 +1,100 @@
+package fi.lmarkk.litepaint;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+
+/**
+ * Frame and touch statistics recorded by PaintingView while instrumentation is enabled.
+ *
+ * Draw time is measured around onDraw. With hardware acceleration that is the time spent
+ * recording the frame, in the software render mode it includes rasterizing it. Touch latency is
+ * the time from the oldest touch sample not yet drawn to the end of the next onDraw, so it leaves
+ * out the render thread and the display. Everything is recorded on the UI thread into fixed size
+ * histograms.
+ *
+ * @version 2020.0419
+ */
+class FrameStats {
+    /** Time spent in onDraw in microseconds. */
+    final Histogram drawMicros = new Histogram();
+    /** Time from a touch sample to the frame drawing it in microseconds. */
+    final Histogram latencyMicros = new Histogram();
+    /** Number of samples batched into each ACTION_MOVE event. */
+    final Histogram samplesPerMove = new Histogram();
+
+    private long frameStart;
+    private long pendingTouchTime = -1;
+
+    /**
+     * Notes a touch sample that the next frame will show. Only the oldest pending sample counts.
+     *
+     * @param eventTime Sample time in the SystemClock.uptimeMillis time base.
+     */
+    void touched(long eventTime) {
+        if (pendingTouchTime < 0 || eventTime < pendingTouchTime) {
+            pendingTouchTime = eventTime;
+        }
+    }
+
+    void moved(int samples) {
+        samplesPerMove.record(samples);
+    }
+
+    void beginFrame() {
+        frameStart = System.nanoTime();
+    }
+
+    void endFrame() {
+        drawMicros.record((System.nanoTime() - frameStart) / 1000);
+        if (pendingTouchTime >= 0) {
+            latencyMicros.record((SystemClock.uptimeMillis() - pendingTouchTime) * 1000);
+            pendingTouchTime = -1;
+        }
+    }
+
+    void reset() {
+        drawMicros.reset();
+        latencyMicros.reset();
+        samplesPerMove.reset();
+        pendingTouchTime = -1;
+    }
+
+    /**
+     * Writes every statistic in a human readable form.
+     *
+     * @param writer Writer to print to.
+     * @param bitmapBytes Bytes of bitmaps the view has allocated so far.
+     */
+    void dump(PrintWriter writer, long bitmapBytes) {
+        writer.println(timing("draw ms", drawMicros));
+        writer.println(timing("touch-to-draw ms", latencyMicros));
+        writer.println(String.format(Locale.US,
+                "samples/move: n=%d mean=%.2f p50=%d p99=%d max=%d",
+                samplesPerMove.getCount(), samplesPerMove.getMean(),
+                samplesPerMove.getPercentile(50), samplesPerMove.getPercentile(99),
+                samplesPerMove.getMax()));
+        writer.println("bitmap bytes allocated: " + bitmapBytes);
+    }
+
+    /**
+     * @return Two short lines for the on-screen overlay.
+     */
+    String[] summary() {
+        return new String[]{
+                String.format(Locale.US, "draw p50 %.1f p99 %.1f ms",
+                        drawMicros.getPercentile(50) / 1000f, drawMicros.getPercentile(99) / 1000f),
+                String.format(Locale.US, "touch p50 %.1f p99 %.1f ms",
+                        latencyMicros.getPercentile(50) / 1000f,
+                        latencyMicros.getPercentile(99) / 1000f)};
+    }
+
+    private static String timing(String name, Histogram histogram) {
+        return String.format(Locale.US,
+                "%s: n=%d mean=%.2f p50=%.2f p90=%.2f p99=%.2f max=%.2f", name,
+                histogram.getCount(), histogram.getMean() / 1000,
+                histogram.getPercentile(50) / 1000f, histogram.getPercentile(90) / 1000f,
+                histogram.getPercentile(99) / 1000f, histogram.getMax() / 1000f);
+    }
+}
@@ -0,0 +1,341 @@
+package fi.lmarkk.litepaint;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.PorterDuff;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Environment;
+import android.provider.MediaStore;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+
+/**
+ * Class which encodes drawings and writes them to storage off the UI thread.
+ *
+ * The caller hands over a private copy of the canvas, which is the only work done on the calling
+ * thread. Flattening onto the white background and encoding happen on the background executor,
+ * and the encoder streams straight into the destination's OutputStream, so no second full size
+ * buffer is created. Progress, the result and cancellation are reported on the callback executor.
+ * Every finished export reports its size and how long encoding took, so formats can be compared.
+ *
+ * @version 2020.0419
+ */
+class ImageSaver {
+    private static final long PROGRESS_STEP = 64 * 1024;
+    // MediaStore columns and SDK level of Android 10, which compileSdkVersion 28 does not know.
+    private static final int SDK_Q = 29;
+    private static final String COLUMN_RELATIVE_PATH = "relative_path";
+    private static final String COLUMN_IS_PENDING = "is_pending";
+
+    /**
+     * Receives the outcome of a save, called on the callback executor.
+     */
+    interface Callback {
+        void onProgress(long bytesWritten);
+
+        void onSaved(String location, Result result);
+
+        void onFailed(IOException error);
+
+        void onCancelled();
+    }
+
+    /**
+     * Where an image is written. A new destination is used for every save.
+     */
+    interface Destination {
+        OutputStream open(String displayName, String mimeType) throws IOException;
+
+        /**
+         * Called after the image was written and the stream closed.
+         *
+         * @return Location of the saved image shown to the user.
+         */
+        String commit() throws IOException;
+
+        /**
+         * Removes whatever was written after a failure or cancellation.
+         */
+        void abort();
+    }
+
+    /**
+     * How an image is encoded.
+     */
+    static class Options {
+        final ExportFormat format;
+        final int quality;
+        final boolean transparent;
+
+        /**
+         * @param format Format to encode with.
+         * @param quality Quality or compression effort from 0 to 100, see ExportFormat.
+         * @param transparent Whether erased pixels stay transparent. Ignored by formats without
+         *                    alpha, which always flatten onto white.
+         */
+        Options(ExportFormat format, int quality, boolean transparent) {
+            this.format = format;
+            this.quality = quality;
+            this.transparent = transparent;
+        }
+
+        /**
+         * @return Options exporting on white with the format's default quality.
+         */
+        static Options of(ExportFormat format) {
+            return new Options(format, format.defaultQuality, false);
+        }
+    }
+
+    /**
+     * Size and encode time of a finished export.
+     */
+    static class Result {
+        final ExportFormat format;
+        final long bytesWritten;
+        final long encodeMillis;
+
+        Result(ExportFormat format, long bytesWritten, long encodeMillis) {
+            this.format = format;
+            this.bytesWritten = bytesWritten;
+            this.encodeMillis = encodeMillis;
+        }
+    }
+
+    /**
+     * Handle of a save in progress.
+     */
+    static class Task {
+        private volatile boolean cancelled;
+
+        /**
+         * Asks the save to stop. The callback gets onCancelled unless the image was already
+         * written.
+         */
+        void cancel() {
+            cancelled = true;
+        }
+
+        boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private final Executor background;
+    private final Executor callbacks;
+
+    /**
+     * @param background Executor encoding and writing the images.
+     * @param callbacks Executor the callbacks are run on, normally the UI thread.
+     */
+    ImageSaver(Executor background, Executor callbacks) {
+        this.background = background;
+        this.callbacks = callbacks;
+    }
+
+    /**
+     * Saves the snapshot in the background.
+     *
+     * @param snapshot Mutable copy of the canvas which the saver takes ownership of.
+     * @param name File name of the image without an extension.
+     * @param options Format and quality to encode with.
+     * @param destination Where to write the image.
+     * @param callback Receiver of progress and the result.
+     * @return Handle which can cancel the save.
+     */
+    Task save(final Bitmap snapshot, final String name, final Options options,
+              final Destination destination, final Callback callback) {
+        final Task task = new Task();
+        background.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(task, snapshot, name, options, destination, callback);
+            }
+        });
+        return task;
+    }
+
+    private void write(final Task task, Bitmap snapshot, String name, Options options,
+                       Destination destination, final Callback callback) {
+        ProgressOutputStream stream = null;
+        try {
+            if (task.isCancelled()) {
+                throw new InterruptedIOException();
+            }
+            ExportFormat format = options.format;
+            if (!format.supportsAlpha || !options.transparent) {
+                // The view shows the drawing on white, draw that behind the transparent pixels.
+                new Canvas(snapshot).drawColor(Color.WHITE, PorterDuff.Mode.DST_OVER);
+            }
+            stream = new ProgressOutputStream(
+                    destination.open(name + "." + format.extension, format.mimeType),
+                    task, callback);
+            long start = System.nanoTime();
+            if (!format.compress(snapshot, options.quality, stream)) {
+                throw new IOException("Encoding failed");
+            }
+            stream.close();
+            final Result result = new Result(format, stream.written,
+                    (System.nanoTime() - start) / 1000000);
+            stream = null;
+            final String location = destination.commit();
+            callbacks.execute(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onSaved(location, result);
+                }
+            });
+        } catch (IOException e) {
+            fail(task, stream, destination, callback, e);
+        } catch (RuntimeException e) {
+            // MediaStore and the encoders throw unchecked exceptions too, the callback must
+            // still hear about the save ending.
+            fail(task, stream, destination, callback, new IOException(e));
+        } finally {
+            snapshot.recycle();
+        }
+    }
+
+    /**
+     * Removes what was written and reports the failure, or the cancellation if the task was
+     * cancelled.
+     */
+    private void fail(final Task task, OutputStream stream, Destination destination,
+                      final Callback callback, final IOException error) {
+        closeQuietly(stream);
+        try {
+            destination.abort();
+        } catch (RuntimeException ignored) {
+        }
+        callbacks.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (task.isCancelled()) {
+                    callback.onCancelled();
+                } else {
+                    callback.onFailed(error);
+                }
+            }
+        });
+    }
+
+    private static void closeQuietly(OutputStream stream) {
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Counts the bytes written, reports progress and stops the encoder once the task has been
+     * cancelled.
+     */
+    private class ProgressOutputStream extends FilterOutputStream {
+        private final Task task;
+        private final Callback callback;
+        long written;
+        private long reported;
+
+        ProgressOutputStream(OutputStream out, Task task, Callback callback) {
+            super(out);
+            this.task = task;
+            this.callback = callback;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            checkCancelled();
+            out.write(b);
+            count(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            checkCancelled();
+            out.write(b, off, len);
+            count(len);
+        }
+
+        private void checkCancelled() throws InterruptedIOException {
+            if (task.isCancelled()) {
+                throw new InterruptedIOException("Save cancelled");
+            }
+        }
+
+        private void count(int bytes) {
+            written += bytes;
+            if (written - reported >= PROGRESS_STEP) {
+                reported = written;
+                final long progress = written;
+                callbacks.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onProgress(progress);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Writes images into the shared Pictures collection through MediaStore.
+     */
+    static class MediaStoreDestination implements Destination {
+        private final ContentResolver resolver;
+        private Uri uri;
+
+        MediaStoreDestination(ContentResolver resolver) {
+            this.resolver = resolver;
+        }
+
+        @Override
+        public OutputStream open(String displayName, String mimeType) throws IOException {
+            ContentValues values = new ContentValues();
+            values.put(MediaStore.Images.Media.DISPLAY_NAME, displayName);
+            values.put(MediaStore.Images.Media.TITLE, displayName);
+            values.put(MediaStore.Images.Media.DESCRIPTION, "drawing");
+            values.put(MediaStore.Images.Media.MIME_TYPE, mimeType);
+            if (Build.VERSION.SDK_INT >= SDK_Q) {
+                values.put(COLUMN_RELATIVE_PATH, Environment.DIRECTORY_PICTURES);
+                values.put(COLUMN_IS_PENDING, 1);
+            }
+            uri = resolver.insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, values);
+            if (uri == null) {
+                throw new IOException("MediaStore insert failed");
+            }
+            OutputStream stream = resolver.openOutputStream(uri);
+            if (stream == null) {
+                throw new IOException("Cannot open " + uri);
+            }
+            return stream;
+        }
+
+        @Override
+        public String commit() {
+            if (Build.VERSION.SDK_INT >= SDK_Q) {
+                ContentValues values = new ContentValues();
+                values.put(COLUMN_IS_PENDING, 0);
+                resolver.update(uri, values, null, null);
+            }
+            return uri.toString();
+        }
+
+        @Override
+        public void abort() {
+            if (uri != null) {
+                resolver.delete(uri, null, null);
+                uri = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package fi.lmarkk.litepaint;
+
+import android.graphics.Bitmap;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+
+import java.io.File;
+
+/**
+ * One layer of the drawing: its own sparse tiles and undo history, and how it is blended onto
+ * the layers below it.
+ *
+ * A layer costs nothing until it is painted on, and its tiles are paged out to a cache file of
+ * its own under memory pressure like the tiles of a single canvas were.
+ *
+ * @version 2020.0419
+ */
+class Layer {
+    /** Identifies the layer in autosaves, whatever its position. */
+    final int id;
+    final TiledCanvas tiles;
+    /** Set by the owner once the layer exists, since the history's surface refers to it. */
+    UndoHistory<Bitmap> history;
+    /** Counts changes to the layer, so work done on a copy of its pixels can tell it is stale. */
+    int modCount;
+    private final Paint paint = new Paint(Paint.DITHER_FLAG);
+    private float opacity = 1f;
+    private boolean visible = true;
+    private PorterDuff.Mode blendMode = PorterDuff.Mode.SRC_OVER;
+
+    /**
+     * @param id Id of the layer, not shared with any other layer of the drawing.
+     * @param cacheFile File the layer's tiles are paged out to.
+     */
+    Layer(int id, File cacheFile) {
+        this.id = id;
+        tiles = new TiledCanvas(cacheFile);
+    }
+
+    float getOpacity() {
+        return opacity;
+    }
+
+    /**
+     * @param opacity Opacity between 0 and 1 the layer is drawn with.
+     */
+    void setOpacity(float opacity) {
+        this.opacity = Math.max(0f, Math.min(1f, opacity));
+        paint.setAlpha(Math.round(this.opacity * 255));
+    }
+
+    boolean isVisible() {
+        return visible;
+    }
+
+    void setVisible(boolean visible) {
+        this.visible = visible;
+    }
+
+    PorterDuff.Mode getBlendMode() {
+        return blendMode;
+    }
+
+    /**
+     * @param mode Mode the layer is blended onto the layers below with, SRC_OVER for normal.
+     */
+    void setBlendMode(PorterDuff.Mode mode) {
+        blendMode = mode;
+        paint.setXfermode(mode == PorterDuff.Mode.SRC_OVER ? null : new PorterDuffXfermode(mode));
+    }
+
+    /**
+     * @return Whether the layer is drawn over the layers below as is, so it can be merged with
+     * its neighbours in any order.
+     */
+    boolean isNormal() {
+        return blendMode == PorterDuff.Mode.SRC_OVER;
+    }
+
+    /**
+     * @return Whether the layer is drawn with its pixels unchanged, which lets a stroke preview be
+     * drawn straight over it.
+     */
+    boolean isPlain() {
+        return isNormal() && opacity == 1f;
+    }
+
+    /**
+     * @return Paint applying the layer's opacity and blend mode to its tiles.
+     */
+    Paint getPaint() {
+        return paint;
+    }
+}
@@ -0,0 +1,320 @@
+package fi.lmarkk.litepaint;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Ordered layers of the drawing and the cached composites used to draw them.
+ *
+ * Only the active layer is painted on, so the layers below it and the layers above it are each
+ * flattened into a tiled cache. A frame then blits the cache below, the active layer and the
+ * cache above, three blits per tile no matter how many layers there are. Layers above with a
+ * blend mode other than SRC_OVER cannot be flattened on their own and are drawn one by one.
+ *
+ * Changes only mark an area of a cache dirty, and the dirty area is recomposed the next time the
+ * cache is drawn. A stroke on the active layer leaves both caches alone. The composite of every
+ * layer is kept the same way for the zoomed out levels and for saving.
+ *
+ * @version 2020.0419
+ */
+class LayerStack {
+    static final int MAX_LAYERS = 8;
+
+    private final List<Layer> layers = new ArrayList<>();
+    private int active;
+    private final TiledCanvas below = new TiledCanvas(null);
+    private final TiledCanvas above = new TiledCanvas(null);
+    private final TiledCanvas composite = new TiledCanvas(null);
+    private final Rect belowDirty = new Rect();
+    private final Rect aboveDirty = new Rect();
+    private final Rect compositeDirty = new Rect();
+    private final MipPyramid mips = new MipPyramid(composite);
+    private final TiledCanvas[] sources = new TiledCanvas[MAX_LAYERS];
+    private final Paint[] paints = new Paint[MAX_LAYERS];
+
+    int size() {
+        return layers.size();
+    }
+
+    Layer get(int index) {
+        return layers.get(index);
+    }
+
+    int indexOf(Layer layer) {
+        return layers.indexOf(layer);
+    }
+
+    Layer getActive() {
+        return layers.get(active);
+    }
+
+    int getActiveIndex() {
+        return active;
+    }
+
+    /**
+     * Inserts a layer and makes it the active one. It is sized like the other layers.
+     *
+     * @param index Position of the layer, 0 being the bottom.
+     * @param layer Layer to insert.
+     */
+    void add(int index, Layer layer) {
+        layer.tiles.ensureSize(getWidth(), getHeight());
+        layers.add(index, layer);
+        active = index;
+        invalidateAll();
+    }
+
+    /**
+     * Removes a layer. The layer below it becomes active if the active layer was removed.
+     *
+     * @return The removed layer.
+     */
+    Layer remove(int index) {
+        Layer layer = layers.remove(index);
+        if (active > index || active == layers.size()) {
+            active = Math.max(active - 1, 0);
+        }
+        invalidateAll();
+        return layer;
+    }
+
+    /**
+     * Moves a layer to another position. The active layer stays active.
+     */
+    void move(int from, int to) {
+        Layer activeLayer = getActive();
+        layers.add(to, layers.remove(from));
+        active = layers.indexOf(activeLayer);
+        invalidateAll();
+    }
+
+    /**
+     * Selects the layer strokes are drawn on, which regroups the cached layers around it.
+     */
+    void setActive(int index) {
+        if (index == active) {
+            return;
+        }
+        active = index;
+        belowDirty.set(0, 0, getWidth(), getHeight());
+        aboveDirty.set(belowDirty);
+    }
+
+    /**
+     * Grows every layer and cache to at least the given size.
+     *
+     * @return Whether the size changed.
+     */
+    boolean ensureSize(int minWidth, int minHeight) {
+        boolean changed = false;
+        for (Layer layer : layers) {
+            changed |= layer.tiles.ensureSize(minWidth, minHeight);
+        }
+        below.ensureSize(minWidth, minHeight);
+        above.ensureSize(minWidth, minHeight);
+        composite.ensureSize(minWidth, minHeight);
+        return changed;
+    }
+
+    int getWidth() {
+        return composite.getWidth();
+    }
+
+    int getHeight() {
+        return composite.getHeight();
+    }
+
+    /**
+     * Marks an area of a layer as changed. Only the caches holding the layer are touched.
+     */
+    void invalidate(Layer layer, int left, int top, int right, int bottom) {
+        if (left >= right || top >= bottom) {
+            return;
+        }
+        layer.modCount++;
+        int index = layers.indexOf(layer);
+        if (index < active) {
+            belowDirty.union(left, top, right, bottom);
+        } else if (index > active) {
+            aboveDirty.union(left, top, right, bottom);
+        }
+        compositeDirty.union(left, top, right, bottom);
+        mips.invalidate(left, top, right, bottom);
+    }
+
+    /**
+     * Marks the whole of a layer as changed, for example after its opacity changed.
+     */
+    void invalidate(Layer layer) {
+        invalidate(layer, 0, 0, getWidth(), getHeight());
+    }
+
+    /**
+     * Marks every cache as changed everywhere.
+     */
+    void invalidateAll() {
+        belowDirty.set(0, 0, getWidth(), getHeight());
+        aboveDirty.set(belowDirty);
+        compositeDirty.set(belowDirty);
+        mips.invalidateAll();
+    }
+
+    /**
+     * Draws the flattened layers below the active one.
+     *
+     * @param canvas Canvas in canvas coordinates.
+     * @param clip Area being redrawn in canvas coordinates.
+     * @param paint Paint to draw the cache with.
+     * @return Number of tiles drawn.
+     */
+    int drawBelow(Canvas canvas, Rect clip, Paint paint) {
+        if (active == 0) {
+            return 0;
+        }
+        update(below, belowDirty, 0, active);
+        return below.draw(canvas, clip, paint);
+    }
+
+    /**
+     * Draws the active layer with its own opacity and blend mode.
+     *
+     * @param paint Paint to draw with instead of the layer's, or null.
+     * @return Number of tiles drawn.
+     */
+    int drawActive(Canvas canvas, Rect clip, Paint paint) {
+        Layer layer = getActive();
+        if (!layer.isVisible()) {
+            return 0;
+        }
+        return layer.tiles.draw(canvas, clip, paint != null ? paint : layer.getPaint());
+    }
+
+    /**
+     * Draws the layers above the active one, from their cache when they are all blended
+     * normally and one by one otherwise.
+     *
+     * @return Number of tiles drawn.
+     */
+    int drawAbove(Canvas canvas, Rect clip, Paint paint) {
+        if (active == layers.size() - 1) {
+            return 0;
+        }
+        if (isAboveNormal()) {
+            update(above, aboveDirty, active + 1, layers.size());
+            return above.draw(canvas, clip, paint);
+        }
+        int drawn = 0;
+        for (int i = active + 1; i < layers.size(); i++) {
+            Layer layer = layers.get(i);
+            if (layer.isVisible()) {
+                drawn += layer.tiles.draw(canvas, clip, layer.getPaint());
+            }
+        }
+        return drawn;
+    }
+
+    /**
+     * Draws the composite of every layer at a zoomed out level.
+     *
+     * @param level Level of the mip pyramid, see MipPyramid.levelFor.
+     * @return Number of tiles drawn.
+     */
+    int drawComposite(Canvas canvas, Rect clip, int level, Paint paint) {
+        update(composite, compositeDirty, 0, layers.size());
+        return mips.draw(canvas, clip, level, paint);
+    }
+
+    /**
+     * @return A new bitmap holding the composite of every visible layer.
+     */
+    Bitmap toBitmap() {
+        update(composite, compositeDirty, 0, layers.size());
+        return composite.toBitmap();
+    }
+
+    /**
+     * Frees the composite and its zoomed out levels, which are rebuilt when needed.
+     */
+    void trimComposite() {
+        composite.clear();
+        compositeDirty.set(0, 0, getWidth(), getHeight());
+        mips.trim();
+    }
+
+    /**
+     * Frees every cache.
+     */
+    void trim() {
+        below.clear();
+        above.clear();
+        trimComposite();
+        belowDirty.set(compositeDirty);
+        aboveDirty.set(compositeDirty);
+    }
+
+    /**
+     * Sets the pool the tiles of the caches are taken from and given back to.
+     */
+    void setBitmapPool(BitmapPool pool) {
+        below.setBitmapPool(pool);
+        above.setBitmapPool(pool);
+        composite.setBitmapPool(pool);
+        mips.setBitmapPool(pool);
+    }
+
+    /**
+     * @return Bytes of tile bitmaps the caches have allocated so far.
+     */
+    long getCacheBytes() {
+        return below.getAllocatedBytes() + above.getAllocatedBytes()
+                + composite.getAllocatedBytes() + mips.getAllocatedBytes();
+    }
+
+    /**
+     * @return Whether a visible layer has a blend mode other than SRC_OVER. Such a layer must be
+     * blended with the layers below only, not with whatever the layers are drawn over.
+     */
+    boolean hasBlendModes() {
+        for (Layer layer : layers) {
+            if (layer.isVisible() && !layer.isNormal()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isAboveNormal() {
+        for (int i = active + 1; i < layers.size(); i++) {
+            if (!layers.get(i).isNormal()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Recomposes the dirty area of a cache from the visible layers in [from, to).
+     */
+    private void update(TiledCanvas cache, Rect dirty, int from, int to) {
+        if (dirty.isEmpty()) {
+            return;
+        }
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            Layer layer = layers.get(i);
+            if (layer.isVisible()) {
+                sources[count] = layer.tiles;
+                paints[count] = layer.getPaint();
+                count++;
+            }
+        }
+        cache.compose(sources, paints, count, dirty);
+        dirty.setEmpty();
+    }
+}
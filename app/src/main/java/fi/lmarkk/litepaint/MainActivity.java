@@ -9,37 +9,94 @@ import android.Manifest;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.content.DialogInterface;
+import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
-import android.provider.MediaStore;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
 import android.view.View;
+import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
+import android.widget.CheckBox;
+import android.widget.CompoundButton;
 import android.widget.ImageButton;
+import android.widget.LinearLayout;
+import android.widget.RadioGroup;
+import android.widget.SeekBar;
+import android.widget.TextView;
 import android.os.Bundle;
 import android.widget.Toast;
 
 import com.flask.colorpicker.ColorPickerView;
-import com.flask.colorpicker.OnColorSelectedListener;
-import com.flask.colorpicker.builder.ColorPickerClickListener;
-import com.flask.colorpicker.builder.ColorPickerDialogBuilder;
+import com.flask.colorpicker.slider.AlphaSlider;
+import com.flask.colorpicker.slider.LightnessSlider;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 
 /**
- * The main activity class which holds a PaintingView instance and methods for handling ui button clicks.
+ * The main activity class which holds a painting view and methods for handling ui button clicks.
  *
  * @author Lassi Markkinen
  * @version 2020.0419
  */
 public class MainActivity extends AppCompatActivity implements View.OnClickListener {
     static final int MY_PERMISSIONS_REQUEST_WRITE_EXTERNAL_STORAGE = 1;
-    private PaintingView paintingView;
+    static final String STROKE_LOG_FILE = "strokes.log";
+    static final String AUTOSAVE_FILE = "autosave.journal";
+    static final String RECENT_COLORS_PREFERENCE = "recent_colors";
+    static final String DEFAULT_RECENT_COLORS = "ff000000,ffffffff,ffff0000,ff00c000,ff0000ff";
+    static final int RECENT_COLOR_COUNT = 6;
+    private static final String TAG = "MainActivity";
+    /** Uptime when the class was loaded, the closest to the process start before API 24. */
+    private static final long CLASS_LOAD_TIME = SystemClock.uptimeMillis();
+    private static boolean processStarted;
+    private PaintingControls paintingView;
+    private StrokeLogWriter strokeLog;
+    private ExecutorService saveExecutor;
+    private ImageSaver imageSaver;
+    private ImageSaver.Task saveTask;
+    private AlertDialog saveProgressDialog;
+    private ExportFormat exportFormat = ExportFormat.PNG;
+    private int exportQuality = ExportFormat.PNG.defaultQuality;
+    private boolean exportTransparent;
     private float smallBrush, mediumBrush, largeBrush;
+    private Dialog brushDialog, eraserDialog;
+    private AlertDialog colorDialog;
+    private ColorPickerView colorWheel;
+    private LinearLayout recentColorViews;
+    private RecentColors recentColors;
+    private boolean coldStart;
+    private long launchTime;
+    private long firstFrameMillis = -1;
 
+    /**
+     * Sets up the drawing and the buttons. The dialogs are built only after the first frame is
+     * drawn, when the UI thread is idle, so they do not delay startup.
+     */
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        coldStart = !processStarted;
+        processStarted = true;
+        launchTime = coldStart ? processStartTime() : SystemClock.uptimeMillis();
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
-        paintingView= findViewById(R.id.painting_view);
+        paintingView = createPaintingView();
         smallBrush = getResources().getInteger(R.integer.small_size);
         mediumBrush = getResources().getInteger(R.integer.medium_size);
         largeBrush = getResources().getInteger(R.integer.large_size);
@@ -49,106 +106,344 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
         drawButton.setOnClickListener(this);
         ImageButton eraseButton = findViewById(R.id.erase_button);
         eraseButton.setOnClickListener(this);
+        ImageButton fillButton = findViewById(R.id.fill_button);
+        fillButton.setOnClickListener(this);
         ImageButton saveButton = findViewById(R.id.save_button);
         saveButton.setOnClickListener(this);
         ImageButton colorPickerButton = findViewById(R.id.color_picker_button);
         colorPickerButton.setOnClickListener(this);
+        ImageButton undoButton = findViewById(R.id.undo_button);
+        undoButton.setOnClickListener(this);
+        ImageButton redoButton = findViewById(R.id.redo_button);
+        redoButton.setOnClickListener(this);
         paintingView.setBrushSize(mediumBrush);
+        openStrokeLog();
+        openAutosave();
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        saveExecutor = Executors.newSingleThreadExecutor();
+        imageSaver = new ImageSaver(saveExecutor, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                mainHandler.post(command);
+            }
+        });
+        watchFirstFrame();
     }
 
     /**
-     * OnClick method for the main activity which uses a switch case to determine if an imagebutton
-     * is clicked.
-     *
-     * Depending on the button PaintingView methods can be called or in the case of the
-     * new drawing and save buttons, the user will be prompted with dialogs and if the color picker
-     * button is clicked the user will be presented with a color selector.
-     *
-     *
-     * @author Lassi Markkinen
-     * @param view The view which was clicked.
+     * @return Uptime of the process start, or of the class load before API 24.
      */
+    private static long processStartTime() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            return Process.getStartUptimeMillis();
+        }
+        return CLASS_LOAD_TIME;
+    }
 
-    @Override
-    public void onClick(View view) {
-        switch (view.getId()) {
-            case R.id.draw_button: {
-                final Dialog brushDialog = new Dialog(this);
-                brushDialog.setTitle("Brush size:");
-                brushDialog.setContentView(R.layout.brush_chooser);
-
-                ImageButton smallButton = brushDialog.findViewById(R.id.small_brush);
-                smallButton.setOnClickListener(new View.OnClickListener() {
+    /**
+     * Measures the time from the launch to the first frame drawing the window, painting view
+     * included. A cold start is measured from the process start, a recreated activity from
+     * onCreate. The time is logged, printed by dump and reported to the system as fully drawn, so
+     * it shows up in logcat as "Fully drawn" and can be trended with startup benchmarks.
+     */
+    private void watchFirstFrame() {
+        final View decorView = getWindow().getDecorView();
+        decorView.getViewTreeObserver().addOnDrawListener(new ViewTreeObserver.OnDrawListener() {
+            @Override
+            public void onDraw() {
+                if (firstFrameMillis >= 0) {
+                    return;
+                }
+                firstFrameMillis = SystemClock.uptimeMillis() - launchTime;
+                final ViewTreeObserver.OnDrawListener listener = this;
+                // Listeners cannot be removed while the frame is drawn.
+                decorView.post(new Runnable() {
                     @Override
-                    public void onClick(View v) {
-                        paintingView.setErase(false);
-                        paintingView.setBrushSize(smallBrush);
-                        paintingView.setLastBrushSize(smallBrush);
-                        brushDialog.dismiss();
+                    public void run() {
+                        decorView.getViewTreeObserver().removeOnDrawListener(listener);
+                        onFirstFrame();
                     }
                 });
+            }
+        });
+    }
 
-                ImageButton mediumButton = brushDialog.findViewById(R.id.medium_brush);
-                mediumButton.setOnClickListener(new View.OnClickListener() {
-                    @Override
-                    public void onClick(View v) {
-                        paintingView.setErase(false);
-                        paintingView.setBrushSize(mediumBrush);
-                        paintingView.setLastBrushSize(mediumBrush);
-                        brushDialog.dismiss();
-                    }
-                });
+    private void onFirstFrame() {
+        Log.i(TAG, String.format(Locale.US, "%s start to first frame in %d ms",
+                coldStart ? "Cold" : "Warm", firstFrameMillis));
+        reportFullyDrawn();
+        Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+            @Override
+            public boolean queueIdle() {
+                if (!isFinishing() && !isDestroyed()) {
+                    getBrushDialog(false);
+                    getBrushDialog(true);
+                    getColorDialog();
+                }
+                return false;
+            }
+        });
+    }
 
-                ImageButton largeButton = brushDialog.findViewById(R.id.large_brush);
-                largeButton.setOnClickListener(new View.OnClickListener() {
-                    @Override
-                    public void onClick(View v) {
-                        paintingView.setErase(false);
-                        paintingView.setBrushSize(largeBrush);
-                        paintingView.setLastBrushSize(largeBrush);
-                        brushDialog.dismiss();
-                    }
-                });
+    /**
+     * Method which picks the painting view. The PaintingView of the layout is replaced with a
+     * SurfacePaintingView, which paints on a render thread of its own, when the render_thread
+     * resource is set.
+     *
+     * @return The painting view in the layout.
+     */
+    private PaintingControls createPaintingView() {
+        PaintingView view = findViewById(R.id.painting_view);
+        if (!getResources().getBoolean(R.bool.render_thread)) {
+            return view;
+        }
+        SurfacePaintingView surfaceView = new SurfacePaintingView(this, null);
+        surfaceView.setId(R.id.painting_view);
+        ViewGroup parent = (ViewGroup) view.getParent();
+        int index = parent.indexOfChild(view);
+        parent.removeView(view);
+        parent.addView(surfaceView, index, view.getLayoutParams());
+        view.release();
+        return surfaceView;
+    }
+
+    /**
+     * Autosaves the latest changes before the app may be killed in the background.
+     */
+    @Override
+    protected void onPause() {
+        super.onPause();
+        paintingView.flushAutosave();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (saveTask != null) {
+            saveTask.cancel();
+            saveTask = null;
+        }
+        saveExecutor.shutdown();
+        for (Dialog dialog : new Dialog[]{brushDialog, eraserDialog, colorDialog}) {
+            if (dialog != null) {
+                dialog.dismiss();
+            }
+        }
+        paintingView.release();
+        paintingView.setStrokeLog(null);
+        if (strokeLog != null) {
+            try {
+                strokeLog.close();
+            } catch (IOException ignored) {
+            }
+            strokeLog = null;
+        }
+    }
 
-                brushDialog.show();
+    /**
+     * Passes memory pressure on to PaintingView, which pages canvas tiles out to a cache file.
+     *
+     * @param level Memory trim level.
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        paintingView.trimMemory(level);
+    }
+
+    /**
+     * Method which returns the brush or eraser size dialog, building it the first time. The
+     * dialogs are kept for the lifetime of the activity.
+     *
+     * @param isErase Whether the dialog picks the eraser size.
+     * @return Dialog showing the brush_chooser layout.
+     */
+    private Dialog getBrushDialog(boolean isErase) {
+        if (isErase) {
+            if (eraserDialog == null) {
+                eraserDialog = createBrushDialog(true);
+            }
+            return eraserDialog;
+        }
+        if (brushDialog == null) {
+            brushDialog = createBrushDialog(false);
+        }
+        return brushDialog;
+    }
+
+    private Dialog createBrushDialog(boolean isErase) {
+        Dialog dialog = new Dialog(this);
+        dialog.setTitle(isErase ? "Eraser size:" : "Brush size:");
+        dialog.setContentView(R.layout.brush_chooser);
+        setupBrushTypes(dialog);
+        setupBrushSize(dialog, R.id.small_brush, smallBrush, isErase);
+        setupBrushSize(dialog, R.id.medium_brush, mediumBrush, isErase);
+        setupBrushSize(dialog, R.id.large_brush, largeBrush, isErase);
+        return dialog;
+    }
+
+    /**
+     * Method which makes a size button of a brush chooser dialog switch to drawing or erasing
+     * with that size. The brush size is remembered for when the user comes back from erasing.
+     */
+    private void setupBrushSize(final Dialog dialog, int buttonId, final float size,
+                                final boolean isErase) {
+        ImageButton button = dialog.findViewById(buttonId);
+        button.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                paintingView.setErase(isErase);
+                paintingView.setBrushSize(size);
+                if (!isErase) {
+                    paintingView.setLastBrushSize(size);
+                }
+                dialog.dismiss();
+            }
+        });
+    }
+
+    /**
+     * Method which checks the brush in use in a brush chooser dialog and shows it.
+     *
+     * @param dialog Dialog showing the brush_chooser layout.
+     */
+    private void showBrushDialog(Dialog dialog) {
+        RadioGroup brushTypes = dialog.findViewById(R.id.brush_type);
+        switch (paintingView.getBrush()) {
+            case INK:
+                brushTypes.check(R.id.brush_ink);
+                break;
+            case AIRBRUSH:
+                brushTypes.check(R.id.brush_airbrush);
                 break;
+            default:
+                brushTypes.check(R.id.brush_path);
+        }
+        dialog.show();
+    }
+
+    /**
+     * Method which switches to the brush the user checks in a brush chooser dialog. The eraser
+     * uses the same brush tip.
+     *
+     * @param brushDialog Dialog showing the brush_chooser layout.
+     */
+    private void setupBrushTypes(Dialog brushDialog) {
+        RadioGroup brushTypes = brushDialog.findViewById(R.id.brush_type);
+        brushTypes.setOnCheckedChangeListener(new RadioGroup.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(RadioGroup group, int checkedId) {
+                if (checkedId == R.id.brush_ink) {
+                    paintingView.setBrush(Brush.INK);
+                } else if (checkedId == R.id.brush_airbrush) {
+                    paintingView.setBrush(Brush.AIRBRUSH);
+                } else {
+                    paintingView.setBrush(Brush.PATH);
+                }
+            }
+        });
+    }
+
+    /**
+     * Prints the time to the first frame and PaintingView's frame statistics with adb shell
+     * dumpsys activity. The arguments
+     * "stats on", "stats off", "stats overlay" and "stats reset" control the recording, so it can
+     * be used in release builds where it is off by default.
+     */
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        if (args != null && args.length == 2 && "stats".equals(args[0])) {
+            if ("on".equals(args[1])) {
+                paintingView.setStatsEnabled(true);
+            } else if ("off".equals(args[1])) {
+                paintingView.setStatsEnabled(false);
+            } else if ("overlay".equals(args[1])) {
+                paintingView.setStatsOverlay(true);
+            } else if ("reset".equals(args[1])) {
+                paintingView.resetStats();
             }
-            case R.id.erase_button: {
-                final Dialog brushDialog = new Dialog(this);
-                brushDialog.setTitle("Eraser size:");
-                brushDialog.setContentView(R.layout.brush_chooser);
+        }
+        writer.println(prefix + String.format(Locale.US, "Startup: %s, first frame %d ms",
+                coldStart ? "cold" : "warm", firstFrameMillis));
+        writer.println(prefix + "PaintingView:");
+        paintingView.dumpStats(writer);
+    }
 
-                ImageButton smallBtn = brushDialog.findViewById(R.id.small_brush);
-                smallBtn.setOnClickListener(new View.OnClickListener() {
-                    @Override
-                    public void onClick(View v) {
-                        paintingView.setErase(true);
-                        paintingView.setBrushSize(smallBrush);
-                        brushDialog.dismiss();
-                    }
-                });
+    /**
+     * Method which opens the stroke log and keeps appending to the log of the previous sessions,
+     * so the drawing can be recovered after the process was killed or replayed at another
+     * resolution. The log is written on the thread shared by every stroke log of the process, so
+     * the log of an activity being recreated is closed before this one finds its end. Drawing
+     * works normally if the log cannot be opened.
+     */
+    private void openStrokeLog() {
+        try {
+            strokeLog = StrokeLogWriter.open(new File(getFilesDir(), STROKE_LOG_FILE), false,
+                    StrokeLogWriter.getSharedWriter());
+            paintingView.setStrokeLog(strokeLog);
+        } catch (IOException e) {
+            strokeLog = null;
+        }
+    }
 
-                ImageButton mediumBtn = brushDialog.findViewById(R.id.medium_brush);
-                mediumBtn.setOnClickListener(new View.OnClickListener() {
+    /**
+     * Method which restores the drawing of the previous session, or of this activity before it was
+     * recreated, and autosaves the drawing from then on. The autosave is opened in the background,
+     * so the canvas can be drawn on before the drawing is restored. Drawing works normally if the
+     * autosave cannot be opened.
+     */
+    private void openAutosave() {
+        Autosave.open(new File(getFilesDir(), AUTOSAVE_FILE), new Handler(Looper.getMainLooper()),
+                new Autosave.OpenCallback() {
                     @Override
-                    public void onClick(View v) {
-                        paintingView.setErase(true);
-                        paintingView.setBrushSize(mediumBrush);
-                        brushDialog.dismiss();
+                    public void onOpened(TileJournal journal) {
+                        if (isDestroyed()) {
+                            Autosave.close(journal);
+                            return;
+                        }
+                        try {
+                            paintingView.setAutosave(journal, Autosave.getSharedWriter());
+                        } catch (IOException e) {
+                            Log.w(TAG, "Autosave could not be started", e);
+                            Autosave.close(journal);
+                        }
                     }
-                });
 
-                ImageButton largeBtn = brushDialog.findViewById(R.id.large_brush);
-                largeBtn.setOnClickListener(new View.OnClickListener() {
                     @Override
-                    public void onClick(View v) {
-                        paintingView.setErase(true);
-                        paintingView.setBrushSize(largeBrush);
-                        brushDialog.dismiss();
+                    public void onFailed(IOException error) {
+                        Log.w(TAG, "Autosave could not be opened", error);
                     }
                 });
+    }
 
-                brushDialog.show();
+    /**
+     * OnClick method for the main activity which uses a switch case to determine if an imagebutton
+     * is clicked.
+     *
+     * Depending on the button PaintingView methods can be called or in the case of the
+     * new drawing and save buttons, the user will be prompted with dialogs and if the color picker
+     * button is clicked the user will be presented with a color selector.
+     *
+     *
+     * @author Lassi Markkinen
+     * @param view The view which was clicked.
+     */
+
+    @Override
+    public void onClick(View view) {
+        switch (view.getId()) {
+            case R.id.draw_button:
+                showBrushDialog(getBrushDialog(false));
+                break;
+            case R.id.erase_button:
+                showBrushDialog(getBrushDialog(true));
+                break;
+            case R.id.fill_button: {
+                boolean fill = !paintingView.isFillMode();
+                paintingView.setFillMode(fill);
+                Toast.makeText(getApplicationContext(),
+                        fill ? "Tap an area to fill it" : "Fill off", Toast.LENGTH_SHORT).show();
                 break;
             }
             case R.id.new_drawing_button:
@@ -185,6 +480,12 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
                 paintingView.setBrushSize(paintingView.getLastBrushSize());
                 showColorPickerDialog(view);
                 break;
+            case R.id.undo_button:
+                paintingView.undo();
+                break;
+            case R.id.redo_button:
+                paintingView.redo();
+                break;
         }
     }
 
@@ -213,10 +514,12 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
      * Method which writes the current image into local storage after checking permissions.
      *
      * First the method will check if the user has enabled storage writing permissions. The user
-     * is then prompted with a dialog to confirm whether they want to save the image. If the user
-     * affirms, PaintingView's current drawing cache is saved into local storage with a randomly
-     * generated name and png media type. If the returned image is not null, the user is notified
-     * with a toast and likewise if the operation fails the user is also notified of this.
+     * is then prompted with a dialog to confirm whether they want to save the image, to pick one
+     * of the formats this device can encode, its quality, and whether erased areas stay
+     * transparent in formats with an alpha channel. If the user affirms, a copy of PaintingView's
+     * canvas is handed to the ImageSaver, which encodes it with a randomly generated name in the
+     * background. The UI stays responsive meanwhile and a progress dialog lets the user cancel
+     * the save.
      *
      *
      * @author Lassi Markkinen
@@ -225,28 +528,61 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
         if(ContextCompat.checkSelfPermission(this,
                 Manifest.permission.WRITE_EXTERNAL_STORAGE)
                 == PackageManager.PERMISSION_GRANTED) {
+            final List<ExportFormat> formats = new ArrayList<>();
+            for (ExportFormat format : ExportFormat.values()) {
+                if (format.isSupported()) {
+                    formats.add(format);
+                }
+            }
+            String[] labels = new String[formats.size()];
+            for (int i = 0; i < labels.length; i++) {
+                labels[i] = formats.get(i).extension.toUpperCase(Locale.ROOT);
+            }
+            if (!exportFormat.isSupported()) {
+                exportFormat = exportFormat.orFallback();
+                exportQuality = exportFormat.defaultQuality;
+            }
+            View options = getLayoutInflater().inflate(R.layout.save_options, null);
+            final TextView qualityLabel = options.findViewById(R.id.save_quality_label);
+            final SeekBar quality = options.findViewById(R.id.save_quality);
+            final CheckBox transparent = options.findViewById(R.id.save_transparent);
+            quality.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+                @Override
+                public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                    exportQuality = progress;
+                    qualityLabel.setText(getString(R.string.save_quality, progress));
+                }
+
+                @Override
+                public void onStartTrackingTouch(SeekBar seekBar) {
+                }
+
+                @Override
+                public void onStopTrackingTouch(SeekBar seekBar) {
+                }
+            });
+            transparent.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+                @Override
+                public void onCheckedChanged(CompoundButton button, boolean isChecked) {
+                    exportTransparent = isChecked;
+                }
+            });
+            transparent.setChecked(exportTransparent);
+            updateSaveOptions(qualityLabel, quality, transparent);
             AlertDialog.Builder saveDialog = new AlertDialog.Builder(this);
-            saveDialog.setTitle("Save drawing");
-            saveDialog.setMessage("Save drawing to device Gallery?");
+            saveDialog.setTitle("Save drawing to device Gallery as");
+            saveDialog.setSingleChoiceItems(labels, formats.indexOf(exportFormat),
+                    new DialogInterface.OnClickListener() {
+                        public void onClick(DialogInterface dialog, int which) {
+                            exportFormat = formats.get(which);
+                            exportQuality = exportFormat.defaultQuality;
+                            updateSaveOptions(qualityLabel, quality, transparent);
+                        }
+                    });
+            saveDialog.setView(options);
             saveDialog.setPositiveButton("Yes", new DialogInterface.OnClickListener() {
                 public void onClick(DialogInterface dialog, int which){
-                    paintingView.setDrawingCacheEnabled(true);
-                    String imgSaved = MediaStore.Images.Media.insertImage(
-                            getContentResolver(), paintingView.getDrawingCache(),
-                            UUID.randomUUID().toString()+".png", "drawing");
-                    if(imgSaved!=null){
-                        Toast savedToast = Toast.makeText(getApplicationContext(),
-                                "Painting saved to gallery!",
-                                Toast.LENGTH_SHORT);
-                        savedToast.show();
-                    }
-                    else{
-                        Toast unsavedToast = Toast.makeText(getApplicationContext(),
-                                "Something went wrong, image could not be saved.",
-                                Toast.LENGTH_SHORT);
-                        unsavedToast.show();
-                    }
-                    paintingView.destroyDrawingCache();
+                    startSave();
                 }
             });
             saveDialog.setNegativeButton("Cancel", new DialogInterface.OnClickListener(){
@@ -258,39 +594,201 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
         }
     }
 
+    /**
+     * Shows the quality of the chosen export format, and enables the settings the format uses.
+     * PNG is always lossless and JPEG has no alpha channel.
+     */
+    private void updateSaveOptions(TextView qualityLabel, SeekBar quality, CheckBox transparent) {
+        quality.setProgress(exportQuality);
+        qualityLabel.setText(getString(R.string.save_quality, exportQuality));
+        quality.setEnabled(exportFormat != ExportFormat.PNG);
+        transparent.setEnabled(exportFormat.supportsAlpha);
+    }
+
+    /**
+     * Method which snapshots the drawing and starts saving it in the background.
+     *
+     * Only the copy of the canvas is made on the UI thread. A dialog shows how much has been
+     * written and cancels the save when dismissed, and the user is notified with a toast once the
+     * save has finished or failed. A finished save tells the file size and encode time.
+     */
+    private void startSave() {
+        if (saveTask != null) {
+            return;
+        }
+        Bitmap snapshot = paintingView.createSnapshot();
+        if (snapshot == null) {
+            return;
+        }
+        AlertDialog.Builder progressDialog = new AlertDialog.Builder(this);
+        progressDialog.setTitle("Saving drawing");
+        progressDialog.setMessage("Encoding...");
+        progressDialog.setNegativeButton("Cancel", new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int which) {
+                dialog.cancel();
+            }
+        });
+        progressDialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
+            @Override
+            public void onCancel(DialogInterface dialog) {
+                if (saveTask != null) {
+                    saveTask.cancel();
+                }
+            }
+        });
+        saveProgressDialog = progressDialog.show();
+        saveTask = imageSaver.save(snapshot, UUID.randomUUID().toString(),
+                new ImageSaver.Options(exportFormat, exportQuality, exportTransparent),
+                new ImageSaver.MediaStoreDestination(getContentResolver()),
+                new ImageSaver.Callback() {
+                    @Override
+                    public void onProgress(long bytesWritten) {
+                        if (saveProgressDialog != null) {
+                            saveProgressDialog.setMessage("Written " + bytesWritten / 1024 + " kB");
+                        }
+                    }
+
+                    @Override
+                    public void onSaved(String location, ImageSaver.Result result) {
+                        finishSave("Painting saved to gallery! ("
+                                + result.bytesWritten / 1024 + " kB, encoded in "
+                                + result.encodeMillis + " ms)");
+                    }
+
+                    @Override
+                    public void onFailed(IOException error) {
+                        finishSave("Something went wrong, image could not be saved.");
+                    }
+
+                    @Override
+                    public void onCancelled() {
+                        finishSave("Saving cancelled.");
+                    }
+                });
+    }
+
+    private void finishSave(String message) {
+        saveTask = null;
+        if (saveProgressDialog != null) {
+            saveProgressDialog.dismiss();
+            saveProgressDialog = null;
+        }
+        if (!isFinishing()) {
+            Toast.makeText(getApplicationContext(), message, Toast.LENGTH_SHORT).show();
+        }
+    }
+
     /**
      * Method which displays a dialog for the user to select a paint color with.
      *
-     * A ColorPickerDialog is built with a positive and negative button. when the "ok" button is
-     * clicked, the PaintingView.setColor method is called. the selectedColor field is converted
-     * from an int to a hexstring for this purpose. The negative button simply closes the dialog.
+     * The dialog shows the recently picked colors above a color wheel. Tapping a recent color
+     * picks it right away, otherwise the "ok" button picks the color selected on the wheel. The
+     * PaintingView.setColor method is called with the color converted from an int to a hexstring.
+     * The negative button simply closes the dialog. The dialog is built once and reused.
      *
      *
      * @author Lassi Markkinen
      * @param v the imagebutton used for accessing the color picker.
      */
     public void showColorPickerDialog(View v) {
-        ColorPickerDialogBuilder
-                .with(this)
+        AlertDialog dialog = getColorDialog();
+        colorWheel.setInitialColor(paintingView.getPaintColor(), false);
+        updateRecentColors();
+        dialog.show();
+    }
+
+    /**
+     * Builds the color picker dialog the first time it is needed.
+     */
+    private AlertDialog getColorDialog() {
+        if (colorDialog != null) {
+            return colorDialog;
+        }
+        View content = getLayoutInflater().inflate(R.layout.color_picker, null);
+        colorWheel = content.findViewById(R.id.color_wheel);
+        LightnessSlider lightnessSlider = content.findViewById(R.id.lightness_slider);
+        colorWheel.setLightnessSlider(lightnessSlider);
+        AlphaSlider alphaSlider = content.findViewById(R.id.alpha_slider);
+        colorWheel.setAlphaSlider(alphaSlider);
+        recentColorViews = content.findViewById(R.id.recent_colors);
+        colorDialog = new AlertDialog.Builder(this)
                 .setTitle("Choose color")
-                .initialColor(paintingView.getPaintColor())
-                .wheelType(ColorPickerView.WHEEL_TYPE.FLOWER)
-                .density(12)
-                .setOnColorSelectedListener(new OnColorSelectedListener() {
-                    @Override
-                    public void onColorSelected(int selectedColor) {}
-                })
-                .setPositiveButton("ok", new ColorPickerClickListener() {
+                .setView(content)
+                .setPositiveButton("ok", new DialogInterface.OnClickListener() {
                     @Override
-                    public void onClick(DialogInterface dialog, int selectedColor, Integer[] allColors) {
-                        paintingView.setColor("#" + Integer.toHexString(selectedColor).toUpperCase());
+                    public void onClick(DialogInterface dialog, int which) {
+                        pickColor(colorWheel.getSelectedColor());
                     }
                 })
                 .setNegativeButton("cancel", new DialogInterface.OnClickListener() {
                     @Override
                     public void onClick(DialogInterface dialog, int which) {}
                 })
-                .build()
-                .show();
+                .create();
+        updateRecentColors();
+        return colorDialog;
+    }
+
+    /**
+     * Shows a swatch for every recent color in the color picker dialog, reusing the swatches
+     * created for earlier showings.
+     */
+    private void updateRecentColors() {
+        RecentColors colors = getRecentColors();
+        int size = getResources().getDimensionPixelSize(R.dimen.recent_color_size);
+        int margin = getResources().getDimensionPixelSize(R.dimen.recent_color_margin);
+        for (int i = recentColorViews.getChildCount(); i < colors.size(); i++) {
+            View swatch = new View(this);
+            LinearLayout.LayoutParams params = new LinearLayout.LayoutParams(size, size);
+            params.setMargins(margin, 0, margin, 0);
+            recentColorViews.addView(swatch, params);
+        }
+        for (int i = 0; i < recentColorViews.getChildCount(); i++) {
+            View swatch = recentColorViews.getChildAt(i);
+            if (i >= colors.size()) {
+                swatch.setVisibility(View.GONE);
+                continue;
+            }
+            final int color = colors.get(i);
+            swatch.setVisibility(View.VISIBLE);
+            swatch.setBackgroundColor(color);
+            swatch.setContentDescription(getString(R.string.recent_color, toHexColor(color)));
+            swatch.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View v) {
+                    pickColor(color);
+                    colorDialog.dismiss();
+                }
+            });
+        }
+    }
+
+    /**
+     * Loads the recent colors of the previous sessions the first time they are needed.
+     */
+    private RecentColors getRecentColors() {
+        if (recentColors == null) {
+            recentColors = new RecentColors(RECENT_COLOR_COUNT);
+            recentColors.decode(getPreferences(MODE_PRIVATE)
+                    .getString(RECENT_COLORS_PREFERENCE, DEFAULT_RECENT_COLORS));
+        }
+        return recentColors;
+    }
+
+    /**
+     * Paints with the color and moves it to the front of the recent colors, which are saved in
+     * the background.
+     */
+    private void pickColor(int color) {
+        paintingView.setColor(toHexColor(color));
+        RecentColors colors = getRecentColors();
+        colors.add(color);
+        SharedPreferences.Editor editor = getPreferences(MODE_PRIVATE).edit();
+        editor.putString(RECENT_COLORS_PREFERENCE, colors.encode());
+        editor.apply();
+    }
+
+    private static String toHexColor(int color) {
+        return "#" + Integer.toHexString(color).toUpperCase(Locale.ROOT);
     }
 }
@@ -0,0 +1,146 @@
+package fi.lmarkk.litepaint;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+/**
+ * Downsampled copies of a TiledCanvas used while zoomed out.
+ *
+ * Level k is the canvas at 1 / 2^k of its size, built from level k - 1, and is itself tiled, so
+ * empty parts of the drawing cost nothing at any level. Changes to the canvas only mark an area
+ * dirty. The dirty area of a level is rebuilt the next time that level is drawn, so drawing at
+ * 1:1 never pays for the pyramid and a committed stroke only redraws its own bounds.
+ *
+ * Drawing at scale s uses the smallest level that still has at least one canvas pixel per view
+ * pixel, so a zoomed out frame blits about as many pixels as a frame at 1:1.
+ *
+ * @version 2020.0419
+ */
+class MipPyramid {
+    static final int MAX_LEVEL = 3;
+
+    private final TiledCanvas base;
+    private final TiledCanvas[] levels = new TiledCanvas[MAX_LEVEL + 1];
+    private final Rect[] dirty = new Rect[MAX_LEVEL + 1];
+    private final Paint filterPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect levelRect = new Rect();
+
+    /**
+     * @param base Full resolution canvas, level 0.
+     */
+    MipPyramid(TiledCanvas base) {
+        this.base = base;
+        levels[0] = base;
+        for (int level = 1; level <= MAX_LEVEL; level++) {
+            levels[level] = new TiledCanvas(null);
+            dirty[level] = new Rect();
+        }
+    }
+
+    /**
+     * @param scale Scale the canvas is drawn at.
+     * @return Level to draw at that scale, 0 for full resolution.
+     */
+    static int levelFor(float scale) {
+        int level = 0;
+        while (level < MAX_LEVEL && scale <= 0.5f) {
+            scale *= 2f;
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Marks an area of the base canvas as changed.
+     */
+    void invalidate(int left, int top, int right, int bottom) {
+        if (left >= right || top >= bottom) {
+            return;
+        }
+        for (int level = 1; level <= MAX_LEVEL; level++) {
+            dirty[level].union(left, top, right, bottom);
+        }
+    }
+
+    /**
+     * Marks the whole base canvas as changed.
+     */
+    void invalidateAll() {
+        invalidate(0, 0, base.getWidth(), base.getHeight());
+    }
+
+    /**
+     * Frees every level. They are rebuilt from the base canvas when needed.
+     */
+    void trim() {
+        for (int level = 1; level <= MAX_LEVEL; level++) {
+            levels[level].clear();
+        }
+        invalidateAll();
+    }
+
+    /**
+     * Sets the pool the tiles of the downsampled levels are taken from and given back to.
+     */
+    void setBitmapPool(BitmapPool pool) {
+        for (int level = 1; level <= MAX_LEVEL; level++) {
+            levels[level].setBitmapPool(pool);
+        }
+    }
+
+    /**
+     * @return Bytes of tile bitmaps the levels have allocated so far.
+     */
+    long getAllocatedBytes() {
+        long bytes = 0;
+        for (int level = 1; level <= MAX_LEVEL; level++) {
+            bytes += levels[level].getAllocatedBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Draws the given level, rebuilding its dirty area first.
+     *
+     * @param canvas Canvas in base canvas coordinates.
+     * @param clip Area being redrawn in base canvas coordinates.
+     * @param level Level to draw, see levelFor.
+     * @param paint Paint to draw level 0 with. Other levels are drawn filtered.
+     * @return Number of tiles drawn.
+     */
+    int draw(Canvas canvas, Rect clip, int level, Paint paint) {
+        if (level == 0) {
+            return base.draw(canvas, clip, paint);
+        }
+        update(level);
+        int factor = 1 << level;
+        levelRect.set(clip.left / factor, clip.top / factor,
+                (clip.right + factor - 1) / factor, (clip.bottom + factor - 1) / factor);
+        int saveCount = canvas.save();
+        canvas.scale(factor, factor);
+        int drawn = levels[level].draw(canvas, levelRect, filterPaint);
+        canvas.restoreToCount(saveCount);
+        return drawn;
+    }
+
+    /**
+     * Rebuilds the dirty areas of the levels up to the given one.
+     */
+    private void update(int target) {
+        for (int level = 1; level <= target; level++) {
+            int factor = 1 << level;
+            TiledCanvas mip = levels[level];
+            mip.ensureSize((base.getWidth() + factor - 1) / factor,
+                    (base.getHeight() + factor - 1) / factor);
+            Rect area = dirty[level];
+            if (area.isEmpty()) {
+                continue;
+            }
+            levelRect.set(area.left / factor, area.top / factor,
+                    (area.right + factor - 1) / factor, (area.bottom + factor - 1) / factor);
+            mip.downsampleFrom(levels[level - 1], levelRect, filterPaint);
+            area.setEmpty();
+        }
+    }
+}
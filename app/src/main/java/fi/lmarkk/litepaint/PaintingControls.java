@@ -0,0 +1,70 @@
+package fi.lmarkk.litepaint;
+
+import android.graphics.Bitmap;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.Executor;
+
+/**
+ * Operations MainActivity performs on the drawing, called on the UI thread. PaintingView carries
+ * them out right away, SurfacePaintingView passes them on to its render thread.
+ *
+ * @version 2020.0419
+ */
+interface PaintingControls {
+    void setColor(String newColor);
+
+    int getPaintColor();
+
+    void setBrushSize(float newSize);
+
+    void setLastBrushSize(float lastSize);
+
+    float getLastBrushSize();
+
+    void setErase(boolean isErase);
+
+    void setBrush(Brush brush);
+
+    Brush getBrush();
+
+    void setFillMode(boolean enabled);
+
+    boolean isFillMode();
+
+    void startNew();
+
+    /**
+     * @return false if there was nothing to undo.
+     */
+    boolean undo();
+
+    /**
+     * @return false if there was nothing to redo.
+     */
+    boolean redo();
+
+    /**
+     * @return Mutable copy of the canvas owned by the caller, or null if there is no canvas.
+     */
+    Bitmap createSnapshot();
+
+    void trimMemory(int level);
+
+    void setStrokeLog(StrokeLogWriter log);
+
+    void setAutosave(TileJournal journal, Executor writer) throws IOException;
+
+    void flushAutosave();
+
+    void setStatsEnabled(boolean enabled);
+
+    void setStatsOverlay(boolean visible);
+
+    void resetStats();
+
+    void dumpStats(PrintWriter writer);
+
+    void release();
+}
@@ -1,18 +1,39 @@
 package fi.lmarkk.litepaint;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.graphics.Color;
 import android.graphics.PorterDuff;
 import android.graphics.PorterDuffXfermode;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.AttributeSet;
+import android.util.Log;
 import android.util.TypedValue;
+import android.view.Choreographer;
+import android.view.ScaleGestureDetector;
 import android.view.View;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
-import android.graphics.Path;
+import android.graphics.Rect;
 import android.view.MotionEvent;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 /**
  * Class which holds instances of Canvas, Bitmap, Paint and other related classes to facilitate
  * the user painting on a canvas with various brush sizes and colors.
@@ -20,16 +41,91 @@ import android.view.MotionEvent;
  * @author Lassi Markkinen
  * @version 2020.0419
  */
-public class PaintingView extends View {
-    private Path drawPath;
+public class PaintingView extends View implements PaintingControls {
+    private static final String TAG = "PaintingView";
+    private static final long DEFAULT_UNDO_BUDGET = 24L * 1024 * 1024;
+    private static final int MAX_UNDO_STEPS = 100;
+    private static final String TILE_CACHE_FILE = "tiles-%d.cache";
+    private static final float OVERLAY_TEXT_DP = 12f;
+    /** Memory kept for reusing the bitmaps of cleared tiles and of the resized scratch layer. */
+    private static final long BITMAP_POOL_BYTES = 16L * 1024 * 1024;
+
+    /**
+     * How the view itself is composited. Erasing always happens off-screen in the canvas tiles,
+     * so both modes produce the same pixels.
+     */
+    public enum RenderMode {
+        /** The view stays hardware accelerated when the window is. */
+        HARDWARE,
+        /** The view is rendered into a software layer, kept as a fallback. */
+        SOFTWARE
+    }
+
+    /**
+     * How imported strokes are drawn.
+     */
+    public enum Playback {
+        /** Everything is drawn at once, and the view is redrawn once at the end. */
+        IMMEDIATE,
+        /** Strokes are drawn one after another, each at the speed it was recorded. */
+        REAL_TIME
+    }
+
     private Paint drawPaint, canvasPaint;
     private int paintColor = 0xFF000000;
-    private Canvas drawCanvas;
-    private Bitmap canvasBitmap;
+    private final LayerStack layers = new LayerStack();
+    private final BitmapPool bitmapPool = new BitmapPool(BITMAP_POOL_BYTES);
+    private int nextLayerId;
     private float brushSize, lastBrushSize;
+    private boolean erase;
+    private RenderMode renderMode;
+    private final StrokeEngine strokeEngine = new StrokeEngine();
+    private StrokeLogWriter strokeLog;
+    private final StrokeReplayer replayer = new StrokeReplayer();
+    /** Layers changed by each undoable step, oldest first. */
+    private final List<Layer[]> undoSteps = new ArrayList<>();
+    private final List<Layer[]> redoSteps = new ArrayList<>();
+    private long undoBudget = DEFAULT_UNDO_BUDGET;
+    private final Rect clipRect = new Rect();
+    private final Rect canvasClip = new Rect();
+    private final Viewport viewport = new Viewport();
+    private final StrokeBounds viewBounds = new StrokeBounds();
+    private final ScaleGestureDetector scaleDetector;
+    private boolean navigating;
+    /** Number of tiles blitted by the latest frame, read by tests. */
+    int lastFrameTiles;
+    private FrameStats stats;
+    private Paint overlayPaint;
+    private final Rect overlayRect = new Rect();
+    private boolean fillMode;
+    private int fillTolerance = FloodFill.DEFAULT_TOLERANCE;
+    private Executor fillExecutor;
+    /** Handler of the thread the view was created on, which fills and autosaves post back to. */
+    private final Handler ownerHandler = new Handler(Looper.myLooper() != null
+            ? Looper.myLooper() : Looper.getMainLooper());
+    private final Executor ownerExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            ownerHandler.post(command);
+        }
+    };
+    /** Thread tiles are paged out on, created on the first trimMemory. */
+    private ExecutorService pageOutExecutor;
+    /** Used on the fill executor only. */
+    private final FloodFill floodFill = new FloodFill();
+    private FillTask pendingFill;
+    private final StrokeBounds fillBounds = new StrokeBounds();
+    private Autosave autosave;
+    private TileJournal.Reader restoreSource;
+    private StrokePlayback playback;
+    /** Changed by every new drawing, so fills tapped on an earlier drawing are dropped. */
+    private int drawingGeneration;
 
     /**
-     * Public constructor which sets layer type for erasing functionality and calls setupDrawing.
+     * Public constructor which selects the hardware render mode and calls setupDrawing. The
+     * drawing starts with one layer, whose tiles are paged out into the app's cache directory
+     * under memory pressure. Two finger gestures pan and zoom the canvas. The bitmaps of
+     * cleared tiles and of the resized scratch layer are pooled for reuse.
      *
      * @author Lassi Markkinen
      * @param context App context.
@@ -37,9 +133,32 @@ public class PaintingView extends View {
      */
     public PaintingView(Context context, AttributeSet attrs) {
         super(context, attrs);
-        setLayerType(LAYER_TYPE_SOFTWARE, null);
+        layers.setBitmapPool(bitmapPool);
+        strokeEngine.setBitmapPool(bitmapPool);
+        layers.add(0, createLayer());
+        strokeEngine.setViewport(viewport);
+        scaleDetector = new ScaleGestureDetector(context, new ScaleListener());
+        setRenderMode(RenderMode.HARDWARE);
         setupDrawing();
     }
+
+    /**
+     * Method which selects how the view is composited.
+     *
+     * The eraser used to need a software layer for the whole view because PorterDuff.Mode.CLEAR
+     * was applied to the view canvas. Erasing now only happens in the canvas tiles and inside an
+     * off-screen layer while previewing, so the software layer is only kept as a fallback.
+     *
+     * @param mode Render mode to use.
+     */
+    public void setRenderMode(RenderMode mode) {
+        renderMode = mode;
+        setLayerType(mode == RenderMode.SOFTWARE ? LAYER_TYPE_SOFTWARE : LAYER_TYPE_NONE, null);
+    }
+
+    public RenderMode getRenderMode() {
+        return renderMode;
+    }
     /**
      * Utility method which instantiates the class attributes.
      *
@@ -48,39 +167,147 @@ public class PaintingView extends View {
     private void setupDrawing() {
         brushSize = getResources().getInteger(R.integer.medium_size);
         lastBrushSize = brushSize;
-        drawPath = new Path();
         drawPaint = new Paint();
         drawPaint.setColor(paintColor);
-        drawPaint.setAntiAlias(true);
         drawPaint.setStrokeWidth(brushSize);
-        drawPaint.setStyle(Paint.Style.STROKE);
-        drawPaint.setStrokeJoin(Paint.Join.ROUND);
-        drawPaint.setStrokeCap(Paint.Cap.ROUND);
+        StrokeReplayer.setupStrokePaint(drawPaint);
         canvasPaint = new Paint(Paint.DITHER_FLAG);
     }
 
+    /**
+     * Grows the canvas to cover the view. The canvas never shrinks, so resizing the view keeps the
+     * whole drawing, and the undo history stays valid because tiles keep their positions.
+     */
     @Override
     protected void onSizeChanged(int w, int h, int oldw, int oldh) {
         super.onSizeChanged(w, h, oldw, oldh);
-        canvasBitmap = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
-        drawCanvas = new Canvas(canvasBitmap);
+        strokeEngine.setSize(w, h);
+        if (layers.ensureSize(w, h)) {
+            log(StrokeRecord.size(layers.getWidth(), layers.getHeight()));
+            scheduleAutosave();
+        }
+        viewport.clamp(w, h, layers.getWidth(), layers.getHeight());
     }
 
     /**
-     * Called when user draws a path on the canvas. calls Canvas drawBitmap and drawPath methods.
+     * Called when user draws a path on the canvas. Draws the layers and the stroke in progress.
+     *
+     * Only the tiles inside the current clip are blitted, so a frame caused by a small invalidate
+     * rectangle does not composite the whole canvas, and tiles nothing was drawn on are skipped.
+     * The layers below and above the active one are drawn from their cached composites, so a
+     * frame blits each tile at most three times however many layers there are. When zoomed out a
+     * downsampled level of the composite of all layers is drawn instead. A stroke is previewed
+     * inside an off-screen layer when it erases or the active layer is not drawn as is, so it
+     * only changes the active layer. Layers with blend modes are drawn inside a layer of their
+     * own too, so they blend with the layers below and not with the view background.
      *
      * @author Lassi Markkinen
      * @param canvas Canvas used for drawing.
      */
     @Override
     protected void onDraw(Canvas canvas) {
-        canvas.drawBitmap(canvasBitmap, 0, 0, canvasPaint);
-        canvas.drawPath(drawPath, drawPaint);
+        FrameStats frameStats = stats;
+        if (frameStats != null) {
+            frameStats.beginFrame();
+        }
+        bitmapPool.advanceFrame();
+        if (!canvas.getClipBounds(clipRect)) {
+            return;
+        }
+        int saveCount = canvas.getSaveCount();
+        int level = MipPyramid.levelFor(viewport.getScale());
+        lastFrameTiles = 0;
+        if (level > 0) {
+            if (strokeEngine.isErase()) {
+                saveLayer(canvas, null);
+            }
+            if (beginCanvas(canvas)) {
+                lastFrameTiles = layers.drawComposite(canvas, canvasClip, level, canvasPaint);
+            }
+            canvas.restore();
+            strokeEngine.draw(canvas, clipRect);
+        } else {
+            if (layers.hasBlendModes()) {
+                saveLayer(canvas, null);
+            }
+            if (beginCanvas(canvas)) {
+                lastFrameTiles = layers.drawBelow(canvas, canvasClip, canvasPaint);
+            }
+            canvas.restore();
+            Layer active = layers.getActive();
+            if (active.isVisible()) {
+                boolean isolate = strokeEngine.isErase()
+                        || strokeEngine.isActive() && !active.isPlain();
+                if (isolate) {
+                    saveLayer(canvas, active.getPaint());
+                }
+                if (beginCanvas(canvas)) {
+                    lastFrameTiles += layers.drawActive(canvas, canvasClip,
+                            isolate ? canvasPaint : null);
+                }
+                canvas.restore();
+                strokeEngine.draw(canvas, clipRect);
+                if (isolate) {
+                    canvas.restore();
+                }
+            }
+            if (beginCanvas(canvas)) {
+                lastFrameTiles += layers.drawAbove(canvas, canvasClip, canvasPaint);
+            }
+        }
+        canvas.restoreToCount(saveCount);
+        if (frameStats != null) {
+            frameStats.endFrame();
+            if (overlayPaint != null) {
+                drawOverlay(canvas, frameStats);
+            }
+        }
     }
 
     /**
-     * Method which handles user touch events. Updates drawPath according to user motion and calls
-     * Canvas.drawPath when finger is lifted from screen.
+     * Saves the canvas and maps it to canvas coordinates, leaving the visible part of the
+     * canvas in canvasClip. Must be followed by a restore.
+     *
+     * @return false if no part of the canvas is visible.
+     */
+    private boolean beginCanvas(Canvas canvas) {
+        canvas.save();
+        canvas.translate(viewport.getOffsetX(), viewport.getOffsetY());
+        canvas.scale(viewport.getScale(), viewport.getScale());
+        return canvas.getClipBounds(canvasClip)
+                && canvasClip.intersect(0, 0, layers.getWidth(), layers.getHeight());
+    }
+
+    private void saveLayer(Canvas canvas, Paint paint) {
+        canvas.saveLayer(clipRect.left, clipRect.top, clipRect.right, clipRect.bottom, paint);
+    }
+
+    /**
+     * Draws the frame statistics in the top left corner of the view.
+     */
+    private void drawOverlay(Canvas canvas, FrameStats frameStats) {
+        float lineHeight = overlayPaint.getTextSize() * 1.25f;
+        String[] lines = frameStats.summary();
+        for (int i = 0; i < lines.length; i++) {
+            canvas.drawText(lines[i], overlayRect.left + lineHeight / 4,
+                    overlayRect.top + lineHeight * (i + 1), overlayPaint);
+        }
+    }
+
+    /**
+     * Method which handles user touch events. Feeds the user motion to the stroke engine and
+     * commits the stroke into the tiles of the active layer when finger is lifted from screen.
+     *
+     * Android batches several touch samples into one ACTION_MOVE event, so the historical samples
+     * are fed to the stroke engine before the current one. Instead of redrawing the whole view,
+     * only the bounds of the new segments padded by the stroke width are invalidated. When the
+     * finger is lifted the bounds of the whole stroke are invalidated once so the baked result
+     * replaces the preview, and the tiles under those bounds are saved for undo first.
+     *
+     * A second finger cancels the stroke and the gesture pans and zooms the canvas until every
+     * finger is lifted. Touch samples are mapped from the view to canvas coordinates. In fill
+     * mode lifting the finger fills the area under it instead of drawing. Touches are ignored
+     * while imported strokes are played back in real time.
      *
      * @author Lassi Markkinen
      * @param event The motion event registered when user presses on the screen.
@@ -88,27 +315,208 @@ public class PaintingView extends View {
      */
     @Override
     public boolean onTouchEvent(MotionEvent event) {
-        float touchX = event.getX();
-        float touchY = event.getY();
-
-        switch (event.getAction()) {
+        if (playback != null) {
+            return true;
+        }
+        if (stats != null) {
+            recordTouch(event);
+        }
+        scaleDetector.onTouchEvent(event);
+        switch (event.getActionMasked()) {
             case MotionEvent.ACTION_DOWN:
-                drawPath.moveTo(touchX, touchY);
+                navigating = false;
+                if (fillMode) {
+                    break;
+                }
+                strokeEngine.begin(viewport.toCanvasX(event.getX()),
+                        viewport.toCanvasY(event.getY()), event.getPressure(),
+                        event.getEventTime(), drawPaint, erase);
+                break;
+            case MotionEvent.ACTION_POINTER_DOWN:
+                if (!navigating) {
+                    navigating = true;
+                    strokeEngine.cancel();
+                    invalidateBounds(strokeEngine.getStrokeBounds());
+                }
+                break;
+            case MotionEvent.ACTION_POINTER_UP:
                 break;
             case MotionEvent.ACTION_MOVE:
-                drawPath.lineTo(touchX, touchY);
+                if (navigating || fillMode) {
+                    break;
+                }
+                addSamples(event);
+                invalidateBounds(strokeEngine.getDirtyBounds());
+                strokeEngine.clearDirtyBounds();
                 break;
             case MotionEvent.ACTION_UP:
-                drawCanvas.drawPath(drawPath, drawPaint);
-                drawPath.reset();
+                if (navigating) {
+                    navigating = false;
+                    break;
+                }
+                if (fillMode) {
+                    fill((int) Math.floor(viewport.toCanvasX(event.getX())),
+                            (int) Math.floor(viewport.toCanvasY(event.getY())));
+                    break;
+                }
+                addSamples(event);
+                commitStroke(drawPaint, strokeFlags());
+                break;
+            case MotionEvent.ACTION_CANCEL:
+                navigating = false;
+                strokeEngine.cancel();
+                invalidateBounds(strokeEngine.getStrokeBounds());
                 break;
             default:
                 return false;
         }
-        invalidate();
         return true;
     }
 
+    /**
+     * Bakes the stroke in progress into the active layer as an undoable step and logs it. The
+     * tiles under the stroke are saved for undo first.
+     *
+     * @param paint Paint the stroke was begun with.
+     * @param flags StrokeRecord flags of the stroke.
+     */
+    private void commitStroke(Paint paint, int flags) {
+        strokeEngine.finish();
+        Layer layer = layers.getActive();
+        layer.history.captureTiles(strokeEngine.getStrokeBounds());
+        strokeEngine.commit(layer.tiles, paint);
+        invalidateLayer(layer, strokeEngine.getStrokeBounds());
+        invalidateBounds(strokeEngine.getStrokeBounds());
+        StrokeRecord record = StrokeRecord.stroke(paint.getColor(), paint.getStrokeWidth(),
+                flags, strokeEngine.getPoints());
+        layer.history.push(record);
+        pushStep(layer);
+        log(record);
+    }
+
+    /**
+     * Records the oldest sample of the event for the touch latency, and how many samples a move
+     * event carries. The overlay is redrawn with every touch event while it is shown.
+     */
+    private void recordTouch(MotionEvent event) {
+        int historySize = event.getHistorySize();
+        stats.touched(historySize > 0 ? event.getHistoricalEventTime(0) : event.getEventTime());
+        if (event.getActionMasked() == MotionEvent.ACTION_MOVE) {
+            stats.moved(historySize + 1);
+        }
+        if (overlayPaint != null) {
+            invalidate(overlayRect);
+        }
+    }
+
+    /**
+     * Feeds the historical samples batched into the event and then the event's own sample to the
+     * stroke engine.
+     *
+     * @param event Motion event holding the samples.
+     */
+    private void addSamples(MotionEvent event) {
+        int historySize = event.getHistorySize();
+        for (int i = 0; i < historySize; i++) {
+            strokeEngine.addPoint(viewport.toCanvasX(event.getHistoricalX(i)),
+                    viewport.toCanvasY(event.getHistoricalY(i)),
+                    event.getHistoricalPressure(i), event.getHistoricalEventTime(i));
+        }
+        strokeEngine.addPoint(viewport.toCanvasX(event.getX()), viewport.toCanvasY(event.getY()),
+                event.getPressure(), event.getEventTime());
+    }
+
+    /**
+     * @return StrokeRecord flags describing the stroke settings currently in use.
+     */
+    private int strokeFlags() {
+        int flags = erase ? StrokeRecord.FLAG_ERASE : 0;
+        if (strokeEngine.getSmoother() == StrokeSmoother.QUAD_MIDPOINT) {
+            flags |= StrokeRecord.FLAG_SMOOTH;
+        }
+        return flags | strokeEngine.getBrush().toFlags();
+    }
+
+    /**
+     * Appends a record to the stroke log if one is set. A log that fails to write is dropped so
+     * drawing can go on without it.
+     *
+     * @param record Record to append.
+     */
+    private void log(StrokeRecord record) {
+        if (strokeLog == null) {
+            return;
+        }
+        try {
+            strokeLog.append(record);
+        } catch (IOException e) {
+            Log.w(TAG, "Stroke log disabled", e);
+            strokeLog = null;
+        }
+    }
+
+    /**
+     * Empties the stroke log for a new drawing, so it does not grow without bound, and writes the
+     * canvas size the new drawing is replayed with. Undoing the new drawing is logged, but the
+     * drawing it brings back cannot be replayed from the log.
+     */
+    private void resetLog() {
+        if (strokeLog == null) {
+            return;
+        }
+        try {
+            strokeLog.reset();
+        } catch (IOException e) {
+            Log.w(TAG, "Stroke log disabled", e);
+            strokeLog = null;
+            return;
+        }
+        log(StrokeRecord.size(layers.getWidth(), layers.getHeight()));
+    }
+
+    /**
+     * Invalidates the part of the view covered by the given bounds.
+     *
+     * @param bounds Dirty area in canvas coordinates.
+     */
+    private void invalidateBounds(StrokeBounds bounds) {
+        viewport.toView(bounds, viewBounds);
+        if (!viewBounds.isEmpty()) {
+            invalidate(viewBounds.left, viewBounds.top, viewBounds.right, viewBounds.bottom);
+        }
+    }
+
+    /**
+     * Marks an area of a layer as changed so the cached composites holding it are rebuilt there.
+     *
+     * @param layer Layer that changed.
+     * @param bounds Changed area in canvas coordinates.
+     */
+    private void invalidateLayer(Layer layer, StrokeBounds bounds) {
+        if (!bounds.isEmpty()) {
+            layers.invalidate(layer, bounds.left, bounds.top, bounds.right, bounds.bottom);
+        }
+    }
+
+    /**
+     * Adds an undoable step that changed the given layers. Steps that could have been redone are
+     * dropped.
+     */
+    private void pushStep(Layer... changed) {
+        redoSteps.clear();
+        undoSteps.add(changed);
+        if (undoSteps.size() > MAX_UNDO_STEPS) {
+            undoSteps.remove(0);
+        }
+        scheduleAutosave();
+    }
+
+    private void scheduleAutosave() {
+        if (autosave != null) {
+            autosave.changed();
+        }
+    }
+
     /**
      * Method which parses and sets the color for the Paint instance.
      *
@@ -136,6 +544,125 @@ public class PaintingView extends View {
         drawPaint.setStrokeWidth(brushSize);
     }
 
+    /**
+     * Method which selects the brush tip. The dab brushes follow the pressure and speed of the
+     * finger, with the brush size as the width at full pressure. A stroke in progress is
+     * cancelled.
+     *
+     * @param brush Brush used for the following strokes.
+     */
+    public void setBrush(Brush brush) {
+        strokeEngine.cancel();
+        invalidateBounds(strokeEngine.getStrokeBounds());
+        strokeEngine.setBrush(brush);
+    }
+
+    public Brush getBrush() {
+        return strokeEngine.getBrush();
+    }
+
+    /**
+     * Method which switches between drawing strokes and filling the area under a tap. Fills
+     * use the paint color, or cut the area out while erasing. A stroke in progress is cancelled.
+     *
+     * @param enabled Whether taps fill instead of drawing.
+     */
+    public void setFillMode(boolean enabled) {
+        strokeEngine.cancel();
+        invalidateBounds(strokeEngine.getStrokeBounds());
+        fillMode = enabled;
+    }
+
+    public boolean isFillMode() {
+        return fillMode;
+    }
+
+    /**
+     * @param tolerance Largest difference of any ARGB channel, 0 to 255, from the tapped pixel
+     *                  that is still filled.
+     */
+    public void setFillTolerance(int tolerance) {
+        fillTolerance = Math.max(0, Math.min(255, tolerance));
+    }
+
+    public int getFillTolerance() {
+        return fillTolerance;
+    }
+
+    /**
+     * Method which fills the area of the active layer connected to a pixel whose colors are
+     * within the fill tolerance of it.
+     *
+     * The area is traced on a background thread from the tile bitmaps, so the UI thread only
+     * collects the tiles and finally draws the filled area into the layer as one bitmap. If the
+     * layer changes meanwhile the fill is traced again from its new pixels.
+     *
+     * @param x Canvas x coordinate of the pixel.
+     * @param y Canvas y coordinate of the pixel.
+     */
+    public void fill(int x, int y) {
+        if (x < 0 || y < 0 || x >= layers.getWidth() || y >= layers.getHeight()) {
+            return;
+        }
+        submitFill(layers.getActive(), StrokeRecord.fill(drawPaint.getColor(), x, y,
+                fillTolerance, erase ? StrokeRecord.FLAG_ERASE : 0));
+    }
+
+    /**
+     * @return Whether a fill is still being traced.
+     */
+    boolean isFilling() {
+        return pendingFill != null;
+    }
+
+    /**
+     * Sets the executor fills are traced on, instead of a thread of the view's own.
+     */
+    void setFillExecutor(Executor executor) {
+        fillExecutor = executor;
+    }
+
+    private void submitFill(Layer layer, StrokeRecord record) {
+        if (fillExecutor == null) {
+            fillExecutor = Executors.newSingleThreadExecutor();
+        }
+        pendingFill = new FillTask(layer, record);
+        fillExecutor.execute(pendingFill);
+    }
+
+    /**
+     * Draws a traced fill into its layer as an undoable step, or traces it again if the layer
+     * changed after its pixels were read. A fill tapped before a new drawing was started is
+     * dropped.
+     */
+    private void applyFill(FillTask task) {
+        bitmapPool.unpin();
+        if (pendingFill == task) {
+            pendingFill = null;
+        }
+        Layer layer = task.layer;
+        if (task.generation != drawingGeneration || layers.indexOf(layer) < 0) {
+            return;
+        }
+        if (layer.modCount != task.modCount) {
+            submitFill(layer, task.record);
+            return;
+        }
+        if (task.region == null) {
+            return;
+        }
+        fillBounds.set(task.left, task.top, task.left + task.region.getWidth(),
+                task.top + task.region.getHeight());
+        layer.history.captureTiles(fillBounds);
+        FloodFill.drawRegion(layer.tiles, task.region, task.left, task.top,
+                task.record.isErase());
+        invalidateLayer(layer, fillBounds);
+        invalidateBounds(fillBounds);
+        layer.history.push(task.record);
+        pushStep(layer);
+        log(task.record);
+    }
+
     public void setLastBrushSize(float lastSize) {
         lastBrushSize=  lastSize;
     }
@@ -155,6 +682,7 @@ public class PaintingView extends View {
      * @param isErase Determines whether the Paint instance is set to erase or not.
      */
     public void setErase(boolean isErase) {
+        erase = isErase;
         if(isErase) {
             drawPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.CLEAR));
         } else {
@@ -163,18 +691,978 @@ public class PaintingView extends View {
     }
 
     /**
-     * Method which starts a new painting. calls the Canvas.DrawColor method with
-     * PorterDuff.Mode.CLEAR and Canvas.invalidate methods which effectively erases the whole canvas
-     * and refreshes the screen so user can see the change immediately.
+     * Method which starts a new painting. Frees the tiles of every layer and calls the
+     * Canvas.invalidate method which effectively erases the whole canvas and refreshes the screen
+     * so user can see the change immediately. The layers themselves are kept.
      *
      * @author Lassi Markkinen
      */
     public void startNew(){
-        drawCanvas.drawColor(0, PorterDuff.Mode.CLEAR);
+        strokeEngine.cancel();
+        drawingGeneration++;
+        pendingFill = null;
+        StrokeRecord record = StrokeRecord.clear();
+        Layer[] changed = new Layer[layers.size()];
+        for (int i = 0; i < changed.length; i++) {
+            changed[i] = layers.get(i);
+            changed[i].tiles.clear();
+            layers.invalidate(changed[i]);
+            changed[i].history.push(record);
+        }
+        layers.trim();
+        pushStep(changed);
+        resetLog();
+        invalidate();
+    }
+
+    /**
+     * Method which undoes the latest stroke or new drawing. Every layer keeps its own history,
+     * so only the layers the step changed are touched.
+     *
+     * @return false if there was nothing to undo.
+     */
+    public boolean undo() {
+        strokeEngine.cancel();
+        if (undoSteps.isEmpty()) {
+            return false;
+        }
+        Layer[] step = undoSteps.remove(undoSteps.size() - 1);
+        for (Layer layer : step) {
+            layer.history.undo();
+        }
+        redoSteps.add(step);
+        log(StrokeRecord.undo());
+        scheduleAutosave();
+        invalidate();
+        return true;
+    }
+
+    /**
+     * Method which redoes the latest undone stroke or new drawing.
+     *
+     * @return false if there was nothing to redo.
+     */
+    public boolean redo() {
+        strokeEngine.cancel();
+        if (redoSteps.isEmpty()) {
+            return false;
+        }
+        Layer[] step = redoSteps.remove(redoSteps.size() - 1);
+        for (Layer layer : step) {
+            layer.history.redo();
+        }
+        undoSteps.add(step);
+        log(StrokeRecord.redo());
+        scheduleAutosave();
+        invalidate();
+        return true;
+    }
+
+    public boolean canUndo() {
+        return !undoSteps.isEmpty();
+    }
+
+    public boolean canRedo() {
+        return !redoSteps.isEmpty();
+    }
+
+    /**
+     * Method which sets how much memory the undo history may use for saved canvas tiles. The
+     * budget is shared evenly by the layers. Older steps stay undoable past the budget, but are
+     * undone by replaying strokes.
+     *
+     * @param bytes Memory budget in bytes.
+     */
+    public void setUndoBudget(long bytes) {
+        undoBudget = bytes;
+        for (int i = 0; i < layers.size(); i++) {
+            layers.get(i).history.setBudget(bytes / layers.size());
+        }
+    }
+
+    /**
+     * Method which adds an empty layer above the active one and makes it active. Layers cost no
+     * memory until they are painted on.
+     *
+     * @return Index of the new layer, or -1 if there are already LayerStack.MAX_LAYERS layers.
+     */
+    public int addLayer() {
+        if (layers.size() >= LayerStack.MAX_LAYERS) {
+            return -1;
+        }
+        strokeEngine.cancel();
+        layers.add(layers.getActiveIndex() + 1, createLayer());
+        setUndoBudget(undoBudget);
+        scheduleAutosave();
         invalidate();
+        return layers.getActiveIndex();
+    }
+
+    /**
+     * Method which deletes a layer and its tiles. Deleting a layer cannot be undone, and steps
+     * that only changed the layer are dropped from the undo history.
+     *
+     * @param index Index of the layer, 0 being the bottom.
+     * @return false if it is the only layer.
+     */
+    public boolean removeLayer(int index) {
+        if (layers.size() == 1) {
+            return false;
+        }
+        strokeEngine.cancel();
+        Layer layer = layers.remove(index);
+        layer.tiles.close();
+        forgetLayer(undoSteps, layer);
+        forgetLayer(redoSteps, layer);
+        setUndoBudget(undoBudget);
+        scheduleAutosave();
+        invalidate();
+        return true;
+    }
+
+    /**
+     * Removes a layer from the given steps, and steps left without layers.
+     */
+    private static void forgetLayer(List<Layer[]> steps, Layer layer) {
+        for (int i = steps.size() - 1; i >= 0; i--) {
+            List<Layer> kept = new ArrayList<>();
+            for (Layer changed : steps.get(i)) {
+                if (changed != layer) {
+                    kept.add(changed);
+                }
+            }
+            if (kept.isEmpty()) {
+                steps.remove(i);
+            } else {
+                steps.set(i, kept.toArray(new Layer[0]));
+            }
+        }
+    }
+
+    /**
+     * Method which moves a layer to another position in the stack.
+     *
+     * @param from Index of the layer.
+     * @param to New index of the layer.
+     */
+    public void moveLayer(int from, int to) {
+        strokeEngine.cancel();
+        layers.move(from, to);
+        scheduleAutosave();
+        invalidate();
+    }
+
+    public int getLayerCount() {
+        return layers.size();
+    }
+
+    /**
+     * Method which selects the layer the following strokes are drawn on. A stroke in progress
+     * is cancelled.
+     *
+     * @param index Index of the layer, 0 being the bottom.
+     */
+    public void setActiveLayer(int index) {
+        strokeEngine.cancel();
+        layers.setActive(index);
+        scheduleAutosave();
+        invalidate();
+    }
+
+    public int getActiveLayer() {
+        return layers.getActiveIndex();
+    }
+
+    /**
+     * Method which sets the opacity a layer is drawn with. The pixels of the layer are kept, so
+     * the opacity can be raised again later.
+     *
+     * @param index Index of the layer.
+     * @param opacity Opacity between 0 and 1.
+     */
+    public void setLayerOpacity(int index, float opacity) {
+        Layer layer = layers.get(index);
+        layer.setOpacity(opacity);
+        layers.invalidate(layer);
+        scheduleAutosave();
+        invalidate();
+    }
+
+    public float getLayerOpacity(int index) {
+        return layers.get(index).getOpacity();
+    }
+
+    public void setLayerVisible(int index, boolean visible) {
+        Layer layer = layers.get(index);
+        layer.setVisible(visible);
+        layers.invalidate(layer);
+        scheduleAutosave();
+        invalidate();
+    }
+
+    public boolean isLayerVisible(int index) {
+        return layers.get(index).isVisible();
+    }
+
+    /**
+     * Method which sets how a layer is blended onto the layers below it.
+     *
+     * @param index Index of the layer.
+     * @param mode Blend mode, PorterDuff.Mode.SRC_OVER for normal.
+     */
+    public void setLayerBlendMode(int index, PorterDuff.Mode mode) {
+        Layer layer = layers.get(index);
+        layer.setBlendMode(mode);
+        layers.invalidate(layer);
+        scheduleAutosave();
+        invalidate();
+    }
+
+    public PorterDuff.Mode getLayerBlendMode(int index) {
+        return layers.get(index).getBlendMode();
+    }
+
+    /**
+     * Creates an empty layer with a new id, and a tile cache file and undo history of its own.
+     */
+    private Layer createLayer() {
+        return createLayer(nextLayerId++);
+    }
+
+    private Layer createLayer(int id) {
+        Layer layer = new Layer(id, new File(getContext().getCacheDir(),
+                String.format(Locale.US, TILE_CACHE_FILE, id)));
+        layer.tiles.setBitmapPool(bitmapPool);
+        layer.history = new UndoHistory<>(new TileSurface(layer),
+                undoBudget / (layers.size() + 1), MAX_UNDO_STEPS);
+        return layer;
+    }
+
+    /**
+     * Method which sets the log every finished stroke is appended to. The current canvas size is
+     * written first so the log can be replayed at any resolution.
+     *
+     * @param log Open stroke log, or null to stop logging.
+     */
+    public void setStrokeLog(StrokeLogWriter log) {
+        strokeLog = log;
+        if (layers.getWidth() > 0) {
+            log(StrokeRecord.size(layers.getWidth(), layers.getHeight()));
+        }
+    }
+
+    /**
+     * Method which restores the drawing autosaved in a journal and from then on autosaves every
+     * change into it.
+     *
+     * Restoring only reads the layer settings and where each tile is in the journal, so the
+     * canvas can be drawn on right away and a tile is read when it is first drawn. The undo
+     * history is not saved, so the restored drawing starts without one. A journal that cannot be
+     * restored from is emptied. The journal is opened in the background while the canvas can
+     * already be drawn on, and a drawing started before it arrives is kept and replaces the
+     * autosaved one.
+     *
+     * @param journal Journal opened with Autosave.open.
+     * @param writer Executor the journal is written on, the only user of the journal from now on.
+     * @throws IOException If the journal cannot be restored from nor emptied.
+     */
+    public void setAutosave(TileJournal journal, Executor writer) throws IOException {
+        if (journal.getState() != null && isDrawnOn()) {
+            journal.reset();
+        } else if (journal.getState() != null) {
+            try {
+                restore(journal);
+            } catch (IOException e) {
+                Log.w(TAG, "Autosaved drawing could not be restored", e);
+                journal.reset();
+            }
+        }
+        autosave = new Autosave(journal, writer, ownerHandler, new Autosave.Source() {
+            @Override
+            public TileJournal.Checkpoint createCheckpoint() {
+                return PaintingView.this.createCheckpoint();
+            }
+
+            @Override
+            public void writeFailed(TileJournal.Checkpoint checkpoint) {
+                for (int i = 0; i < checkpoint.getTileCount(); i++) {
+                    int[] key = checkpoint.getTileKey(i);
+                    for (int j = 0; j < layers.size(); j++) {
+                        if (layers.get(j).id == key[0]) {
+                            layers.get(j).tiles.markUnsaved(key[1], key[2]);
+                        }
+                    }
+                }
+            }
+        });
+        scheduleAutosave();
+    }
+
+    /**
+     * @return Whether anything was drawn, undone, filled or imported since the view was created
+     * or restored.
+     */
+    private boolean isDrawnOn() {
+        return canUndo() || canRedo() || pendingFill != null || isPlaying()
+                || strokeEngine.isActive();
+    }
+
+    /**
+     * Method which autosaves the changes made since the latest autosave right away instead of
+     * waiting for the next one. Called when the app goes to the background, where it may be
+     * killed.
+     */
+    public void flushAutosave() {
+        if (autosave != null) {
+            autosave.saveNow();
+        }
+    }
+
+    /**
+     * Method which draws the strokes of a stroke log file into the active layer. Each stroke,
+     * fill and new drawing becomes its own undoable step and is logged like one drawn by hand, so
+     * the result is the same as drawing the strokes live. Undone strokes in the log are skipped.
+     *
+     * @param file Stroke log written by StrokeLogWriter.
+     * @param mode Whether to draw everything at once or at the speed it was recorded.
+     * @return Number of strokes, fills and new drawings imported.
+     * @throws IOException If the file cannot be read, is not a stroke log or holds a corrupt
+     * record. Nothing is drawn then.
+     */
+    public int importStrokes(File file, Playback mode) throws IOException {
+        return play(StrokeLogReader.readAll(file), mode);
+    }
+
+    /**
+     * Method which draws the strokes of a stroke log read from a stream into the active layer,
+     * like importStrokes(File, Playback). The stream is read to its end but not closed.
+     *
+     * @param in Stream holding a stroke log.
+     * @param mode Whether to draw everything at once or at the speed it was recorded.
+     * @return Number of strokes, fills and new drawings imported.
+     * @throws IOException If the stream cannot be read, does not hold a stroke log or holds a
+     * corrupt record. Nothing is drawn then.
+     */
+    public int importStrokes(InputStream in, Playback mode) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        int read;
+        while ((read = in.read(chunk)) != -1) {
+            bytes.write(chunk, 0, read);
+        }
+        return play(StrokeLogReader.readAll(ByteBuffer.wrap(bytes.toByteArray())), mode);
+    }
+
+    /**
+     * Method which draws one stroke of timestamped samples into the active layer with the
+     * current color, size, brush and eraser, as if it was drawn by hand.
+     *
+     * @param points Samples as x, y, pressure and time in milliseconds since the first sample,
+     *               in canvas coordinates.
+     * @param pointCount Number of samples in the array.
+     * @param mode Whether to draw the stroke at once or at the speed of its timestamps.
+     */
+    public void importStroke(float[] points, int pointCount, Playback mode) {
+        if (pointCount <= 0) {
+            return;
+        }
+        StrokeRecord record = StrokeRecord.stroke(drawPaint.getColor(),
+                drawPaint.getStrokeWidth(), strokeFlags(),
+                Arrays.copyOf(points, pointCount * PointBuffer.STRIDE), pointCount);
+        play(Collections.singletonList(record), mode);
+    }
+
+    /**
+     * Method which stops a real time import. The records drawn so far are kept, a stroke half
+     * way through is dropped.
+     */
+    public void cancelPlayback() {
+        if (playback != null) {
+            playback.stop();
+            playback = null;
+        }
+    }
+
+    /**
+     * @return Whether imported strokes are still being played back in real time.
+     */
+    public boolean isPlaying() {
+        return playback != null;
+    }
+
+    /**
+     * Applies imported records right away, or starts playing them back frame by frame. A
+     * playback still running is stopped first.
+     *
+     * @return Number of records other than size records.
+     */
+    private int play(List<StrokeRecord> records, Playback mode) {
+        cancelPlayback();
+        List<StrokeRecord> applied = StrokeReplayer.resolveUndo(records);
+        int count = 0;
+        for (StrokeRecord record : applied) {
+            if (record.type != StrokeRecord.TYPE_SIZE) {
+                count++;
+            }
+        }
+        if (mode == Playback.REAL_TIME) {
+            playback = new StrokePlayback(applied);
+            playback.start();
+            return count;
+        }
+        strokeEngine.cancel();
+        invalidateBounds(strokeEngine.getStrokeBounds());
+        for (StrokeRecord record : applied) {
+            applyImported(record);
+        }
+        invalidate();
+        return count;
+    }
+
+    /**
+     * Draws an imported record into the active layer in one go, without redrawing the view. The
+     * stroke is traced by the replayer, so it is snapped and drawn exactly like a live stroke.
+     */
+    private void applyImported(StrokeRecord record) {
+        if (record.type == StrokeRecord.TYPE_SIZE) {
+            setCanvasSize(record.canvasWidth(), record.canvasHeight());
+            return;
+        }
+        if (record.type == StrokeRecord.TYPE_CLEAR) {
+            startNew();
+            return;
+        }
+        Layer layer = layers.getActive();
+        StrokeBounds bounds = replayer.prepare(record, layer.tiles);
+        if (bounds == null || bounds.isEmpty()) {
+            return;
+        }
+        layer.history.captureTiles(bounds);
+        replayer.commit(layer.tiles);
+        if (record.type == StrokeRecord.TYPE_STROKE) {
+            record = StrokeRecord.stroke(record.color, record.width, record.flags,
+                    replayer.getTracedPoints());
+        }
+        invalidateLayer(layer, bounds);
+        layer.history.push(record);
+        pushStep(layer);
+        log(record);
+    }
+
+    /**
+     * Replaces the layers with the ones of the latest checkpoint of a journal. Their tiles are
+     * read from the journal as they are needed.
+     */
+    private void restore(TileJournal journal) throws IOException {
+        long start = System.nanoTime();
+        TileJournal.State state = journal.getState();
+        restoreSource = journal.openReader();
+        strokeEngine.cancel();
+        layers.ensureSize(state.width, state.height);
+        Layer initial = layers.getActive();
+        int tileCount = 0;
+        for (int i = 0; i < state.layerIds.length; i++) {
+            Layer layer = createLayer(state.layerIds[i]);
+            layer.setOpacity(state.opacities[i]);
+            layer.setVisible(state.visible[i]);
+            layer.setBlendMode(state.blendModes[i]);
+            layers.add(i, layer);
+            tileCount += journal.restore(layer.id, layer.tiles, restoreSource);
+            nextLayerId = Math.max(nextLayerId, layer.id + 1);
+        }
+        layers.remove(layers.indexOf(initial));
+        initial.tiles.close();
+        layers.setActive(state.active);
+        undoSteps.clear();
+        redoSteps.clear();
+        setUndoBudget(undoBudget);
+        log(StrokeRecord.size(layers.getWidth(), layers.getHeight()));
+        invalidate();
+        Log.i(TAG, String.format(Locale.US,
+                "Restored %dx%d canvas, %d layers and %d tiles in %.1f ms", state.width,
+                state.height, state.layerIds.length, tileCount, (System.nanoTime() - start) / 1e6));
+    }
+
+    /**
+     * Collects the layer settings and the tiles changed since the previous autosave.
+     */
+    private TileJournal.Checkpoint createCheckpoint() {
+        TileJournal.State state = new TileJournal.State(layers.getWidth(), layers.getHeight(),
+                layers.getActiveIndex(), layers.size());
+        TileJournal.Checkpoint checkpoint = new TileJournal.Checkpoint(state);
+        for (int i = 0; i < layers.size(); i++) {
+            Layer layer = layers.get(i);
+            state.layerIds[i] = layer.id;
+            state.opacities[i] = layer.getOpacity();
+            state.visible[i] = layer.isVisible();
+            state.blendModes[i] = layer.getBlendMode();
+            layer.tiles.takeChanges(checkpoint, layer.id);
+        }
+        return checkpoint;
+    }
+
+    /**
+     * Method which grows the canvas past the size of the view. Only tiles that are drawn on take
+     * memory, so a large canvas costs nothing until it is used.
+     *
+     * @param width Minimum canvas width in pixels.
+     * @param height Minimum canvas height in pixels.
+     */
+    public void setCanvasSize(int width, int height) {
+        if (layers.ensureSize(width, height)) {
+            log(StrokeRecord.size(layers.getWidth(), layers.getHeight()));
+            scheduleAutosave();
+            invalidate();
+        }
+    }
+
+    public int getCanvasWidth() {
+        return layers.getWidth();
+    }
+
+    public int getCanvasHeight() {
+        return layers.getHeight();
+    }
+
+    /**
+     * Method which zooms the canvas around a point of the view. A stroke in progress is
+     * cancelled.
+     *
+     * @param scale New scale, limited to Viewport.MIN_SCALE and Viewport.MAX_SCALE.
+     * @param focusX View x coordinate that stays in place.
+     * @param focusY View y coordinate that stays in place.
+     */
+    public void setZoom(float scale, float focusX, float focusY) {
+        strokeEngine.cancel();
+        viewport.zoomBy(scale / viewport.getScale(), focusX, focusY);
+        viewport.clamp(getWidth(), getHeight(), layers.getWidth(), layers.getHeight());
+        invalidate();
+    }
+
+    public float getZoom() {
+        return viewport.getScale();
+    }
+
+    /**
+     * Method which shows the canvas at 1:1 from its top left corner again.
+     */
+    public void resetZoom() {
+        strokeEngine.cancel();
+        viewport.reset();
+        invalidate();
+    }
+
+    /**
+     * Method which pages layer tiles out to their cache files when the system runs low on memory.
+     * While the app is visible only tiles outside the view are paged out, once it is hidden all
+     * of them are. Paged out tiles are read back in when they are drawn again. The composite of
+     * all layers and its zoomed out levels are dropped and rebuilt when needed, and so are the
+     * caches of the layers around the active one once the app is hidden. Pooled bitmaps are
+     * dropped in both cases. The tiles are written on a background thread, so trimming never
+     * waits for the disk, and their bitmaps are dropped once they are written.
+     *
+     * @param level Level passed to ComponentCallbacks2.onTrimMemory.
+     */
+    public void trimMemory(int level) {
+        Rect keep;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            layers.trim();
+            keep = null;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            layers.trimComposite();
+            canvasClip.set((int) Math.floor(viewport.toCanvasX(0f)),
+                    (int) Math.floor(viewport.toCanvasY(0f)),
+                    (int) Math.ceil(viewport.toCanvasX(getWidth())),
+                    (int) Math.ceil(viewport.toCanvasY(getHeight())));
+            keep = canvasClip;
+        } else {
+            return;
+        }
+        bitmapPool.clear();
+        if (pageOutExecutor == null) {
+            pageOutExecutor = Executors.newSingleThreadExecutor();
+        }
+        for (int i = 0; i < layers.size(); i++) {
+            layers.get(i).tiles.pageOut(keep, pageOutExecutor, ownerExecutor);
+        }
+    }
+
+    /**
+     * Method which turns the frame and touch statistics on or off. Recording only costs a few
+     * clock reads per frame and touch event, and nothing at all while it is off.
+     *
+     * @param enabled Whether to record statistics. Turning them off discards what was recorded.
+     */
+    public void setStatsEnabled(boolean enabled) {
+        if (!enabled) {
+            stats = null;
+            setStatsOverlay(false);
+        } else if (stats == null) {
+            stats = new FrameStats();
+        }
+    }
+
+    public boolean isStatsEnabled() {
+        return stats != null;
+    }
+
+    /**
+     * Method which shows the draw time and touch latency percentiles in the top left corner of
+     * the view. Showing the overlay turns the statistics on.
+     *
+     * @param visible Whether the overlay is shown.
+     */
+    public void setStatsOverlay(boolean visible) {
+        if (visible) {
+            setStatsEnabled(true);
+            if (overlayPaint == null) {
+                overlayPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+                overlayPaint.setColor(Color.RED);
+                overlayPaint.setTextSize(TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP,
+                        OVERLAY_TEXT_DP, getResources().getDisplayMetrics()));
+                int textSize = (int) Math.ceil(overlayPaint.getTextSize());
+                overlayRect.set(0, 0, textSize * 20, textSize * 3);
+            }
+        } else {
+            overlayPaint = null;
+        }
+        invalidate();
+    }
+
+    /**
+     * Method which clears the recorded statistics.
+     */
+    public void resetStats() {
+        if (stats != null) {
+            stats.reset();
+        }
+    }
+
+    /**
+     * Method which prints the recorded statistics and how often pooled bitmaps were reused, for
+     * example from Activity.dump so they show up in adb shell dumpsys activity.
+     *
+     * @param writer Writer to print to.
+     */
+    public void dumpStats(PrintWriter writer) {
+        if (stats == null) {
+            writer.println("frame stats disabled");
+        } else {
+            long bytes = layers.getCacheBytes() + strokeEngine.getAllocatedBytes();
+            for (int i = 0; i < layers.size(); i++) {
+                bytes += layers.get(i).tiles.getAllocatedBytes();
+            }
+            stats.dump(writer, bytes);
+        }
+        bitmapPool.dump(writer);
+    }
+
+    FrameStats getFrameStats() {
+        return stats;
+    }
+
+    BitmapPool getBitmapPool() {
+        return bitmapPool;
+    }
+
+    /**
+     * Method which deletes the tile cache files of the layers. Called when the drawing is no
+     * longer needed. Changes not autosaved yet are saved first.
+     */
+    public void release() {
+        cancelPlayback();
+        pendingFill = null;
+        bitmapPool.clear();
+        if (fillExecutor instanceof ExecutorService) {
+            ((ExecutorService) fillExecutor).shutdown();
+            fillExecutor = null;
+        }
+        if (pageOutExecutor != null) {
+            pageOutExecutor.shutdown();
+            pageOutExecutor = null;
+        }
+        if (autosave != null) {
+            autosave.close();
+            autosave = null;
+        }
+        for (int i = 0; i < layers.size(); i++) {
+            layers.get(i).tiles.close();
+        }
+        if (restoreSource != null) {
+            try {
+                restoreSource.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Closing the autosave reader failed", e);
+            }
+            restoreSource = null;
+        }
+    }
+
+    /**
+     * Method which sets how touch samples are joined into a stroke, for example with straight
+     * lines or quadratic curves.
+     *
+     * @param smoother Smoother used for the following strokes.
+     */
+    void setSmoother(StrokeSmoother smoother) {
+        strokeEngine.setSmoother(smoother);
     }
 
     public int getPaintColor() {
         return paintColor;
     }
+
+    /**
+     * Method which copies the committed drawing for saving. The visible layers are flattened
+     * into one bitmap, which is the only part of a save that has to run on the UI thread; a
+     * stroke in progress is not included.
+     *
+     * @return Mutable copy of the canvas owned by the caller, or null before the view is laid out.
+     */
+    public Bitmap createSnapshot() {
+        if (layers.getWidth() == 0) {
+            return null;
+        }
+        return layers.toBitmap();
+    }
+
+    /**
+     * Gives the undo history of a layer access to its tiles. Undo snapshots line up with the
+     * tiles, so a snapshot is a copy of one tile and an empty tile needs no copy at all. Regions
+     * are drawn back with PorterDuff.Mode.SRC, which keeps premultiplied pixels exact unlike
+     * getPixels and setPixels. Every change marks the cached composites holding the layer dirty.
+     */
+    private class TileSurface implements UndoHistory.Surface<Bitmap> {
+        private final Layer layer;
+
+        TileSurface(Layer layer) {
+            this.layer = layer;
+        }
+
+        @Override
+        public int getWidth() {
+            return layer.tiles.getWidth();
+        }
+
+        @Override
+        public int getHeight() {
+            return layer.tiles.getHeight();
+        }
+
+        @Override
+        public Bitmap copyRegion(int x, int y, int width, int height) {
+            return layer.tiles.copyRegion(x, y, width, height);
+        }
+
+        @Override
+        public void restoreRegion(Bitmap region, int x, int y, int width, int height) {
+            layer.tiles.restoreRegion(region, x, y, width, height);
+            layers.invalidate(layer, x, y, x + width, y + height);
+        }
+
+        @Override
+        public long byteCount(Bitmap region) {
+            return region.getByteCount();
+        }
+
+        @Override
+        public void clear() {
+            layer.tiles.clear();
+            layers.invalidate(layer);
+        }
+
+        @Override
+        public void replay(StrokeRecord record) {
+            replayer.replay(record, layer.tiles);
+            if (record.type == StrokeRecord.TYPE_CLEAR) {
+                layers.invalidate(layer);
+            } else {
+                invalidateLayer(layer, replayer.getLastBounds());
+            }
+        }
+    }
+
+    /**
+     * Traces a fill on the fill executor from the tile bitmaps of a layer as they were when the
+     * task was created, and hands the filled area back to the thread owning the view.
+     */
+    private class FillTask implements Runnable {
+        final Layer layer;
+        final StrokeRecord record;
+        final int modCount;
+        final int generation;
+        private final Bitmap[] tiles;
+        private final int width, height;
+        Bitmap region;
+        int left, top;
+
+        FillTask(Layer layer, StrokeRecord record) {
+            this.layer = layer;
+            this.record = record;
+            modCount = layer.modCount;
+            generation = drawingGeneration;
+            tiles = layer.tiles.getTileBitmaps();
+            // The tile bitmaps must not be reused while they are read.
+            bitmapPool.pin();
+            width = layer.tiles.getWidth();
+            height = layer.tiles.getHeight();
+        }
+
+        @Override
+        public void run() {
+            floodFill.load(tiles, TiledCanvas.TILE_SIZE, width, height);
+            if (floodFill.fill((int) record.x(0), (int) record.y(0), record.tolerance()) > 0) {
+                region = floodFill.createRegion(record.color);
+                left = floodFill.getLeft();
+                top = floodFill.getTop();
+            }
+            ownerHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    applyFill(FillTask.this);
+                }
+            });
+        }
+    }
+
+    /**
+     * Plays imported records back on the frames of the thread owning the view. Every frame the
+     * samples of the current stroke recorded by then are fed to the stroke engine, so the stroke
+     * is drawn live as it was recorded; other records apply as soon as they are reached. The time
+     * between strokes is not recorded, so the next stroke starts on the frame after one ends.
+     */
+    private class StrokePlayback implements Choreographer.FrameCallback {
+        private final List<StrokeRecord> records;
+        private final Paint paint = new Paint();
+        private Brush userBrush;
+        private StrokeSmoother userSmoother;
+        private Choreographer choreographer;
+        private int next, sample;
+        private StrokeRecord stroke;
+        private long strokeStartNanos;
+
+        StrokePlayback(List<StrokeRecord> records) {
+            this.records = records;
+            StrokeReplayer.setupStrokePaint(paint);
+        }
+
+        void start() {
+            strokeEngine.cancel();
+            invalidateBounds(strokeEngine.getStrokeBounds());
+            choreographer = Choreographer.getInstance();
+            choreographer.postFrameCallback(this);
+        }
+
+        void stop() {
+            choreographer.removeFrameCallback(this);
+            if (stroke != null) {
+                strokeEngine.cancel();
+                invalidateBounds(strokeEngine.getStrokeBounds());
+                endStroke();
+            }
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (stroke != null && !strokeEngine.isActive()) {
+                endStroke();
+            }
+            while (stroke == null && next < records.size()) {
+                StrokeRecord record = records.get(next++);
+                if (record.type == StrokeRecord.TYPE_STROKE && record.pointCount > 0) {
+                    beginStroke(record, frameTimeNanos);
+                } else {
+                    applyImported(record);
+                    invalidate();
+                }
+            }
+            if (stroke != null) {
+                float elapsed = (frameTimeNanos - strokeStartNanos) / 1e6f + stroke.time(0);
+                while (sample < stroke.pointCount && stroke.time(sample) <= elapsed) {
+                    strokeEngine.addPoint(stroke.x(sample), stroke.y(sample),
+                            stroke.pressure(sample), (long) stroke.time(sample));
+                    sample++;
+                }
+                if (sample == stroke.pointCount) {
+                    commitStroke(paint, stroke.flags);
+                    endStroke();
+                } else {
+                    invalidateBounds(strokeEngine.getDirtyBounds());
+                    strokeEngine.clearDirtyBounds();
+                }
+            }
+            if (stroke == null && next == records.size()) {
+                if (playback == this) {
+                    playback = null;
+                }
+            } else {
+                choreographer.postFrameCallback(this);
+            }
+        }
+
+        /**
+         * Sets the stroke engine up like the recorded stroke and feeds it the first sample.
+         */
+        private void beginStroke(StrokeRecord record, long frameTimeNanos) {
+            stroke = record;
+            sample = 1;
+            strokeStartNanos = frameTimeNanos;
+            userBrush = strokeEngine.getBrush();
+            userSmoother = strokeEngine.getSmoother();
+            paint.setColor(record.color);
+            paint.setStrokeWidth(record.width);
+            paint.setXfermode(record.isErase()
+                    ? new PorterDuffXfermode(PorterDuff.Mode.CLEAR) : null);
+            strokeEngine.setBrush(Brush.fromFlags(record.flags));
+            strokeEngine.setSmoother(record.isSmooth()
+                    ? StrokeSmoother.QUAD_MIDPOINT : StrokeSmoother.LINEAR);
+            strokeEngine.begin(record.x(0), record.y(0), record.pressure(0),
+                    (long) record.time(0), paint, record.isErase());
+            invalidateBounds(strokeEngine.getDirtyBounds());
+            strokeEngine.clearDirtyBounds();
+        }
+
+        /**
+         * Gives the stroke engine back the brush and smoother of the user, unless they were
+         * changed during the stroke.
+         */
+        private void endStroke() {
+            if (strokeEngine.getBrush() == Brush.fromFlags(stroke.flags)) {
+                strokeEngine.setBrush(userBrush);
+            }
+            if (strokeEngine.getSmoother() == (stroke.isSmooth()
+                    ? StrokeSmoother.QUAD_MIDPOINT : StrokeSmoother.LINEAR)) {
+                strokeEngine.setSmoother(userSmoother);
+            }
+            stroke = null;
+        }
+    }
+
+    /**
+     * Pans the canvas with the focus point of a two finger gesture and zooms it with the
+     * distance between the fingers.
+     */
+    private class ScaleListener extends ScaleGestureDetector.SimpleOnScaleGestureListener {
+        private float lastFocusX, lastFocusY;
+
+        @Override
+        public boolean onScaleBegin(ScaleGestureDetector detector) {
+            lastFocusX = detector.getFocusX();
+            lastFocusY = detector.getFocusY();
+            return true;
+        }
+
+        @Override
+        public boolean onScale(ScaleGestureDetector detector) {
+            float focusX = detector.getFocusX();
+            float focusY = detector.getFocusY();
+            viewport.panBy(focusX - lastFocusX, focusY - lastFocusY);
+            viewport.zoomBy(detector.getScaleFactor(), focusX, focusY);
+            viewport.clamp(getWidth(), getHeight(), layers.getWidth(), layers.getHeight());
+            lastFocusX = focusX;
+            lastFocusY = focusY;
+            invalidate();
+            return true;
+        }
+    }
 }
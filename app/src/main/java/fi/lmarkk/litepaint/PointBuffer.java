@@ -0,0 +1,93 @@
+package fi.lmarkk.litepaint;
+
+/**
+ * Growable buffer of touch samples stored in one primitive float array.
+ *
+ * Every sample takes STRIDE floats: x, y, pressure and the time in milliseconds since the first
+ * sample of the stroke. The array is kept between strokes and only grows when a stroke is longer
+ * than any before it, so appending samples does not allocate once the buffer has warmed up.
+ *
+ * @version 2020.0419
+ */
+class PointBuffer {
+    static final int STRIDE = 4;
+    private static final int X = 0, Y = 1, PRESSURE = 2, TIME = 3;
+
+    private float[] data;
+    private int size;
+    private long startTime;
+
+    PointBuffer() {
+        this(256);
+    }
+
+    PointBuffer(int initialCapacity) {
+        data = new float[Math.max(initialCapacity, 1) * STRIDE];
+    }
+
+    /**
+     * Empties the buffer without releasing its memory.
+     *
+     * @param strokeStartTime Event time in milliseconds which sample times are relative to.
+     */
+    void clear(long strokeStartTime) {
+        size = 0;
+        startTime = strokeStartTime;
+    }
+
+    /**
+     * Appends a sample to the buffer, growing the array if it is full.
+     *
+     * @param x X coordinate.
+     * @param y Y coordinate.
+     * @param pressure Pressure reported for the sample.
+     * @param eventTime Event time of the sample in milliseconds.
+     */
+    void add(float x, float y, float pressure, long eventTime) {
+        int offset = size * STRIDE;
+        if (offset + STRIDE > data.length) {
+            float[] grown = new float[data.length * 2];
+            System.arraycopy(data, 0, grown, 0, offset);
+            data = grown;
+        }
+        data[offset + X] = x;
+        data[offset + Y] = y;
+        data[offset + PRESSURE] = pressure;
+        data[offset + TIME] = eventTime - startTime;
+        size++;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return Number of samples the buffer can hold before it has to grow.
+     */
+    int capacity() {
+        return data.length / STRIDE;
+    }
+
+    long getStartTime() {
+        return startTime;
+    }
+
+    float x(int index) {
+        return data[index * STRIDE + X];
+    }
+
+    float y(int index) {
+        return data[index * STRIDE + Y];
+    }
+
+    float pressure(int index) {
+        return data[index * STRIDE + PRESSURE];
+    }
+
+    /**
+     * @return Time of the sample in milliseconds since the start of the stroke.
+     */
+    float time(int index) {
+        return data[index * STRIDE + TIME];
+    }
+}
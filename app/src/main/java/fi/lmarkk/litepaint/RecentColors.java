@@ -0,0 +1,95 @@
+package fi.lmarkk.litepaint;
+
+import java.util.Arrays;
+
+/**
+ * Most recently picked paint colors, newest first, for picking a color again without the color
+ * wheel. Picking a color that is already in the list moves it to the front, and the oldest color
+ * is dropped when the list is full. The list is stored as a string of hex colors.
+ *
+ * @version 2020.0419
+ */
+class RecentColors {
+    private final int[] colors;
+    private int size;
+
+    /**
+     * @param capacity Number of colors kept.
+     */
+    RecentColors(int capacity) {
+        colors = new int[capacity];
+    }
+
+    /**
+     * Moves the color to the front of the list.
+     *
+     * @param color ARGB color that was picked.
+     */
+    void add(int color) {
+        int index = indexOf(color);
+        if (index < 0) {
+            index = Math.min(size, colors.length - 1);
+            size = Math.min(size + 1, colors.length);
+        }
+        System.arraycopy(colors, 0, colors, 1, index);
+        colors[0] = color;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @param index 0 for the newest color.
+     * @return ARGB color.
+     */
+    int get(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        }
+        return colors[index];
+    }
+
+    int indexOf(int color) {
+        for (int i = 0; i < size; i++) {
+            if (colors[i] == color) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The colors as comma separated hex values, newest first.
+     */
+    String encode() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(Integer.toHexString(colors[i]));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Replaces the colors with ones encoded by encode. Values that are not colors are skipped.
+     *
+     * @param encoded Encoded colors, or null for none.
+     */
+    void decode(String encoded) {
+        size = 0;
+        Arrays.fill(colors, 0);
+        if (encoded == null || encoded.isEmpty()) {
+            return;
+        }
+        String[] values = encoded.split(",");
+        for (int i = values.length - 1; i >= 0; i--) {
+            try {
+                add((int) Long.parseLong(values[i], 16));
+            } catch (NumberFormatException ignored) {
+            }
+        }
+    }
+}
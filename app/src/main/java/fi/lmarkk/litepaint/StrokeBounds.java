@@ -0,0 +1,145 @@
+package fi.lmarkk.litepaint;
+
+/**
+ * Mutable integer rectangle which accumulates the pixels touched by stroke segments.
+ *
+ * The rectangle is kept free of android.graphics classes so that the bounds math can be unit
+ * tested on the JVM. Right and bottom are exclusive, matching android.graphics.Rect, so the values
+ * can be handed to View.invalidate as they are.
+ *
+ * @version 2020.0419
+ */
+class StrokeBounds {
+    /**
+     * Extra pixels added around every stroke to cover anti-aliased edge pixels.
+     */
+    static final int AA_MARGIN = 1;
+
+    int left, top, right, bottom;
+
+    StrokeBounds() {
+        setEmpty();
+    }
+
+    /**
+     * Resets the rectangle so that the next include call defines its bounds.
+     */
+    void setEmpty() {
+        left = Integer.MAX_VALUE;
+        top = Integer.MAX_VALUE;
+        right = Integer.MIN_VALUE;
+        bottom = Integer.MIN_VALUE;
+    }
+
+    boolean isEmpty() {
+        return left >= right || top >= bottom;
+    }
+
+    int width() {
+        return isEmpty() ? 0 : right - left;
+    }
+
+    int height() {
+        return isEmpty() ? 0 : bottom - top;
+    }
+
+    /**
+     * Grows the rectangle to cover a round-capped dot drawn at the given point.
+     *
+     * @param x Center x coordinate.
+     * @param y Center y coordinate.
+     * @param strokeWidth Width of the stroke, a zero width is treated as a hairline.
+     */
+    void includePoint(float x, float y, float strokeWidth) {
+        include(x, y, x, y, strokeWidth);
+    }
+
+    /**
+     * Grows the rectangle to cover a round-capped line segment.
+     *
+     * The padding is half of the stroke width plus AA_MARGIN, so both the round caps and the
+     * anti-aliased edge of the segment are always inside the resulting rectangle.
+     *
+     * @param x0 Start x coordinate.
+     * @param y0 Start y coordinate.
+     * @param x1 End x coordinate.
+     * @param y1 End y coordinate.
+     * @param strokeWidth Width of the stroke, a zero width is treated as a hairline.
+     */
+    void includeSegment(float x0, float y0, float x1, float y1, float strokeWidth) {
+        include(Math.min(x0, x1), Math.min(y0, y1), Math.max(x0, x1), Math.max(y0, y1),
+                strokeWidth);
+    }
+
+    /**
+     * Grows the rectangle to cover a round-capped quadratic curve segment.
+     *
+     * A quadratic Bezier curve always stays inside the hull of its control points, so including
+     * all three points is enough.
+     *
+     * @param x0 Start x coordinate.
+     * @param y0 Start y coordinate.
+     * @param cx Control point x coordinate.
+     * @param cy Control point y coordinate.
+     * @param x1 End x coordinate.
+     * @param y1 End y coordinate.
+     * @param strokeWidth Width of the stroke, a zero width is treated as a hairline.
+     */
+    void includeQuad(float x0, float y0, float cx, float cy, float x1, float y1,
+                     float strokeWidth) {
+        include(Math.min(x0, Math.min(cx, x1)), Math.min(y0, Math.min(cy, y1)),
+                Math.max(x0, Math.max(cx, x1)), Math.max(y0, Math.max(cy, y1)), strokeWidth);
+    }
+
+    /**
+     * Grows the rectangle to also cover another rectangle.
+     *
+     * @param other Rectangle to include, ignored if empty.
+     */
+    void union(StrokeBounds other) {
+        if (other.isEmpty()) {
+            return;
+        }
+        left = Math.min(left, other.left);
+        top = Math.min(top, other.top);
+        right = Math.max(right, other.right);
+        bottom = Math.max(bottom, other.bottom);
+    }
+
+    /**
+     * Shrinks the rectangle to the area of a width * height surface.
+     *
+     * @return false if nothing of the rectangle is left.
+     */
+    boolean clipTo(int width, int height) {
+        left = Math.max(left, 0);
+        top = Math.max(top, 0);
+        right = Math.min(right, width);
+        bottom = Math.min(bottom, height);
+        return !isEmpty();
+    }
+
+    void set(StrokeBounds other) {
+        set(other.left, other.top, other.right, other.bottom);
+    }
+
+    void set(int newLeft, int newTop, int newRight, int newBottom) {
+        left = newLeft;
+        top = newTop;
+        right = newRight;
+        bottom = newBottom;
+    }
+
+    private void include(float minX, float minY, float maxX, float maxY, float strokeWidth) {
+        float pad = Math.max(strokeWidth, 1f) / 2f + AA_MARGIN;
+        left = Math.min(left, (int) Math.floor(minX - pad));
+        top = Math.min(top, (int) Math.floor(minY - pad));
+        right = Math.max(right, (int) Math.ceil(maxX + pad));
+        bottom = Math.max(bottom, (int) Math.ceil(maxY + pad));
+    }
+
+    @Override
+    public String toString() {
+        return "StrokeBounds(" + left + ", " + top + " - " + right + ", " + bottom + ")";
+    }
+}
@@ -0,0 +1,275 @@
+package fi.lmarkk.litepaint;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Binary encoding of stroke log records.
+ *
+ * Every record is prefixed with its body length as a varint, so a reader can skip records and
+ * detect a record that was cut short by a crash. A stroke body holds the color, width and flags
+ * followed by the samples. Positions are quantized to 1 / POSITION_SCALE pixels and stored as
+ * zigzag varint deltas from the previous sample, pressure as one byte and time as a varint delta
+ * in milliseconds. A typical touch sample takes four to five bytes. A fill body holds the color,
+ * flags, tolerance and the seed pixel.
+ *
+ * @version 2020.0419
+ */
+final class StrokeCodec {
+    static final int MAGIC = 0x4C50534C;
+    static final byte VERSION = 1;
+    static final int HEADER_SIZE = 5;
+    static final float POSITION_SCALE = 8f;
+    private static final float PRESSURE_SCALE = 255f;
+    /** Fewest bytes a stroke sample takes: one byte for each delta and the pressure. */
+    private static final int MIN_SAMPLE_SIZE = 4;
+
+    private StrokeCodec() {
+    }
+
+    /**
+     * Snaps a coordinate to the grid positions are stored with.
+     */
+    static float quantizePosition(float value) {
+        return Math.round(value * POSITION_SCALE) / POSITION_SCALE;
+    }
+
+    /**
+     * Snaps a pressure value to the precision it is stored with.
+     */
+    static float quantizePressure(float value) {
+        return pressureByte(value) / PRESSURE_SCALE;
+    }
+
+    static void writeHeader(ByteBuffer buffer) {
+        buffer.putInt(MAGIC);
+        buffer.put(VERSION);
+    }
+
+    /**
+     * Reads and checks the file header.
+     *
+     * @return false if the buffer does not start with a supported header.
+     */
+    static boolean readHeader(ByteBuffer buffer) {
+        return buffer.remaining() >= HEADER_SIZE && buffer.getInt() == MAGIC
+                && buffer.get() == VERSION;
+    }
+
+    /**
+     * @return Upper bound of the bytes encode writes for the record.
+     */
+    static int maxEncodedSize(StrokeRecord record) {
+        return 5 + 1 + 4 + 4 + 1 + 5 + record.pointCount * (5 + 5 + 1 + 5) + 10;
+    }
+
+    /**
+     * Writes the record, including its length prefix, at the buffer's position.
+     *
+     * @param record Record to write.
+     * @param buffer Buffer with at least maxEncodedSize bytes remaining.
+     */
+    static void encode(StrokeRecord record, ByteBuffer buffer) {
+        putVarint(buffer, bodySize(record));
+        buffer.put((byte) record.type);
+        if (record.type == StrokeRecord.TYPE_SIZE) {
+            putVarint(buffer, record.canvasWidth());
+            putVarint(buffer, record.canvasHeight());
+        } else if (record.type == StrokeRecord.TYPE_FILL) {
+            buffer.putInt(record.color);
+            buffer.put((byte) record.flags);
+            buffer.put((byte) record.tolerance());
+            putVarint(buffer, (int) record.x(0));
+            putVarint(buffer, (int) record.y(0));
+        } else if (record.type == StrokeRecord.TYPE_STROKE) {
+            buffer.putInt(record.color);
+            buffer.putFloat(record.width);
+            buffer.put((byte) record.flags);
+            putVarint(buffer, record.pointCount);
+            int lastX = 0, lastY = 0, lastTime = 0;
+            for (int i = 0; i < record.pointCount; i++) {
+                int x = Math.round(record.x(i) * POSITION_SCALE);
+                int y = Math.round(record.y(i) * POSITION_SCALE);
+                int time = Math.round(record.time(i));
+                putVarint(buffer, zigzag(x - lastX));
+                putVarint(buffer, zigzag(y - lastY));
+                buffer.put((byte) pressureByte(record.pressure(i)));
+                putVarint(buffer, zigzag(time - lastTime));
+                lastX = x;
+                lastY = y;
+                lastTime = time;
+            }
+        }
+    }
+
+    /**
+     * Moves the buffer's position past the record at it, without decoding the body.
+     *
+     * @param buffer Buffer holding encoded records.
+     * @return false if the buffer ends before the record does. In that case the buffer's position
+     * is left where it was.
+     */
+    static boolean skip(ByteBuffer buffer) {
+        int start = buffer.position();
+        int length = getVarint(buffer);
+        if (length < 1 || buffer.remaining() < length) {
+            buffer.position(start);
+            return false;
+        }
+        buffer.position(buffer.position() + length);
+        return true;
+    }
+
+    /**
+     * Reads the record at the buffer's position.
+     *
+     * @param buffer Buffer holding encoded records.
+     * @return The record, or null if the buffer ends before the record does. In that case the
+     * buffer's position is left where it was. Records of unknown types are skipped.
+     * @throws IOException if a complete record does not hold what its type needs.
+     */
+    static StrokeRecord decode(ByteBuffer buffer) throws IOException {
+        StrokeRecord record = null;
+        while (record == null) {
+            int start = buffer.position();
+            int length = getVarint(buffer);
+            if (length < 1 || buffer.remaining() < length) {
+                buffer.position(start);
+                return null;
+            }
+            // The body is read from a slice, so a corrupt one cannot read into the next record.
+            ByteBuffer body = buffer.slice();
+            body.limit(length);
+            try {
+                record = decodeBody(body);
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Stroke record ends before its body does", e);
+            }
+            buffer.position(buffer.position() + length);
+        }
+        return record;
+    }
+
+    private static StrokeRecord decodeBody(ByteBuffer buffer) throws IOException {
+        StrokeRecord record = null;
+        int type = buffer.get();
+        if (type == StrokeRecord.TYPE_SIZE) {
+            int width = getVarint(buffer);
+            int height = getVarint(buffer);
+            if (width < 1 || height < 1) {
+                throw new IOException("Bad canvas size " + width + "x" + height);
+            }
+            record = StrokeRecord.size(width, height);
+        } else if (type == StrokeRecord.TYPE_CLEAR) {
+            record = StrokeRecord.clear();
+        } else if (type == StrokeRecord.TYPE_UNDO) {
+            record = StrokeRecord.undo();
+        } else if (type == StrokeRecord.TYPE_REDO) {
+            record = StrokeRecord.redo();
+        } else if (type == StrokeRecord.TYPE_FILL) {
+            int color = buffer.getInt();
+            int flags = buffer.get();
+            int tolerance = buffer.get() & 0xFF;
+            int x = getVarint(buffer);
+            int y = getVarint(buffer);
+            if (x < 0 || y < 0) {
+                throw new IOException("Bad fill seed " + x + "," + y);
+            }
+            record = StrokeRecord.fill(color, x, y, tolerance, flags);
+        } else if (type == StrokeRecord.TYPE_STROKE) {
+            int color = buffer.getInt();
+            float width = buffer.getFloat();
+            int flags = buffer.get();
+            int count = getVarint(buffer);
+            if (count < 0 || count > buffer.remaining() / MIN_SAMPLE_SIZE) {
+                throw new IOException("Bad sample count " + count);
+            }
+            float[] points = new float[count * PointBuffer.STRIDE];
+            int x = 0, y = 0, time = 0;
+            for (int i = 0; i < count; i++) {
+                x += unzigzag(getVarint(buffer));
+                y += unzigzag(getVarint(buffer));
+                int pressure = buffer.get() & 0xFF;
+                time += unzigzag(getVarint(buffer));
+                int offset = i * PointBuffer.STRIDE;
+                points[offset] = x / POSITION_SCALE;
+                points[offset + 1] = y / POSITION_SCALE;
+                points[offset + 2] = pressure / PRESSURE_SCALE;
+                points[offset + 3] = time;
+            }
+            record = StrokeRecord.stroke(color, width, flags, points, count);
+        }
+        return record;
+    }
+
+    private static int bodySize(StrokeRecord record) {
+        if (record.type == StrokeRecord.TYPE_SIZE) {
+            return 1 + varintSize(record.canvasWidth()) + varintSize(record.canvasHeight());
+        } else if (record.type == StrokeRecord.TYPE_FILL) {
+            return 1 + 4 + 1 + 1 + varintSize((int) record.x(0)) + varintSize((int) record.y(0));
+        } else if (record.type != StrokeRecord.TYPE_STROKE) {
+            return 1;
+        }
+        int size = 1 + 4 + 4 + 1 + varintSize(record.pointCount);
+        int lastX = 0, lastY = 0, lastTime = 0;
+        for (int i = 0; i < record.pointCount; i++) {
+            int x = Math.round(record.x(i) * POSITION_SCALE);
+            int y = Math.round(record.y(i) * POSITION_SCALE);
+            int time = Math.round(record.time(i));
+            size += varintSize(zigzag(x - lastX)) + varintSize(zigzag(y - lastY)) + 1
+                    + varintSize(zigzag(time - lastTime));
+            lastX = x;
+            lastY = y;
+            lastTime = time;
+        }
+        return size;
+    }
+
+    private static int pressureByte(float pressure) {
+        return Math.max(0, Math.min(255, Math.round(pressure * PRESSURE_SCALE)));
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static void putVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * @return The value, or -1 if the buffer ends in the middle of the varint.
+     */
+    private static int getVarint(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,473 @@
+package fi.lmarkk.litepaint;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.graphics.Shader;
+
+/**
+ * Class which rasterizes the stroke that is currently being drawn.
+ *
+ * Touch samples are snapped to the precision of the stroke log, collected into a PointBuffer and
+ * passed through a StrokeSmoother. Every segment the smoother emits is stroked once into an
+ * alpha-only scratch layer, so a frame only has to render the newest segments instead of the whole
+ * accumulated path. The layer is drawn opaque and composited with the stroke color, which keeps
+ * overlapping round caps at the joins from darkening semi-transparent colors. The full path is
+ * still kept and baked into the target canvas once when the stroke ends, exactly like PaintingView
+ * did before. An engine whose size was never set has no scratch layer and only builds the path,
+ * which is what replaying the log needs.
+ *
+ * Samples, the path and the stroke bounds are in canvas coordinates. The scratch layer is the
+ * size of the view and is drawn through the viewport, so zooming does not change its size.
+ *
+ * With a dab brush the segments are stamped with dabs instead, sized by the pressure and speed
+ * of the samples. Dabs are only collected while touch events come in and are drawn into the
+ * layer with one batched call per frame, and into the target once more on commit. The layer
+ * holds the dabs with the opacity of the color and is composited with the opaque color, which
+ * gives the same pixels as stamping straight onto the target.
+ *
+ * @version 2020.0419
+ */
+class StrokeEngine implements StrokeSmoother.SegmentSink {
+    private final PointBuffer points = new PointBuffer();
+    private final Path strokePath = new Path();
+    private final Path segmentPath = new Path();
+    private final Paint layerPaint = new Paint();
+    private final Paint compositePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final PorterDuffXfermode eraseMode = new PorterDuffXfermode(PorterDuff.Mode.DST_OUT);
+    private final DabBatch dabs = new DabBatch();
+    private final Paint layerDabPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Paint dabPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final StrokeBounds dirtyBounds = new StrokeBounds();
+    private final StrokeBounds strokeBounds = new StrokeBounds();
+    private final Rect layerRect = new Rect();
+    private final StrokeBounds viewBounds = new StrokeBounds();
+    private final Matrix layerMatrix = new Matrix();
+    private Viewport viewport = new Viewport();
+    private StrokeSmoother smoother = StrokeSmoother.QUAD_MIDPOINT;
+    private Brush brush = Brush.PATH;
+    private Brush strokeBrush = Brush.PATH;
+    private Bitmap tipBitmap;
+    private float brushSize, velocity, dabGap;
+    private float segmentWidth, segmentFlow, pointWidth, pointFlow;
+    private Bitmap layerBitmap;
+    private Canvas layerCanvas;
+    private long allocatedBytes;
+    private BitmapPool bitmapPool = new BitmapPool(0);
+    private boolean active, erase, finished;
+
+    StrokeEngine() {
+        layerPaint.setAntiAlias(true);
+        layerPaint.setColor(Color.BLACK);
+        layerPaint.setStyle(Paint.Style.STROKE);
+        layerPaint.setStrokeJoin(Paint.Join.ROUND);
+        layerPaint.setStrokeCap(Paint.Cap.ROUND);
+    }
+
+    /**
+     * Sets the pool the scratch layer is taken from and given back to when the size changes.
+     */
+    void setBitmapPool(BitmapPool pool) {
+        bitmapPool = pool;
+    }
+
+    /**
+     * Sizes the scratch layer for a surface of the given size. Any stroke in progress is
+     * cancelled. The scratch layer is reconfigured in place when its allocation is large enough,
+     * so rotating the view allocates nothing.
+     *
+     * @param width Width of the surface in pixels.
+     * @param height Height of the surface in pixels.
+     */
+    void setSize(int width, int height) {
+        cancel();
+        if (layerBitmap != null
+                && bitmapPool.reconfigure(layerBitmap, width, height, Bitmap.Config.ALPHA_8)) {
+            layerCanvas.setBitmap(layerBitmap);
+            return;
+        }
+        if (layerBitmap != null) {
+            bitmapPool.release(layerBitmap);
+        }
+        layerBitmap = bitmapPool.acquire(width, height, Bitmap.Config.ALPHA_8);
+        if (layerBitmap == null) {
+            layerBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ALPHA_8);
+            allocatedBytes += layerBitmap.getByteCount();
+        }
+        layerCanvas = new Canvas(layerBitmap);
+    }
+
+    /**
+     * Sets the viewport the scratch layer is drawn through. Read when a stroke begins, so it must
+     * not change while a stroke is in progress.
+     *
+     * @param newViewport Mapping from canvas to view coordinates.
+     */
+    void setViewport(Viewport newViewport) {
+        viewport = newViewport;
+    }
+
+    /**
+     * Sets the smoother used for strokes started after this call.
+     *
+     * @param newSmoother Smoother which turns samples into segments.
+     */
+    void setSmoother(StrokeSmoother newSmoother) {
+        smoother = newSmoother;
+    }
+
+    StrokeSmoother getSmoother() {
+        return smoother;
+    }
+
+    /**
+     * Sets the brush used for strokes started after this call.
+     *
+     * @param newBrush Brush to draw with.
+     */
+    void setBrush(Brush newBrush) {
+        brush = newBrush;
+    }
+
+    Brush getBrush() {
+        return brush;
+    }
+
+    /**
+     * Starts a new stroke using the stroke width and color of the given paint.
+     *
+     * @param x Start x coordinate.
+     * @param y Start y coordinate.
+     * @param pressure Pressure of the first sample.
+     * @param eventTime Event time of the first sample in milliseconds.
+     * @param paint Paint the stroke will be baked with.
+     * @param isErase Whether the stroke erases instead of painting.
+     */
+    void begin(float x, float y, float pressure, long eventTime, Paint paint, boolean isErase) {
+        cancel();
+        active = true;
+        finished = false;
+        erase = isErase;
+        layerPaint.setStrokeWidth(paint.getStrokeWidth());
+        if (erase) {
+            compositePaint.setColor(Color.BLACK);
+            compositePaint.setXfermode(eraseMode);
+        } else {
+            compositePaint.setColor(paint.getColor());
+            compositePaint.setXfermode(null);
+        }
+        strokeBrush = brush;
+        if (strokeBrush.usesDabs()) {
+            beginDabs(paint);
+        }
+        dirtyBounds.setEmpty();
+        strokeBounds.setEmpty();
+        if (layerCanvas != null) {
+            layerMatrix.setScale(viewport.getScale(), viewport.getScale());
+            layerMatrix.postTranslate(viewport.getOffsetX(), viewport.getOffsetY());
+            layerCanvas.setMatrix(layerMatrix);
+        }
+        points.clear(eventTime);
+        strokePath.moveTo(StrokeCodec.quantizePosition(x), StrokeCodec.quantizePosition(y));
+        addPoint(x, y, pressure, eventTime);
+    }
+
+    /**
+     * Sets up the paints for a dab stroke. The size of the paint is the width at full pressure.
+     */
+    private void beginDabs(Paint paint) {
+        Bitmap tip = strokeBrush.getTip();
+        if (tip != tipBitmap) {
+            tipBitmap = tip;
+            BitmapShader shader = new BitmapShader(tip, Shader.TileMode.CLAMP,
+                    Shader.TileMode.CLAMP);
+            layerDabPaint.setShader(shader);
+            dabPaint.setShader(shader);
+        }
+        dabs.clear();
+        brushSize = paint.getStrokeWidth();
+        velocity = 0f;
+        layerDabPaint.setColor(Color.BLACK);
+        if (erase) {
+            dabPaint.setColor(Color.BLACK);
+            dabPaint.setXfermode(eraseMode);
+        } else {
+            layerDabPaint.setAlpha(Color.alpha(paint.getColor()));
+            compositePaint.setColor(paint.getColor() | 0xFF000000);
+            dabPaint.setColor(paint.getColor());
+            dabPaint.setXfermode(null);
+        }
+    }
+
+    /**
+     * Appends a touch sample to the stroke and strokes the segments it completes into the
+     * scratch layer.
+     *
+     * @param x X coordinate.
+     * @param y Y coordinate.
+     * @param pressure Pressure of the sample.
+     * @param eventTime Event time of the sample in milliseconds.
+     */
+    void addPoint(float x, float y, float pressure, long eventTime) {
+        if (!active || finished) {
+            return;
+        }
+        points.add(StrokeCodec.quantizePosition(x), StrokeCodec.quantizePosition(y),
+                StrokeCodec.quantizePressure(pressure), eventTime);
+        if (strokeBrush.usesDabs()) {
+            updateDynamics(points.size() - 1);
+        }
+        smoother.onPointAdded(points, points.size() - 1, this);
+    }
+
+    /**
+     * Works out the dab width and opacity at the newest sample. Segments emitted for it fade from
+     * the values at the end of the previous segment to these. The first sample gets a dab of its
+     * own so a tap leaves a dot.
+     */
+    private void updateDynamics(int index) {
+        if (index > 0) {
+            float dx = points.x(index) - points.x(index - 1);
+            float dy = points.y(index) - points.y(index - 1);
+            float dt = Math.max(1f, points.time(index) - points.time(index - 1));
+            velocity = velocity * 0.6f + (float) Math.sqrt(dx * dx + dy * dy) / dt * 0.4f;
+        }
+        float pressure = points.pressure(index);
+        pointWidth = Math.max(1f, brushSize * strokeBrush.widthFactor(pressure, velocity));
+        pointFlow = strokeBrush.flow(pressure);
+        if (index == 0) {
+            segmentWidth = pointWidth;
+            segmentFlow = pointFlow;
+            dabGap = 0f;
+            stampLine(points.x(0), points.y(0), points.x(0), points.y(0));
+        }
+    }
+
+    /**
+     * Stamps dabs along a line, continuing the spacing of the previous line, and grows the dirty
+     * bounds to cover them.
+     */
+    private void stampLine(float x0, float y0, float x1, float y1) {
+        float dx = x1 - x0;
+        float dy = y1 - y0;
+        float length = (float) Math.sqrt(dx * dx + dy * dy);
+        float position = dabGap;
+        while (position <= length) {
+            float t = length > 0f ? position / length : 1f;
+            float width = segmentWidth + (pointWidth - segmentWidth) * t;
+            dabs.add(x0 + dx * t, y0 + dy * t, width / 2f,
+                    segmentFlow + (pointFlow - segmentFlow) * t);
+            position += Math.max(0.5f, width * strokeBrush.spacing);
+        }
+        dabGap = position - length;
+        dirtyBounds.includeSegment(x0, y0, x1, y1, Math.max(segmentWidth, pointWidth));
+        strokeBounds.union(dirtyBounds);
+    }
+
+    /**
+     * Stamps a quadratic curve as short lines. The width fades along the whole curve.
+     */
+    private void stampQuad(float x0, float y0, float cx, float cy, float x1, float y1) {
+        float length = (float) (Math.hypot(cx - x0, cy - y0) + Math.hypot(x1 - cx, y1 - cy));
+        int steps = Math.max(1, Math.min(32, (int) Math.ceil(length / 8f)));
+        float startWidth = segmentWidth;
+        float startFlow = segmentFlow;
+        float endWidth = pointWidth;
+        float endFlow = pointFlow;
+        float previousX = x0;
+        float previousY = y0;
+        for (int step = 1; step <= steps; step++) {
+            float t = step / (float) steps;
+            float u = 1f - t;
+            float x = u * u * x0 + 2f * u * t * cx + t * t * x1;
+            float y = u * u * y0 + 2f * u * t * cy + t * t * y1;
+            pointWidth = startWidth + (endWidth - startWidth) * t;
+            pointFlow = startFlow + (endFlow - startFlow) * t;
+            stampLine(previousX, previousY, x, y);
+            segmentWidth = pointWidth;
+            segmentFlow = pointFlow;
+            previousX = x;
+            previousY = y;
+        }
+    }
+
+    @Override
+    public void lineTo(float x0, float y0, float x1, float y1) {
+        strokePath.lineTo(x1, y1);
+        if (strokeBrush.usesDabs()) {
+            stampLine(x0, y0, x1, y1);
+            segmentWidth = pointWidth;
+            segmentFlow = pointFlow;
+            return;
+        }
+        segmentPath.rewind();
+        segmentPath.moveTo(x0, y0);
+        segmentPath.lineTo(x1, y1);
+        if (layerCanvas != null) {
+            layerCanvas.drawPath(segmentPath, layerPaint);
+        }
+        dirtyBounds.includeSegment(x0, y0, x1, y1, layerPaint.getStrokeWidth());
+        strokeBounds.union(dirtyBounds);
+    }
+
+    @Override
+    public void quadTo(float x0, float y0, float cx, float cy, float x1, float y1) {
+        strokePath.quadTo(cx, cy, x1, y1);
+        if (strokeBrush.usesDabs()) {
+            stampQuad(x0, y0, cx, cy, x1, y1);
+            return;
+        }
+        segmentPath.rewind();
+        segmentPath.moveTo(x0, y0);
+        segmentPath.quadTo(cx, cy, x1, y1);
+        if (layerCanvas != null) {
+            layerCanvas.drawPath(segmentPath, layerPaint);
+        }
+        dirtyBounds.includeQuad(x0, y0, cx, cy, x1, y1, layerPaint.getStrokeWidth());
+        strokeBounds.union(dirtyBounds);
+    }
+
+    /**
+     * @return Bounds of the segments drawn since the last clearDirtyBounds call.
+     */
+    StrokeBounds getDirtyBounds() {
+        return dirtyBounds;
+    }
+
+    void clearDirtyBounds() {
+        dirtyBounds.setEmpty();
+    }
+
+    /**
+     * @return Number of dabs stamped for the current or most recently finished stroke.
+     */
+    int getDabCount() {
+        return dabs.size();
+    }
+
+    /**
+     * @return Bytes of scratch layers allocated so far.
+     */
+    long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * @return Bounds of everything drawn since begin.
+     */
+    StrokeBounds getStrokeBounds() {
+        return strokeBounds;
+    }
+
+    /**
+     * @return Samples of the current or most recently finished stroke.
+     */
+    PointBuffer getPoints() {
+        return points;
+    }
+
+    boolean isActive() {
+        return active;
+    }
+
+    boolean isErase() {
+        return active && erase;
+    }
+
+    /**
+     * Composites the in-progress stroke onto the given canvas. Only the part inside clip is
+     * touched. Dabs stamped since the previous frame are drawn into the layer first.
+     *
+     * @param canvas Canvas in view coordinates to draw the preview on.
+     * @param clip Area of the view being redrawn.
+     */
+    void draw(Canvas canvas, Rect clip) {
+        if (!active || strokeBounds.isEmpty()) {
+            return;
+        }
+        if (strokeBrush.usesDabs()) {
+            dabs.flush(layerCanvas, layerDabPaint);
+        }
+        viewport.toView(strokeBounds, viewBounds);
+        layerRect.set(viewBounds.left, viewBounds.top, viewBounds.right, viewBounds.bottom);
+        if (layerRect.intersect(clip)) {
+            canvas.drawBitmap(layerBitmap, layerRect, layerRect, compositePaint);
+        }
+    }
+
+    /**
+     * Emits the end of the stroke so that getStrokeBounds covers everything commit will draw.
+     * No samples can be added afterwards.
+     */
+    void finish() {
+        if (active && !finished) {
+            smoother.finish(points, this);
+            finished = true;
+        }
+    }
+
+    /**
+     * Finishes the stroke, bakes it into the target canvas with the given paint and clears the
+     * scratch layer for the next stroke.
+     *
+     * @param target Canvas the stroke is committed to.
+     * @param paint Paint to stroke the path with.
+     */
+    void commit(Canvas target, Paint paint) {
+        if (!active) {
+            return;
+        }
+        finish();
+        if (strokeBrush.usesDabs()) {
+            dabs.drawAll(target, dabPaint);
+        } else {
+            target.drawPath(strokePath, paint);
+        }
+        cancel();
+    }
+
+    /**
+     * Finishes the stroke and bakes it into the tiles under its bounds. An eraser stroke does not
+     * allocate tiles that are still empty.
+     *
+     * @param target Tiled canvas the stroke is committed to.
+     * @param paint Paint to stroke the path with.
+     */
+    void commit(TiledCanvas target, Paint paint) {
+        if (!active) {
+            return;
+        }
+        finish();
+        if (strokeBrush.usesDabs()) {
+            target.drawDabs(dabs, dabPaint, strokeBounds, !erase);
+        } else {
+            target.drawPath(strokePath, paint, strokeBounds, !erase);
+        }
+        cancel();
+    }
+
+    /**
+     * Drops the stroke in progress without committing it. The scratch layer is cleared in view
+     * coordinates, over the same area draw composites.
+     */
+    void cancel() {
+        if (active && layerCanvas != null && !strokeBounds.isEmpty()) {
+            viewport.toView(strokeBounds, viewBounds);
+            layerCanvas.save();
+            layerCanvas.setMatrix(null);
+            layerCanvas.clipRect(viewBounds.left, viewBounds.top, viewBounds.right,
+                    viewBounds.bottom);
+            layerCanvas.drawColor(0, PorterDuff.Mode.CLEAR);
+            layerCanvas.restore();
+        }
+        strokePath.rewind();
+        active = false;
+    }
+}
@@ -0,0 +1,52 @@
+package fi.lmarkk.litepaint;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reader of stroke log files written by StrokeLogWriter.
+ *
+ * @version 2020.0419
+ */
+final class StrokeLogReader {
+
+    private StrokeLogReader() {
+    }
+
+    /**
+     * Reads every complete record of the log file. A record cut short at the end of the file is
+     * ignored.
+     *
+     * @param file Log file.
+     * @return Records in the order they were written.
+     * @throws IOException if the file cannot be read, is not a stroke log or holds a corrupt
+     * record.
+     */
+    static List<StrokeRecord> readAll(File file) throws IOException {
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return readAll(buffer);
+        }
+    }
+
+    /**
+     * Reads every complete record from a buffer holding a stroke log, header included.
+     */
+    static List<StrokeRecord> readAll(ByteBuffer buffer) throws IOException {
+        if (!StrokeCodec.readHeader(buffer)) {
+            throw new IOException("Not a stroke log");
+        }
+        List<StrokeRecord> records = new ArrayList<>();
+        StrokeRecord record;
+        while ((record = StrokeCodec.decode(buffer)) != null) {
+            records.add(record);
+        }
+        return records;
+    }
+}
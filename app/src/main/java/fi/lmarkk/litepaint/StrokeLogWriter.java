@@ -0,0 +1,234 @@
+package fi.lmarkk.litepaint;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Append-only writer of the stroke log file.
+ *
+ * Records are encoded into a reused direct buffer and written with a single FileChannel write,
+ * so a finished stroke costs one small sequential write. Nothing that was written is ever
+ * rewritten, only dropped all at once by reset, so a crash can at most cut off the record that
+ * was being written. StrokeLogReader ignores such a record and reopening the log for appending
+ * cuts it off. Reopening finds it by reading only the length prefixes of the records.
+ *
+ * A writer opened with an executor does all of its file access there, in order, so the thread
+ * drawing the strokes never waits for the file. A failed write is then thrown from the next
+ * append. Writers of the same file share getSharedWriter(), so a writer opened after another one
+ * is closed only finds the end of the log after the records of the other one are written.
+ *
+ * @version 2020.0419
+ */
+class StrokeLogWriter implements Closeable {
+    private static final String TAG = "StrokeLogWriter";
+    private static ExecutorService sharedWriter;
+    private final FileChannel channel;
+    private final Executor executor;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(16 * 1024);
+    /** First failure of a write on the executor. */
+    private volatile IOException error;
+
+    private StrokeLogWriter(FileChannel channel, Executor executor) {
+        this.channel = channel;
+        this.executor = executor;
+    }
+
+    static synchronized ExecutorService getSharedWriter() {
+        if (sharedWriter == null) {
+            sharedWriter = Executors.newSingleThreadExecutor();
+        }
+        return sharedWriter;
+    }
+
+    /**
+     * Opens the log file for appending, writing the header if the file is new or empty.
+     *
+     * @param file Log file.
+     * @param truncate Whether to drop the records already in the file.
+     * @return The writer.
+     * @throws IOException if the file cannot be opened.
+     */
+    static StrokeLogWriter open(File file, boolean truncate) throws IOException {
+        StrokeLogWriter writer = new StrokeLogWriter(new RandomAccessFile(file, "rw").getChannel(),
+                null);
+        try {
+            writer.prepare(truncate);
+        } catch (IOException e) {
+            writer.channel.close();
+            throw e;
+        }
+        return writer;
+    }
+
+    /**
+     * Opens the log file for appending and prepares it on the executor, which the records are
+     * then written on too. A file that cannot be prepared fails the first append after it.
+     *
+     * @param file Log file.
+     * @param truncate Whether to drop the records already in the file.
+     * @param executor Executor running one task at a time, usually getSharedWriter().
+     * @return The writer.
+     * @throws IOException if the file cannot be opened.
+     */
+    static StrokeLogWriter open(File file, final boolean truncate, Executor executor)
+            throws IOException {
+        final StrokeLogWriter writer = new StrokeLogWriter(
+                new RandomAccessFile(file, "rw").getChannel(), executor);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writer.prepare(truncate);
+                } catch (IOException e) {
+                    writer.error = e;
+                } catch (RuntimeException e) {
+                    writer.error = new IOException("Preparing the stroke log failed", e);
+                }
+            }
+        });
+        return writer;
+    }
+
+    /**
+     * Drops every record in the log, for when the drawing it was recording is gone.
+     *
+     * @throws IOException if emptying the log fails, or an earlier write on the executor failed.
+     */
+    void reset() throws IOException {
+        if (error != null) {
+            throw error;
+        }
+        if (executor == null) {
+            prepare(true);
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (error != null) {
+                    return;
+                }
+                try {
+                    prepare(true);
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+        });
+    }
+
+    private void prepare(boolean truncate) throws IOException {
+        if (truncate) {
+            channel.truncate(0);
+        }
+        ByteBuffer existing = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        if (!StrokeCodec.readHeader(existing)) {
+            if (channel.size() > 0) {
+                Log.w(TAG, "Not a stroke log, starting a new one");
+                channel.truncate(0);
+            }
+            buffer.clear();
+            StrokeCodec.writeHeader(buffer);
+            buffer.flip();
+            writeFully(0);
+            return;
+        }
+        while (StrokeCodec.skip(existing)) {
+            // Only the length prefixes are read to find the end of the last complete record.
+        }
+        // Drop a record that was cut short, new records must not be appended after it.
+        channel.truncate(existing.position());
+        channel.position(existing.position());
+    }
+
+    /**
+     * Appends a record to the end of the log, on the executor if the writer has one.
+     *
+     * @param record Record to append.
+     * @throws IOException if writing fails, or an earlier write on the executor failed.
+     */
+    void append(final StrokeRecord record) throws IOException {
+        if (error != null) {
+            throw error;
+        }
+        if (executor == null) {
+            write(record);
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (error != null) {
+                    return;
+                }
+                try {
+                    write(record);
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+        });
+    }
+
+    private void write(StrokeRecord record) throws IOException {
+        int maxSize = StrokeCodec.maxEncodedSize(record);
+        if (maxSize > buffer.capacity()) {
+            buffer = ByteBuffer.allocateDirect(Integer.highestOneBit(maxSize) * 2);
+        }
+        buffer.clear();
+        StrokeCodec.encode(record, buffer);
+        buffer.flip();
+        writeFully(channel.position());
+    }
+
+    /**
+     * @return Current size of the log file in bytes.
+     */
+    long size() throws IOException {
+        return channel.size();
+    }
+
+    /**
+     * Forces the written records to the storage device.
+     */
+    void sync() throws IOException {
+        channel.force(false);
+    }
+
+    private void writeFully(long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        channel.position(position);
+    }
+
+    /**
+     * Closes the file, on the executor after the records appended before if the writer has one.
+     */
+    @Override
+    public void close() throws IOException {
+        if (executor == null) {
+            channel.close();
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Closing the stroke log failed", e);
+                }
+            }
+        });
+    }
+}
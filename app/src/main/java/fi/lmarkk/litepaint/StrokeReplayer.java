@@ -0,0 +1,244 @@
+package fi.lmarkk.litepaint;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class which rebuilds a drawing from stroke log records.
+ *
+ * Strokes are fed through a StrokeEngine with the same smoother and paint settings PaintingView
+ * uses, so a replay at the original size gives the same pixels as the live drawing. Any other
+ * target size is handled by scaling the canvas, which also scales the stroke widths. Bucket fills
+ * need the pixels they fill, so they are only replayed onto bitmaps and tiled canvases.
+ *
+ * @version 2020.0419
+ */
+class StrokeReplayer {
+    private final StrokeEngine engine = new StrokeEngine();
+    private final Paint paint = new Paint();
+    private final PorterDuffXfermode clearMode = new PorterDuffXfermode(PorterDuff.Mode.CLEAR);
+    private final PorterDuffXfermode cutMode = new PorterDuffXfermode(PorterDuff.Mode.DST_OUT);
+    private final StrokeBounds fillBounds = new StrokeBounds();
+    private FloodFill floodFill;
+    private StrokeBounds lastBounds;
+    private StrokeRecord prepared;
+    private Bitmap fillRegion;
+    private int sourceWidth, sourceHeight;
+
+    StrokeReplayer() {
+        setupStrokePaint(paint);
+    }
+
+    /**
+     * Applies the settings every stroke paint shares to the given paint.
+     *
+     * @param strokePaint Paint to set up.
+     */
+    static void setupStrokePaint(Paint strokePaint) {
+        strokePaint.setAntiAlias(true);
+        strokePaint.setStyle(Paint.Style.STROKE);
+        strokePaint.setStrokeJoin(Paint.Join.ROUND);
+        strokePaint.setStrokeCap(Paint.Cap.ROUND);
+    }
+
+    /**
+     * Applies the undo and redo records of a log and returns the records that are left in effect.
+     *
+     * @param records Records as they were logged.
+     * @return Stroke, clear and size records in the order they apply.
+     */
+    static List<StrokeRecord> resolveUndo(List<StrokeRecord> records) {
+        List<StrokeRecord> applied = new ArrayList<>();
+        List<StrokeRecord> undone = new ArrayList<>();
+        for (StrokeRecord record : records) {
+            if (record.type == StrokeRecord.TYPE_UNDO) {
+                for (int i = applied.size() - 1; i >= 0; i--) {
+                    if (applied.get(i).type != StrokeRecord.TYPE_SIZE) {
+                        undone.add(applied.remove(i));
+                        break;
+                    }
+                }
+            } else if (record.type == StrokeRecord.TYPE_REDO) {
+                if (!undone.isEmpty()) {
+                    applied.add(undone.remove(undone.size() - 1));
+                }
+            } else {
+                if (record.type != StrokeRecord.TYPE_SIZE) {
+                    undone.clear();
+                }
+                applied.add(record);
+            }
+        }
+        return applied;
+    }
+
+    /**
+     * Clears the target bitmap and replays the records onto it. The canvas size of the first size
+     * record is scaled to fit the bitmap while keeping its aspect ratio.
+     *
+     * @param records Records to replay, undo and redo records included.
+     * @param target Bitmap to draw on.
+     */
+    void replay(List<StrokeRecord> records, Bitmap target) {
+        Canvas canvas = new Canvas(target);
+        canvas.drawColor(0, PorterDuff.Mode.CLEAR);
+        sourceWidth = 0;
+        sourceHeight = 0;
+        float scale = 1f;
+        for (StrokeRecord record : resolveUndo(records)) {
+            if (record.type == StrokeRecord.TYPE_SIZE && sourceWidth == 0) {
+                sourceWidth = record.canvasWidth();
+                sourceHeight = record.canvasHeight();
+                scale = Math.min((float) target.getWidth() / sourceWidth,
+                        (float) target.getHeight() / sourceHeight);
+                canvas.scale(scale, scale);
+            }
+            if (record.type == StrokeRecord.TYPE_FILL) {
+                fill(record, target, scale);
+            } else {
+                replay(record, canvas);
+            }
+        }
+    }
+
+    /**
+     * Draws a single record onto the canvas.
+     *
+     * @param record Record to replay, size and fill records are ignored.
+     * @param canvas Canvas to draw on.
+     */
+    void replay(StrokeRecord record, Canvas canvas) {
+        if (record.type == StrokeRecord.TYPE_CLEAR) {
+            canvas.drawColor(0, PorterDuff.Mode.CLEAR);
+        } else if (record.type == StrokeRecord.TYPE_STROKE && record.pointCount > 0) {
+            trace(record);
+            engine.commit(canvas, paint);
+        }
+    }
+
+    /**
+     * Draws a single record onto a tiled canvas.
+     *
+     * @param record Record to replay, size records are ignored.
+     * @param tiles Tiled canvas to draw on.
+     */
+    void replay(StrokeRecord record, TiledCanvas tiles) {
+        if (record.type == StrokeRecord.TYPE_CLEAR) {
+            tiles.clear();
+        } else if (prepare(record, tiles) != null) {
+            commit(tiles);
+        }
+    }
+
+    /**
+     * Traces a stroke or fill record without drawing it, so the area commit is going to change
+     * can be saved first. Nothing else may be drawn on the tiles before the commit.
+     *
+     * @param record Stroke or fill record.
+     * @param tiles Tiled canvas the record is going to be committed to.
+     * @return Bounds commit draws in, in canvas coordinates, or null if the record draws nothing.
+     */
+    StrokeBounds prepare(StrokeRecord record, TiledCanvas tiles) {
+        prepared = null;
+        if (record.type == StrokeRecord.TYPE_STROKE && record.pointCount > 0) {
+            trace(record);
+            engine.finish();
+            lastBounds = engine.getStrokeBounds();
+        } else if (record.type == StrokeRecord.TYPE_FILL) {
+            FloodFill fill = getFloodFill();
+            fill.load(tiles.getTileBitmaps(), TiledCanvas.TILE_SIZE, tiles.getWidth(),
+                    tiles.getHeight());
+            fill.fill((int) record.x(0), (int) record.y(0), record.tolerance());
+            fillRegion = fill.createRegion(record.color);
+            fillBounds.setEmpty();
+            if (fillRegion != null) {
+                fillBounds.set(fill.getLeft(), fill.getTop(), fill.getRight(), fill.getBottom());
+            }
+            lastBounds = fillBounds;
+        } else {
+            return null;
+        }
+        prepared = record;
+        return lastBounds;
+    }
+
+    /**
+     * Draws the record prepared last into the tiles.
+     *
+     * @param tiles Tiled canvas passed to prepare.
+     */
+    void commit(TiledCanvas tiles) {
+        if (prepared == null) {
+            return;
+        }
+        if (prepared.type == StrokeRecord.TYPE_STROKE) {
+            engine.commit(tiles, paint);
+        } else if (fillRegion != null) {
+            FloodFill.drawRegion(tiles, fillRegion, fillBounds.left, fillBounds.top,
+                    prepared.isErase());
+            fillRegion = null;
+        }
+        prepared = null;
+    }
+
+    /**
+     * @return Samples of the stroke traced last, snapped like the samples of a live stroke.
+     */
+    PointBuffer getTracedPoints() {
+        return engine.getPoints();
+    }
+
+    /**
+     * @return Bounds of the stroke or fill replayed last, in canvas coordinates.
+     */
+    StrokeBounds getLastBounds() {
+        return lastBounds != null ? lastBounds : engine.getStrokeBounds();
+    }
+
+    /**
+     * Fills the target bitmap from the seed of the record, mapped to the bitmap's scale.
+     */
+    private void fill(StrokeRecord record, Bitmap target, float scale) {
+        FloodFill fill = getFloodFill();
+        fill.load(new Bitmap[]{target}, Math.max(target.getWidth(), target.getHeight()),
+                target.getWidth(), target.getHeight());
+        fill.fill((int) (record.x(0) * scale), (int) (record.y(0) * scale), record.tolerance());
+        Bitmap region = fill.createRegion(record.color);
+        if (region != null) {
+            Paint regionPaint = new Paint();
+            regionPaint.setXfermode(record.isErase() ? cutMode : null);
+            new Canvas(target).drawBitmap(region, fill.getLeft(), fill.getTop(), regionPaint);
+        }
+    }
+
+    private FloodFill getFloodFill() {
+        if (floodFill == null) {
+            floodFill = new FloodFill();
+        }
+        return floodFill;
+    }
+
+    /**
+     * Sets up the paint for the stroke record and feeds its samples to the engine.
+     */
+    private void trace(StrokeRecord record) {
+        paint.setColor(record.color);
+        paint.setStrokeWidth(record.width);
+        paint.setXfermode(record.isErase() ? clearMode : null);
+        engine.setSmoother(record.isSmooth()
+                ? StrokeSmoother.QUAD_MIDPOINT : StrokeSmoother.LINEAR);
+        engine.setBrush(Brush.fromFlags(record.flags));
+        engine.begin(record.x(0), record.y(0), record.pressure(0), (long) record.time(0),
+                paint, record.isErase());
+        for (int i = 1; i < record.pointCount; i++) {
+            engine.addPoint(record.x(i), record.y(i), record.pressure(i),
+                    (long) record.time(i));
+        }
+    }
+}
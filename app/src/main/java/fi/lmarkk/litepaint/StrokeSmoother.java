@@ -0,0 +1,88 @@
+package fi.lmarkk.litepaint;
+
+/**
+ * Turns the raw touch samples of a stroke into line and curve segments.
+ *
+ * A smoother is called once for every sample appended to the PointBuffer and emits the segments
+ * that became final because of it. Segments are always emitted in order and each one starts where
+ * the previous one ended. Implementations must not allocate, they run for every touch sample.
+ *
+ * @version 2020.0419
+ */
+interface StrokeSmoother {
+
+    /**
+     * Receiver of the segments produced by a smoother.
+     */
+    interface SegmentSink {
+        void lineTo(float x0, float y0, float x1, float y1);
+
+        void quadTo(float x0, float y0, float cx, float cy, float x1, float y1);
+    }
+
+    /**
+     * Called after the sample at index was appended to points.
+     *
+     * @param points Samples of the stroke so far.
+     * @param index Index of the newest sample.
+     * @param sink Receiver of the finished segments.
+     */
+    void onPointAdded(PointBuffer points, int index, SegmentSink sink);
+
+    /**
+     * Called when the stroke ends to emit whatever is left between the last segment and the
+     * last sample.
+     *
+     * @param points Samples of the whole stroke.
+     * @param sink Receiver of the finished segments.
+     */
+    void finish(PointBuffer points, SegmentSink sink);
+
+    /**
+     * Connects the samples with straight lines, which is how strokes were drawn originally.
+     */
+    StrokeSmoother LINEAR = new StrokeSmoother() {
+        @Override
+        public void onPointAdded(PointBuffer points, int index, SegmentSink sink) {
+            if (index > 0) {
+                sink.lineTo(points.x(index - 1), points.y(index - 1),
+                        points.x(index), points.y(index));
+            }
+        }
+
+        @Override
+        public void finish(PointBuffer points, SegmentSink sink) {
+        }
+    };
+
+    /**
+     * Joins the midpoints of consecutive samples with quadratic curves that use the samples
+     * themselves as control points. The curve is tangent-continuous at every midpoint, which
+     * removes the corners fast strokes get with straight lines.
+     */
+    StrokeSmoother QUAD_MIDPOINT = new StrokeSmoother() {
+        @Override
+        public void onPointAdded(PointBuffer points, int index, SegmentSink sink) {
+            if (index == 1) {
+                sink.lineTo(points.x(0), points.y(0),
+                        (points.x(0) + points.x(1)) / 2f, (points.y(0) + points.y(1)) / 2f);
+            } else if (index > 1) {
+                float cx = points.x(index - 1);
+                float cy = points.y(index - 1);
+                sink.quadTo((points.x(index - 2) + cx) / 2f, (points.y(index - 2) + cy) / 2f,
+                        cx, cy,
+                        (cx + points.x(index)) / 2f, (cy + points.y(index)) / 2f);
+            }
+        }
+
+        @Override
+        public void finish(PointBuffer points, SegmentSink sink) {
+            int last = points.size() - 1;
+            if (last > 0) {
+                sink.lineTo((points.x(last - 1) + points.x(last)) / 2f,
+                        (points.y(last - 1) + points.y(last)) / 2f,
+                        points.x(last), points.y(last));
+            }
+        }
+    };
+}
@@ -0,0 +1,519 @@
+package fi.lmarkk.litepaint;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Rect;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.util.AttributeSet;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.MotionEvent;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * View which paints like PaintingView, but on a render thread of its own instead of the UI thread.
+ *
+ * The render thread owns a PaintingView that is never attached to a window, so committing a
+ * stroke or compositing a frame never delays input and the other views. Touch events are handed
+ * to it through a TouchQueue, and the PaintingControls calls as messages, both handled in the
+ * order they were made. Frames are drawn into the view's Surface from Choreographer callbacks of
+ * the render thread, so they are paced to vsync and each one takes in every touch sample queued
+ * before it. The getters answer from copies kept on the UI thread, except that undo and redo
+ * tell whether there was something to undo or redo as of the latest frame.
+ *
+ * @version 2020.0419
+ */
+public class SurfacePaintingView extends SurfaceView implements SurfaceHolder.Callback,
+        PaintingControls {
+    private static final String TAG = "SurfacePaintingView";
+    /** Touch samples the render thread may fall behind by before events are dropped. */
+    private static final int QUEUE_CAPACITY = 4096;
+    /** The view's background would be drawn over the surface, so the canvas is cleared to this. */
+    private static final int BACKGROUND_COLOR = Color.WHITE;
+
+    private static final int MSG_SURFACE = 1;
+    private static final int MSG_SIZE = 2;
+    private static final int MSG_COLOR = 3;
+    private static final int MSG_BRUSH_SIZE = 4;
+    private static final int MSG_LAST_BRUSH_SIZE = 5;
+    private static final int MSG_ERASE = 6;
+    private static final int MSG_BRUSH = 7;
+    private static final int MSG_FILL_MODE = 8;
+    private static final int MSG_START_NEW = 9;
+    private static final int MSG_UNDO = 10;
+    private static final int MSG_REDO = 11;
+    private static final int MSG_TRIM_MEMORY = 12;
+    private static final int MSG_STROKE_LOG = 13;
+    private static final int MSG_FLUSH_AUTOSAVE = 14;
+    private static final int MSG_STATS = 15;
+    private static final int MSG_STATS_OVERLAY = 16;
+    private static final int MSG_RESET_STATS = 17;
+    private static final int MSG_RELEASE = 18;
+
+    private final TouchQueue touches = new TouchQueue(QUEUE_CAPACITY);
+    private final HandlerThread renderThread;
+    private final Handler renderHandler;
+    private final Renderer renderer;
+    // Copies of the settings for the getters, used on the UI thread only.
+    private int paintColor = 0xFF000000;
+    private float lastBrushSize;
+    private Brush brush = Brush.PATH;
+    private boolean fillMode;
+    // Published by the render thread after every frame and command.
+    private volatile boolean canUndo, canRedo;
+
+    /**
+     * Public constructor which starts the render thread. The drawing is created on it with the
+     * same initial settings as a PaintingView.
+     *
+     * @param context App context.
+     * @param attrs AttributeSet, not used.
+     */
+    public SurfacePaintingView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        lastBrushSize = getResources().getInteger(R.integer.medium_size);
+        renderThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_DISPLAY);
+        renderThread.start();
+        renderer = new Renderer(context);
+        renderHandler = new Handler(renderThread.getLooper(), renderer);
+        renderHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                renderer.init();
+            }
+        });
+        getHolder().addCallback(this);
+    }
+
+    /**
+     * Queues the touch samples for the next frame of the render thread.
+     *
+     * @param event The motion event registered when user presses on the screen.
+     * @return true, every event is passed on.
+     */
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        touches.add(event);
+        renderer.requestFrame();
+        return true;
+    }
+
+    @Override
+    public void surfaceCreated(SurfaceHolder holder) {
+        renderHandler.sendEmptyMessage(MSG_SURFACE);
+    }
+
+    @Override
+    public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+        renderHandler.obtainMessage(MSG_SIZE, width, height).sendToTarget();
+    }
+
+    /**
+     * Waits until the render thread has stopped drawing, since the surface goes away once this
+     * returns.
+     */
+    @Override
+    public void surfaceDestroyed(SurfaceHolder holder) {
+        call(new Callable<Void>() {
+            @Override
+            public Void call() {
+                renderer.setSurfaceReady(false);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void setColor(String newColor) {
+        paintColor = Color.parseColor(newColor);
+        renderHandler.obtainMessage(MSG_COLOR, newColor).sendToTarget();
+    }
+
+    @Override
+    public int getPaintColor() {
+        return paintColor;
+    }
+
+    @Override
+    public void setBrushSize(float newSize) {
+        renderHandler.obtainMessage(MSG_BRUSH_SIZE, newSize).sendToTarget();
+    }
+
+    @Override
+    public void setLastBrushSize(float lastSize) {
+        lastBrushSize = lastSize;
+        renderHandler.obtainMessage(MSG_LAST_BRUSH_SIZE, lastSize).sendToTarget();
+    }
+
+    @Override
+    public float getLastBrushSize() {
+        return lastBrushSize;
+    }
+
+    @Override
+    public void setErase(boolean isErase) {
+        renderHandler.obtainMessage(MSG_ERASE, isErase ? 1 : 0, 0).sendToTarget();
+    }
+
+    @Override
+    public void setBrush(Brush brush) {
+        this.brush = brush;
+        renderHandler.obtainMessage(MSG_BRUSH, brush).sendToTarget();
+    }
+
+    @Override
+    public Brush getBrush() {
+        return brush;
+    }
+
+    @Override
+    public void setFillMode(boolean enabled) {
+        fillMode = enabled;
+        renderHandler.obtainMessage(MSG_FILL_MODE, enabled ? 1 : 0, 0).sendToTarget();
+    }
+
+    @Override
+    public boolean isFillMode() {
+        return fillMode;
+    }
+
+    @Override
+    public void startNew() {
+        renderHandler.sendEmptyMessage(MSG_START_NEW);
+    }
+
+    @Override
+    public boolean undo() {
+        renderHandler.sendEmptyMessage(MSG_UNDO);
+        return canUndo;
+    }
+
+    @Override
+    public boolean redo() {
+        renderHandler.sendEmptyMessage(MSG_REDO);
+        return canRedo;
+    }
+
+    /**
+     * Method which copies the committed drawing for saving. Waits for the render thread to make
+     * the copy after the commands sent before.
+     */
+    @Override
+    public Bitmap createSnapshot() {
+        return call(new Callable<Bitmap>() {
+            @Override
+            public Bitmap call() {
+                return renderer.engine.createSnapshot();
+            }
+        });
+    }
+
+    @Override
+    public void trimMemory(int level) {
+        renderHandler.obtainMessage(MSG_TRIM_MEMORY, level, 0).sendToTarget();
+    }
+
+    @Override
+    public void setStrokeLog(StrokeLogWriter log) {
+        renderHandler.obtainMessage(MSG_STROKE_LOG, log).sendToTarget();
+    }
+
+    /**
+     * Method which restores the autosaved drawing and autosaves it from then on, like
+     * PaintingView.setAutosave but on the render thread. A journal that can be neither restored
+     * from nor emptied is closed there.
+     */
+    @Override
+    public void setAutosave(final TileJournal journal, final Executor writer) {
+        renderHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    renderer.engine.setAutosave(journal, writer);
+                } catch (IOException e) {
+                    Log.w(TAG, "Autosave could not be opened", e);
+                    try {
+                        journal.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public void flushAutosave() {
+        renderHandler.sendEmptyMessage(MSG_FLUSH_AUTOSAVE);
+    }
+
+    @Override
+    public void setStatsEnabled(boolean enabled) {
+        renderHandler.obtainMessage(MSG_STATS, enabled ? 1 : 0, 0).sendToTarget();
+    }
+
+    @Override
+    public void setStatsOverlay(boolean visible) {
+        renderHandler.obtainMessage(MSG_STATS_OVERLAY, visible ? 1 : 0, 0).sendToTarget();
+    }
+
+    @Override
+    public void resetStats() {
+        renderHandler.sendEmptyMessage(MSG_RESET_STATS);
+    }
+
+    @Override
+    public void dumpStats(final PrintWriter writer) {
+        call(new Callable<Void>() {
+            @Override
+            public Void call() {
+                renderer.engine.dumpStats(writer);
+                return null;
+            }
+        });
+        writer.println("dropped touch events: " + touches.getDropped());
+    }
+
+    /**
+     * Method which releases the drawing and stops the render thread. Waits for the thread to
+     * finish, so the stroke log can be closed once this returns.
+     */
+    @Override
+    public void release() {
+        if (!renderHandler.sendEmptyMessage(MSG_RELEASE)) {
+            return;
+        }
+        renderThread.quitSafely();
+        try {
+            renderThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs a task on the render thread after the commands sent before it and waits for its
+     * result.
+     *
+     * @return Result of the task, or null once the render thread has stopped.
+     */
+    private <T> T call(Callable<T> task) {
+        FutureTask<T> future = new FutureTask<>(task);
+        if (!renderHandler.post(future)) {
+            return null;
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Owns the drawing on the render thread. Handles the commands and draws the frames.
+     */
+    private class Renderer implements Handler.Callback, Choreographer.FrameCallback {
+        private final Context context;
+        private final AtomicBoolean frameRequested = new AtomicBoolean();
+        private volatile Choreographer choreographer;
+        Engine engine;
+        private boolean surfaceReady, dirty, inFrame;
+
+        Renderer(Context context) {
+            this.context = context;
+        }
+
+        void init() {
+            engine = new Engine(context);
+            choreographer = Choreographer.getInstance();
+            requestFrame();
+        }
+
+        /**
+         * Schedules a frame at the next vsync unless one is scheduled already. Called from any
+         * thread.
+         */
+        void requestFrame() {
+            Choreographer frames = choreographer;
+            if (frames != null && frameRequested.compareAndSet(false, true)) {
+                frames.postFrameCallback(this);
+            }
+        }
+
+        /**
+         * Marks the view dirty. A change made while the frame takes in touch samples is drawn in
+         * that frame, any other change requests a frame of its own.
+         */
+        void invalidated() {
+            dirty = true;
+            if (!inFrame) {
+                requestFrame();
+            }
+        }
+
+        void setSurfaceReady(boolean ready) {
+            surfaceReady = ready;
+            dirty = ready;
+            if (ready) {
+                requestFrame();
+            }
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            frameRequested.set(false);
+            if (engine == null) {
+                return;
+            }
+            inFrame = true;
+            MotionEvent event;
+            while ((event = touches.poll()) != null) {
+                engine.onTouchEvent(event);
+                event.recycle();
+            }
+            inFrame = false;
+            if (dirty && surfaceReady) {
+                draw();
+            }
+            publish();
+        }
+
+        /**
+         * Draws the whole view into the next buffer of the surface, which is posted when the
+         * display can take it.
+         */
+        private void draw() {
+            SurfaceHolder holder = getHolder();
+            Canvas canvas = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                    ? holder.lockHardwareCanvas() : holder.lockCanvas();
+            if (canvas == null) {
+                return;
+            }
+            dirty = false;
+            try {
+                canvas.drawColor(BACKGROUND_COLOR);
+                engine.draw(canvas);
+            } finally {
+                holder.unlockCanvasAndPost(canvas);
+            }
+        }
+
+        private void publish() {
+            canUndo = engine.canUndo();
+            canRedo = engine.canRedo();
+        }
+
+        @Override
+        public boolean handleMessage(Message msg) {
+            if (engine == null) {
+                return true;
+            }
+            switch (msg.what) {
+                case MSG_SURFACE:
+                    setSurfaceReady(true);
+                    break;
+                case MSG_SIZE:
+                    engine.layout(0, 0, msg.arg1, msg.arg2);
+                    invalidated();
+                    break;
+                case MSG_COLOR:
+                    engine.setColor((String) msg.obj);
+                    break;
+                case MSG_BRUSH_SIZE:
+                    engine.setBrushSize((Float) msg.obj);
+                    break;
+                case MSG_LAST_BRUSH_SIZE:
+                    engine.setLastBrushSize((Float) msg.obj);
+                    break;
+                case MSG_ERASE:
+                    engine.setErase(msg.arg1 != 0);
+                    break;
+                case MSG_BRUSH:
+                    engine.setBrush((Brush) msg.obj);
+                    break;
+                case MSG_FILL_MODE:
+                    engine.setFillMode(msg.arg1 != 0);
+                    break;
+                case MSG_START_NEW:
+                    engine.startNew();
+                    break;
+                case MSG_UNDO:
+                    engine.undo();
+                    break;
+                case MSG_REDO:
+                    engine.redo();
+                    break;
+                case MSG_TRIM_MEMORY:
+                    engine.trimMemory(msg.arg1);
+                    break;
+                case MSG_STROKE_LOG:
+                    engine.setStrokeLog((StrokeLogWriter) msg.obj);
+                    break;
+                case MSG_FLUSH_AUTOSAVE:
+                    engine.flushAutosave();
+                    break;
+                case MSG_STATS:
+                    engine.setStatsEnabled(msg.arg1 != 0);
+                    break;
+                case MSG_STATS_OVERLAY:
+                    engine.setStatsOverlay(msg.arg1 != 0);
+                    break;
+                case MSG_RESET_STATS:
+                    engine.resetStats();
+                    break;
+                case MSG_RELEASE:
+                    choreographer.removeFrameCallback(this);
+                    engine.release();
+                    publish();
+                    engine = null;
+                    return true;
+                default:
+                    return false;
+            }
+            publish();
+            return true;
+        }
+    }
+
+    /**
+     * PaintingView owned by the render thread. Its invalidations mark the surface dirty instead
+     * of a window.
+     */
+    private class Engine extends PaintingView {
+        Engine(Context context) {
+            super(context, null);
+        }
+
+        @Override
+        public void invalidate() {
+            renderer.invalidated();
+        }
+
+        @Override
+        public void invalidate(int l, int t, int r, int b) {
+            renderer.invalidated();
+        }
+
+        @Override
+        public void invalidate(Rect dirty) {
+            renderer.invalidated();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package fi.lmarkk.litepaint;
+
+import android.graphics.Bitmap;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * File tiles of a TiledCanvas are paged out to under memory pressure.
+ *
+ * The file is divided into slots of one tile each. The raw premultiplied pixels are copied with
+ * copyPixelsToBuffer, which is both faster and exact compared to encoding. Slots are reused once
+ * their tile is paged back in and changed or removed, so the file never holds more slots than the
+ * drawing has tiles. The content only lives as long as the canvas, the file is emptied on open.
+ * Tiles may be written on a background thread while others are read back in, so every method
+ * holds the lock of the cache.
+ *
+ * @version 2020.0419
+ */
+class TileCache implements Closeable {
+    static final int SLOT_BYTES = TiledCanvas.TILE_SIZE * TiledCanvas.TILE_SIZE * 4;
+
+    private final File file;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(SLOT_BYTES);
+    private final List<Integer> freeSlots = new ArrayList<>();
+    private int slotCount;
+
+    private TileCache(File file, FileChannel channel) {
+        this.file = file;
+        this.channel = channel;
+    }
+
+    /**
+     * Creates an empty cache file, replacing any earlier content.
+     *
+     * @param file File to page tiles out to.
+     * @return The cache.
+     * @throws IOException If the file cannot be opened.
+     */
+    static TileCache open(File file) throws IOException {
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        channel.truncate(0);
+        return new TileCache(file, channel);
+    }
+
+    /**
+     * Writes the pixels of a tile into a free slot.
+     *
+     * @param tile ARGB_8888 bitmap of TILE_SIZE by TILE_SIZE pixels.
+     * @return Slot the tile was written to.
+     * @throws IOException If writing fails, in which case no slot is taken.
+     */
+    synchronized int write(Bitmap tile) throws IOException {
+        int slot = freeSlots.isEmpty() ? slotCount++ : freeSlots.remove(freeSlots.size() - 1);
+        buffer.clear();
+        tile.copyPixelsToBuffer(buffer);
+        buffer.flip();
+        try {
+            long position = (long) slot * SLOT_BYTES;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        } catch (IOException e) {
+            freeSlots.add(slot);
+            throw e;
+        }
+        return slot;
+    }
+
+    /**
+     * Reads the pixels of a slot back into a tile.
+     *
+     * @param slot Slot returned by write.
+     * @param tile Mutable ARGB_8888 bitmap of TILE_SIZE by TILE_SIZE pixels.
+     * @throws IOException If reading fails.
+     */
+    synchronized void read(int slot, Bitmap tile) throws IOException {
+        buffer.clear();
+        long position = (long) slot * SLOT_BYTES;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Tile cache slot " + slot + " is truncated");
+            }
+            position += read;
+        }
+        buffer.flip();
+        tile.copyPixelsFromBuffer(buffer);
+    }
+
+    /**
+     * Marks the slot as reusable.
+     */
+    synchronized void free(int slot) {
+        freeSlots.add(slot);
+    }
+
+    /**
+     * @return Slots in use.
+     */
+    synchronized int getUsedSlots() {
+        return slotCount - freeSlots.size();
+    }
+
+    /**
+     * Closes and deletes the file.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+        file.delete();
+    }
+}
@@ -0,0 +1,609 @@
+package fi.lmarkk.litepaint;
+
+import android.graphics.Bitmap;
+import android.graphics.PorterDuff;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only file the drawing is autosaved to, one checkpoint at a time.
+ *
+ * A checkpoint holds the layer settings and only the tiles that changed since the previous one,
+ * with the raw premultiplied pixels like TileCache writes them. It ends in a commit record with
+ * a checksum of the record headers, written after everything before it has been forced to disk,
+ * so a checkpoint cut short by a crash is recognised and dropped on the next open. Each tile
+ * carries a checksum of its own pixels, which is checked when the tile is read.
+ *
+ * Opening the journal only reads the record headers and skips the pixels, so the tiles can be
+ * restored lazily from a Reader as they are first drawn. Once the file holds much more than the
+ * latest version of every tile it is compacted into a new file, which replaces the old one. A
+ * Reader keeps reading the file it was opened on, so compacting never disturbs a restore.
+ *
+ * The journal itself must only be used by one thread at a time.
+ *
+ * @version 2020.0419
+ */
+class TileJournal implements Closeable {
+    static final int SLOT_BYTES = TileCache.SLOT_BYTES;
+    /** The file is compacted once it is this many times larger than the tiles it holds. */
+    static final int COMPACT_FACTOR = 2;
+    /** Files smaller than this are never compacted. */
+    static final long MIN_COMPACT_BYTES = 16L * 1024 * 1024;
+
+    private static final int MAGIC = 0x4C504A31;
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER_BYTES = 12;
+    private static final byte TYPE_STATE = 1;
+    private static final byte TYPE_TILE = 2;
+    private static final byte TYPE_EMPTY = 3;
+    private static final byte TYPE_COMMIT = 4;
+    /** Type, layer id, column, row and pixel checksum. */
+    private static final int TILE_HEADER_BYTES = 1 + 4 + 2 + 2 + 4;
+    private static final int EMPTY_BYTES = 1 + 4 + 2 + 2;
+    private static final int STATE_HEADER_BYTES = 1 + 4 + 4 + 1 + 1;
+    private static final int STATE_LAYER_BYTES = 4 + 4 + 1 + 1;
+    private static final int COMMIT_BYTES = 1 + 4;
+
+    /**
+     * Layer settings and canvas size of a checkpoint.
+     */
+    static class State {
+        final int width, height;
+        final int active;
+        final int[] layerIds;
+        final float[] opacities;
+        final boolean[] visible;
+        final PorterDuff.Mode[] blendModes;
+
+        /**
+         * Creates a state whose layer arrays are filled in by the caller, bottom layer first.
+         */
+        State(int width, int height, int active, int layerCount) {
+            this.width = width;
+            this.height = height;
+            this.active = active;
+            layerIds = new int[layerCount];
+            opacities = new float[layerCount];
+            visible = new boolean[layerCount];
+            blendModes = new PorterDuff.Mode[layerCount];
+        }
+    }
+
+    /**
+     * Everything a checkpoint writes, collected on the UI thread and written on another one.
+     */
+    static class Checkpoint {
+        final State state;
+        private final List<int[]> keys = new ArrayList<>();
+        private final List<Bitmap> pixels = new ArrayList<>();
+
+        Checkpoint(State state) {
+            this.state = state;
+        }
+
+        /**
+         * Adds a changed tile.
+         *
+         * @param copy Copy of the tile that nothing else draws on, or null if the tile was
+         *             removed.
+         */
+        void addTile(int layerId, int column, int row, Bitmap copy) {
+            keys.add(new int[]{layerId, column, row});
+            pixels.add(copy);
+        }
+
+        int getTileCount() {
+            return keys.size();
+        }
+
+        /**
+         * @return Layer id, column and row of the tile added index:th.
+         */
+        int[] getTileKey(int index) {
+            return keys.get(index);
+        }
+    }
+
+    /**
+     * Reads tiles back from the file as it was when the reader was opened.
+     */
+    static class Reader implements Closeable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(4 + SLOT_BYTES);
+        private final CRC32 crc = new CRC32();
+
+        private Reader(File file) throws IOException {
+            channel = new RandomAccessFile(file, "r").getChannel();
+        }
+
+        /**
+         * Reads the pixels of a tile.
+         *
+         * @param position Position returned by TileJournal.getTilePosition.
+         * @param tile Mutable ARGB_8888 bitmap of TILE_SIZE by TILE_SIZE pixels.
+         * @throws IOException If reading fails or the pixels do not match their checksum.
+         */
+        void read(long position, Bitmap tile) throws IOException {
+            buffer.clear();
+            if (!readFully(channel, buffer, position)) {
+                throw new IOException("Autosaved tile at " + position + " is truncated");
+            }
+            int expected = buffer.getInt(0);
+            crc.reset();
+            crc.update(buffer.array(), 4, SLOT_BYTES);
+            if ((int) crc.getValue() != expected) {
+                throw new IOException("Autosaved tile at " + position + " is corrupt");
+            }
+            buffer.position(4);
+            tile.copyPixelsFromBuffer(buffer);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private final File file;
+    private FileChannel channel;
+    /** Position of the checksum and pixels of the latest version of every tile, by key. */
+    private Map<Long, Long> tiles = new HashMap<>();
+    private State state;
+    /** End of the latest commit, where the next checkpoint is written. */
+    private long end;
+    private final ByteBuffer header = ByteBuffer.allocate(STATE_HEADER_BYTES
+            + STATE_LAYER_BYTES * LayerStack.MAX_LAYERS);
+    private final ByteBuffer pixelBuffer = ByteBuffer.allocate(SLOT_BYTES);
+    private final CRC32 headerCrc = new CRC32();
+    private final CRC32 pixelCrc = new CRC32();
+
+    private TileJournal(File file, FileChannel channel) {
+        this.file = file;
+        this.channel = channel;
+    }
+
+    /**
+     * Opens the journal, creating it if needed. Only the record headers are read, and anything
+     * after the last complete checkpoint is cut off.
+     *
+     * @param file Journal file.
+     * @return The journal.
+     * @throws IOException If the file cannot be opened.
+     */
+    static TileJournal open(File file) throws IOException {
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        TileJournal journal = new TileJournal(file, channel);
+        try {
+            journal.scan();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return journal;
+    }
+
+    /**
+     * @return Layer settings of the latest checkpoint, or null if there is none.
+     */
+    State getState() {
+        return state;
+    }
+
+    /**
+     * @return Number of tiles the latest checkpoint left in the file.
+     */
+    int getTileCount() {
+        return tiles.size();
+    }
+
+    /**
+     * @return Position to pass to Reader.read for the tile, or -1 if the tile is empty.
+     */
+    long getTilePosition(int layerId, int column, int row) {
+        Long position = tiles.get(key(layerId, column, row));
+        return position != null ? position : -1;
+    }
+
+    /**
+     * Hands every tile of a layer to a canvas without reading it. The canvas reads the tiles
+     * from the reader as they are needed.
+     *
+     * @return Number of tiles restored.
+     */
+    int restore(int layerId, TiledCanvas target, Reader reader) {
+        target.setRestoreSource(reader);
+        int restored = 0;
+        for (Map.Entry<Long, Long> entry : tiles.entrySet()) {
+            long key = entry.getKey();
+            if ((int) (key >>> 32) == layerId) {
+                target.restoreTile((int) (key >>> 16) & 0xFFFF, (int) key & 0xFFFF,
+                        entry.getValue());
+                restored++;
+            }
+        }
+        return restored;
+    }
+
+    /**
+     * @return A reader of the file as it is now.
+     * @throws IOException If the file cannot be opened for reading.
+     */
+    Reader openReader() throws IOException {
+        return new Reader(file);
+    }
+
+    /**
+     * @return Length of the file in bytes.
+     */
+    long getLength() {
+        return end;
+    }
+
+    /**
+     * Appends a checkpoint and forces it to disk, compacting the file afterwards if it has grown
+     * too large. The bitmaps of the checkpoint are recycled.
+     *
+     * @throws IOException If writing fails. The journal still holds the previous checkpoint.
+     */
+    void write(Checkpoint checkpoint) throws IOException {
+        if (channel.size() > end) {
+            channel.truncate(end);
+        }
+        Map<Long, Long> written = new HashMap<>();
+        headerCrc.reset();
+        long position = end;
+        try {
+            position = writeState(channel, position, checkpoint.state);
+            for (int i = 0; i < checkpoint.keys.size(); i++) {
+                int[] key = checkpoint.keys.get(i);
+                Bitmap copy = checkpoint.pixels.get(i);
+                if (copy == null) {
+                    header.clear();
+                    header.put(TYPE_EMPTY).putInt(key[0]).putShort((short) key[1])
+                            .putShort((short) key[2]);
+                    position = writeHeader(channel, position);
+                    written.put(key(key[0], key[1], key[2]), -1L);
+                } else {
+                    pixelBuffer.clear();
+                    copy.copyPixelsToBuffer(pixelBuffer);
+                    copy.recycle();
+                    pixelCrc.reset();
+                    pixelCrc.update(pixelBuffer.array(), 0, SLOT_BYTES);
+                    written.put(key(key[0], key[1], key[2]), position + TILE_HEADER_BYTES - 4);
+                    position = writeTile(channel, position, key[0], key[1], key[2],
+                            (int) pixelCrc.getValue());
+                    pixelBuffer.flip();
+                    position = writeFully(channel, pixelBuffer, position);
+                }
+            }
+            channel.force(false);
+            position = writeCommit(channel, position);
+            channel.force(false);
+        } finally {
+            for (Bitmap copy : checkpoint.pixels) {
+                if (copy != null && !copy.isRecycled()) {
+                    copy.recycle();
+                }
+            }
+        }
+        end = position;
+        state = checkpoint.state;
+        for (Map.Entry<Long, Long> entry : written.entrySet()) {
+            if (entry.getValue() < 0) {
+                tiles.remove(entry.getKey());
+            } else {
+                tiles.put(entry.getKey(), entry.getValue());
+            }
+        }
+        dropRemovedLayers();
+        if (end > MIN_COMPACT_BYTES && end > COMPACT_FACTOR * getLiveBytes()) {
+            compact();
+        }
+    }
+
+    /**
+     * Empties the journal.
+     *
+     * @throws IOException If the file cannot be written.
+     */
+    void reset() throws IOException {
+        channel.truncate(0);
+        end = writeFileHeader(channel);
+        channel.force(false);
+        tiles.clear();
+        state = null;
+    }
+
+    /**
+     * Closes the file, keeping its content for the next open.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Rewrites the latest checkpoint into a new file, which then replaces this one. The pixels
+     * are copied between the files as they are.
+     */
+    private void compact() throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        FileChannel target = new RandomAccessFile(temp, "rw").getChannel();
+        Map<Long, Long> moved = new HashMap<>();
+        long position;
+        try {
+            target.truncate(0);
+            position = writeFileHeader(target);
+            headerCrc.reset();
+            position = writeState(target, position, state);
+            ByteBuffer checksum = ByteBuffer.allocate(4);
+            for (Map.Entry<Long, Long> entry : tiles.entrySet()) {
+                long key = entry.getKey();
+                checksum.clear();
+                if (!readFully(channel, checksum, entry.getValue())) {
+                    throw new IOException("Journal is truncated");
+                }
+                moved.put(key, position + TILE_HEADER_BYTES - 4);
+                position = writeTile(target, position, (int) (key >>> 32),
+                        (int) (key >>> 16) & 0xFFFF, (int) key & 0xFFFF, checksum.getInt(0));
+                long source = entry.getValue() + 4;
+                long copied = 0;
+                while (copied < SLOT_BYTES) {
+                    copied += channel.transferTo(source + copied, SLOT_BYTES - copied,
+                            target.position(position + copied));
+                }
+                position += SLOT_BYTES;
+            }
+            position = writeCommit(target, position);
+            target.force(false);
+        } catch (IOException e) {
+            target.close();
+            temp.delete();
+            throw e;
+        }
+        if (!temp.renameTo(file)) {
+            target.close();
+            temp.delete();
+            throw new IOException("Could not replace " + file);
+        }
+        channel.close();
+        channel = target;
+        tiles = moved;
+        end = position;
+    }
+
+    /**
+     * Reads the record headers, keeping the tiles and state of every complete checkpoint, and
+     * cuts off whatever follows the last one.
+     */
+    private void scan() throws IOException {
+        long size = channel.size();
+        ByteBuffer fileHeader = ByteBuffer.allocate(FILE_HEADER_BYTES);
+        if (size < FILE_HEADER_BYTES || !readFully(channel, fileHeader, 0)
+                || fileHeader.getInt(0) != MAGIC || fileHeader.getInt(4) != VERSION
+                || fileHeader.getInt(8) != TiledCanvas.TILE_SIZE) {
+            reset();
+            return;
+        }
+        long position = FILE_HEADER_BYTES;
+        end = position;
+        Map<Long, Long> pending = new HashMap<>();
+        State pendingState = null;
+        headerCrc.reset();
+        scanning:
+        while (true) {
+            header.clear();
+            header.limit(1);
+            if (!readFully(channel, header, position)) {
+                break;
+            }
+            byte type = header.get(0);
+            int length;
+            switch (type) {
+                case TYPE_STATE:
+                    length = STATE_HEADER_BYTES;
+                    break;
+                case TYPE_TILE:
+                    length = TILE_HEADER_BYTES;
+                    break;
+                case TYPE_EMPTY:
+                    length = EMPTY_BYTES;
+                    break;
+                case TYPE_COMMIT:
+                    length = COMMIT_BYTES;
+                    break;
+                default:
+                    break scanning;
+            }
+            header.limit(length);
+            if (!readFully(channel, header, position)) {
+                break;
+            }
+            if (type == TYPE_STATE) {
+                int count = header.get(STATE_HEADER_BYTES - 1);
+                if (count < 1 || count > LayerStack.MAX_LAYERS) {
+                    break;
+                }
+                length += count * STATE_LAYER_BYTES;
+                header.limit(length);
+                if (!readFully(channel, header, position)) {
+                    break;
+                }
+                pendingState = readState(header);
+                if (pendingState == null) {
+                    break;
+                }
+            } else if (type == TYPE_COMMIT) {
+                if (header.getInt(1) != (int) headerCrc.getValue()) {
+                    break;
+                }
+                position += length;
+                end = position;
+                applyPending(pending, pendingState);
+                pendingState = null;
+                headerCrc.reset();
+                continue;
+            }
+            headerCrc.update(header.array(), 0, length);
+            if (type != TYPE_STATE) {
+                long key = key(header.getInt(1), header.getShort(5) & 0xFFFF,
+                        header.getShort(7) & 0xFFFF);
+                if (type == TYPE_EMPTY) {
+                    pending.put(key, -1L);
+                } else if (position + length + SLOT_BYTES > size) {
+                    break;
+                } else {
+                    pending.put(key, position + length - 4);
+                    position += SLOT_BYTES;
+                }
+            }
+            position += length;
+        }
+        if (size > end) {
+            channel.truncate(end);
+        }
+    }
+
+    private void applyPending(Map<Long, Long> pending, State pendingState) {
+        for (Map.Entry<Long, Long> entry : pending.entrySet()) {
+            if (entry.getValue() < 0) {
+                tiles.remove(entry.getKey());
+            } else {
+                tiles.put(entry.getKey(), entry.getValue());
+            }
+        }
+        pending.clear();
+        if (pendingState != null) {
+            state = pendingState;
+            dropRemovedLayers();
+        }
+    }
+
+    /**
+     * Forgets the tiles of layers the latest state no longer has.
+     */
+    private void dropRemovedLayers() {
+        if (state == null) {
+            return;
+        }
+        Set<Integer> ids = new HashSet<>();
+        for (int id : state.layerIds) {
+            ids.add(id);
+        }
+        for (Iterator<Long> i = tiles.keySet().iterator(); i.hasNext(); ) {
+            if (!ids.contains((int) (i.next() >>> 32))) {
+                i.remove();
+            }
+        }
+    }
+
+    private long getLiveBytes() {
+        return FILE_HEADER_BYTES + (long) tiles.size() * (TILE_HEADER_BYTES + SLOT_BYTES);
+    }
+
+    private static State readState(ByteBuffer buffer) {
+        int count = buffer.get(STATE_HEADER_BYTES - 1);
+        State state = new State(buffer.getInt(1), buffer.getInt(5), buffer.get(9), count);
+        if (state.active < 0 || state.active >= count) {
+            return null;
+        }
+        PorterDuff.Mode[] modes = PorterDuff.Mode.values();
+        for (int i = 0; i < count; i++) {
+            int offset = STATE_HEADER_BYTES + i * STATE_LAYER_BYTES;
+            state.layerIds[i] = buffer.getInt(offset);
+            state.opacities[i] = buffer.getFloat(offset + 4);
+            state.visible[i] = buffer.get(offset + 8) != 0;
+            int mode = buffer.get(offset + 9);
+            if (mode < 0 || mode >= modes.length) {
+                return null;
+            }
+            state.blendModes[i] = modes[mode];
+        }
+        return state;
+    }
+
+    private long writeFileHeader(FileChannel target) throws IOException {
+        ByteBuffer fileHeader = ByteBuffer.allocate(FILE_HEADER_BYTES);
+        fileHeader.putInt(MAGIC).putInt(VERSION).putInt(TiledCanvas.TILE_SIZE);
+        fileHeader.flip();
+        return writeFully(target, fileHeader, 0);
+    }
+
+    private long writeState(FileChannel target, long position, State state) throws IOException {
+        header.clear();
+        int count = state.layerIds.length;
+        header.put(TYPE_STATE).putInt(state.width).putInt(state.height)
+                .put((byte) state.active).put((byte) count);
+        for (int i = 0; i < count; i++) {
+            header.putInt(state.layerIds[i]).putFloat(state.opacities[i])
+                    .put((byte) (state.visible[i] ? 1 : 0))
+                    .put((byte) state.blendModes[i].ordinal());
+        }
+        return writeHeader(target, position);
+    }
+
+    private long writeTile(FileChannel target, long position, int layerId, int column, int row,
+                           int checksum) throws IOException {
+        header.clear();
+        header.put(TYPE_TILE).putInt(layerId).putShort((short) column).putShort((short) row)
+                .putInt(checksum);
+        return writeHeader(target, position);
+    }
+
+    private long writeCommit(FileChannel target, long position) throws IOException {
+        header.clear();
+        header.put(TYPE_COMMIT).putInt((int) headerCrc.getValue());
+        header.flip();
+        return writeFully(target, header, position);
+    }
+
+    /**
+     * Writes the record in the header buffer and adds it to the checksum of the checkpoint.
+     */
+    private long writeHeader(FileChannel target, long position) throws IOException {
+        header.flip();
+        headerCrc.update(header.array(), 0, header.limit());
+        return writeFully(target, header, position);
+    }
+
+    private static long writeFully(FileChannel target, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            position += target.write(buffer, position);
+        }
+        return position;
+    }
+
+    /**
+     * @return false if the file ends before the buffer is full.
+     */
+    private static boolean readFully(FileChannel source, ByteBuffer buffer, long position)
+            throws IOException {
+        position += buffer.position();
+        while (buffer.hasRemaining()) {
+            int read = source.read(buffer, position);
+            if (read < 0) {
+                return false;
+            }
+            position += read;
+        }
+        return true;
+    }
+
+    private static long key(int layerId, int column, int row) {
+        return (long) layerId << 32 | (long) column << 16 | row;
+    }
+}
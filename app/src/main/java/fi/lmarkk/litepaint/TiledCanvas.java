@@ -0,0 +1,791 @@
+package fi.lmarkk.litepaint;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Sparse backing store of the drawing, split into square tiles.
+ *
+ * A tile bitmap is only allocated once something is painted on it, so empty parts of the canvas
+ * cost one null reference each. The canvas can be larger than the view and only ever grows, so
+ * resizing the view keeps the drawing. Under memory pressure tiles are paged out to a TileCache
+ * file and read back in when they are drawn or painted on again. A tile that is paged out again
+ * without having changed keeps its slot and is not written twice. Paging out can write the tiles
+ * on a background thread, from copies taken a few tiles at a time, and a tile only drops its
+ * bitmap once its copy is written.
+ *
+ * Tile bitmaps are never recycled, because a frame recorded by the render thread may still
+ * reference them. They are dropped and left to the garbage collector, or given to a BitmapPool,
+ * which only hands them out again once those frames are done.
+ *
+ * The canvas keeps track of the tiles changed since they were last autosaved, and tiles restored
+ * from an autosave are only read from the TileJournal once they are first needed.
+ *
+ * @version 2020.0419
+ */
+class TiledCanvas {
+    static final int TILE_SIZE = 256;
+    private static final String TAG = "TiledCanvas";
+    /** Tiles copied at a time when paging out in the background. */
+    private static final int PAGE_OUT_BATCH = 8;
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private static class Tile {
+        /** Pixels of the tile, null while paged out. */
+        Bitmap bitmap;
+        /** Slot of the cache holding an up to date copy, or -1. */
+        int slot = -1;
+        /** Position of the tile in the journal it is being restored from, or -1. */
+        long restored = -1;
+        /** Incremented when the tile is drawn on or removed, to detect outdated copies. */
+        int version;
+    }
+
+    private final File cacheFile;
+    private final Canvas tileCanvas = new Canvas();
+    private final Paint copyPaint = new Paint();
+    private final Rect tileRect = new Rect();
+    private final Rect sourceRect = new Rect();
+    private TileCache cache;
+    private TileJournal.Reader restoreSource;
+    private Tile[] tiles = new Tile[0];
+    /** Indices of the tiles changed or removed since takeChanges was last called. */
+    private BitSet unsaved = new BitSet();
+    private int columns, rows;
+    private int width, height;
+    private long allocatedBytes;
+    private BitmapPool bitmapPool;
+
+    /**
+     * @param cacheFile File tiles are paged out to, created on first use. May be null for a
+     *                  canvas that is never paged out.
+     */
+    TiledCanvas(File cacheFile) {
+        this.cacheFile = cacheFile;
+        copyPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+    }
+
+    /**
+     * Grows the canvas to at least the given size. The canvas never shrinks, so a smaller size
+     * keeps everything drawn outside it.
+     *
+     * @return Whether the size changed.
+     */
+    boolean ensureSize(int minWidth, int minHeight) {
+        if (minWidth <= width && minHeight <= height) {
+            return false;
+        }
+        width = Math.max(width, minWidth);
+        height = Math.max(height, minHeight);
+        int newColumns = (width + TILE_SIZE - 1) / TILE_SIZE;
+        int newRows = (height + TILE_SIZE - 1) / TILE_SIZE;
+        Tile[] grown = new Tile[newColumns * newRows];
+        BitSet moved = new BitSet();
+        for (int row = 0; row < rows; row++) {
+            System.arraycopy(tiles, row * columns, grown, row * newColumns, columns);
+            for (int column = unsaved.nextSetBit(row * columns);
+                 column >= 0 && column < (row + 1) * columns;
+                 column = unsaved.nextSetBit(column + 1)) {
+                moved.set(row * newColumns + column - row * columns);
+            }
+        }
+        tiles = grown;
+        unsaved = moved;
+        columns = newColumns;
+        rows = newRows;
+        return true;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    /**
+     * Strokes a path into the tiles under the given bounds.
+     *
+     * @param path Path in canvas coordinates.
+     * @param paint Paint to stroke with.
+     * @param bounds Area the path covers.
+     * @param allocate Whether missing tiles are allocated. Erasing leaves them missing.
+     */
+    void drawPath(Path path, Paint paint, StrokeBounds bounds, boolean allocate) {
+        if (!setTileRange(bounds.left, bounds.top, bounds.right, bounds.bottom)) {
+            return;
+        }
+        for (int row = tileRect.top; row < tileRect.bottom; row++) {
+            for (int column = tileRect.left; column < tileRect.right; column++) {
+                Tile tile = getTile(column, row, allocate);
+                if (tile != null) {
+                    Canvas canvas = beginTile(tile, column, row);
+                    canvas.drawPath(path, paint);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stamps a batch of dabs into the tiles under the given bounds, with one draw call per tile.
+     *
+     * @param dabs Dabs in canvas coordinates.
+     * @param paint Paint with the brush tip shader.
+     * @param bounds Area the dabs cover.
+     * @param allocate Whether missing tiles are allocated. Erasing leaves them missing.
+     */
+    void drawDabs(DabBatch dabs, Paint paint, StrokeBounds bounds, boolean allocate) {
+        if (!setTileRange(bounds.left, bounds.top, bounds.right, bounds.bottom)) {
+            return;
+        }
+        for (int row = tileRect.top; row < tileRect.bottom; row++) {
+            for (int column = tileRect.left; column < tileRect.right; column++) {
+                Tile tile = getTile(column, row, allocate);
+                if (tile != null) {
+                    dabs.drawAll(beginTile(tile, column, row), paint);
+                }
+            }
+        }
+    }
+
+    /**
+     * Draws a bitmap into the tiles it covers.
+     *
+     * @param bitmap Bitmap to draw.
+     * @param x Canvas x coordinate of its left edge.
+     * @param y Canvas y coordinate of its top edge.
+     * @param paint Paint to draw with.
+     * @param allocate Whether missing tiles are allocated. Erasing leaves them missing.
+     */
+    void drawBitmap(Bitmap bitmap, int x, int y, Paint paint, boolean allocate) {
+        if (!setTileRange(x, y, x + bitmap.getWidth(), y + bitmap.getHeight())) {
+            return;
+        }
+        for (int row = tileRect.top; row < tileRect.bottom; row++) {
+            for (int column = tileRect.left; column < tileRect.right; column++) {
+                Tile tile = getTile(column, row, allocate);
+                if (tile != null) {
+                    beginTile(tile, column, row).drawBitmap(bitmap, x, y, paint);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the bitmap of every tile, reading paged out tiles back in. The bitmaps are the
+     * tiles themselves and change whenever the canvas is drawn on.
+     *
+     * @return Tile bitmaps in row-major order, TILE_SIZE pixels square, null for missing tiles.
+     */
+    Bitmap[] getTileBitmaps() {
+        Bitmap[] bitmaps = new Bitmap[tiles.length];
+        for (int i = 0; i < tiles.length; i++) {
+            Tile tile = getTile(i % columns, i / columns, false);
+            if (tile != null) {
+                bitmaps[i] = tile.bitmap;
+            }
+        }
+        return bitmaps;
+    }
+
+    /**
+     * Adds a copy of every tile changed since the previous call to an autosave checkpoint, and
+     * null for every tile removed since.
+     *
+     * @param checkpoint Checkpoint to add the tiles to.
+     * @param layerId Id of the layer the canvas belongs to.
+     */
+    void takeChanges(TileJournal.Checkpoint checkpoint, int layerId) {
+        for (int i = unsaved.nextSetBit(0); i >= 0; i = unsaved.nextSetBit(i + 1)) {
+            Tile tile = getTile(i % columns, i / columns, false);
+            checkpoint.addTile(layerId, i % columns, i / columns,
+                    tile == null ? null : tile.bitmap.copy(Bitmap.Config.ARGB_8888, false));
+        }
+        unsaved.clear();
+    }
+
+    /**
+     * Marks a tile taken by takeChanges as changed again, for when the checkpoint holding it could
+     * not be written.
+     */
+    void markUnsaved(int column, int row) {
+        if (column < columns && row < rows) {
+            unsaved.set(row * columns + column);
+        }
+    }
+
+    /**
+     * @return Whether a tile changed since takeChanges was last called.
+     */
+    boolean hasChanges() {
+        return !unsaved.isEmpty();
+    }
+
+    /**
+     * Sets the pool new tile bitmaps are taken from and removed ones are given back to.
+     */
+    void setBitmapPool(BitmapPool pool) {
+        bitmapPool = pool;
+    }
+
+    /**
+     * Sets the journal tiles added with restoreTile are read from.
+     */
+    void setRestoreSource(TileJournal.Reader source) {
+        restoreSource = source;
+    }
+
+    /**
+     * Adds a tile whose pixels are read from the restore source when the tile is first needed.
+     * The tile counts as saved.
+     *
+     * @param position Position of the tile in the journal.
+     */
+    void restoreTile(int column, int row, long position) {
+        Tile tile = new Tile();
+        tile.restored = position;
+        tiles[row * columns + column] = tile;
+    }
+
+    /**
+     * Draws the tiles intersecting clip onto the canvas at their canvas positions.
+     *
+     * @param canvas Canvas to draw on.
+     * @param clip Area being redrawn in canvas coordinates.
+     * @param paint Paint to draw the tiles with.
+     * @return Number of tiles drawn.
+     */
+    int draw(Canvas canvas, Rect clip, Paint paint) {
+        if (!setTileRange(clip.left, clip.top, clip.right, clip.bottom)) {
+            return 0;
+        }
+        int drawn = 0;
+        for (int row = tileRect.top; row < tileRect.bottom; row++) {
+            for (int column = tileRect.left; column < tileRect.right; column++) {
+                Tile tile = getTile(column, row, false);
+                if (tile != null) {
+                    canvas.drawBitmap(tile.bitmap, column * TILE_SIZE, row * TILE_SIZE, paint);
+                    drawn++;
+                }
+            }
+        }
+        return drawn;
+    }
+
+    /**
+     * @return Whether any tile intersecting the area is allocated.
+     */
+    boolean hasTiles(int left, int top, int right, int bottom) {
+        if (!setTileRange(left, top, right, bottom)) {
+            return false;
+        }
+        for (int row = tileRect.top; row < tileRect.bottom; row++) {
+            for (int column = tileRect.left; column < tileRect.right; column++) {
+                if (tiles[row * columns + column] != null) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Redraws a region from a canvas of twice the resolution, which is how mip levels are built.
+     * Tiles are only allocated where the source has tiles.
+     *
+     * @param source Canvas twice the size of this one.
+     * @param region Region to redraw in the coordinates of this canvas.
+     * @param filterPaint Paint with bitmap filtering, which averages each 2x2 block.
+     */
+    void downsampleFrom(TiledCanvas source, Rect region, Paint filterPaint) {
+        if (!setTileRange(region.left, region.top, region.right, region.bottom)) {
+            return;
+        }
+        for (int row = tileRect.top; row < tileRect.bottom; row++) {
+            for (int column = tileRect.left; column < tileRect.right; column++) {
+                int left = Math.max(region.left, column * TILE_SIZE);
+                int top = Math.max(region.top, row * TILE_SIZE);
+                int right = Math.min(region.right, (column + 1) * TILE_SIZE);
+                int bottom = Math.min(region.bottom, (row + 1) * TILE_SIZE);
+                sourceRect.set(left * 2, top * 2, right * 2, bottom * 2);
+                boolean content = source.hasTiles(sourceRect.left, sourceRect.top,
+                        sourceRect.right, sourceRect.bottom);
+                Tile tile = getTile(column, row, content);
+                if (tile == null) {
+                    continue;
+                }
+                Canvas canvas = beginTile(tile, column, row);
+                canvas.clipRect(left, top, right, bottom);
+                canvas.drawColor(0, PorterDuff.Mode.CLEAR);
+                if (content) {
+                    canvas.scale(0.5f, 0.5f);
+                    source.draw(canvas, sourceRect, filterPaint);
+                }
+            }
+        }
+    }
+
+    /**
+     * Redraws a region as the composite of canvases of the same size, drawn bottom up onto
+     * transparent pixels, which is how the layer caches are built. Tiles are only allocated where
+     * a source has tiles.
+     *
+     * @param sources Canvases to composite, bottom first.
+     * @param paints Paint to draw each source with, carrying its opacity and blend mode.
+     * @param count Number of sources to use.
+     * @param region Region to redraw.
+     */
+    void compose(TiledCanvas[] sources, Paint[] paints, int count, Rect region) {
+        if (!setTileRange(region.left, region.top, region.right, region.bottom)) {
+            return;
+        }
+        for (int row = tileRect.top; row < tileRect.bottom; row++) {
+            for (int column = tileRect.left; column < tileRect.right; column++) {
+                int left = Math.max(region.left, column * TILE_SIZE);
+                int top = Math.max(region.top, row * TILE_SIZE);
+                int right = Math.min(region.right, (column + 1) * TILE_SIZE);
+                int bottom = Math.min(region.bottom, (row + 1) * TILE_SIZE);
+                boolean content = false;
+                for (int i = 0; i < count && !content; i++) {
+                    content = sources[i].hasTiles(left, top, right, bottom);
+                }
+                Tile tile = getTile(column, row, content);
+                if (tile == null) {
+                    continue;
+                }
+                Canvas canvas = beginTile(tile, column, row);
+                canvas.clipRect(left, top, right, bottom);
+                canvas.drawColor(0, PorterDuff.Mode.CLEAR);
+                if (content) {
+                    sourceRect.set(left, top, right, bottom);
+                    for (int i = 0; i < count; i++) {
+                        sources[i].draw(canvas, sourceRect, paints[i]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies a region of the canvas. A region matching a single tile is copied straight from it.
+     *
+     * @return Copy of the region, or null if no tile intersects it.
+     */
+    Bitmap copyRegion(int x, int y, int regionWidth, int regionHeight) {
+        if (x % TILE_SIZE == 0 && y % TILE_SIZE == 0
+                && regionWidth <= TILE_SIZE && regionHeight <= TILE_SIZE) {
+            Tile tile = getTile(x / TILE_SIZE, y / TILE_SIZE, false);
+            return tile == null ? null
+                    : Bitmap.createBitmap(tile.bitmap, 0, 0, regionWidth, regionHeight);
+        }
+        Bitmap region = null;
+        Canvas canvas = null;
+        if (setTileRange(x, y, x + regionWidth, y + regionHeight)) {
+            for (int row = tileRect.top; row < tileRect.bottom; row++) {
+                for (int column = tileRect.left; column < tileRect.right; column++) {
+                    Tile tile = getTile(column, row, false);
+                    if (tile == null) {
+                        continue;
+                    }
+                    if (region == null) {
+                        region = Bitmap.createBitmap(regionWidth, regionHeight,
+                                Bitmap.Config.ARGB_8888);
+                        canvas = new Canvas(region);
+                    }
+                    canvas.drawBitmap(tile.bitmap, column * TILE_SIZE - x,
+                            row * TILE_SIZE - y, copyPaint);
+                }
+            }
+        }
+        return region;
+    }
+
+    /**
+     * Writes a region copied with copyRegion back.
+     *
+     * @param region Copy of the region, or null to clear it. Tiles the cleared region fully
+     *               covers are freed.
+     */
+    void restoreRegion(Bitmap region, int x, int y, int regionWidth, int regionHeight) {
+        if (!setTileRange(x, y, x + regionWidth, y + regionHeight)) {
+            return;
+        }
+        for (int row = tileRect.top; row < tileRect.bottom; row++) {
+            for (int column = tileRect.left; column < tileRect.right; column++) {
+                int tileX = column * TILE_SIZE;
+                int tileY = row * TILE_SIZE;
+                if (region == null && x <= tileX && y <= tileY
+                        && x + regionWidth >= Math.min(tileX + TILE_SIZE, width)
+                        && y + regionHeight >= Math.min(tileY + TILE_SIZE, height)) {
+                    removeTile(column, row);
+                    continue;
+                }
+                Tile tile = getTile(column, row, region != null);
+                if (tile == null) {
+                    continue;
+                }
+                Canvas canvas = beginTile(tile, column, row);
+                canvas.clipRect(x, y, x + regionWidth, y + regionHeight);
+                if (region == null) {
+                    canvas.drawColor(0, PorterDuff.Mode.CLEAR);
+                } else {
+                    canvas.drawBitmap(region, x, y, copyPaint);
+                }
+            }
+        }
+    }
+
+    /**
+     * Frees every tile.
+     */
+    void clear() {
+        for (int i = 0; i < tiles.length; i++) {
+            if (tiles[i] != null) {
+                removeTile(i % columns, i / columns);
+            }
+        }
+    }
+
+    /**
+     * @return A new bitmap holding the whole canvas.
+     */
+    Bitmap toBitmap() {
+        Bitmap bitmap = Bitmap.createBitmap(Math.max(width, 1), Math.max(height, 1),
+                Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        for (int i = 0; i < tiles.length; i++) {
+            Tile tile = getTile(i % columns, i / columns, false);
+            if (tile != null) {
+                canvas.drawBitmap(tile.bitmap, (i % columns) * TILE_SIZE,
+                        (i / columns) * TILE_SIZE, copyPaint);
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * Writes resident tiles to the cache file and drops their bitmaps.
+     *
+     * @param keep Tiles intersecting this area stay in memory, or null to page out everything.
+     * @return Number of tiles paged out.
+     */
+    int pageOut(Rect keep) {
+        return pageOut(keep, DIRECT, DIRECT);
+    }
+
+    /**
+     * Drops the bitmaps of resident tiles that already have an up to date copy in the cache
+     * file, and writes the other ones there on the background executor. Those are copied a batch
+     * at a time on the calling thread, and their bitmaps are dropped once the batch is written.
+     * A tile changed or removed meanwhile keeps its bitmap. Paging out stops at the first
+     * failed write.
+     *
+     * @param keep Tiles intersecting this area stay in memory, or null to page out everything.
+     * @param background Executor the tiles are written on.
+     * @param callbacks Executor running tasks on the thread owning the canvas.
+     * @return Number of tiles paged out or being paged out.
+     */
+    int pageOut(Rect keep, Executor background, Executor callbacks) {
+        int pagedOut = 0;
+        List<Tile> pending = new ArrayList<>();
+        for (int i = 0; i < tiles.length; i++) {
+            Tile tile = tiles[i];
+            if (tile == null || tile.bitmap == null) {
+                continue;
+            }
+            int tileX = (i % columns) * TILE_SIZE;
+            int tileY = (i / columns) * TILE_SIZE;
+            if (keep != null
+                    && keep.intersects(tileX, tileY, tileX + TILE_SIZE, tileY + TILE_SIZE)) {
+                continue;
+            }
+            if (tile.slot >= 0) {
+                tile.bitmap = null;
+                pagedOut++;
+            } else {
+                pending.add(tile);
+            }
+        }
+        if (pending.isEmpty()) {
+            return pagedOut;
+        }
+        if (cache == null) {
+            try {
+                cache = TileCache.open(cacheFile);
+            } catch (IOException e) {
+                Log.w(TAG, "Paging out tiles failed", e);
+                return pagedOut;
+            }
+        }
+        new PageOut(pending, background, callbacks).copyBatch();
+        return pagedOut + pending.size();
+    }
+
+    /**
+     * @return Number of allocated tiles, resident or paged out.
+     */
+    int getTileCount() {
+        int count = 0;
+        for (Tile tile : tiles) {
+            if (tile != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return Bytes of tile bitmaps allocated so far, including tiles read back in.
+     */
+    long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * @return Number of tiles whose bitmap is in memory.
+     */
+    int getResidentTileCount() {
+        int count = 0;
+        for (Tile tile : tiles) {
+            if (tile != null && tile.bitmap != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Closes and deletes the cache file. Paged out tiles are read back in first, so the canvas
+     * stays usable.
+     */
+    void close() {
+        if (cache == null) {
+            return;
+        }
+        for (int i = 0; i < tiles.length; i++) {
+            if (tiles[i] != null && tiles[i].slot >= 0) {
+                getTile(i % columns, i / columns, false).slot = -1;
+            }
+        }
+        try {
+            cache.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Closing tile cache failed", e);
+        }
+        cache = null;
+    }
+
+    /**
+     * Sets tileRect to the columns and rows intersecting the given area of the canvas.
+     *
+     * @return false if the area is outside the canvas.
+     */
+    private boolean setTileRange(int left, int top, int right, int bottom) {
+        left = Math.max(left, 0);
+        top = Math.max(top, 0);
+        right = Math.min(right, width);
+        bottom = Math.min(bottom, height);
+        if (left >= right || top >= bottom) {
+            return false;
+        }
+        tileRect.set(left / TILE_SIZE, top / TILE_SIZE,
+                (right + TILE_SIZE - 1) / TILE_SIZE, (bottom + TILE_SIZE - 1) / TILE_SIZE);
+        return true;
+    }
+
+    /**
+     * Returns the tile at the given column and row, reading it back in if it was paged out.
+     *
+     * @param allocate Whether a missing tile is allocated.
+     * @return The tile, or null if it is missing and allocate is false.
+     */
+    private Tile getTile(int column, int row, boolean allocate) {
+        int index = row * columns + column;
+        Tile tile = tiles[index];
+        if (tile == null) {
+            if (!allocate) {
+                return null;
+            }
+            tile = new Tile();
+            tile.bitmap = createTileBitmap();
+            tiles[index] = tile;
+        } else if (tile.bitmap == null && tile.slot < 0) {
+            tile.bitmap = createTileBitmap();
+            try {
+                restoreSource.read(tile.restored, tile.bitmap);
+            } catch (IOException e) {
+                Log.w(TAG, "Tile " + column + "," + row + " could not be restored", e);
+                unsaved.set(index);
+            }
+            tile.restored = -1;
+        } else if (tile.bitmap == null) {
+            tile.bitmap = createTileBitmap();
+            try {
+                cache.read(tile.slot, tile.bitmap);
+            } catch (IOException e) {
+                Log.w(TAG, "Tile " + column + "," + row + " could not be read back", e);
+                cache.free(tile.slot);
+                tile.slot = -1;
+            }
+        }
+        return tile;
+    }
+
+    private Bitmap createTileBitmap() {
+        Bitmap bitmap = bitmapPool == null ? null
+                : bitmapPool.acquire(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+        if (bitmap == null) {
+            bitmap = Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+            allocatedBytes += bitmap.getByteCount();
+        }
+        return bitmap;
+    }
+
+    /**
+     * Prepares the shared tile canvas for drawing on the tile in canvas coordinates, clipped to
+     * the size of the canvas. The cached and autosaved copies of the tile are outdated from here
+     * on.
+     */
+    private Canvas beginTile(Tile tile, int column, int row) {
+        if (tile.slot >= 0) {
+            cache.free(tile.slot);
+            tile.slot = -1;
+        }
+        unsaved.set(row * columns + column);
+        tile.version++;
+        tileCanvas.setBitmap(tile.bitmap);
+        tileCanvas.translate(-column * TILE_SIZE, -row * TILE_SIZE);
+        tileCanvas.clipRect(0, 0, width, height);
+        return tileCanvas;
+    }
+
+    private void removeTile(int column, int row) {
+        int index = row * columns + column;
+        Tile tile = tiles[index];
+        if (tile == null) {
+            return;
+        }
+        tile.version++;
+        if (tile.slot >= 0) {
+            cache.free(tile.slot);
+        }
+        if (tile.bitmap != null && bitmapPool != null) {
+            bitmapPool.release(tile.bitmap);
+        }
+        tiles[index] = null;
+        unsaved.set(index);
+    }
+
+    /**
+     * Pages tiles out in batches: copies a batch on the owning thread, writes the copies on the
+     * background executor and then drops the bitmaps of the tiles that did not change meanwhile.
+     * Stops if the canvas is closed in between.
+     */
+    private class PageOut {
+        private final List<Tile> pending;
+        private final Executor background;
+        private final Executor callbacks;
+        private final TileCache target = cache;
+        private int next;
+
+        PageOut(List<Tile> pending, Executor background, Executor callbacks) {
+            this.pending = pending;
+            this.background = background;
+            this.callbacks = callbacks;
+        }
+
+        void copyBatch() {
+            final int count = Math.min(PAGE_OUT_BATCH, pending.size() - next);
+            final Tile[] batch = new Tile[count];
+            final int[] versions = new int[count];
+            final Bitmap[] copies = new Bitmap[count];
+            for (int i = 0; i < count; i++) {
+                Tile tile = pending.get(next++);
+                if (tile.bitmap != null && tile.slot < 0) {
+                    batch[i] = tile;
+                    versions[i] = tile.version;
+                    copies[i] = tile.bitmap.copy(Bitmap.Config.ARGB_8888, false);
+                }
+            }
+            background.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final int[] slots = write(copies);
+                    callbacks.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            finishBatch(batch, versions, slots);
+                        }
+                    });
+                }
+            });
+        }
+
+        /**
+         * @return Slot of each copy, or -1 for no copy or a failed write.
+         */
+        private int[] write(Bitmap[] copies) {
+            int[] slots = new int[copies.length];
+            boolean failed = false;
+            for (int i = 0; i < copies.length; i++) {
+                slots[i] = -1;
+                if (copies[i] == null) {
+                    continue;
+                }
+                if (!failed) {
+                    try {
+                        slots[i] = target.write(copies[i]);
+                    } catch (IOException e) {
+                        Log.w(TAG, "Paging out tiles failed", e);
+                        failed = true;
+                    }
+                }
+                copies[i].recycle();
+            }
+            if (failed) {
+                next = pending.size();
+            }
+            return slots;
+        }
+
+        private void finishBatch(Tile[] batch, int[] versions, int[] slots) {
+            if (cache != target) {
+                return;
+            }
+            for (int i = 0; i < batch.length; i++) {
+                if (slots[i] < 0) {
+                    continue;
+                }
+                Tile tile = batch[i];
+                if (tile.version == versions[i] && tile.bitmap != null && tile.slot < 0) {
+                    tile.slot = slots[i];
+                    tile.bitmap = null;
+                } else {
+                    target.free(slots[i]);
+                }
+            }
+            if (next < pending.size()) {
+                copyBatch();
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package fi.lmarkk.litepaint;
+
+import android.view.InputDevice;
+import android.view.MotionEvent;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free queue handing touch samples from the UI thread to a render thread.
+ *
+ * Only one thread may add and only one thread may poll. Samples are stored in preallocated
+ * arrays of a ring, and the producer and consumer only share the two counters, which are
+ * published with ordered writes, so neither side ever waits for the other. A move event is split
+ * into one sample per batched touch position, oldest first. Up to MAX_POINTERS fingers are kept;
+ * events about further fingers are left out.
+ *
+ * An event that does not fit is dropped whole. The render thread drains the queue every frame, so
+ * that only happens when it has been stalled for a long time.
+ *
+ * @version 2020.0419
+ */
+class TouchQueue {
+    static final int MAX_POINTERS = 2;
+
+    private final int mask;
+    private final int[] actions;
+    private final long[] downTimes;
+    private final long[] eventTimes;
+    private final int[] pointerCounts;
+    private final int[] pointerIds;
+    private final float[] xs, ys, pressures;
+    /** Number of samples polled, written by the consumer only. */
+    private final AtomicLong head = new AtomicLong();
+    /** Number of samples added, written by the producer only. */
+    private final AtomicLong tail = new AtomicLong();
+    private long dropped;
+    // Reused by the consumer for every event it builds.
+    private final MotionEvent.PointerProperties[] properties =
+            new MotionEvent.PointerProperties[MAX_POINTERS];
+    private final MotionEvent.PointerCoords[] coords = new MotionEvent.PointerCoords[MAX_POINTERS];
+
+    /**
+     * @param capacity Number of samples the queue holds, rounded up to a power of two.
+     */
+    TouchQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mask = size - 1;
+        actions = new int[size];
+        downTimes = new long[size];
+        eventTimes = new long[size];
+        pointerCounts = new int[size];
+        pointerIds = new int[size * MAX_POINTERS];
+        xs = new float[size * MAX_POINTERS];
+        ys = new float[size * MAX_POINTERS];
+        pressures = new float[size * MAX_POINTERS];
+        for (int i = 0; i < MAX_POINTERS; i++) {
+            properties[i] = new MotionEvent.PointerProperties();
+            coords[i] = new MotionEvent.PointerCoords();
+        }
+    }
+
+    /**
+     * Adds every sample of an event. Called by the producer only.
+     *
+     * @return false if the event was dropped for lack of room.
+     */
+    boolean add(MotionEvent event) {
+        int action = event.getAction();
+        int masked = event.getActionMasked();
+        if ((masked == MotionEvent.ACTION_POINTER_DOWN || masked == MotionEvent.ACTION_POINTER_UP)
+                && event.getActionIndex() >= MAX_POINTERS) {
+            return true;
+        }
+        int pointers = Math.min(event.getPointerCount(), MAX_POINTERS);
+        int history = masked == MotionEvent.ACTION_MOVE ? event.getHistorySize() : 0;
+        long start = tail.get();
+        if (start + history + 1 - head.get() > mask + 1) {
+            dropped++;
+            return false;
+        }
+        for (int h = 0; h <= history; h++) {
+            int slot = (int) (start + h) & mask;
+            actions[slot] = action;
+            downTimes[slot] = event.getDownTime();
+            eventTimes[slot] = h < history ? event.getHistoricalEventTime(h)
+                    : event.getEventTime();
+            pointerCounts[slot] = pointers;
+            for (int p = 0; p < pointers; p++) {
+                int index = slot * MAX_POINTERS + p;
+                pointerIds[index] = event.getPointerId(p);
+                if (h < history) {
+                    xs[index] = event.getHistoricalX(p, h);
+                    ys[index] = event.getHistoricalY(p, h);
+                    pressures[index] = event.getHistoricalPressure(p, h);
+                } else {
+                    xs[index] = event.getX(p);
+                    ys[index] = event.getY(p);
+                    pressures[index] = event.getPressure(p);
+                }
+            }
+        }
+        tail.lazySet(start + history + 1);
+        return true;
+    }
+
+    /**
+     * Takes the oldest sample as an event of its own. Called by the consumer only.
+     *
+     * @return The event, to be recycled by the caller, or null if the queue is empty.
+     */
+    MotionEvent poll() {
+        long next = head.get();
+        if (next == tail.get()) {
+            return null;
+        }
+        int slot = (int) next & mask;
+        int pointers = pointerCounts[slot];
+        for (int p = 0; p < pointers; p++) {
+            int index = slot * MAX_POINTERS + p;
+            properties[p].id = pointerIds[index];
+            properties[p].toolType = MotionEvent.TOOL_TYPE_FINGER;
+            coords[p].x = xs[index];
+            coords[p].y = ys[index];
+            coords[p].pressure = pressures[index];
+            coords[p].size = 1f;
+        }
+        MotionEvent event = MotionEvent.obtain(downTimes[slot], eventTimes[slot], actions[slot],
+                pointers, properties, coords, 0, 0, 1f, 1f, 0, 0,
+                InputDevice.SOURCE_TOUCHSCREEN, 0);
+        head.lazySet(next + 1);
+        return event;
+    }
+
+    /**
+     * @return Whether there are samples to poll, as seen by the consumer.
+     */
+    boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    /**
+     * @return Number of events dropped so far, as seen by the producer.
+     */
+    long getDropped() {
+        return dropped;
+    }
+}
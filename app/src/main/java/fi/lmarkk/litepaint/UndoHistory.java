@@ -0,0 +1,263 @@
+package fi.lmarkk.litepaint;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Undo and redo stack with a bounded memory budget.
+ *
+ * Before a stroke is committed, the tiles its bounds touch are copied out of the surface. Undoing
+ * the stroke writes those tiles back, which costs far less than a copy of the whole canvas. Every
+ * step also keeps its StrokeRecord. Redoing a step replays the record, and a step whose tiles
+ * were evicted is undone by rebuilding the canvas from the keyframe and replaying the records
+ * before it. Clearing the canvas is such a step from the start, so it is undoable without
+ * keeping a second copy of the drawing.
+ *
+ * When the tiles exceed the budget, the tiles of the oldest steps are evicted first. Steps past
+ * the maximum depth are folded into the base records, which are replayed on top of the keyframe
+ * but can no longer be undone.
+ *
+ * @param <T> Type the surface uses to hold a copy of a region of pixels.
+ * @version 2020.0419
+ */
+class UndoHistory<T> {
+    // Same as the canvas tiles, so a snapshot is a copy of exactly one canvas tile.
+    static final int TILE_SIZE = TiledCanvas.TILE_SIZE;
+
+    /**
+     * Pixels the history works on. Region copies must restore the exact pixel values, including
+     * premultiplied alpha. A surface may return null for a region without any content, restoring
+     * null clears the region.
+     *
+     * @param <T> Type holding a copy of a region of pixels.
+     */
+    interface Surface<T> {
+        int getWidth();
+
+        int getHeight();
+
+        T copyRegion(int x, int y, int width, int height);
+
+        void restoreRegion(T region, int x, int y, int width, int height);
+
+        /**
+         * @return Bytes the copy keeps in memory.
+         */
+        long byteCount(T region);
+
+        void clear();
+
+        void replay(StrokeRecord record);
+    }
+
+    private static class Tile<T> {
+        final int x, y, width, height;
+        final T region;
+
+        Tile(int x, int y, int width, int height, T region) {
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            this.region = region;
+        }
+    }
+
+    private static class Step<T> {
+        final StrokeRecord record;
+        List<Tile<T>> tiles;
+        long tileBytes;
+
+        Step(StrokeRecord record, List<Tile<T>> tiles, long tileBytes) {
+            this.record = record;
+            this.tiles = tiles;
+            this.tileBytes = tileBytes;
+        }
+    }
+
+    private final Surface<T> surface;
+    private final List<Step<T>> steps = new ArrayList<>();
+    private final List<StrokeRecord> baseRecords = new ArrayList<>();
+    private T keyframe;
+    private int keyframeWidth, keyframeHeight;
+    private int position;
+    private long budgetBytes;
+    private int maxSteps;
+    private long tileBytes;
+    private List<Tile<T>> pendingTiles;
+    private long pendingBytes;
+
+    /**
+     * @param surface Pixels the history works on.
+     * @param budgetBytes Memory the tile snapshots may use.
+     * @param maxSteps Number of steps that can be undone.
+     */
+    UndoHistory(Surface<T> surface, long budgetBytes, int maxSteps) {
+        this.surface = surface;
+        this.budgetBytes = budgetBytes;
+        this.maxSteps = maxSteps;
+    }
+
+    /**
+     * Forgets every step and uses the surface's current content as the keyframe.
+     *
+     * @param blank Whether the surface is empty, in which case no keyframe copy is kept.
+     */
+    void reset(boolean blank) {
+        steps.clear();
+        baseRecords.clear();
+        position = 0;
+        tileBytes = 0;
+        pendingTiles = null;
+        keyframe = null;
+        if (!blank) {
+            keyframeWidth = surface.getWidth();
+            keyframeHeight = surface.getHeight();
+            keyframe = surface.copyRegion(0, 0, keyframeWidth, keyframeHeight);
+        }
+    }
+
+    /**
+     * Copies the tiles touched by the given bounds. Must be called right before the stroke is
+     * committed, and followed by push once it has been.
+     *
+     * @param bounds Dirty bounds of the stroke about to be committed.
+     */
+    void captureTiles(StrokeBounds bounds) {
+        pendingTiles = new ArrayList<>();
+        pendingBytes = 0;
+        int width = surface.getWidth();
+        int height = surface.getHeight();
+        int left = Math.max(bounds.left, 0) / TILE_SIZE;
+        int top = Math.max(bounds.top, 0) / TILE_SIZE;
+        int right = Math.min(bounds.right, width);
+        int bottom = Math.min(bounds.bottom, height);
+        for (int tileY = top * TILE_SIZE; tileY < bottom; tileY += TILE_SIZE) {
+            for (int tileX = left * TILE_SIZE; tileX < right; tileX += TILE_SIZE) {
+                int tileWidth = Math.min(TILE_SIZE, width - tileX);
+                int tileHeight = Math.min(TILE_SIZE, height - tileY);
+                T region = surface.copyRegion(tileX, tileY, tileWidth, tileHeight);
+                pendingTiles.add(new Tile<>(tileX, tileY, tileWidth, tileHeight, region));
+                pendingBytes += region == null ? 0 : surface.byteCount(region);
+            }
+        }
+    }
+
+    /**
+     * Adds a step for a committed stroke, fill or clear. Any steps that could have been redone are
+     * dropped.
+     *
+     * @param record Record of what was done, replayed for redo and for rebuilding.
+     */
+    void push(StrokeRecord record) {
+        for (int i = steps.size() - 1; i >= position; i--) {
+            tileBytes -= steps.remove(i).tileBytes;
+        }
+        List<Tile<T>> tiles = record.type != StrokeRecord.TYPE_CLEAR ? pendingTiles : null;
+        long bytes = tiles != null ? pendingBytes : 0;
+        steps.add(new Step<>(record, tiles, bytes));
+        tileBytes += bytes;
+        pendingTiles = null;
+        position++;
+        trim();
+    }
+
+    boolean canUndo() {
+        return position > 0;
+    }
+
+    boolean canRedo() {
+        return position < steps.size();
+    }
+
+    /**
+     * Undoes the latest step.
+     *
+     * @return false if there was nothing to undo.
+     */
+    boolean undo() {
+        if (!canUndo()) {
+            return false;
+        }
+        Step<T> step = steps.get(--position);
+        if (step.tiles != null) {
+            for (Tile<T> tile : step.tiles) {
+                surface.restoreRegion(tile.region, tile.x, tile.y, tile.width, tile.height);
+            }
+        } else {
+            rebuild();
+        }
+        return true;
+    }
+
+    /**
+     * Redoes the latest undone step by replaying its record.
+     *
+     * @return false if there was nothing to redo.
+     */
+    boolean redo() {
+        if (!canRedo()) {
+            return false;
+        }
+        surface.replay(steps.get(position++).record);
+        return true;
+    }
+
+    void setBudget(long bytes) {
+        budgetBytes = bytes;
+        trim();
+    }
+
+    /**
+     * @return Bytes currently used by tile snapshots.
+     */
+    long getTileBytes() {
+        return tileBytes;
+    }
+
+    int getStepCount() {
+        return steps.size();
+    }
+
+    /**
+     * Restores the keyframe and replays everything up to the current position.
+     */
+    private void rebuild() {
+        if (keyframe == null) {
+            surface.clear();
+        } else {
+            surface.restoreRegion(keyframe, 0, 0, keyframeWidth, keyframeHeight);
+        }
+        for (StrokeRecord record : baseRecords) {
+            surface.replay(record);
+        }
+        for (int i = 0; i < position; i++) {
+            surface.replay(steps.get(i).record);
+        }
+    }
+
+    /**
+     * Evicts tiles of the oldest steps until the budget holds, and folds steps past the maximum
+     * depth into the base records.
+     */
+    private void trim() {
+        for (int i = 0; i < steps.size() && tileBytes > budgetBytes; i++) {
+            Step<T> step = steps.get(i);
+            tileBytes -= step.tileBytes;
+            step.tiles = null;
+            step.tileBytes = 0;
+        }
+        while (steps.size() > maxSteps && position > 0) {
+            Step<T> oldest = steps.remove(0);
+            tileBytes -= oldest.tileBytes;
+            position--;
+            if (oldest.record.type == StrokeRecord.TYPE_CLEAR) {
+                // Nothing before a clear shows anymore, so rebuilding can start from a blank canvas.
+                baseRecords.clear();
+                keyframe = null;
+            } else {
+                baseRecords.add(oldest.record);
+            }
+        }
+    }
+}
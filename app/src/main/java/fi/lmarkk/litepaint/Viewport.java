@@ -0,0 +1,106 @@
+package fi.lmarkk.litepaint;
+
+/**
+ * Maps between view coordinates and canvas coordinates.
+ *
+ * A canvas point p is shown at p * scale + offset. Zooming keeps the canvas point under the focus
+ * where it is, and clamp keeps the canvas from being panned out of the view.
+ *
+ * @version 2020.0419
+ */
+class Viewport {
+    static final float MIN_SCALE = 0.1f;
+    static final float MAX_SCALE = 8f;
+
+    private float scale = 1f;
+    private float offsetX, offsetY;
+
+    float getScale() {
+        return scale;
+    }
+
+    float getOffsetX() {
+        return offsetX;
+    }
+
+    float getOffsetY() {
+        return offsetY;
+    }
+
+    float toCanvasX(float viewX) {
+        return (viewX - offsetX) / scale;
+    }
+
+    float toCanvasY(float viewY) {
+        return (viewY - offsetY) / scale;
+    }
+
+    float toViewX(float canvasX) {
+        return canvasX * scale + offsetX;
+    }
+
+    float toViewY(float canvasY) {
+        return canvasY * scale + offsetY;
+    }
+
+    /**
+     * Maps bounds in canvas coordinates to the view, rounding outwards and padding them by
+     * StrokeBounds.AA_MARGIN view pixels. The margin the canvas bounds already have shrinks below
+     * a view pixel when zoomed out, but the anti-aliased edge of a stroke stays a view pixel wide.
+     *
+     * @param canvasBounds Bounds in canvas coordinates.
+     * @param out Receives the bounds in view coordinates.
+     */
+    void toView(StrokeBounds canvasBounds, StrokeBounds out) {
+        if (canvasBounds.isEmpty()) {
+            out.setEmpty();
+            return;
+        }
+        out.set((int) Math.floor(toViewX(canvasBounds.left)) - StrokeBounds.AA_MARGIN,
+                (int) Math.floor(toViewY(canvasBounds.top)) - StrokeBounds.AA_MARGIN,
+                (int) Math.ceil(toViewX(canvasBounds.right)) + StrokeBounds.AA_MARGIN,
+                (int) Math.ceil(toViewY(canvasBounds.bottom)) + StrokeBounds.AA_MARGIN);
+    }
+
+    /**
+     * Multiplies the scale by the given factor around a point of the view.
+     *
+     * @param factor Scale factor, clamped so the scale stays within MIN_SCALE and MAX_SCALE.
+     * @param focusX View x coordinate that stays in place.
+     * @param focusY View y coordinate that stays in place.
+     */
+    void zoomBy(float factor, float focusX, float focusY) {
+        float newScale = Math.max(MIN_SCALE, Math.min(MAX_SCALE, scale * factor));
+        float canvasX = toCanvasX(focusX);
+        float canvasY = toCanvasY(focusY);
+        scale = newScale;
+        offsetX = focusX - canvasX * scale;
+        offsetY = focusY - canvasY * scale;
+    }
+
+    void panBy(float dx, float dy) {
+        offsetX += dx;
+        offsetY += dy;
+    }
+
+    void reset() {
+        scale = 1f;
+        offsetX = 0f;
+        offsetY = 0f;
+    }
+
+    /**
+     * Limits the offset so the canvas cannot be moved out of the view. A canvas larger than the
+     * view always covers it, a smaller one always stays fully inside it.
+     */
+    void clamp(int viewWidth, int viewHeight, int canvasWidth, int canvasHeight) {
+        offsetX = clampOffset(offsetX, viewWidth, canvasWidth * scale);
+        offsetY = clampOffset(offsetY, viewHeight, canvasHeight * scale);
+    }
+
+    private static float clampOffset(float offset, int viewSize, float scaledSize) {
+        float min = Math.min(0f, viewSize - scaledSize);
+        float max = Math.max(0f, viewSize - scaledSize);
+        return Math.max(min, Math.min(max, offset));
+    }
+}
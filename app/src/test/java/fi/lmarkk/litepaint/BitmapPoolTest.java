@@ -0,0 +1,118 @@
+package fi.lmarkk.litepaint;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.GraphicsMode;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that pooled bitmaps are reused only after the frames that may draw them and while no
+ * fill reads them, that rotating the view allocates no new bitmaps and keeps the drawing, and
+ * that a new drawing reuses the tiles of the cleared one.
+ */
+@RunWith(RobolectricTestRunner.class)
+@GraphicsMode(GraphicsMode.Mode.NATIVE)
+@Config(sdk = 28)
+public class BitmapPoolTest {
+    private static final float[][] STROKE = {{20f, 20f}, {300f, 200f}, {600f, 900f}};
+
+    @Test
+    public void releasedBitmapIsReusedTwoFramesLater() {
+        BitmapPool pool = new BitmapPool(1024 * 1024);
+        Bitmap bitmap = Bitmap.createBitmap(200, 100, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(0xFF00FF00);
+        pool.release(bitmap);
+        pool.advanceFrame();
+        assertNull(pool.acquire(100, 200, Bitmap.Config.ARGB_8888));
+
+        pool.advanceFrame();
+        Bitmap reused = pool.acquire(100, 200, Bitmap.Config.ARGB_8888);
+        assertSame(bitmap, reused);
+        assertEquals(100, reused.getWidth());
+        assertEquals(200, reused.getHeight());
+        assertEquals(0, reused.getPixel(50, 150));
+        assertEquals(1, pool.getHits());
+        assertEquals(1, pool.getMisses());
+        assertEquals(0L, pool.getPooledBytes());
+    }
+
+    @Test
+    public void pinnedPoolHoldsReleasedBitmapsBack() {
+        BitmapPool pool = new BitmapPool(1024 * 1024);
+        Bitmap bitmap = Bitmap.createBitmap(64, 64, Bitmap.Config.ARGB_8888);
+        pool.pin();
+        pool.release(bitmap);
+        for (int i = 0; i < 5; i++) {
+            pool.advanceFrame();
+        }
+        assertNull(pool.acquire(64, 64, Bitmap.Config.ARGB_8888));
+
+        pool.unpin();
+        pool.advanceFrame();
+        assertSame(bitmap, pool.acquire(64, 64, Bitmap.Config.ARGB_8888));
+    }
+
+    @Test
+    public void poolKeepsItsBudgetAndPicksTheSmallestFit() {
+        BitmapPool pool = new BitmapPool(3 * 64 * 64 * 4);
+        Bitmap large = Bitmap.createBitmap(128, 64, Bitmap.Config.ARGB_8888);
+        Bitmap small = Bitmap.createBitmap(64, 64, Bitmap.Config.ARGB_8888);
+        pool.release(large);
+        pool.release(small);
+        pool.release(Bitmap.createBitmap(64, 64, Bitmap.Config.ARGB_8888));
+        assertEquals(3 * 64 * 64 * 4, pool.getPooledBytes());
+        pool.advanceFrame();
+        pool.advanceFrame();
+
+        assertSame(small, pool.acquire(32, 32, Bitmap.Config.ARGB_8888));
+        assertSame(large, pool.acquire(100, 64, Bitmap.Config.ARGB_8888));
+        assertNull(pool.acquire(128, 128, Bitmap.Config.ARGB_8888));
+    }
+
+    @Test
+    public void rotationsAllocateNothingAndKeepTheDrawing() {
+        PaintingView view = new PaintingView(RuntimeEnvironment.getApplication(), null);
+        view.setSmoother(StrokeSmoother.LINEAR);
+        view.layout(0, 0, 1080, 1920);
+        PaintingViewRenderTest.drawStroke(view, STROKE);
+        Bitmap before = view.createSnapshot();
+        BitmapPool pool = view.getBitmapPool();
+        int misses = pool.getMisses();
+        int hits = pool.getHits();
+
+        for (int i = 0; i < 5; i++) {
+            view.layout(0, 0, 1920, 1080);
+            view.layout(0, 0, 1080, 1920);
+        }
+        assertEquals(misses, pool.getMisses());
+        assertEquals(hits + 10, pool.getHits());
+        Bitmap after = view.createSnapshot();
+        assertTrue(Bitmap.createBitmap(after, 0, 0, 1080, 1920).sameAs(before));
+    }
+
+    @Test
+    public void newDrawingReusesClearedTiles() {
+        PaintingView view = new PaintingView(RuntimeEnvironment.getApplication(), null);
+        view.setSmoother(StrokeSmoother.LINEAR);
+        view.layout(0, 0, 1080, 1920);
+        Canvas frame = new Canvas(Bitmap.createBitmap(1080, 1920, Bitmap.Config.ARGB_8888));
+        PaintingViewRenderTest.drawStroke(view, STROKE);
+        view.draw(frame);
+        view.startNew();
+        view.draw(frame);
+        view.draw(frame);
+        BitmapPool pool = view.getBitmapPool();
+        int misses = pool.getMisses();
+
+        PaintingViewRenderTest.drawStroke(view, STROKE);
+        assertEquals(misses, pool.getMisses());
+        assertTrue(pool.getHits() > 0);
+    }
+}
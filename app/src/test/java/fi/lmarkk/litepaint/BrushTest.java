@@ -0,0 +1,118 @@
+package fi.lmarkk.litepaint;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.GraphicsMode;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the dab brushes follow pressure and speed, that their strokes replay from the log
+ * exactly, and that the brush survives the stroke record flags.
+ */
+@RunWith(RobolectricTestRunner.class)
+@GraphicsMode(GraphicsMode.Mode.NATIVE)
+@Config(sdk = 28)
+public class BrushTest {
+    private static final int SIZE = 200;
+
+    @Test
+    public void brushIsStoredInFlags() {
+        for (Brush brush : Brush.values()) {
+            int flags = StrokeRecord.FLAG_ERASE | StrokeRecord.FLAG_SMOOTH | brush.toFlags();
+            assertEquals(brush, Brush.fromFlags(flags));
+        }
+        // Logs written before brushes existed only draw paths.
+        assertEquals(Brush.PATH, Brush.fromFlags(StrokeRecord.FLAG_SMOOTH));
+    }
+
+    @Test
+    public void widthFollowsPressureAndSpeed() {
+        Brush brush = Brush.INK;
+        assertEquals(1f, brush.widthFactor(1f, 0f), 1e-6f);
+        assertTrue(brush.widthFactor(0.2f, 0f) < brush.widthFactor(0.8f, 0f));
+        assertTrue(brush.widthFactor(1f, 4f) < brush.widthFactor(1f, 0.5f));
+        assertTrue(brush.widthFactor(0f, 100f) > 0f);
+        assertEquals(1f, brush.flow(0.1f), 1e-6f);
+        assertTrue(Brush.AIRBRUSH.flow(0.1f) < Brush.AIRBRUSH.flow(0.9f));
+    }
+
+    @Test
+    public void harderPressureCoversMore() {
+        int light = countPainted(stroke(Brush.INK, 0.1f, false));
+        int firm = countPainted(stroke(Brush.INK, 1f, false));
+        assertTrue(light > 0);
+        assertTrue(firm > light * 2);
+    }
+
+    @Test
+    public void dabStrokesReplayExactly() {
+        for (Brush brush : new Brush[]{Brush.INK, Brush.AIRBRUSH}) {
+            for (boolean erase : new boolean[]{false, true}) {
+                StrokeEngine engine = new StrokeEngine();
+                engine.setBrush(brush);
+                Bitmap live = stroke(engine, 0.6f, erase);
+
+                StrokeRecord record = StrokeRecord.stroke(0x80FF0000, 16f,
+                        (erase ? StrokeRecord.FLAG_ERASE : 0) | StrokeRecord.FLAG_SMOOTH
+                                | brush.toFlags(), engine.getPoints());
+                assertTrue(engine.getDabCount() > record.pointCount);
+                Bitmap replayed = background(erase);
+                new StrokeReplayer().replay(record, new Canvas(replayed));
+                assertTrue(brush + " erase " + erase, replayed.sameAs(live));
+            }
+        }
+    }
+
+    private static Bitmap stroke(Brush brush, float pressure, boolean erase) {
+        StrokeEngine engine = new StrokeEngine();
+        engine.setBrush(brush);
+        return stroke(engine, pressure, erase);
+    }
+
+    /**
+     * Draws a wavy stroke with the given pressure and commits it to a new bitmap, which is opaque
+     * white when erasing.
+     */
+    private static Bitmap stroke(StrokeEngine engine, float pressure, boolean erase) {
+        Paint paint = new Paint();
+        StrokeReplayer.setupStrokePaint(paint);
+        paint.setColor(0x80FF0000);
+        paint.setStrokeWidth(16f);
+        engine.begin(20f, 100f, pressure, 0L, paint, erase);
+        for (int i = 1; i <= 20; i++) {
+            engine.addPoint(20f + i * 8f, 100f + (float) Math.sin(i / 3f) * 40f, pressure,
+                    i * 8L);
+        }
+        Bitmap bitmap = background(erase);
+        engine.commit(new Canvas(bitmap), paint);
+        return bitmap;
+    }
+
+    private static Bitmap background(boolean erase) {
+        Bitmap bitmap = Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888);
+        if (erase) {
+            bitmap.eraseColor(Color.WHITE);
+        }
+        return bitmap;
+    }
+
+    private static int countPainted(Bitmap bitmap) {
+        int count = 0;
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                if (Color.alpha(bitmap.getPixel(x, y)) > 0) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,98 @@
+package fi.lmarkk.litepaint;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.PorterDuff;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.GraphicsMode;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the lossless export formats round trip and that JPEG quality trades size for error.
+ * Their timings are measured in DrawingBenchmark. Runs on Android 11 so that lossless WebP has its
+ * own encoder.
+ */
+@RunWith(RobolectricTestRunner.class)
+@GraphicsMode(GraphicsMode.Mode.NATIVE)
+@Config(sdk = 30)
+public class ExportFormatTest {
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 1920;
+
+    @Test
+    public void losslessFormatsRoundTrip() {
+        Bitmap drawing = drawing(200, false);
+        ExportFormat[] lossless = {ExportFormat.PNG, ExportFormat.WEBP_LOSSLESS};
+        for (ExportFormat format : lossless) {
+            byte[] bytes = encode(format, format.defaultQuality, drawing);
+            Bitmap decoded = BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+            assertTrue(format.name(), decoded.sameAs(drawing));
+        }
+    }
+
+    @Test
+    public void jpegQualityTradesSizeForError() {
+        Bitmap drawing = drawing(200, false);
+        byte[] low = encode(ExportFormat.JPEG, 50, drawing);
+        byte[] high = encode(ExportFormat.JPEG, 95, drawing);
+        assertTrue(low.length < high.length);
+        assertTrue(meanError(drawing, high) < meanError(drawing, low));
+    }
+
+    /**
+     * Flattens like ImageSaver does when transparency is not kept and encodes the result.
+     */
+    private static byte[] encode(ExportFormat format, int quality, Bitmap drawing) {
+        Bitmap copy = drawing.copy(Bitmap.Config.ARGB_8888, true);
+        new Canvas(copy).drawColor(Color.WHITE, PorterDuff.Mode.DST_OVER);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(format.name(), format.compress(copy, quality, out));
+        return out.toByteArray();
+    }
+
+    private static Bitmap drawing(int strokes, boolean erase) {
+        Random random = new Random(strokes);
+        List<StrokeRecord> records = new ArrayList<>();
+        records.add(StrokeRecord.size(WIDTH, HEIGHT));
+        for (int i = 0; i < strokes; i++) {
+            StrokeRecord stroke = StrokeCodecTest.randomStroke(random, 20 + random.nextInt(60));
+            if (!erase && stroke.isErase()) {
+                stroke = StrokeRecord.stroke(stroke.color, stroke.width, StrokeRecord.FLAG_SMOOTH,
+                        stroke.points, stroke.pointCount);
+            }
+            records.add(stroke);
+        }
+        Bitmap bitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        new StrokeReplayer().replay(records, bitmap);
+        // Compare against what is actually exported, the drawing on white.
+        new Canvas(bitmap).drawColor(Color.WHITE, PorterDuff.Mode.DST_OVER);
+        return bitmap;
+    }
+
+    private static double meanError(Bitmap expected, byte[] encoded) {
+        Bitmap decoded = BitmapFactory.decodeByteArray(encoded, 0, encoded.length);
+        int[] a = new int[WIDTH * HEIGHT];
+        int[] b = new int[WIDTH * HEIGHT];
+        expected.getPixels(a, 0, WIDTH, 0, 0, WIDTH, HEIGHT);
+        decoded.getPixels(b, 0, WIDTH, 0, 0, WIDTH, HEIGHT);
+        long error = 0;
+        for (int i = 0; i < a.length; i++) {
+            error += Math.abs(Color.red(a[i]) - Color.red(b[i]))
+                    + Math.abs(Color.green(a[i]) - Color.green(b[i]))
+                    + Math.abs(Color.blue(a[i]) - Color.blue(b[i]));
+        }
+        return error / (3.0 * a.length);
+    }
+}
@@ -0,0 +1,139 @@
+package fi.lmarkk.litepaint;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the scanline fill against a plain breadth-first fill, on one thread and on a pool.
+ */
+public class FloodFillTest {
+    private static final int WHITE = 0xFFFFFFFF;
+    private static final int BLACK = 0xFF000000;
+
+    @Test
+    public void fillStopsAtWalls() {
+        int width = 20, height = 10;
+        int[] pixels = image(width, height, WHITE);
+        for (int y = 0; y < height; y++) {
+            pixels[y * width + 10] = BLACK;
+        }
+        FloodFill fill = new FloodFill(null);
+        fill.wrap(pixels, width, height);
+        assertEquals(100, fill.fill(3, 4, FloodFill.DEFAULT_TOLERANCE));
+        assertEquals(0, fill.getLeft());
+        assertEquals(0, fill.getTop());
+        assertEquals(10, fill.getRight());
+        assertEquals(10, fill.getBottom());
+        assertFalse(fill.isFilled(10, 4));
+        assertFalse(fill.isFilled(11, 4));
+        assertEquals(0, fill.fill(width, 0, FloodFill.DEFAULT_TOLERANCE));
+    }
+
+    @Test
+    public void toleranceIncludesSimilarColors() {
+        int width = 64, height = 1;
+        int[] pixels = new int[width];
+        for (int x = 0; x < width; x++) {
+            pixels[x] = 0xFF000000 | x * 4 << 16;
+        }
+        FloodFill fill = new FloodFill(null);
+        fill.wrap(pixels, width, height);
+        assertEquals(1, fill.fill(0, 0, 0));
+        assertEquals(9, fill.fill(0, 0, 32));
+        assertEquals(width, fill.fill(0, 0, 255));
+    }
+
+    @Test
+    public void scanlineFillMatchesBreadthFirstFill() {
+        Random random = new Random(5);
+        for (int run = 0; run < 20; run++) {
+            int width = 1 + random.nextInt(120), height = 1 + random.nextInt(120);
+            int[] pixels = maze(random, width, height);
+            int x = random.nextInt(width), y = random.nextInt(height);
+            FloodFill fill = new FloodFill(null);
+            fill.wrap(pixels, width, height);
+            boolean[] expected = breadthFirst(pixels, width, height, x, y);
+            int count = fill.fill(x, y, 0);
+            int expectedCount = 0;
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals(expected[i], fill.isFilled(i % width, i / width));
+                expectedCount += expected[i] ? 1 : 0;
+            }
+            assertEquals(expectedCount, count);
+        }
+    }
+
+    @Test
+    public void parallelFillMatchesSequentialFill() {
+        Random random = new Random(6);
+        int width = 1200, height = 900;
+        int[] pixels = maze(random, width, height);
+        FloodFill sequential = new FloodFill(null);
+        sequential.wrap(pixels, width, height);
+        FloodFill parallel = new FloodFill(new ForkJoinPool(4));
+        parallel.wrap(pixels.clone(), width, height);
+        for (int i = 0; i < 5; i++) {
+            int x = random.nextInt(width), y = random.nextInt(height);
+            assertEquals(sequential.fill(x, y, 16), parallel.fill(x, y, 16));
+            assertEquals(sequential.getLeft(), parallel.getLeft());
+            assertEquals(sequential.getBottom(), parallel.getBottom());
+            for (int py = 0; py < height; py += 7) {
+                for (int px = 0; px < width; px += 3) {
+                    assertEquals(sequential.isFilled(px, py), parallel.isFilled(px, py));
+                }
+            }
+        }
+    }
+
+    private static int[] image(int width, int height, int color) {
+        int[] pixels = new int[width * height];
+        Arrays.fill(pixels, color);
+        return pixels;
+    }
+
+    /**
+     * Random walls of black over white, with some pixels just off white.
+     */
+    private static int[] maze(Random random, int width, int height) {
+        int[] pixels = image(width, height, WHITE);
+        for (int i = 0; i < pixels.length; i++) {
+            int roll = random.nextInt(10);
+            if (roll < 4) {
+                pixels[i] = BLACK;
+            } else if (roll == 4) {
+                pixels[i] = 0xFFF4F4F4;
+            }
+        }
+        return pixels;
+    }
+
+    private static boolean[] breadthFirst(int[] pixels, int width, int height, int x, int y) {
+        boolean[] filled = new boolean[pixels.length];
+        int seed = pixels[y * width + x];
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        queue.add(y * width + x);
+        filled[y * width + x] = true;
+        while (!queue.isEmpty()) {
+            int index = queue.poll();
+            int px = index % width, py = index / width;
+            int[][] neighbours = {{px - 1, py}, {px + 1, py}, {px, py - 1}, {px, py + 1}};
+            for (int[] n : neighbours) {
+                if (n[0] < 0 || n[1] < 0 || n[0] >= width || n[1] >= height) {
+                    continue;
+                }
+                int next = n[1] * width + n[0];
+                if (!filled[next] && pixels[next] == seed) {
+                    filled[next] = true;
+                    queue.add(next);
+                }
+            }
+        }
+        return filled;
+    }
+}
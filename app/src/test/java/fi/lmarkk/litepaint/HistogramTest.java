@@ -0,0 +1,52 @@
+package fi.lmarkk.litepaint;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the bucket layout and percentiles of Histogram.
+ */
+public class HistogramTest {
+
+    @Test
+    public void bucketsCoverEveryValueOnce() {
+        long previousUpper = -1;
+        for (int bucket = 0; bucket < 200; bucket++) {
+            long upper = Histogram.upperBound(bucket);
+            assertEquals(bucket, Histogram.bucketOf(previousUpper + 1));
+            assertEquals(bucket, Histogram.bucketOf(upper));
+            previousUpper = upper;
+        }
+        assertTrue(Histogram.bucketOf(Long.MAX_VALUE) >= 0);
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        Histogram histogram = new Histogram();
+        for (int value = 1; value <= 10; value++) {
+            histogram.record(value);
+        }
+        assertEquals(10, histogram.getCount());
+        assertEquals(5.5, histogram.getMean(), 1e-9);
+        assertEquals(5, histogram.getPercentile(50));
+        assertEquals(9, histogram.getPercentile(90));
+        assertEquals(10, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void largeValuesStayWithinBucketError() {
+        Histogram histogram = new Histogram();
+        for (int value = 1; value <= 100000; value++) {
+            histogram.record(value);
+        }
+        assertEquals(50000, histogram.getPercentile(50), 50000 / 8);
+        assertEquals(99000, histogram.getPercentile(99), 99000 / 8);
+        assertEquals(100000, histogram.getPercentile(100));
+        assertEquals(100000, histogram.getMax());
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(50));
+    }
+}
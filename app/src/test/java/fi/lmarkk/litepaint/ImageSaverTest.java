@@ -0,0 +1,261 @@
+package fi.lmarkk.litepaint;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.GraphicsMode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that saving only copies the canvas on the calling thread, that the encoder can be
+ * cancelled while it streams and that every failure reaches the callback.
+ */
+@RunWith(RobolectricTestRunner.class)
+@GraphicsMode(GraphicsMode.Mode.NATIVE)
+@Config(sdk = 28)
+public class ImageSaverTest {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final ExecutorService background = Executors.newSingleThreadExecutor();
+
+    @After
+    public void shutDown() {
+        background.shutdownNow();
+    }
+
+    @Test
+    public void callingThreadOnlyCopiesCanvas() throws Exception {
+        PaintingView view = new PaintingView(RuntimeEnvironment.getApplication(), null);
+        view.layout(0, 0, 1080, 1920);
+        view.setColor("#FF2040C0");
+        PaintingViewRenderTest.drawStroke(view, new float[][]{
+                {100f, 100f}, {500f, 900f}, {1000f, 1800f}});
+        view.setErase(true);
+        PaintingViewRenderTest.drawStroke(view, new float[][]{{50f, 1500f}, {1050f, 200f}});
+        Bitmap expected = flattened(view.createSnapshot());
+
+        final CountDownLatch release = new CountDownLatch(1);
+        MemoryDestination destination = new MemoryDestination(release);
+        RecordingCallback callback = new RecordingCallback();
+        Bitmap snapshot = view.createSnapshot();
+        ImageSaver.Task task = new ImageSaver(background, DIRECT)
+                .save(snapshot, "drawing", ImageSaver.Options.of(ExportFormat.PNG), destination,
+                        callback);
+        // save returned while the encoder is still held back, so encoding is not on this thread.
+        assertFalse(callback.done.await(50, TimeUnit.MILLISECONDS));
+        assertFalse(task.isCancelled());
+
+        // Drawing on after the snapshot must not end up in the saved image.
+        view.setErase(false);
+        PaintingViewRenderTest.drawStroke(view, new float[][]{{10f, 10f}, {1070f, 1910f}});
+        release.countDown();
+        assertTrue(callback.done.await(10, TimeUnit.SECONDS));
+
+        assertNotNull(callback.location);
+        assertNull(callback.error);
+        assertNotSame(Thread.currentThread(), destination.writeThread);
+        assertEquals("drawing.png", destination.displayName);
+        assertEquals(destination.bytes.size(), callback.result.bytesWritten);
+        Bitmap saved = BitmapFactory.decodeByteArray(destination.bytes.toByteArray(), 0,
+                destination.bytes.size());
+        assertTrue(saved.sameAs(expected));
+    }
+
+    @Test
+    public void cancelStopsEncoderAndAbortsDestination() throws Exception {
+        Bitmap noise = Bitmap.createBitmap(1024, 1024, Bitmap.Config.ARGB_8888);
+        int[] pixels = new int[1024 * 1024];
+        Random random = new Random(7);
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt() | 0xFF000000;
+        }
+        noise.setPixels(pixels, 0, 1024, 0, 0, 1024, 1024);
+
+        MemoryDestination destination = new MemoryDestination(new CountDownLatch(0));
+        final ImageSaver.Task[] task = new ImageSaver.Task[1];
+        RecordingCallback callback = new RecordingCallback() {
+            @Override
+            public void onProgress(long bytesWritten) {
+                super.onProgress(bytesWritten);
+                synchronized (task) {
+                    task[0].cancel();
+                }
+            }
+        };
+        ImageSaver saver = new ImageSaver(background, DIRECT);
+        synchronized (task) {
+            task[0] = saver.save(noise, "noise", ImageSaver.Options.of(ExportFormat.PNG),
+                    destination, callback);
+        }
+        assertTrue(callback.done.await(10, TimeUnit.SECONDS));
+
+        assertTrue(callback.cancelled);
+        assertNull(callback.location);
+        assertTrue(callback.progress > 0);
+        assertTrue(destination.aborted);
+        // Encoding stopped soon after the first progress report instead of writing the 3 MB.
+        assertTrue(destination.bytes.size() < 1024 * 1024);
+    }
+
+    @Test
+    public void onlyFormatsWithAlphaKeepTransparency() throws Exception {
+        Bitmap transparent = Bitmap.createBitmap(64, 64, Bitmap.Config.ARGB_8888);
+        transparent.eraseColor(0x80FF0000);
+        ImageSaver saver = new ImageSaver(background, DIRECT);
+
+        MemoryDestination png = new MemoryDestination(new CountDownLatch(0));
+        RecordingCallback pngCallback = new RecordingCallback();
+        saver.save(transparent.copy(Bitmap.Config.ARGB_8888, true), "alpha",
+                new ImageSaver.Options(ExportFormat.PNG, 100, true), png, pngCallback);
+        assertTrue(pngCallback.done.await(10, TimeUnit.SECONDS));
+        Bitmap decoded = BitmapFactory.decodeByteArray(png.bytes.toByteArray(), 0,
+                png.bytes.size());
+        assertEquals(0x80, decoded.getPixel(32, 32) >>> 24);
+
+        MemoryDestination jpeg = new MemoryDestination(new CountDownLatch(0));
+        RecordingCallback jpegCallback = new RecordingCallback();
+        saver.save(transparent.copy(Bitmap.Config.ARGB_8888, true), "alpha",
+                new ImageSaver.Options(ExportFormat.JPEG, 95, true), jpeg, jpegCallback);
+        assertTrue(jpegCallback.done.await(10, TimeUnit.SECONDS));
+        assertEquals("alpha.jpg", jpeg.displayName);
+        assertEquals("image/jpeg", jpeg.mimeType);
+        decoded = BitmapFactory.decodeByteArray(jpeg.bytes.toByteArray(), 0, jpeg.bytes.size());
+        // Half transparent red on white, not on black.
+        int pixel = decoded.getPixel(32, 32);
+        assertEquals(0xFF, pixel >>> 24);
+        assertEquals(0xFF, Color.red(pixel), 3);
+        assertEquals(0x7F, Color.green(pixel), 6);
+    }
+
+    @Test
+    public void uncheckedExceptionIsReportedAsFailure() throws Exception {
+        MemoryDestination destination = new MemoryDestination(new CountDownLatch(0)) {
+            @Override
+            public String commit() {
+                throw new IllegalStateException("No content uri");
+            }
+        };
+        RecordingCallback callback = new RecordingCallback();
+        new ImageSaver(background, DIRECT).save(
+                Bitmap.createBitmap(16, 16, Bitmap.Config.ARGB_8888), "broken",
+                ImageSaver.Options.of(ExportFormat.PNG), destination, callback);
+
+        assertTrue(callback.done.await(10, TimeUnit.SECONDS));
+        assertTrue(callback.error.getCause() instanceof IllegalStateException);
+        assertTrue(destination.aborted);
+        assertNull(callback.location);
+    }
+
+    private static Bitmap flattened(Bitmap source) {
+        Bitmap result = Bitmap.createBitmap(source.getWidth(), source.getHeight(),
+                Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(result);
+        canvas.drawColor(Color.WHITE);
+        canvas.drawBitmap(source, 0, 0, null);
+        return result;
+    }
+
+    private static class MemoryDestination implements ImageSaver.Destination {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final CountDownLatch release;
+        volatile String displayName;
+        volatile String mimeType;
+        volatile Thread writeThread;
+        volatile boolean aborted;
+
+        MemoryDestination(CountDownLatch release) {
+            this.release = release;
+        }
+
+        @Override
+        public OutputStream open(String displayName, String mimeType) throws IOException {
+            this.displayName = displayName;
+            this.mimeType = mimeType;
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return new OutputStream() {
+                @Override
+                public void write(int b) {
+                    writeThread = Thread.currentThread();
+                    bytes.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    writeThread = Thread.currentThread();
+                    bytes.write(b, off, len);
+                }
+            };
+        }
+
+        @Override
+        public String commit() {
+            return "memory";
+        }
+
+        @Override
+        public void abort() {
+            aborted = true;
+        }
+    }
+
+    private static class RecordingCallback implements ImageSaver.Callback {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile long progress;
+        volatile String location;
+        volatile ImageSaver.Result result;
+        volatile IOException error;
+        volatile boolean cancelled;
+
+        @Override
+        public void onProgress(long bytesWritten) {
+            progress = bytesWritten;
+        }
+
+        @Override
+        public void onSaved(String location, ImageSaver.Result result) {
+            this.location = location;
+            this.result = result;
+            done.countDown();
+        }
+
+        @Override
+        public void onFailed(IOException error) {
+            this.error = error;
+            done.countDown();
+        }
+
+        @Override
+        public void onCancelled() {
+            cancelled = true;
+            done.countDown();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package fi.lmarkk.litepaint;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.PorterDuff;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.GraphicsMode;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that strokes only change the active layer, that frames drawn from the cached
+ * composites match the flattened drawing whichever layer is active, and that undo follows the
+ * order steps were taken in across layers.
+ */
+@RunWith(RobolectricTestRunner.class)
+@GraphicsMode(GraphicsMode.Mode.NATIVE)
+@Config(sdk = 28)
+public class LayerCompositingTest {
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final float[][] ACROSS = {{0f, 120f}, {160f, 120f}, {WIDTH, 120f}};
+    private static final float[][] DOWN = {{160f, 0f}, {160f, 120f}, {160f, HEIGHT}};
+
+    private PaintingView view;
+
+    @Before
+    public void setUp() {
+        view = new PaintingView(RuntimeEnvironment.getApplication(), null);
+        view.setSmoother(StrokeSmoother.LINEAR);
+        view.setBrushSize(40f);
+        view.setBackgroundColor(Color.WHITE);
+        view.layout(0, 0, WIDTH, HEIGHT);
+    }
+
+    @After
+    public void tearDown() {
+        view.release();
+    }
+
+    @Test
+    public void eraserOnlyChangesActiveLayer() {
+        view.setColor("#FF000000");
+        PaintingViewRenderTest.drawStroke(view, ACROSS);
+        assertEquals(1, view.addLayer());
+        view.setColor("#FFFF0000");
+        PaintingViewRenderTest.drawStroke(view, ACROSS);
+        assertEquals(Color.RED, view.createSnapshot().getPixel(160, 120));
+
+        view.setErase(true);
+        PaintingViewRenderTest.drawStroke(view, DOWN);
+        assertEquals(Color.BLACK, view.createSnapshot().getPixel(160, 120));
+        assertEquals(Color.RED, view.createSnapshot().getPixel(40, 120));
+        assertTrue(sameFrames(renderFrame(), flattenOnBackground()));
+    }
+
+    @Test
+    public void framesMatchFlattenedLayersWhicheverIsActive() {
+        String[] colors = {"#FF2040C0", "#C0FF8000", "#8020C040", "#FF000000"};
+        float[][][] strokes = {ACROSS, DOWN, {{0f, 0f}, {WIDTH, HEIGHT}},
+                {{WIDTH, 0f}, {0f, HEIGHT}}};
+        for (int i = 0; i < colors.length; i++) {
+            if (i > 0) {
+                view.addLayer();
+            }
+            view.setColor(colors[i]);
+            PaintingViewRenderTest.drawStroke(view, strokes[i]);
+        }
+        view.setLayerOpacity(1, 0.5f);
+        view.setLayerBlendMode(2, PorterDuff.Mode.MULTIPLY);
+        view.setLayerVisible(3, false);
+
+        Bitmap expected = flattenOnBackground();
+        for (int active = 0; active < view.getLayerCount(); active++) {
+            view.setActiveLayer(active);
+            assertTrue("active " + active, sameFrames(expected, renderFrame()));
+        }
+        view.setLayerVisible(3, true);
+        assertFalse(sameFrames(expected, renderFrame()));
+        assertTrue(sameFrames(flattenOnBackground(), renderFrame()));
+    }
+
+    @Test
+    public void framesBlitThreeLayersWhateverTheCount() {
+        for (int i = 0; i < LayerStack.MAX_LAYERS; i++) {
+            if (i > 0) {
+                assertEquals(i, view.addLayer());
+            }
+            view.setColor(i % 2 == 0 ? "#40FF0000" : "#400000FF");
+            PaintingViewRenderTest.drawStroke(view, ACROSS);
+        }
+        assertEquals(-1, view.addLayer());
+        int viewTiles = 2;
+        view.setActiveLayer(3);
+        renderFrame();
+        assertEquals(3 * viewTiles, view.lastFrameTiles);
+        view.setActiveLayer(0);
+        renderFrame();
+        assertEquals(2 * viewTiles, view.lastFrameTiles);
+    }
+
+    @Test
+    public void undoFollowsStepsAcrossLayers() {
+        view.setColor("#FF000000");
+        PaintingViewRenderTest.drawStroke(view, ACROSS);
+        view.addLayer();
+        view.setColor("#FFFF0000");
+        PaintingViewRenderTest.drawStroke(view, DOWN);
+        view.setActiveLayer(0);
+
+        assertTrue(view.undo());
+        assertEquals(Color.TRANSPARENT, view.createSnapshot().getPixel(160, 40));
+        assertEquals(Color.BLACK, view.createSnapshot().getPixel(160, 120));
+        assertTrue(view.undo());
+        assertEquals(Color.TRANSPARENT, view.createSnapshot().getPixel(160, 120));
+        assertFalse(view.undo());
+
+        assertTrue(view.redo());
+        assertTrue(view.redo());
+        assertEquals(Color.RED, view.createSnapshot().getPixel(160, 120));
+        view.startNew();
+        assertEquals(Color.TRANSPARENT, view.createSnapshot().getPixel(160, 120));
+        assertTrue(view.undo());
+        assertEquals(Color.RED, view.createSnapshot().getPixel(160, 120));
+        assertEquals(Color.BLACK, view.createSnapshot().getPixel(40, 120));
+    }
+
+    private Bitmap renderFrame() {
+        Bitmap frame = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        view.draw(new Canvas(frame));
+        return frame;
+    }
+
+    /**
+     * @return The snapshot drawn over the white background of the view.
+     */
+    private Bitmap flattenOnBackground() {
+        Bitmap flattened = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(flattened);
+        canvas.drawColor(Color.WHITE);
+        canvas.drawBitmap(view.createSnapshot(), 0f, 0f, null);
+        return flattened;
+    }
+
+    /**
+     * Compares two frames allowing for rounding, since blending the layers in another grouping
+     * can round differently.
+     */
+    private static boolean sameFrames(Bitmap expected, Bitmap actual) {
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int a = expected.getPixel(x, y);
+                int b = actual.getPixel(x, y);
+                if (Math.abs(Color.red(a) - Color.red(b)) > 2
+                        || Math.abs(Color.green(a) - Color.green(b)) > 2
+                        || Math.abs(Color.blue(a) - Color.blue(b)) > 2) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,432 @@
+package fi.lmarkk.litepaint;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.util.TypedValue;
+import android.view.MotionEvent;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.GraphicsMode;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Golden image tests which draw frames of the same strokes through onDraw in both render modes
+ * with Robolectric's native graphics, onto the white the activity shows behind the view, and
+ * compare them to a reference drawn the way PaintingView originally baked strokes: one drawPath
+ * per stroke and PorterDuff.Mode.CLEAR for the eraser. Also checks that the touch path does not
+ * allocate for each sample.
+ */
+@RunWith(RobolectricTestRunner.class)
+@GraphicsMode(GraphicsMode.Mode.NATIVE)
+@Config(sdk = 28)
+public class PaintingViewRenderTest {
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final float BRUSH_DP = 20f;
+    private static final int SAMPLES_PER_MOVE = 4;
+    private static final String COLOR = "#80FF0000";
+    private static final float[][] PAINT_STROKE = {
+            {20f, 40f}, {60f, 52f}, {110f, 70f}, {170f, 65f}, {230f, 90f}, {290f, 120f}};
+    private static final float[][] ERASE_STROKE = {
+            {150f, 10f}, {145f, 60f}, {140f, 120f}, {150f, 200f}};
+    private static final float[][] CROSSING_STROKE = {
+            {30f, 200f}, {180f, 30f}, {260f, 150f}, {90f, 160f}, {200f, 220f}};
+
+    @Test
+    public void hardwareModeMatchesSoftwareMode() {
+        assertArrayEquals(pixels(render(PaintingView.RenderMode.SOFTWARE, true)),
+                pixels(render(PaintingView.RenderMode.HARDWARE, true)));
+        assertArrayEquals(pixels(render(PaintingView.RenderMode.SOFTWARE, false)),
+                pixels(render(PaintingView.RenderMode.HARDWARE, false)));
+    }
+
+    @Test
+    public void eraserMatchesReference() {
+        int[] expected = renderReference();
+        assertArrayEquals(expected, pixels(render(PaintingView.RenderMode.HARDWARE, true)));
+        assertArrayEquals(expected, pixels(render(PaintingView.RenderMode.SOFTWARE, true)));
+    }
+
+    /**
+     * The eraser preview is drawn inside a layer of its own, so a stroke in progress erases the
+     * drawing but not the background behind the view.
+     */
+    @Test
+    public void eraserPreviewOnlyErasesTheDrawing() {
+        for (PaintingView.RenderMode mode : PaintingView.RenderMode.values()) {
+            Bitmap committed = render(mode, true);
+            Bitmap preview = render(mode, false);
+            assertEquals(Color.WHITE, preview.getPixel(145, 66));
+            assertEquals(committed.getPixel(145, 66), preview.getPixel(145, 66));
+            assertEquals(committed.getPixel(60, 52), preview.getPixel(60, 52));
+            assertNotEquals(Color.WHITE, preview.getPixel(60, 52));
+        }
+    }
+
+    /**
+     * A stroke in progress is previewed from an alpha-only scratch layer composited with the
+     * stroke color, or with DST_OUT for the eraser, while lifting the finger bakes its path into
+     * the tiles. The frame must not change when the stroke is committed, apart from the
+     * anti-aliased edges where the segments of the preview overlap.
+     */
+    @Test
+    public void previewMatchesCommittedStroke() {
+        for (PaintingView.RenderMode mode : PaintingView.RenderMode.values()) {
+            for (boolean erase : new boolean[]{false, true}) {
+                PaintingView view = createView(mode);
+                view.setColor("#FF2040C0");
+                drawStroke(view, PAINT_STROKE);
+                view.setColor(COLOR);
+                view.setErase(erase);
+                Bitmap before = frame(view);
+                long time = beginStroke(view, CROSSING_STROKE);
+                Bitmap preview = frame(view);
+                dispatch(view, 1000L, time, MotionEvent.ACTION_UP,
+                        CROSSING_STROKE[CROSSING_STROKE.length - 1]);
+                Bitmap committed = frame(view);
+                // Where the strokes cross.
+                assertNotEquals(before.getPixel(147, 67), committed.getPixel(147, 67));
+                assertSimilar(mode + (erase ? " eraser" : " color"), committed, preview);
+            }
+        }
+    }
+
+    @Test
+    public void eraserRemovesPaint() {
+        PaintingView view = createView(PaintingView.RenderMode.HARDWARE);
+        view.setColor("#FF000000");
+        drawStroke(view, PAINT_STROKE);
+        assertEquals(Color.BLACK, view.createSnapshot().getPixel(110, 70));
+        view.setErase(true);
+        drawStroke(view, new float[][]{{110f, 30f}, {110f, 70f}, {110f, 110f}});
+        assertEquals(Color.TRANSPARENT, view.createSnapshot().getPixel(110, 70));
+    }
+
+    @Test
+    public void bucketFillStopsAtStrokesAndIsUndoable() {
+        PaintingView view = createView(PaintingView.RenderMode.HARDWARE);
+        view.setFillExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        view.setColor("#FF000000");
+        drawStroke(view, new float[][]{{160f, 0f}, {160f, 120f}, {160f, HEIGHT}});
+        view.setColor("#FF2040C0");
+        view.setFillMode(true);
+        drawStroke(view, new float[][]{{40f, 100f}});
+        ShadowLooper.idleMainLooper();
+        assertFalse(view.isFilling());
+
+        Bitmap filled = view.createSnapshot();
+        assertEquals(0xFF2040C0, filled.getPixel(40, 100));
+        assertEquals(0xFF2040C0, filled.getPixel(0, HEIGHT - 1));
+        assertEquals(Color.BLACK, filled.getPixel(160, 100));
+        assertEquals(Color.TRANSPARENT, filled.getPixel(WIDTH - 1, 100));
+
+        assertTrue(view.undo());
+        assertEquals(Color.TRANSPARENT, view.createSnapshot().getPixel(40, 100));
+        assertTrue(view.redo());
+        assertTrue(view.createSnapshot().sameAs(filled));
+    }
+
+    @Test
+    public void fillTracedBeforeNewDrawingIsDropped() {
+        PaintingView view = createView(PaintingView.RenderMode.HARDWARE);
+        final List<Runnable> queued = new ArrayList<>();
+        view.setFillExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                queued.add(command);
+            }
+        });
+        view.setColor("#FF000000");
+        drawStroke(view, new float[][]{{160f, 0f}, {160f, 120f}, {160f, HEIGHT}});
+        view.setColor("#FF2040C0");
+        view.setFillMode(true);
+        drawStroke(view, new float[][]{{40f, 100f}});
+        view.startNew();
+        Canvas frame = new Canvas(Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888));
+        for (int i = 0; i < 3; i++) {
+            view.draw(frame);
+        }
+        // The pool must not hand out the cleared tiles the fill is still reading.
+        view.setFillMode(false);
+        drawStroke(view, new float[][]{{10f, 10f}, {60f, 10f}});
+        assertEquals(0, view.getBitmapPool().getHits());
+
+        assertEquals(1, queued.size());
+        queued.get(0).run();
+        ShadowLooper.idleMainLooper();
+        // Dropped rather than traced again on the new drawing.
+        assertEquals(1, queued.size());
+        assertFalse(view.isFilling());
+        assertEquals(Color.TRANSPARENT, view.createSnapshot().getPixel(40, 100));
+
+        // Undo goes back to the stroke without the fill.
+        assertTrue(view.undo());
+        assertTrue(view.undo());
+        Bitmap restored = view.createSnapshot();
+        assertEquals(Color.BLACK, restored.getPixel(160, 100));
+        assertEquals(Color.TRANSPARENT, restored.getPixel(40, 100));
+    }
+
+    @Test
+    public void statsAreOnlyRecordedWhenEnabled() {
+        PaintingView view = createView(PaintingView.RenderMode.SOFTWARE);
+        Canvas frame = new Canvas(Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888));
+        drawStroke(view, PAINT_STROKE);
+        view.draw(frame);
+        assertNull(view.getFrameStats());
+
+        view.setStatsEnabled(true);
+        drawStroke(view, PAINT_STROKE);
+        view.draw(frame);
+        FrameStats stats = view.getFrameStats();
+        assertEquals(1, stats.drawMicros.getCount());
+        assertEquals(1, stats.latencyMicros.getCount());
+        assertEquals(PAINT_STROKE.length - 1, stats.samplesPerMove.getCount());
+        assertEquals(1, stats.samplesPerMove.getMax());
+
+        StringWriter dump = new StringWriter();
+        view.dumpStats(new PrintWriter(dump));
+        assertTrue(dump.toString().contains("draw ms: n=1"));
+        view.setStatsEnabled(false);
+        assertNull(view.getFrameStats());
+    }
+
+    /**
+     * Paints a stroke and erases across it, then draws a frame of the view onto white.
+     *
+     * @param finishErase Whether the eraser is lifted before the frame, or still being dragged.
+     */
+    private static Bitmap render(PaintingView.RenderMode mode, boolean finishErase) {
+        PaintingView view = createView(mode);
+        view.setColor(COLOR);
+        drawStroke(view, PAINT_STROKE);
+        view.setErase(true);
+        if (finishErase) {
+            drawStroke(view, ERASE_STROKE);
+        } else {
+            beginStroke(view, ERASE_STROKE);
+        }
+        return frame(view);
+    }
+
+    /**
+     * Draws a frame of the view onto white.
+     */
+    private static Bitmap frame(PaintingView view) {
+        Bitmap frame = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        frame.eraseColor(Color.WHITE);
+        view.draw(new Canvas(frame));
+        return frame;
+    }
+
+    /**
+     * Checks that two frames differ by at most two levels per channel, except for a few edge
+     * pixels which may differ by up to a fifth of the range.
+     */
+    private static void assertSimilar(String message, Bitmap expected, Bitmap actual) {
+        int[] a = pixels(expected);
+        int[] b = pixels(actual);
+        int edgePixels = 0;
+        for (int i = 0; i < a.length; i++) {
+            int difference = 0;
+            for (int shift = 0; shift < 32; shift += 8) {
+                difference = Math.max(difference,
+                        Math.abs((a[i] >>> shift & 0xFF) - (b[i] >>> shift & 0xFF)));
+            }
+            assertTrue(message + ": pixel " + i % WIDTH + "," + i / WIDTH + " differs by "
+                    + difference, difference <= 51);
+            if (difference > 2) {
+                edgePixels++;
+            }
+        }
+        assertTrue(message + ": " + edgePixels + " pixels differ", edgePixels < a.length / 200);
+    }
+
+    private static int[] renderReference() {
+        float width = TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, BRUSH_DP,
+                RuntimeEnvironment.getApplication().getResources().getDisplayMetrics());
+        Bitmap bitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        Paint paint = new Paint();
+        paint.setColor(Color.parseColor(COLOR));
+        paint.setAntiAlias(true);
+        paint.setStrokeWidth(width);
+        paint.setStyle(Paint.Style.STROKE);
+        paint.setStrokeJoin(Paint.Join.ROUND);
+        paint.setStrokeCap(Paint.Cap.ROUND);
+        canvas.drawPath(polyline(PAINT_STROKE), paint);
+        paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.CLEAR));
+        canvas.drawPath(polyline(ERASE_STROKE), paint);
+        Bitmap frame = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        frame.eraseColor(Color.WHITE);
+        new Canvas(frame).drawBitmap(bitmap, 0, 0, null);
+        return pixels(frame);
+    }
+
+    /**
+     * Feeds a short and a long stroke of batched MOVE events with a frame after each, with every
+     * brush. Once warmed up, both may allocate the same fixed amount but nothing per sample.
+     * Lifting the finger is not measured, that copies the samples once into the stroke record.
+     */
+    @Test
+    public void touchPathDoesNotAllocatePerSample() {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Canvas frame = new Canvas(Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888));
+        MotionEvent[] shortStroke = batchedStroke(10);
+        MotionEvent[] longStroke = batchedStroke(250);
+        int extraSamples = (longStroke.length - shortStroke.length) * SAMPLES_PER_MOVE;
+        for (Brush brush : Brush.values()) {
+            PaintingView view = createView(PaintingView.RenderMode.SOFTWARE);
+            view.setSmoother(StrokeSmoother.QUAD_MIDPOINT);
+            view.setBrush(brush);
+            // Warm up so the buffers have grown to their final size and the code is compiled.
+            for (int i = 0; i < 3; i++) {
+                touch(view, frame, longStroke, threads);
+                touch(view, frame, shortStroke, threads);
+            }
+            long shortBytes = touch(view, frame, shortStroke, threads);
+            long longBytes = touch(view, frame, longStroke, threads);
+
+            assertEquals(brush + ": " + shortBytes + " bytes for the short stroke, " + longBytes
+                    + " for the long one", 0L, (longBytes - shortBytes) / extraSamples);
+        }
+        for (MotionEvent event : shortStroke) {
+            event.recycle();
+        }
+        for (MotionEvent event : longStroke) {
+            event.recycle();
+        }
+    }
+
+    /**
+     * Builds a DOWN, the given number of MOVE events carrying SAMPLES_PER_MOVE samples each and an
+     * UP. The samples zigzag across the same area however long the stroke is, so a longer stroke
+     * has more samples but the same bounds.
+     */
+    private static MotionEvent[] batchedStroke(int moves) {
+        MotionEvent[] events = new MotionEvent[moves + 2];
+        events[0] = MotionEvent.obtain(0L, 0L, MotionEvent.ACTION_DOWN, 40f, 60f, 1f, 1f, 0,
+                1f, 1f, 0, 0);
+        int sample = 0;
+        for (int i = 1; i <= moves; i++) {
+            MotionEvent move = null;
+            for (int j = 0; j < SAMPLES_PER_MOVE; j++) {
+                sample++;
+                float x = 40f + 6f * Math.abs(sample % 80 - 40);
+                float y = 60f + 40f * (sample % 3);
+                float pressure = 0.4f + 0.15f * (sample % 5);
+                if (move == null) {
+                    move = MotionEvent.obtain(0L, sample * 4L, MotionEvent.ACTION_MOVE, x, y,
+                            pressure, 1f, 0, 1f, 1f, 0, 0);
+                } else {
+                    move.addBatch(sample * 4L, x, y, pressure, 1f, 0);
+                }
+            }
+            events[i] = move;
+        }
+        events[moves + 1] = MotionEvent.obtain(0L, sample * 4L, MotionEvent.ACTION_UP,
+                events[moves].getX(), events[moves].getY(), 0);
+        return events;
+    }
+
+    /**
+     * Dispatches a stroke built by batchedStroke and draws a frame after every MOVE.
+     *
+     * @return Bytes the thread allocated from the DOWN to the last frame before the UP.
+     */
+    private static long touch(PaintingView view, Canvas frame, MotionEvent[] events,
+                              com.sun.management.ThreadMXBean threads) {
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        view.onTouchEvent(events[0]);
+        for (int i = 1; i < events.length - 1; i++) {
+            view.onTouchEvent(events[i]);
+            view.draw(frame);
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        view.onTouchEvent(events[events.length - 1]);
+        view.undo();
+        return allocated;
+    }
+
+    private static PaintingView createView(PaintingView.RenderMode mode) {
+        PaintingView view = new PaintingView(RuntimeEnvironment.getApplication(), null);
+        view.setRenderMode(mode);
+        view.setSmoother(StrokeSmoother.LINEAR);
+        view.setBrushSize(BRUSH_DP);
+        view.layout(0, 0, WIDTH, HEIGHT);
+        return view;
+    }
+
+    /**
+     * Feeds a stroke to the view as DOWN, one MOVE per point and UP at the last point, which is
+     * what the original implementation turned into a polyline.
+     */
+    static void drawStroke(PaintingView view, float[][] points) {
+        long time = beginStroke(view, points);
+        dispatch(view, 1000L, time, MotionEvent.ACTION_UP, points[points.length - 1]);
+    }
+
+    /**
+     * Feeds the DOWN and MOVE events of a stroke, leaving it in progress.
+     *
+     * @return Event time of the last MOVE.
+     */
+    static long beginStroke(PaintingView view, float[][] points) {
+        long time = 1000L;
+        dispatch(view, time, time, MotionEvent.ACTION_DOWN, points[0]);
+        for (int i = 1; i < points.length; i++) {
+            time += 8L;
+            dispatch(view, 1000L, time, MotionEvent.ACTION_MOVE, points[i]);
+        }
+        return time;
+    }
+
+    private static void dispatch(PaintingView view, long downTime, long eventTime, int action,
+                                 float[] point) {
+        MotionEvent event = MotionEvent.obtain(downTime, eventTime, action, point[0], point[1], 0);
+        view.onTouchEvent(event);
+        event.recycle();
+    }
+
+    private static Path polyline(float[][] points) {
+        Path path = new Path();
+        path.moveTo(points[0][0], points[0][1]);
+        for (int i = 1; i < points.length; i++) {
+            path.lineTo(points[i][0], points[i][1]);
+        }
+        // The UP sample repeats the last point.
+        path.lineTo(points[points.length - 1][0], points[points.length - 1][1]);
+        return path;
+    }
+
+    private static int[] pixels(Bitmap bitmap) {
+        int[] pixels = new int[bitmap.getWidth() * bitmap.getHeight()];
+        bitmap.getPixels(pixels, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
+        return pixels;
+    }
+}
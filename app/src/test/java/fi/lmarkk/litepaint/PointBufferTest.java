@@ -0,0 +1,83 @@
+package fi.lmarkk.litepaint;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the touch sample buffer and the smoothers fed from it.
+ */
+public class PointBufferTest {
+
+    @Test
+    public void storesSamplesRelativeToStrokeStart() {
+        PointBuffer points = new PointBuffer(2);
+        points.clear(1000L);
+        points.add(1f, 2f, 0.5f, 1000L);
+        points.add(3f, 4f, 0.75f, 1016L);
+        points.add(5f, 6f, 1f, 1033L);
+        assertEquals(3, points.size());
+        assertEquals(3f, points.x(1), 0f);
+        assertEquals(6f, points.y(2), 0f);
+        assertEquals(0.75f, points.pressure(1), 0f);
+        assertEquals(33f, points.time(2), 0f);
+    }
+
+    @Test
+    public void clearKeepsCapacity() {
+        PointBuffer points = new PointBuffer(4);
+        points.clear(0L);
+        for (int i = 0; i < 100; i++) {
+            points.add(i, i, 1f, i);
+        }
+        int capacity = points.capacity();
+        points.clear(0L);
+        assertEquals(0, points.size());
+        assertEquals(capacity, points.capacity());
+    }
+
+    @Test
+    public void quadMidpointSegmentsAreContinuous() {
+        PointBuffer points = new PointBuffer();
+        RecordingSink sink = new RecordingSink();
+        points.clear(0L);
+        float[] xs = {0f, 10f, 20f, 20f, 35f};
+        float[] ys = {0f, 5f, 0f, 20f, 25f};
+        for (int i = 0; i < xs.length; i++) {
+            points.add(xs[i], ys[i], 1f, i);
+            StrokeSmoother.QUAD_MIDPOINT.onPointAdded(points, i, sink);
+        }
+        StrokeSmoother.QUAD_MIDPOINT.finish(points, sink);
+        // One leading line, one curve per inner sample and one trailing line.
+        assertEquals(xs.length, sink.segments);
+        assertEquals(35f, sink.lastX, 0f);
+        assertEquals(25f, sink.lastY, 0f);
+    }
+
+    private static class RecordingSink implements StrokeSmoother.SegmentSink {
+        int segments;
+        float lastX, lastY;
+
+        @Override
+        public void lineTo(float x0, float y0, float x1, float y1) {
+            check(x0, y0);
+            segments++;
+            lastX = x1;
+            lastY = y1;
+        }
+
+        @Override
+        public void quadTo(float x0, float y0, float cx, float cy, float x1, float y1) {
+            check(x0, y0);
+            segments++;
+            lastX = x1;
+            lastY = y1;
+        }
+
+        private void check(float x0, float y0) {
+            if (segments > 0 && (x0 != lastX || y0 != lastY)) {
+                throw new AssertionError("segment does not start where the last one ended");
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package fi.lmarkk.litepaint;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that recent colors keep the newest first without duplicates and survive encoding.
+ */
+public class RecentColorsTest {
+
+    @Test
+    public void pickedColorMovesToTheFront() {
+        RecentColors recent = new RecentColors(3);
+        recent.add(0xFF000000);
+        recent.add(0xFFFF0000);
+        recent.add(0xFF00FF00);
+        recent.add(0xFF000000);
+
+        assertEquals(3, recent.size());
+        assertEquals(0xFF000000, recent.get(0));
+        assertEquals(0xFF00FF00, recent.get(1));
+        assertEquals(0xFFFF0000, recent.get(2));
+    }
+
+    @Test
+    public void oldestColorIsDroppedWhenFull() {
+        RecentColors recent = new RecentColors(2);
+        recent.add(1);
+        recent.add(2);
+        recent.add(3);
+
+        assertEquals(2, recent.size());
+        assertEquals(3, recent.get(0));
+        assertEquals(2, recent.get(1));
+        assertEquals(-1, recent.indexOf(1));
+    }
+
+    @Test
+    public void decodeRestoresEncodedColors() {
+        RecentColors recent = new RecentColors(4);
+        recent.add(0x800080FF);
+        recent.add(0xFFFFFFFF);
+        recent.add(0x00000000);
+
+        RecentColors restored = new RecentColors(4);
+        restored.decode(recent.encode() + ",not a color");
+        assertEquals(3, restored.size());
+        assertEquals(0x00000000, restored.get(0));
+        assertEquals(0xFFFFFFFF, restored.get(1));
+        assertEquals(0x800080FF, restored.get(2));
+
+        restored.decode(null);
+        assertEquals(0, restored.size());
+    }
+}
@@ -0,0 +1,141 @@
+package fi.lmarkk.litepaint;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the dirty rectangles computed for stroke segments cover every pixel the segment can
+ * touch, while not growing more than the anti-aliasing margin past the exact stroke extent.
+ */
+public class StrokeBoundsTest {
+
+    @Test
+    public void emptyUntilSomethingIncluded() {
+        StrokeBounds bounds = new StrokeBounds();
+        assertTrue(bounds.isEmpty());
+        assertEquals(0, bounds.width());
+        bounds.includePoint(10f, 10f, 4f);
+        assertFalse(bounds.isEmpty());
+        bounds.setEmpty();
+        assertTrue(bounds.isEmpty());
+    }
+
+    @Test
+    public void pointIsPaddedByHalfWidthAndMargin() {
+        StrokeBounds bounds = new StrokeBounds();
+        bounds.includePoint(50f, 40f, 20f);
+        assertEquals(50 - 10 - StrokeBounds.AA_MARGIN, bounds.left);
+        assertEquals(40 - 10 - StrokeBounds.AA_MARGIN, bounds.top);
+        assertEquals(50 + 10 + StrokeBounds.AA_MARGIN, bounds.right);
+        assertEquals(40 + 10 + StrokeBounds.AA_MARGIN, bounds.bottom);
+    }
+
+    @Test
+    public void segmentBoundsNeverMissPixels() {
+        Random random = new Random(42);
+        StrokeBounds bounds = new StrokeBounds();
+        for (int i = 0; i < 500; i++) {
+            float x0 = random.nextFloat() * 200f;
+            float y0 = random.nextFloat() * 200f;
+            float x1 = x0 + (random.nextFloat() - 0.5f) * 60f;
+            float y1 = y0 + (random.nextFloat() - 0.5f) * 60f;
+            float width = random.nextFloat() * 40f;
+            bounds.setEmpty();
+            bounds.includeSegment(x0, y0, x1, y1, width);
+            assertCoversCapsule(bounds, x0, y0, x1, y1, width);
+            assertTight(bounds, x0, y0, x1, y1, width);
+        }
+    }
+
+    @Test
+    public void quadBoundsNeverMissPixels() {
+        Random random = new Random(7);
+        StrokeBounds bounds = new StrokeBounds();
+        for (int i = 0; i < 200; i++) {
+            float x0 = random.nextFloat() * 200f;
+            float y0 = random.nextFloat() * 200f;
+            float cx = x0 + (random.nextFloat() - 0.5f) * 60f;
+            float cy = y0 + (random.nextFloat() - 0.5f) * 60f;
+            float x1 = cx + (random.nextFloat() - 0.5f) * 60f;
+            float y1 = cy + (random.nextFloat() - 0.5f) * 60f;
+            float width = random.nextFloat() * 40f;
+            bounds.setEmpty();
+            bounds.includeQuad(x0, y0, cx, cy, x1, y1, width);
+            float px = x0;
+            float py = y0;
+            for (int step = 1; step <= 32; step++) {
+                float t = step / 32f;
+                float u = 1f - t;
+                float qx = u * u * x0 + 2f * u * t * cx + t * t * x1;
+                float qy = u * u * y0 + 2f * u * t * cy + t * t * y1;
+                assertCoversCapsule(bounds, px, py, qx, qy, width);
+                px = qx;
+                py = qy;
+            }
+        }
+    }
+
+    @Test
+    public void unionAndClip() {
+        StrokeBounds a = new StrokeBounds();
+        StrokeBounds b = new StrokeBounds();
+        a.includePoint(5f, 5f, 2f);
+        b.includePoint(95f, 95f, 2f);
+        a.union(b);
+        assertEquals(3, a.left);
+        assertEquals(97, a.bottom);
+        assertTrue(a.clipTo(50, 50));
+        assertEquals(50, a.right);
+        assertEquals(50, a.bottom);
+        assertFalse(b.clipTo(50, 50));
+    }
+
+    /**
+     * Walks every pixel around the segment and asserts that each pixel whose area can be reached
+     * by the round-capped stroke lies inside the bounds.
+     */
+    private static void assertCoversCapsule(StrokeBounds bounds, float x0, float y0,
+                                            float x1, float y1, float width) {
+        float radius = Math.max(width, 1f) / 2f;
+        int minX = (int) Math.floor(Math.min(x0, x1) - radius) - 3;
+        int maxX = (int) Math.ceil(Math.max(x0, x1) + radius) + 3;
+        int minY = (int) Math.floor(Math.min(y0, y1) - radius) - 3;
+        int maxY = (int) Math.ceil(Math.max(y0, y1) + radius) + 3;
+        // Half a pixel diagonal: a pixel is touched if any part of it is within the radius.
+        float reach = radius + 0.7072f;
+        for (int py = minY; py <= maxY; py++) {
+            for (int px = minX; px <= maxX; px++) {
+                if (distanceToSegment(px + 0.5f, py + 0.5f, x0, y0, x1, y1) <= reach) {
+                    assertTrue("pixel " + px + "," + py + " outside " + bounds,
+                            px >= bounds.left && px < bounds.right
+                                    && py >= bounds.top && py < bounds.bottom);
+                }
+            }
+        }
+    }
+
+    private static void assertTight(StrokeBounds bounds, float x0, float y0,
+                                    float x1, float y1, float width) {
+        float radius = Math.max(width, 1f) / 2f;
+        float slack = StrokeBounds.AA_MARGIN + 1f;
+        assertTrue(bounds.left >= Math.min(x0, x1) - radius - slack);
+        assertTrue(bounds.top >= Math.min(y0, y1) - radius - slack);
+        assertTrue(bounds.right <= Math.max(x0, x1) + radius + slack);
+        assertTrue(bounds.bottom <= Math.max(y0, y1) + radius + slack);
+    }
+
+    private static float distanceToSegment(float px, float py, float x0, float y0,
+                                           float x1, float y1) {
+        float dx = x1 - x0;
+        float dy = y1 - y0;
+        float lengthSquared = dx * dx + dy * dy;
+        float t = lengthSquared == 0f ? 0f
+                : Math.max(0f, Math.min(1f, ((px - x0) * dx + (py - y0) * dy) / lengthSquared));
+        float cx = x0 + t * dx - px;
+        float cy = y0 + t * dy - py;
+        return (float) Math.sqrt(cx * cx + cy * cy);
+    }
+}
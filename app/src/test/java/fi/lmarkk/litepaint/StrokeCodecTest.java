@@ -0,0 +1,284 @@
+package fi.lmarkk.litepaint;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the binary stroke log format and its NIO writer and reader.
+ */
+public class StrokeCodecTest {
+
+    @Test
+    public void strokeSurvivesRoundTrip() throws IOException {
+        StrokeRecord stroke = randomStroke(new Random(1), 200);
+        ByteBuffer buffer = ByteBuffer.allocate(StrokeCodec.maxEncodedSize(stroke));
+        StrokeCodec.encode(stroke, buffer);
+        buffer.flip();
+        StrokeRecord decoded = StrokeCodec.decode(buffer);
+
+        assertNotNull(decoded);
+        assertFalse(buffer.hasRemaining());
+        assertEquals(StrokeRecord.TYPE_STROKE, decoded.type);
+        assertEquals(stroke.color, decoded.color);
+        assertEquals(stroke.width, decoded.width, 0f);
+        assertEquals(stroke.flags, decoded.flags);
+        assertEquals(stroke.pointCount, decoded.pointCount);
+        assertArrayEquals(stroke.points, decoded.points, 0f);
+    }
+
+    @Test
+    public void sizeAndClearSurviveRoundTrip() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        StrokeCodec.encode(StrokeRecord.size(1440, 2560), buffer);
+        StrokeCodec.encode(StrokeRecord.clear(), buffer);
+        buffer.flip();
+        StrokeRecord size = StrokeCodec.decode(buffer);
+        assertEquals(StrokeRecord.TYPE_SIZE, size.type);
+        assertEquals(1440, size.canvasWidth());
+        assertEquals(2560, size.canvasHeight());
+        assertEquals(StrokeRecord.TYPE_CLEAR, StrokeCodec.decode(buffer).type);
+        assertNull(StrokeCodec.decode(buffer));
+    }
+
+    @Test
+    public void fillSurvivesRoundTrip() throws IOException {
+        StrokeRecord fill = StrokeRecord.fill(0x80FF2040, 1439, 70000, 200,
+                StrokeRecord.FLAG_ERASE);
+        ByteBuffer buffer = ByteBuffer.allocate(StrokeCodec.maxEncodedSize(fill));
+        StrokeCodec.encode(fill, buffer);
+        buffer.flip();
+        StrokeRecord decoded = StrokeCodec.decode(buffer);
+
+        assertFalse(buffer.hasRemaining());
+        assertEquals(StrokeRecord.TYPE_FILL, decoded.type);
+        assertEquals(fill.color, decoded.color);
+        assertEquals(200, decoded.tolerance());
+        assertTrue(decoded.isErase());
+        assertEquals(1439f, decoded.x(0), 0f);
+        assertEquals(70000f, decoded.y(0), 0f);
+    }
+
+    @Test
+    public void samplesAreCompact() {
+        StrokeRecord stroke = randomStroke(new Random(2), 1000);
+        ByteBuffer buffer = ByteBuffer.allocate(StrokeCodec.maxEncodedSize(stroke));
+        StrokeCodec.encode(stroke, buffer);
+        assertTrue("bytes per sample " + buffer.position() / 1000f, buffer.position() < 6 * 1000);
+    }
+
+    @Test
+    public void truncatedRecordIsIgnored() throws IOException {
+        File file = File.createTempFile("strokes", ".log");
+        try {
+            StrokeLogWriter writer = StrokeLogWriter.open(file, true);
+            writer.append(StrokeRecord.size(100, 100));
+            writer.append(randomStroke(new Random(3), 50));
+            writer.append(randomStroke(new Random(4), 50));
+            writer.close();
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(raf.length() - 10);
+            }
+
+            List<StrokeRecord> records = StrokeLogReader.readAll(file);
+            assertEquals(2, records.size());
+
+            // Reopening drops the cut record so appended records stay readable.
+            writer = StrokeLogWriter.open(file, false);
+            writer.append(StrokeRecord.clear());
+            writer.close();
+            records = StrokeLogReader.readAll(file);
+            assertEquals(3, records.size());
+            assertEquals(StrokeRecord.TYPE_CLEAR, records.get(2).type);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void reopenedLogKeepsRecords() throws IOException {
+        File file = File.createTempFile("strokes", ".log");
+        try {
+            StrokeLogWriter writer = StrokeLogWriter.open(file, true);
+            writer.append(StrokeRecord.size(100, 100));
+            writer.close();
+            writer = StrokeLogWriter.open(file, false);
+            writer.append(randomStroke(new Random(5), 10));
+            writer.close();
+            assertEquals(2, StrokeLogReader.readAll(file).size());
+            writer = StrokeLogWriter.open(file, true);
+            writer.close();
+            assertEquals(0, StrokeLogReader.readAll(file).size());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void executorWritesRecordsInOrder() throws IOException {
+        File file = File.createTempFile("strokes", ".log");
+        final List<Runnable> queued = new ArrayList<>();
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                queued.add(command);
+            }
+        };
+        try {
+            StrokeLogWriter writer = StrokeLogWriter.open(file, true);
+            writer.append(StrokeRecord.size(100, 100));
+            writer.close();
+
+            writer = StrokeLogWriter.open(file, false, executor);
+            writer.append(randomStroke(new Random(6), 10));
+            writer.append(StrokeRecord.undo());
+            writer.close();
+            assertEquals(1, StrokeLogReader.readAll(file).size());
+            for (Runnable task : queued) {
+                task.run();
+            }
+            List<StrokeRecord> records = StrokeLogReader.readAll(file);
+            assertEquals(3, records.size());
+            assertEquals(StrokeRecord.TYPE_UNDO, records.get(2).type);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void failureOnExecutorIsThrownFromNextAppend() throws IOException {
+        File file = File.createTempFile("strokes", ".log");
+        final List<Runnable> queued = new ArrayList<>();
+        try {
+            StrokeLogWriter writer = StrokeLogWriter.open(file, false, new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    queued.add(command);
+                }
+            });
+            writer.close();
+            // Closing the channel before it is prepared makes preparing it fail.
+            queued.get(1).run();
+            queued.get(0).run();
+            try {
+                writer.append(StrokeRecord.undo());
+                fail("Append after a failed open must throw");
+            } catch (IOException expected) {
+            }
+            assertEquals(2, queued.size());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void logWithBadHeaderIsStartedOver() throws IOException {
+        File file = File.createTempFile("strokes", ".log");
+        try {
+            RandomAccessFile garbage = new RandomAccessFile(file, "rw");
+            garbage.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+            garbage.close();
+            StrokeLogWriter writer = StrokeLogWriter.open(file, false);
+            writer.append(StrokeRecord.undo());
+            writer.close();
+            List<StrokeRecord> records = StrokeLogReader.readAll(file);
+            assertEquals(1, records.size());
+            assertEquals(StrokeRecord.TYPE_UNDO, records.get(0).type);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void resetDropsEarlierRecords() throws IOException {
+        File file = File.createTempFile("strokes", ".log");
+        try {
+            StrokeLogWriter writer = StrokeLogWriter.open(file, true);
+            writer.append(StrokeRecord.size(100, 100));
+            writer.append(randomStroke(new Random(7), 100));
+            writer.reset();
+            writer.append(StrokeRecord.size(200, 100));
+            writer.close();
+            List<StrokeRecord> records = StrokeLogReader.readAll(file);
+            assertEquals(1, records.size());
+            assertEquals(200, records.get(0).canvasWidth());
+            assertEquals(StrokeCodec.HEADER_SIZE + 5, file.length());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void skipStopsAtRecordCutShort() {
+        StrokeRecord stroke = randomStroke(new Random(8), 20);
+        ByteBuffer buffer = ByteBuffer.allocate(2 * StrokeCodec.maxEncodedSize(stroke));
+        StrokeCodec.encode(stroke, buffer);
+        int end = buffer.position();
+        StrokeCodec.encode(stroke, buffer);
+        buffer.limit(buffer.position() - 1);
+        buffer.position(0);
+
+        assertTrue(StrokeCodec.skip(buffer));
+        assertEquals(end, buffer.position());
+        assertFalse(StrokeCodec.skip(buffer));
+        assertEquals(end, buffer.position());
+    }
+
+    @Test
+    public void corruptRecordThrowsIOException() {
+        for (byte[] record : corruptRecords()) {
+            // An undo record follows, which a body read past its length would run into.
+            ByteBuffer buffer = ByteBuffer.allocate(record.length + 2);
+            buffer.put(record).put((byte) 1).put((byte) StrokeRecord.TYPE_UNDO);
+            buffer.flip();
+            try {
+                StrokeCodec.decode(buffer);
+                fail("Decoding a corrupt record must throw");
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    /**
+     * Builds complete records with corrupt bodies: a stroke with a negative sample count, a stroke
+     * with more samples than its body can hold, a fill cut short and a size cut short.
+     */
+    static byte[][] corruptRecords() {
+        return new byte[][]{
+                {15, StrokeRecord.TYPE_STROKE, 0, 0, 0, 0, 0x40, 0, 0, 0, 0,
+                        (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F},
+                {17, StrokeRecord.TYPE_STROKE, 0, 0, 0, 0, 0x40, 0, 0, 0, 0,
+                        (byte) 0xC0, (byte) 0x84, 0x3D, 1, 1, 1, 1},
+                {3, StrokeRecord.TYPE_FILL, 1, 2},
+                {2, StrokeRecord.TYPE_SIZE, (byte) 0x80}};
+    }
+
+    /**
+     * Builds a stroke that wanders like a finger would, already snapped to the log precision.
+     */
+    static StrokeRecord randomStroke(Random random, int count) {
+        PointBuffer points = new PointBuffer();
+        points.clear(0L);
+        float x = random.nextFloat() * 1000f;
+        float y = random.nextFloat() * 1000f;
+        long time = 0L;
+        for (int i = 0; i < count; i++) {
+            x += (random.nextFloat() - 0.5f) * 30f;
+            y += (random.nextFloat() - 0.5f) * 30f;
+            time += 4 + random.nextInt(8);
+            points.add(StrokeCodec.quantizePosition(x), StrokeCodec.quantizePosition(y),
+                    StrokeCodec.quantizePressure(random.nextFloat()), time);
+        }
+        int flags = random.nextBoolean() ? StrokeRecord.FLAG_SMOOTH : StrokeRecord.FLAG_ERASE;
+        return StrokeRecord.stroke(random.nextInt(), 5f + random.nextInt(40), flags, points);
+    }
+}
@@ -0,0 +1,195 @@
+package fi.lmarkk.litepaint;
+
+import android.graphics.Bitmap;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.GraphicsMode;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Replays and imports the stroke log with Robolectric's native graphics.
+ */
+@RunWith(RobolectricTestRunner.class)
+@GraphicsMode(GraphicsMode.Mode.NATIVE)
+@Config(sdk = 28)
+public class StrokeLogTest {
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 1920;
+
+    @Test
+    public void replayMatchesLiveDrawing() throws IOException {
+        File file = File.createTempFile("strokes", ".log");
+        try {
+            PaintingView view = new PaintingView(RuntimeEnvironment.getApplication(), null);
+            view.layout(0, 0, 400, 300);
+            StrokeLogWriter log = StrokeLogWriter.open(file, true);
+            view.setStrokeLog(log);
+            view.setColor("#C00080FF");
+            PaintingViewRenderTest.drawStroke(view, new float[][]{
+                    {10.3f, 20.7f}, {80.1f, 40.2f}, {150.6f, 90.9f}, {230.2f, 60.4f}});
+            view.setSmoother(StrokeSmoother.LINEAR);
+            PaintingViewRenderTest.drawStroke(view, new float[][]{
+                    {30f, 250f}, {200f, 200f}, {380f, 280f}});
+            view.setErase(true);
+            PaintingViewRenderTest.drawStroke(view, new float[][]{
+                    {120f, 10f}, {125f, 150f}, {130f, 290f}});
+            log.close();
+
+            Bitmap replayed = Bitmap.createBitmap(400, 300, Bitmap.Config.ARGB_8888);
+            new StrokeReplayer().replay(StrokeLogReader.readAll(file), replayed);
+            assertTrue(replayed.sameAs(view.createSnapshot()));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void importMatchesLiveDrawing() throws IOException {
+        File file = File.createTempFile("strokes", ".log");
+        try {
+            Bitmap live = drawLogged(file);
+
+            PaintingView immediate = new PaintingView(RuntimeEnvironment.getApplication(), null);
+            immediate.layout(0, 0, 400, 300);
+            assertEquals(3, immediate.importStrokes(file, PaintingView.Playback.IMMEDIATE));
+            assertFalse(immediate.isPlaying());
+            assertTrue(live.sameAs(immediate.createSnapshot()));
+
+            PaintingView realTime = new PaintingView(RuntimeEnvironment.getApplication(), null);
+            realTime.layout(0, 0, 400, 300);
+            try (InputStream in = new FileInputStream(file)) {
+                realTime.importStrokes(in, PaintingView.Playback.REAL_TIME);
+            }
+            for (int frame = 0; realTime.isPlaying() && frame < 1000; frame++) {
+                ShadowLooper.idleMainLooper(16, TimeUnit.MILLISECONDS);
+            }
+            assertFalse(realTime.isPlaying());
+            assertTrue(live.sameAs(realTime.createSnapshot()));
+
+            // Every imported stroke is its own undoable step.
+            assertTrue(realTime.undo());
+            assertTrue(realTime.undo());
+            assertTrue(realTime.undo());
+            assertFalse(realTime.canUndo());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void importingCorruptLogThrowsIOException() {
+        PaintingView view = new PaintingView(RuntimeEnvironment.getApplication(), null);
+        view.layout(0, 0, 400, 300);
+        for (byte[] record : StrokeCodecTest.corruptRecords()) {
+            ByteBuffer log = ByteBuffer.allocate(64);
+            StrokeCodec.writeHeader(log);
+            StrokeCodec.encode(StrokeRecord.size(400, 300), log);
+            log.put(record);
+            try {
+                view.importStrokes(new ByteArrayInputStream(log.array(), 0, log.position()),
+                        PaintingView.Playback.IMMEDIATE);
+                fail("Importing a corrupt log must throw");
+            } catch (IOException expected) {
+            }
+            assertFalse(view.canUndo());
+        }
+    }
+
+    @Test
+    public void importedStrokeIsLoggedLikeALiveOne() throws IOException {
+        File file = File.createTempFile("strokes", ".log");
+        try {
+            PaintingView view = new PaintingView(RuntimeEnvironment.getApplication(), null);
+            view.layout(0, 0, 400, 300);
+            StrokeLogWriter log = StrokeLogWriter.open(file, true);
+            view.setStrokeLog(log);
+            view.setColor("#FF2040C0");
+            view.importStroke(new float[]{
+                    12.34f, 20.11f, 1f, 0f,
+                    150.77f, 80.5f, 0.8f, 16f,
+                    300.1f, 40.9f, 0.6f, 33f}, 3, PaintingView.Playback.IMMEDIATE);
+            log.close();
+
+            Bitmap replayed = Bitmap.createBitmap(400, 300, Bitmap.Config.ARGB_8888);
+            new StrokeReplayer().replay(StrokeLogReader.readAll(file), replayed);
+            assertTrue(replayed.sameAs(view.createSnapshot()));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void replayScalesToTargetResolution() {
+        List<StrokeRecord> records = syntheticDrawing(20);
+        Bitmap half = Bitmap.createBitmap(WIDTH / 2, HEIGHT / 2, Bitmap.Config.ARGB_8888);
+        new StrokeReplayer().replay(records, half);
+        Bitmap full = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        new StrokeReplayer().replay(records, full);
+        Bitmap downscaled = Bitmap.createScaledBitmap(full, WIDTH / 2, HEIGHT / 2, true);
+        // Both contain the same drawing, so their coverage should be about the same.
+        assertEquals(coverage(downscaled), coverage(half), 0.02);
+    }
+
+    /**
+     * Draws three strokes by hand, one of them undone and redrawn, logging them into the file.
+     *
+     * @return Snapshot of the live drawing.
+     */
+    private static Bitmap drawLogged(File file) throws IOException {
+        PaintingView view = new PaintingView(RuntimeEnvironment.getApplication(), null);
+        view.layout(0, 0, 400, 300);
+        StrokeLogWriter log = StrokeLogWriter.open(file, true);
+        view.setStrokeLog(log);
+        view.setColor("#C00080FF");
+        PaintingViewRenderTest.drawStroke(view, new float[][]{
+                {10.3f, 20.7f}, {80.1f, 40.2f}, {150.6f, 90.9f}, {230.2f, 60.4f}});
+        PaintingViewRenderTest.drawStroke(view, new float[][]{{5f, 5f}, {395f, 295f}});
+        view.undo();
+        view.setSmoother(StrokeSmoother.LINEAR);
+        PaintingViewRenderTest.drawStroke(view, new float[][]{
+                {30f, 250f}, {200f, 200f}, {380f, 280f}});
+        view.setErase(true);
+        PaintingViewRenderTest.drawStroke(view, new float[][]{
+                {120f, 10f}, {125f, 150f}, {130f, 290f}});
+        log.close();
+        return view.createSnapshot();
+    }
+
+    private static List<StrokeRecord> syntheticDrawing(int strokes) {
+        Random random = new Random(99);
+        List<StrokeRecord> records = new ArrayList<>();
+        records.add(StrokeRecord.size(WIDTH, HEIGHT));
+        for (int i = 0; i < strokes; i++) {
+            records.add(StrokeCodecTest.randomStroke(random, 20 + random.nextInt(60)));
+        }
+        return records;
+    }
+
+    private static double coverage(Bitmap bitmap) {
+        int[] pixels = new int[bitmap.getWidth() * bitmap.getHeight()];
+        bitmap.getPixels(pixels, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(),
+                bitmap.getHeight());
+        long alpha = 0;
+        for (int pixel : pixels) {
+            alpha += pixel >>> 24;
+        }
+        return alpha / (255.0 * pixels.length);
+    }
+}
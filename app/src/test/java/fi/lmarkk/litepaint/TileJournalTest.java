@@ -0,0 +1,282 @@
+package fi.lmarkk.litepaint;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.PorterDuff;
+import android.os.Handler;
+import android.os.Looper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.GraphicsMode;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that autosave checkpoints only write changed tiles, that tiles are restored lazily and
+ * exactly, that a checkpoint cut short is dropped, that compacting keeps the latest tiles, and
+ * that the tiles of a failed checkpoint are written again.
+ */
+@RunWith(RobolectricTestRunner.class)
+@GraphicsMode(GraphicsMode.Mode.NATIVE)
+@Config(sdk = 28)
+public class TileJournalTest {
+    private static final int SIZE = TiledCanvas.TILE_SIZE;
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private File file;
+    private TileJournal journal;
+    private Paint paint;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("autosave", ".journal");
+        journal = TileJournal.open(file);
+        paint = new Paint();
+        StrokeReplayer.setupStrokePaint(paint);
+        paint.setColor(0xC0208040);
+        paint.setStrokeWidth(12f);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        journal.close();
+        file.delete();
+    }
+
+    @Test
+    public void checkpointsOnlyWriteChangedTiles() throws IOException {
+        TiledCanvas tiles = createCanvas();
+        stroke(tiles, 10f, 10f, 1900f, 1200f);
+        assertEquals(tiles.getTileCount(), checkpoint(tiles).getTileCount());
+        long length = journal.getLength();
+
+        stroke(tiles, 10f, 10f, 200f, 20f);
+        TileJournal.Checkpoint changes = checkpoint(tiles);
+        assertEquals(1, changes.getTileCount());
+        assertTrue(journal.getLength() - length < 2L * TileJournal.SLOT_BYTES);
+        assertFalse(tiles.hasChanges());
+    }
+
+    @Test
+    public void tilesAreRestoredLazilyAndExactly() throws IOException {
+        TiledCanvas tiles = createCanvas();
+        stroke(tiles, 10f, 10f, 1900f, 1200f);
+        checkpoint(tiles);
+        stroke(tiles, 1900f, 10f, 10f, 1200f);
+        tiles.restoreRegion(null, 0, 1024, 2048, 256);
+        checkpoint(tiles);
+        Bitmap expected = tiles.toBitmap();
+
+        TiledCanvas restored = reopenAndRestore();
+        assertEquals(tiles.getTileCount(), restored.getTileCount());
+        assertEquals(0, restored.getResidentTileCount());
+        assertFalse(restored.hasChanges());
+        assertTrue(restored.toBitmap().sameAs(expected));
+        assertEquals(tiles.getTileCount(), restored.getResidentTileCount());
+        assertFalse(restored.hasChanges());
+    }
+
+    @Test
+    public void checkpointCutShortIsDropped() throws IOException {
+        TiledCanvas tiles = createCanvas();
+        stroke(tiles, 10f, 10f, 1900f, 1200f);
+        checkpoint(tiles);
+        Bitmap expected = tiles.toBitmap();
+        long length = journal.getLength();
+        stroke(tiles, 1900f, 10f, 10f, 1200f);
+        checkpoint(tiles);
+        journal.close();
+        RandomAccessFile cut = new RandomAccessFile(file, "rw");
+        cut.setLength(cut.length() - 3);
+        cut.close();
+
+        TiledCanvas restored = reopenAndRestore();
+        assertEquals(length, journal.getLength());
+        assertTrue(restored.toBitmap().sameAs(expected));
+    }
+
+    @Test
+    public void compactingKeepsLatestTiles() throws IOException {
+        TiledCanvas tiles = createCanvas();
+        Bitmap block = Bitmap.createBitmap(8 * SIZE, 5 * SIZE, Bitmap.Config.ARGB_8888);
+        long liveBytes = 40L * TileJournal.SLOT_BYTES;
+        // Each checkpoint rewrites all 40 tiles, so without compacting the file would keep growing.
+        for (int color : new int[]{Color.RED, Color.GREEN, Color.BLUE, Color.BLACK}) {
+            block.eraseColor(color);
+            tiles.drawBitmap(block, 0, 0, null, true);
+            checkpoint(tiles);
+            assertTrue(journal.getLength() < TileJournal.COMPACT_FACTOR * liveBytes + 4096);
+        }
+        assertTrue(journal.getLength() < liveBytes + 4096);
+
+        TiledCanvas restored = reopenAndRestore();
+        assertEquals(40, restored.getTileCount());
+        assertTrue(restored.toBitmap().sameAs(tiles.toBitmap()));
+    }
+
+    @Test
+    public void paintingViewRestoresLayers() throws IOException {
+        PaintingView view = createView();
+        view.setAutosave(journal, DIRECT);
+        view.setColor("#FF2040C0");
+        PaintingViewRenderTest.drawStroke(view, new float[][]{{0f, 120f}, {320f, 120f}});
+        view.addLayer();
+        view.setLayerOpacity(1, 0.5f);
+        view.setLayerBlendMode(1, PorterDuff.Mode.MULTIPLY);
+        view.setColor("#FFFF8000");
+        PaintingViewRenderTest.drawStroke(view, new float[][]{{160f, 0f}, {160f, 240f}});
+        view.flushAutosave();
+        Bitmap expected = view.createSnapshot();
+        view.release();
+
+        journal = TileJournal.open(file);
+        PaintingView restored = createView();
+        restored.setAutosave(journal, DIRECT);
+        assertEquals(2, restored.getLayerCount());
+        assertEquals(1, restored.getActiveLayer());
+        assertEquals(0.5f, restored.getLayerOpacity(1), 0f);
+        assertEquals(PorterDuff.Mode.MULTIPLY, restored.getLayerBlendMode(1));
+        assertTrue(restored.createSnapshot().sameAs(expected));
+
+        // The restored tiles are not written again, but a new stroke is.
+        long length = journal.getLength();
+        restored.flushAutosave();
+        PaintingViewRenderTest.drawStroke(restored, new float[][]{{0f, 0f}, {100f, 100f}});
+        restored.flushAutosave();
+        assertTrue(journal.getLength() - length < 2L * TileJournal.SLOT_BYTES);
+        restored.release();
+        journal = TileJournal.open(file);
+    }
+
+    @Test
+    public void drawingStartedBeforeOpenReplacesAutosave() throws IOException {
+        PaintingView view = createView();
+        view.setAutosave(journal, DIRECT);
+        view.setColor("#FF2040C0");
+        PaintingViewRenderTest.drawStroke(view, new float[][]{{0f, 120f}, {320f, 120f}});
+        view.release();
+
+        journal = TileJournal.open(file);
+        PaintingView early = createView();
+        early.setColor("#FFFF8000");
+        PaintingViewRenderTest.drawStroke(early, new float[][]{{160f, 0f}, {160f, 240f}});
+        Bitmap expected = early.createSnapshot();
+        early.setAutosave(journal, DIRECT);
+        assertTrue(early.createSnapshot().sameAs(expected));
+        assertTrue(early.canUndo());
+        early.release();
+
+        journal = TileJournal.open(file);
+        PaintingView restored = createView();
+        restored.setAutosave(journal, DIRECT);
+        assertTrue(restored.createSnapshot().sameAs(expected));
+        restored.release();
+        journal = TileJournal.open(file);
+    }
+
+    @Test
+    public void failedCheckpointIsWrittenWithTheNextOne() throws IOException {
+        final TiledCanvas tiles = createCanvas();
+        stroke(tiles, 10f, 10f, 200f, 20f);
+        final List<TileJournal.Checkpoint> taken = new ArrayList<>();
+        TileJournal broken = TileJournal.open(file);
+        broken.close();
+        Autosave autosave = new Autosave(broken, DIRECT, new Handler(Looper.getMainLooper()),
+                new Autosave.Source() {
+                    @Override
+                    public TileJournal.Checkpoint createCheckpoint() {
+                        taken.add(TileJournalTest.this.createCheckpoint(tiles));
+                        return taken.get(taken.size() - 1);
+                    }
+
+                    @Override
+                    public void writeFailed(TileJournal.Checkpoint checkpoint) {
+                        for (int i = 0; i < checkpoint.getTileCount(); i++) {
+                            int[] key = checkpoint.getTileKey(i);
+                            tiles.markUnsaved(key[1], key[2]);
+                        }
+                    }
+                });
+        autosave.changed();
+        autosave.saveNow();
+        assertEquals(1, taken.size());
+        ShadowLooper.idleMainLooper();
+        assertTrue(tiles.hasChanges());
+
+        // Saved again when the app is paused even without a new change.
+        autosave.saveNow();
+        assertEquals(2, taken.size());
+        assertEquals(taken.get(0).getTileCount(), taken.get(1).getTileCount());
+        ShadowLooper.idleMainLooper();
+        autosave.close();
+    }
+
+    private TiledCanvas createCanvas() {
+        TiledCanvas tiles = new TiledCanvas(null);
+        tiles.ensureSize(2000, 1500);
+        return tiles;
+    }
+
+    private PaintingView createView() {
+        PaintingView view = new PaintingView(RuntimeEnvironment.getApplication(), null);
+        view.setSmoother(StrokeSmoother.LINEAR);
+        view.layout(0, 0, 320, 240);
+        return view;
+    }
+
+    private TileJournal.Checkpoint checkpoint(TiledCanvas tiles) throws IOException {
+        TileJournal.Checkpoint checkpoint = createCheckpoint(tiles);
+        journal.write(checkpoint);
+        return checkpoint;
+    }
+
+    private TileJournal.Checkpoint createCheckpoint(TiledCanvas tiles) {
+        TileJournal.State state = new TileJournal.State(tiles.getWidth(), tiles.getHeight(), 0, 1);
+        state.opacities[0] = 1f;
+        state.visible[0] = true;
+        state.blendModes[0] = PorterDuff.Mode.SRC_OVER;
+        TileJournal.Checkpoint checkpoint = new TileJournal.Checkpoint(state);
+        tiles.takeChanges(checkpoint, 0);
+        return checkpoint;
+    }
+
+    private TiledCanvas reopenAndRestore() throws IOException {
+        journal.close();
+        journal = TileJournal.open(file);
+        TileJournal.State state = journal.getState();
+        TiledCanvas restored = new TiledCanvas(null);
+        restored.ensureSize(state.width, state.height);
+        journal.restore(0, restored, journal.openReader());
+        return restored;
+    }
+
+    private void stroke(TiledCanvas tiles, float x0, float y0, float x1, float y1) {
+        Path path = new Path();
+        path.moveTo(x0, y0);
+        path.lineTo(x1, y1);
+        StrokeBounds bounds = new StrokeBounds();
+        bounds.includeSegment(x0, y0, x1, y1, paint.getStrokeWidth());
+        tiles.drawPath(path, paint, bounds, true);
+    }
+}
@@ -0,0 +1,170 @@
+package fi.lmarkk.litepaint;
+
+import android.graphics.Bitmap;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.GraphicsMode;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks lazy tile allocation, region copies, paging tiles out and back in, also in the
+ * background, and that resizing PaintingView keeps the drawing.
+ */
+@RunWith(RobolectricTestRunner.class)
+@GraphicsMode(GraphicsMode.Mode.NATIVE)
+@Config(sdk = 28)
+public class TiledCanvasTest {
+    private static final int SIZE = TiledCanvas.TILE_SIZE;
+
+    private File cacheFile;
+    private TiledCanvas tiles;
+    private Paint paint;
+
+    @Before
+    public void setUp() throws IOException {
+        cacheFile = File.createTempFile("tiles", ".cache");
+        tiles = new TiledCanvas(cacheFile);
+        tiles.ensureSize(4000, 3000);
+        paint = new Paint();
+        StrokeReplayer.setupStrokePaint(paint);
+        paint.setColor(0xC0208040);
+        paint.setStrokeWidth(12f);
+    }
+
+    @After
+    public void tearDown() {
+        tiles.close();
+        cacheFile.delete();
+    }
+
+    @Test
+    public void onlyTilesUnderStrokesAreAllocated() {
+        assertEquals(0, tiles.getTileCount());
+        stroke(100f, 100f, 200f, 120f, true);
+        assertEquals(1, tiles.getTileCount());
+        // Crossing the tile border at x = 3072 touches two tiles.
+        stroke(3000f, 2600f, 3100f, 2600f, true);
+        assertEquals(3, tiles.getTileCount());
+        // Erasing over empty tiles allocates nothing.
+        paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.CLEAR));
+        stroke(1000f, 1000f, 2000f, 1000f, false);
+        assertEquals(3, tiles.getTileCount());
+    }
+
+    @Test
+    public void regionsRoundTripExactly() {
+        stroke(10f, 10f, 600f, 500f, true);
+        Bitmap before = tiles.toBitmap();
+        Bitmap tile = tiles.copyRegion(SIZE, SIZE, SIZE, SIZE);
+        Bitmap empty = tiles.copyRegion(2 * SIZE, 0, SIZE, SIZE);
+        assertNotNull(tile);
+        assertNull(empty);
+
+        stroke(SIZE + 5f, SIZE + 5f, 2 * SIZE + 100f, 50f, true);
+        tiles.restoreRegion(tile, SIZE, SIZE, SIZE, SIZE);
+        tiles.restoreRegion(empty, 2 * SIZE, 0, SIZE, SIZE);
+        assertTrue(tiles.toBitmap().sameAs(before));
+    }
+
+    @Test
+    public void pagedOutTilesComeBackUnchanged() {
+        stroke(10f, 10f, 3900f, 2900f, true);
+        int count = tiles.getTileCount();
+        Bitmap before = tiles.toBitmap();
+
+        Rect visible = new Rect(0, 0, 1080, 1920);
+        int pagedOut = tiles.pageOut(visible);
+        assertTrue(pagedOut > 0);
+        assertEquals(count - pagedOut, tiles.getResidentTileCount());
+
+        assertEquals(count - pagedOut, tiles.pageOut(null));
+        assertEquals(0, tiles.getResidentTileCount());
+        assertTrue(cacheFile.length() >= (long) count * TileCache.SLOT_BYTES);
+
+        assertTrue(tiles.toBitmap().sameAs(before));
+        assertEquals(count, tiles.getResidentTileCount());
+        assertEquals(count, tiles.getTileCount());
+    }
+
+    @Test
+    public void changedTilesArePagedOutAgain() {
+        stroke(10f, 10f, 200f, 200f, true);
+        tiles.pageOut(null);
+        stroke(200f, 10f, 10f, 200f, true);
+        Bitmap changed = tiles.toBitmap();
+        tiles.pageOut(null);
+        assertTrue(tiles.toBitmap().sameAs(changed));
+    }
+
+    @Test
+    public void tileChangedWhilePagingOutStaysResident() {
+        // One row of tiles, more than one batch of them.
+        stroke(10f, 10f, 3900f, 10f, true);
+        int count = tiles.getTileCount();
+        final List<Runnable> queued = new ArrayList<>();
+        Executor queue = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                queued.add(command);
+            }
+        };
+        assertEquals(count, tiles.pageOut(null, queue, queue));
+        assertEquals(count, tiles.getResidentTileCount());
+
+        stroke(20f, 20f, 60f, 20f, true);
+        Bitmap expected = tiles.toBitmap();
+        while (!queued.isEmpty()) {
+            queued.remove(0).run();
+        }
+        assertEquals(1, tiles.getResidentTileCount());
+        assertTrue(tiles.toBitmap().sameAs(expected));
+    }
+
+    @Test
+    public void resizingViewKeepsDrawing() {
+        PaintingView view = new PaintingView(RuntimeEnvironment.getApplication(), null);
+        view.layout(0, 0, 400, 300);
+        PaintingViewRenderTest.drawStroke(view, new float[][]{
+                {20f, 20f}, {200f, 250f}, {390f, 40f}});
+        Bitmap before = view.createSnapshot();
+
+        view.layout(0, 0, 300, 400);
+        assertEquals(400, view.getCanvasWidth());
+        assertEquals(400, view.getCanvasHeight());
+        Bitmap after = view.createSnapshot();
+        assertTrue(Bitmap.createBitmap(after, 0, 0, 400, 300).sameAs(before));
+
+        // The undo snapshots were taken before the resize and still line up.
+        view.undo();
+        assertTrue(view.createSnapshot().sameAs(
+                Bitmap.createBitmap(400, 400, Bitmap.Config.ARGB_8888)));
+        view.release();
+    }
+
+    private void stroke(float x0, float y0, float x1, float y1, boolean allocate) {
+        Path path = new Path();
+        path.moveTo(x0, y0);
+        path.lineTo(x1, y1);
+        StrokeBounds bounds = new StrokeBounds();
+        bounds.includeSegment(x0, y0, x1, y1, paint.getStrokeWidth());
+        tiles.drawPath(path, paint, bounds, allocate);
+    }
+}
@@ -0,0 +1,125 @@
+package fi.lmarkk.litepaint;
+
+import android.view.MotionEvent;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the touch queue splits batched samples in order, keeps two fingers, drops events
+ * that do not fit and hands samples between threads without losing or reordering them.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class TouchQueueTest {
+
+    @Test
+    public void batchedSamplesArePolledOneByOne() {
+        TouchQueue queue = new TouchQueue(16);
+        MotionEvent down = MotionEvent.obtain(0L, 0L, MotionEvent.ACTION_DOWN, 1f, 2f, 0);
+        MotionEvent move = MotionEvent.obtain(0L, 10L, MotionEvent.ACTION_MOVE, 5f, 6f, 0);
+        move.addBatch(20L, 7f, 8f, 0.5f, 1f, 0);
+        assertTrue(queue.add(down));
+        assertTrue(queue.add(move));
+
+        assertSample(queue.poll(), MotionEvent.ACTION_DOWN, 0L, 1f, 2f);
+        assertSample(queue.poll(), MotionEvent.ACTION_MOVE, 10L, 5f, 6f);
+        MotionEvent last = queue.poll();
+        assertEquals(0.5f, last.getPressure(), 1e-6f);
+        assertSample(last, MotionEvent.ACTION_MOVE, 20L, 7f, 8f);
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void secondFingerIsKept() {
+        TouchQueue queue = new TouchQueue(16);
+        MotionEvent.PointerProperties[] properties = new MotionEvent.PointerProperties[2];
+        MotionEvent.PointerCoords[] coords = new MotionEvent.PointerCoords[2];
+        for (int i = 0; i < 2; i++) {
+            properties[i] = new MotionEvent.PointerProperties();
+            properties[i].id = i + 3;
+            coords[i] = new MotionEvent.PointerCoords();
+            coords[i].x = 100f * (i + 1);
+            coords[i].y = 50f;
+        }
+        int action = MotionEvent.ACTION_POINTER_DOWN
+                | (1 << MotionEvent.ACTION_POINTER_INDEX_SHIFT);
+        queue.add(MotionEvent.obtain(0L, 5L, action, 2, properties, coords, 0, 0, 1f, 1f, 0, 0,
+                0, 0));
+
+        MotionEvent event = queue.poll();
+        assertEquals(MotionEvent.ACTION_POINTER_DOWN, event.getActionMasked());
+        assertEquals(1, event.getActionIndex());
+        assertEquals(2, event.getPointerCount());
+        assertEquals(4, event.getPointerId(1));
+        assertEquals(200f, event.getX(1), 0f);
+    }
+
+    @Test
+    public void eventThatDoesNotFitIsDropped() {
+        TouchQueue queue = new TouchQueue(4);
+        MotionEvent move = MotionEvent.obtain(0L, 0L, MotionEvent.ACTION_MOVE, 0f, 0f, 0);
+        for (int i = 1; i < 4; i++) {
+            move.addBatch(i, i, i, 1f, 1f, 0);
+        }
+        assertTrue(queue.add(move));
+        MotionEvent up = MotionEvent.obtain(0L, 4L, MotionEvent.ACTION_UP, 4f, 4f, 0);
+        assertFalse(queue.add(up));
+        assertEquals(1L, queue.getDropped());
+
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i, queue.poll().getX(), 0f);
+        }
+        assertTrue(queue.add(up));
+        assertSample(queue.poll(), MotionEvent.ACTION_UP, 4L, 4f, 4f);
+    }
+
+    @Test
+    public void samplesCrossThreadsInOrder() throws InterruptedException {
+        final int count = 20000;
+        final TouchQueue queue = new TouchQueue(64);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < count; i++) {
+                    MotionEvent event = MotionEvent.obtain(0L, i, MotionEvent.ACTION_MOVE, i,
+                            0f, 0);
+                    while (!queue.add(event)) {
+                        Thread.yield();
+                    }
+                    event.recycle();
+                }
+            }
+        });
+        producer.start();
+        int next = 0;
+        long deadline = System.currentTimeMillis() + 30000L;
+        while (next < count && System.currentTimeMillis() < deadline) {
+            MotionEvent event = queue.poll();
+            if (event == null) {
+                Thread.yield();
+                continue;
+            }
+            assertEquals(next, event.getX(), 0f);
+            assertEquals(next, event.getEventTime());
+            event.recycle();
+            next++;
+        }
+        producer.join();
+        assertEquals(count, next);
+        assertNull(queue.poll());
+    }
+
+    private static void assertSample(MotionEvent event, int action, long time, float x, float y) {
+        assertEquals(action, event.getActionMasked());
+        assertEquals(time, event.getEventTime());
+        assertEquals(x, event.getX(), 0f);
+        assertEquals(y, event.getY(), 0f);
+        assertEquals(0, event.getHistorySize());
+    }
+}
@@ -0,0 +1,204 @@
+package fi.lmarkk.litepaint;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the tile based undo history on a plain int[] surface. A stroke record is "drawn" by
+ * setting the pixels under its points to its color.
+ */
+public class UndoHistoryTest {
+    private static final int WIDTH = 600;
+    private static final int HEIGHT = 500;
+
+    private FakeSurface surface;
+    private UndoHistory<int[]> history;
+
+    @Before
+    public void setUp() {
+        surface = new FakeSurface();
+        history = new UndoHistory<>(surface, Long.MAX_VALUE, 100);
+        history.reset(true);
+    }
+
+    @Test
+    public void undoAndRedoRestoreExactPixels() {
+        int[] empty = surface.snapshot();
+        draw(0xFF0000FF, 10, 10, 300, 20);
+        int[] first = surface.snapshot();
+        draw(0xFF00FF00, 280, 15, 590, 480);
+        int[] second = surface.snapshot();
+
+        assertTrue(history.undo());
+        assertArrayEquals(first, surface.snapshot());
+        assertTrue(history.undo());
+        assertArrayEquals(empty, surface.snapshot());
+        assertFalse(history.undo());
+        assertTrue(history.redo());
+        assertTrue(history.redo());
+        assertArrayEquals(second, surface.snapshot());
+        assertFalse(history.redo());
+        assertEquals(0, surface.rebuilds);
+    }
+
+    @Test
+    public void onlyTouchedTilesAreKept() {
+        draw(0xFF0000FF, 10, 10, 20, 20);
+        assertEquals(UndoHistory.TILE_SIZE * UndoHistory.TILE_SIZE * 4L, history.getTileBytes());
+        draw(0xFF0000FF, 10, 10, 530, 10);
+        // The second stroke spans three tiles in one row, the edge tile is narrower.
+        long row = (2L * UndoHistory.TILE_SIZE + (WIDTH - 2 * UndoHistory.TILE_SIZE))
+                * UndoHistory.TILE_SIZE * 4L;
+        assertEquals(UndoHistory.TILE_SIZE * UndoHistory.TILE_SIZE * 4L + row,
+                history.getTileBytes());
+    }
+
+    @Test
+    public void evictedStepsAreRebuiltByReplay() {
+        history.setBudget(UndoHistory.TILE_SIZE * UndoHistory.TILE_SIZE * 4L);
+        int[][] states = new int[6][];
+        states[0] = surface.snapshot();
+        for (int i = 1; i < states.length; i++) {
+            draw(0xFF000000 | i * 40, i * 50, i * 30, 550 - i * 60, 400 - i * 10);
+            states[i] = surface.snapshot();
+        }
+        assertTrue(history.getTileBytes() <= UndoHistory.TILE_SIZE * UndoHistory.TILE_SIZE * 4L);
+        for (int i = states.length - 2; i >= 0; i--) {
+            assertTrue(history.undo());
+            assertArrayEquals("state " + i, states[i], surface.snapshot());
+        }
+        assertTrue(surface.rebuilds > 0);
+    }
+
+    @Test
+    public void clearIsUndoableWithoutCopy() {
+        draw(0xFF123456, 5, 5, 400, 400);
+        int[] drawn = surface.snapshot();
+        long bytes = history.getTileBytes();
+        surface.clear();
+        history.push(StrokeRecord.clear());
+        assertEquals(bytes, history.getTileBytes());
+
+        assertTrue(history.undo());
+        assertArrayEquals(drawn, surface.snapshot());
+        assertTrue(history.redo());
+        assertArrayEquals(new int[WIDTH * HEIGHT], surface.snapshot());
+    }
+
+    @Test
+    public void newStepDropsRedo() {
+        draw(0xFF0000FF, 10, 10, 20, 20);
+        history.undo();
+        assertTrue(history.canRedo());
+        draw(0xFFFF0000, 30, 30, 40, 40);
+        assertFalse(history.canRedo());
+        assertEquals(1, history.getStepCount());
+    }
+
+    @Test
+    public void stepsPastMaximumDepthAreFolded() {
+        history = new UndoHistory<>(surface, Long.MAX_VALUE, 3);
+        history.reset(true);
+        for (int i = 0; i < 5; i++) {
+            draw(0xFF000000 | i, i * 10, 0, i * 10, 100);
+        }
+        int[] afterTwo = surface.snapshot();
+        assertEquals(3, history.getStepCount());
+        history.setBudget(0);
+        assertTrue(history.undo());
+        assertTrue(history.undo());
+        assertTrue(history.undo());
+        assertFalse(history.undo());
+        // Rebuilding replays the folded records, so the first two strokes stay.
+        for (int i = 0; i < 2; i++) {
+            assertEquals(0xFF000000 | i, surface.pixels[50 * WIDTH + i * 10]);
+        }
+        assertEquals(0, surface.pixels[50 * WIDTH + 20]);
+        assertFalse(Arrays.equals(afterTwo, surface.snapshot()));
+    }
+
+    /**
+     * Commits a two point stroke the way PaintingView does: tiles first, then draw, then push.
+     */
+    private void draw(int color, int x0, int y0, int x1, int y1) {
+        PointBuffer points = new PointBuffer();
+        points.clear(0L);
+        points.add(x0, y0, 1f, 0L);
+        points.add(x1, y1, 1f, 1L);
+        StrokeRecord record = StrokeRecord.stroke(color, 1f, 0, points);
+        StrokeBounds bounds = new StrokeBounds();
+        bounds.includeSegment(x0, y0, x1, y1, 1f);
+        history.captureTiles(bounds);
+        surface.replay(record);
+        history.push(record);
+    }
+
+    private static class FakeSurface implements UndoHistory.Surface<int[]> {
+        final int[] pixels = new int[WIDTH * HEIGHT];
+        int rebuilds;
+
+        int[] snapshot() {
+            return pixels.clone();
+        }
+
+        @Override
+        public int getWidth() {
+            return WIDTH;
+        }
+
+        @Override
+        public int getHeight() {
+            return HEIGHT;
+        }
+
+        @Override
+        public int[] copyRegion(int x, int y, int width, int height) {
+            int[] region = new int[width * height + 2];
+            region[0] = width;
+            region[1] = height;
+            for (int row = 0; row < height; row++) {
+                System.arraycopy(pixels, (y + row) * WIDTH + x, region, 2 + row * width, width);
+            }
+            return region;
+        }
+
+        @Override
+        public void restoreRegion(int[] region, int x, int y, int width, int height) {
+            for (int row = 0; row < height; row++) {
+                System.arraycopy(region, 2 + row * width, pixels, (y + row) * WIDTH + x, width);
+            }
+        }
+
+        @Override
+        public long byteCount(int[] region) {
+            return (region.length - 2) * 4L;
+        }
+
+        @Override
+        public void clear() {
+            rebuilds++;
+            Arrays.fill(pixels, 0);
+        }
+
+        @Override
+        public void replay(StrokeRecord record) {
+            if (record.type == StrokeRecord.TYPE_CLEAR) {
+                Arrays.fill(pixels, 0);
+                return;
+            }
+            // A straight line of pixels between the two points.
+            int steps = Math.max(Math.abs((int) (record.x(1) - record.x(0))),
+                    Math.abs((int) (record.y(1) - record.y(0))));
+            for (int i = 0; i <= steps; i++) {
+                float t = steps == 0 ? 0f : (float) i / steps;
+                int x = Math.round(record.x(0) + (record.x(1) - record.x(0)) * t);
+                int y = Math.round(record.y(0) + (record.y(1) - record.y(0)) * t);
+                pixels[y * WIDTH + x] = record.color;
+            }
+        }
+    }
+}
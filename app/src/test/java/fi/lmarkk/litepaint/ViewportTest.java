@@ -0,0 +1,75 @@
+package fi.lmarkk.litepaint;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the mapping between view and canvas coordinates while zooming and panning.
+ */
+public class ViewportTest {
+    private static final float EPSILON = 1e-3f;
+
+    @Test
+    public void identityUntilMoved() {
+        Viewport viewport = new Viewport();
+        assertEquals(120f, viewport.toCanvasX(120f), EPSILON);
+        assertEquals(45f, viewport.toCanvasY(45f), EPSILON);
+    }
+
+    @Test
+    public void viewBoundsKeepAMarginWhenZoomedOut() {
+        Viewport viewport = new Viewport();
+        viewport.zoomBy(0.25f, 0f, 0f);
+        StrokeBounds canvas = new StrokeBounds();
+        canvas.includeSegment(400f, 400f, 800f, 400f, 4f);
+        StrokeBounds view = new StrokeBounds();
+        viewport.toView(canvas, view);
+        // The stroke edge is at 99.5 and 200.5 in view pixels, anti-aliased one pixel further.
+        assertTrue(view.left <= 98);
+        assertTrue(view.right >= 202);
+        assertTrue(view.top <= 98);
+        assertTrue(view.bottom >= 102);
+    }
+
+    @Test
+    public void zoomKeepsFocusInPlace() {
+        Viewport viewport = new Viewport();
+        viewport.panBy(-30f, 50f);
+        float canvasX = viewport.toCanvasX(300f);
+        float canvasY = viewport.toCanvasY(400f);
+        viewport.zoomBy(2.5f, 300f, 400f);
+        assertEquals(2.5f, viewport.getScale(), EPSILON);
+        assertEquals(canvasX, viewport.toCanvasX(300f), EPSILON);
+        assertEquals(canvasY, viewport.toCanvasY(400f), EPSILON);
+        assertEquals(300f, viewport.toViewX(canvasX), EPSILON);
+        assertEquals(400f, viewport.toViewY(canvasY), EPSILON);
+    }
+
+    @Test
+    public void scaleIsLimited() {
+        Viewport viewport = new Viewport();
+        viewport.zoomBy(1000f, 0f, 0f);
+        assertEquals(Viewport.MAX_SCALE, viewport.getScale(), EPSILON);
+        viewport.zoomBy(1e-6f, 0f, 0f);
+        assertEquals(Viewport.MIN_SCALE, viewport.getScale(), EPSILON);
+    }
+
+    @Test
+    public void clampKeepsCanvasInView() {
+        Viewport viewport = new Viewport();
+        viewport.zoomBy(2f, 0f, 0f);
+        viewport.panBy(500f, -5000f);
+        viewport.clamp(1000, 1000, 1000, 1000);
+        // The 2000 px wide canvas must still cover the view.
+        assertEquals(0f, viewport.getOffsetX(), EPSILON);
+        assertEquals(-1000f, viewport.getOffsetY(), EPSILON);
+
+        viewport.zoomBy(0.25f, 0f, 0f);
+        viewport.panBy(-5000f, 5000f);
+        viewport.clamp(1000, 1000, 1000, 1000);
+        // The 500 px canvas must stay inside the view.
+        assertEquals(0f, viewport.getOffsetX(), EPSILON);
+        assertEquals(500f, viewport.getOffsetY(), EPSILON);
+    }
+}
@@ -0,0 +1,129 @@
+package fi.lmarkk.litepaint;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.view.MotionEvent;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.GraphicsMode;
+
+import static org.junit.Assert.*;
+
+/**
+ * Renders a large canvas at zoom levels from 0.1x to 8x and checks that strokes drawn while
+ * zoomed land in the right place and show up in the zoomed out levels, and that a cancelled
+ * stroke leaves nothing behind in the preview of the next one.
+ */
+@RunWith(RobolectricTestRunner.class)
+@GraphicsMode(GraphicsMode.Mode.NATIVE)
+@Config(sdk = 28)
+public class ZoomRenderTest {
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 1920;
+    private static final float[] ZOOMS = {0.1f, 0.25f, 0.5f, 1f, 2f, 4f, 8f};
+
+    private PaintingView view;
+    private Bitmap frame;
+
+    @Before
+    public void setUp() {
+        view = new PaintingView(RuntimeEnvironment.getApplication(), null);
+        view.setSmoother(StrokeSmoother.LINEAR);
+        view.layout(0, 0, WIDTH, HEIGHT);
+        frame = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+    }
+
+    @After
+    public void tearDown() {
+        view.release();
+    }
+
+    @Test
+    public void zoomedOutFramesBlitAboutAsMuchAsOneToOne() {
+        view.setCanvasSize(4 * WIDTH, 4 * HEIGHT);
+        view.setColor("#FF2060A0");
+        // Rows of strokes across the whole canvas, drawn while it all fits in the view.
+        view.setZoom(0.25f, 0f, 0f);
+        for (int row = 0; row < 8; row++) {
+            float y = 120f + row * 240f;
+            PaintingViewRenderTest.drawStroke(view, new float[][]{
+                    {0f, y}, {360f, y + 40f}, {720f, y - 40f}, {WIDTH, y}});
+        }
+
+        // A frame blits whole tiles, so the view can overlap one more row and column of them.
+        int viewTiles = (WIDTH / TiledCanvas.TILE_SIZE + 2) * (HEIGHT / TiledCanvas.TILE_SIZE + 2);
+        for (float zoom : ZOOMS) {
+            view.setZoom(zoom, 0f, 0f);
+            render();
+            assertTrue("zoom " + zoom, view.lastFrameTiles <= viewTiles);
+        }
+    }
+
+    @Test
+    public void strokesAreMappedToCanvas() {
+        view.setColor("#FF000000");
+        view.setZoom(2f, 0f, 0f);
+        PaintingViewRenderTest.drawStroke(view, new float[][]{{100f, 100f}, {300f, 100f}});
+        Bitmap snapshot = view.createSnapshot();
+        assertEquals(Color.BLACK, snapshot.getPixel(100, 50));
+        assertEquals(Color.TRANSPARENT, snapshot.getPixel(100, 100));
+
+        render();
+        assertEquals(Color.BLACK, frame.getPixel(200, 100));
+    }
+
+    @Test
+    public void zoomedOutLevelsFollowCommits() {
+        view.setColor("#FF000000");
+        view.setZoom(0.5f, 0f, 0f);
+        render();
+        assertEquals(Color.TRANSPARENT, frame.getPixel(100, 100));
+
+        view.resetZoom();
+        PaintingViewRenderTest.drawStroke(view, new float[][]{{100f, 200f}, {300f, 200f}});
+        view.setZoom(0.5f, 0f, 0f);
+        render();
+        assertEquals(Color.BLACK, frame.getPixel(100, 100));
+
+        view.undo();
+        render();
+        assertEquals(Color.TRANSPARENT, frame.getPixel(100, 100));
+    }
+
+    @Test
+    public void cancelledStrokeLeavesNoFringeAtQuarterZoom() {
+        view.setColor("#FF000000");
+        view.setZoom(0.25f, 0f, 0f);
+        long time = PaintingViewRenderTest.beginStroke(view, new float[][]{
+                {100f, 100f}, {150f, 100f}, {200f, 100f}});
+        render();
+        assertEquals(Color.BLACK, frame.getPixel(150, 100));
+        MotionEvent cancel = MotionEvent.obtain(1000L, time, MotionEvent.ACTION_CANCEL, 200f,
+                100f, 0);
+        view.onTouchEvent(cancel);
+        cancel.recycle();
+
+        // The next preview covers the cancelled stroke without drawing near it.
+        PaintingViewRenderTest.beginStroke(view, new float[][]{
+                {20f, 300f}, {300f, 300f}, {300f, 20f}});
+        render();
+        assertEquals(Color.BLACK, frame.getPixel(160, 300));
+        for (int y = 90; y <= 110; y++) {
+            for (int x = 90; x <= 210; x++) {
+                assertEquals("pixel " + x + "," + y, Color.TRANSPARENT, frame.getPixel(x, y));
+            }
+        }
+    }
+
+    private void render() {
+        frame.eraseColor(Color.TRANSPARENT);
+        view.draw(new Canvas(frame));
+    }
+}
@@ -0,0 +1,186 @@
+package fi.lmarkk.litepaint;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Small timing harness in place of JMH, which cannot run code inside Robolectric's sandbox.
+ *
+ * Each case runs warm up iterations followed by measured ones. The reported time is the median
+ * of the measured iterations and the allocation rate comes from the JVM's per thread allocation
+ * counter, which leaves out pixel memory held natively by bitmaps. Results are compared to the
+ * committed baseline file of median times, and a case fails when it gets slower than the
+ * threshold allows or is missing from the file. A case listed without a time is not recorded
+ * yet and only gets a warning.
+ *
+ * @version 2020.0419
+ */
+class BenchmarkRunner {
+    private static final String BASELINE_HEADER = ""
+            + "# Median ns/op per benchmark case, compared against by every run.\n"
+            + "# A case missing here fails the run, a case without a value is only measured.\n"
+            + "# Record the values on the reference machine with\n"
+            + "#   ./gradlew :benchmark:testDebugUnitTest -PbenchmarkRecord=true\n"
+            + "# and commit this file.\n";
+
+    /** Work measured by one call. */
+    interface Operation {
+        void run();
+    }
+
+    static class Result {
+        final String name;
+        final double nanosPerOp;
+        final double bytesPerOp;
+
+        Result(String name, double nanosPerOp, double bytesPerOp) {
+            this.name = name;
+            this.nanosPerOp = nanosPerOp;
+            this.bytesPerOp = bytesPerOp;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%-40s %12.0f ns/op %12.0f B/op", name, nanosPerOp,
+                    bytesPerOp);
+        }
+    }
+
+    private final int warmupIterations;
+    private final int iterations;
+    private final int opsPerIteration;
+    private final List<Result> results = new ArrayList<>();
+
+    BenchmarkRunner(int warmupIterations, int iterations, int opsPerIteration) {
+        this.warmupIterations = warmupIterations;
+        this.iterations = iterations;
+        this.opsPerIteration = opsPerIteration;
+    }
+
+    /**
+     * Measures an operation and prints the result.
+     *
+     * @param name Unique name of the case, used as the baseline key.
+     * @param operation Operation to measure.
+     * @return Measured result.
+     */
+    Result run(String name, Operation operation) {
+        for (int i = 0; i < warmupIterations * opsPerIteration; i++) {
+            operation.run();
+        }
+        long[] nanos = new long[iterations];
+        long bytes = 0;
+        for (int i = 0; i < iterations; i++) {
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+            for (int op = 0; op < opsPerIteration; op++) {
+                operation.run();
+            }
+            nanos[i] = System.nanoTime() - start;
+            bytes += allocatedBytes() - allocated;
+        }
+        Arrays.sort(nanos);
+        long ops = (long) iterations * opsPerIteration;
+        Result result = new Result(name, nanos[iterations / 2] / (double) opsPerIteration,
+                bytes / (double) ops);
+        results.add(result);
+        System.out.println(result);
+        return result;
+    }
+
+    List<Result> getResults() {
+        return results;
+    }
+
+    /**
+     * Compares the results to the committed baseline, or with record replaces the baseline of
+     * these cases with their results. A case missing from the baseline fails like a regression,
+     * so a new case cannot go unchecked by accident. A case listed without a time is waiting to
+     * be recorded on the reference machine and is skipped with a warning.
+     *
+     * @param baselineFile Properties file of median times in nanoseconds.
+     * @param threshold Allowed slowdown, 0.5 lets a case take 50 % longer than its baseline.
+     * @param record Whether to replace the baseline with these results.
+     * @return Descriptions of the cases that regressed or have no baseline, empty if none.
+     * @throws IOException If the baseline could not be read or written.
+     */
+    List<String> checkBaseline(File baselineFile, double threshold, boolean record)
+            throws IOException {
+        List<String> failures = new ArrayList<>();
+        Properties baseline = new Properties();
+        if (baselineFile.exists()) {
+            InputStream in = new FileInputStream(baselineFile);
+            try {
+                baseline.load(in);
+            } finally {
+                in.close();
+            }
+        } else if (!record) {
+            failures.add("No baseline file " + baselineFile + ", record one with "
+                    + "-PbenchmarkRecord=true");
+            return failures;
+        }
+        for (Result result : results) {
+            String value = baseline.getProperty(result.name);
+            if (record) {
+                baseline.setProperty(result.name,
+                        String.format(Locale.US, "%.0f", result.nanosPerOp));
+            } else if (value == null) {
+                failures.add(result.name + ": not in the baseline, record it with "
+                        + "-PbenchmarkRecord=true");
+            } else if (value.trim().isEmpty()) {
+                System.out.println("Warning: " + result.name + " has no baseline time yet");
+            } else if (result.nanosPerOp > Double.parseDouble(value.trim()) * (1 + threshold)) {
+                failures.add(String.format(Locale.US, "%s: %.0f ns/op, baseline %s",
+                        result.name, result.nanosPerOp, value));
+            }
+        }
+        if (record) {
+            writeBaseline(baselineFile, baseline);
+            System.out.println("Baseline written to " + baselineFile);
+        }
+        return failures;
+    }
+
+    /**
+     * Writes the baseline sorted by case, so a recorded baseline diffs cleanly.
+     */
+    private static void writeBaseline(File baselineFile, Properties baseline) throws IOException {
+        List<String> names = new ArrayList<>(baseline.stringPropertyNames());
+        Collections.sort(names);
+        Writer out = new OutputStreamWriter(new FileOutputStream(baselineFile), "ISO-8859-1");
+        try {
+            out.write(BASELINE_HEADER);
+            for (String name : names) {
+                out.write(name + "=" + baseline.getProperty(name) + "\n");
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @return Bytes allocated by the current thread so far, or 0 if the JVM does not count them.
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+}
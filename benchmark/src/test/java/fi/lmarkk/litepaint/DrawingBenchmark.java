@@ -0,0 +1,505 @@
+package fi.lmarkk.litepaint;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.Rect;
+import android.view.MotionEvent;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.GraphicsMode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Replays synthetic strokes through PaintingView.onTouchEvent and draws a frame after every move
+ * event, for each stroke shape, canvas size and brush size, both painting and erasing. One
+ * operation is one whole stroke. The dab brushes are also measured on their own in dabs per
+ * second, the bucket fill on a 4K canvas, restoring an autosave for each canvas size, frames
+ * of a large canvas at each zoom level, the stroke log against a PNG of the same drawing, and
+ * every export format and quality.
+ */
+@RunWith(RobolectricTestRunner.class)
+@GraphicsMode(GraphicsMode.Mode.NATIVE)
+@Config(sdk = 28)
+public class DrawingBenchmark {
+    private static final int[][] SIZES = {{480, 800}, {1080, 1920}};
+    private static final float[] BRUSHES_DP = {5f, 20f, 60f};
+    /** Samples Android batches into one move event between two frames. */
+    private static final int SAMPLES_PER_MOVE = 2;
+    private static final long SAMPLE_MILLIS = 4L;
+    private static final int STROKE_VARIANTS = 16;
+
+    @Test
+    public void drawingHotPaths() throws IOException {
+        BenchmarkRunner runner = new BenchmarkRunner(2, 5, 4);
+        for (int[] size : SIZES) {
+            for (SyntheticStrokes shape : SyntheticStrokes.values()) {
+                for (float brush : BRUSHES_DP) {
+                    for (boolean erase : new boolean[]{false, true}) {
+                        String name = String.format(Locale.US, "%s.%dx%d.%.0fdp%s", shape,
+                                size[0], size[1], brush, erase ? ".erase" : "");
+                        run(runner, name, new StrokeReplay(shape, size[0], size[1], brush,
+                                Brush.PATH, erase));
+                    }
+                }
+            }
+        }
+        // The dab brushes through the whole view, at the size where frames cost the most.
+        for (Brush brush : new Brush[]{Brush.INK, Brush.AIRBRUSH}) {
+            for (SyntheticStrokes shape : SyntheticStrokes.values()) {
+                String name = String.format(Locale.US, "%s.1080x1920.20dp.%s", shape, brush);
+                run(runner, name, new StrokeReplay(shape, 1080, 1920, 20f, brush, false));
+            }
+        }
+        checkBaseline(runner);
+    }
+
+    /**
+     * Stamps scribbles with a StrokeEngine, drawing a frame of the scratch layer after every two
+     * samples and committing each stroke into canvas tiles, which is all the work a dab stroke
+     * does. Prints how many dabs that is per second.
+     */
+    @Test
+    public void dabsPerSecond() throws IOException {
+        BenchmarkRunner runner = new BenchmarkRunner(2, 5, 4);
+        for (Brush brush : new Brush[]{Brush.INK, Brush.AIRBRUSH}) {
+            for (float width : new float[]{10f, 60f}) {
+                final StrokeEngine engine = new StrokeEngine();
+                engine.setSize(1080, 1920);
+                engine.setBrush(brush);
+                final TiledCanvas tiles = new TiledCanvas(null);
+                tiles.ensureSize(1080, 1920);
+                final Paint paint = new Paint();
+                StrokeReplayer.setupStrokePaint(paint);
+                paint.setColor(0xC0204080);
+                paint.setStrokeWidth(width);
+                final Canvas frame =
+                        new Canvas(Bitmap.createBitmap(1080, 1920, Bitmap.Config.ARGB_8888));
+                final Rect clip = new Rect(0, 0, 1080, 1920);
+                final float[][] samples = SyntheticStrokes.SCRIBBLE.create(new Random(7));
+                final int[] dabs = new int[1];
+                String name = String.format(Locale.US, "dabs.%s.%.0fpx", brush, width);
+                BenchmarkRunner.Result result = runner.run(name, new BenchmarkRunner.Operation() {
+                    @Override
+                    public void run() {
+                        engine.begin(samples[0][0] * 1080, samples[0][1] * 1920, 0.8f, 0L,
+                                paint, false);
+                        for (int i = 1; i < samples.length; i++) {
+                            engine.addPoint(samples[i][0] * 1080, samples[i][1] * 1920,
+                                    0.4f + 0.6f * (i % 16) / 15f, i * SAMPLE_MILLIS);
+                            if (i % SAMPLES_PER_MOVE == 0) {
+                                engine.draw(frame, clip);
+                            }
+                        }
+                        engine.commit(tiles, paint);
+                        dabs[0] = engine.getDabCount();
+                    }
+                });
+                System.out.println(String.format(Locale.US, "%-40s %12.0f dabs/s", name,
+                        dabs[0] * 1e9 / result.nanosPerOp));
+            }
+        }
+        checkBaseline(runner);
+    }
+
+    /**
+     * Fills the background of a 4K canvas with scribbles on it, from reading the tiles to
+     * drawing the filled region into another layer, on one thread and on every core.
+     */
+    @Test
+    public void bucketFill4K() throws IOException {
+        final int width = 3840;
+        final int height = 2160;
+        final TiledCanvas source = new TiledCanvas(null);
+        source.ensureSize(width, height);
+        Bitmap drawing = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(drawing);
+        Paint paint = new Paint();
+        StrokeReplayer.setupStrokePaint(paint);
+        paint.setColor(0xFF000000);
+        paint.setStrokeWidth(12f);
+        Random random = new Random(11);
+        for (int i = 0; i < 8; i++) {
+            float[][] samples = SyntheticStrokes.SCRIBBLE.create(random);
+            for (int j = 1; j < samples.length; j++) {
+                canvas.drawLine(samples[j - 1][0] * width, samples[j - 1][1] * height,
+                        samples[j][0] * width, samples[j][1] * height, paint);
+            }
+        }
+        source.drawBitmap(drawing, 0, 0, null, true);
+        final TiledCanvas target = new TiledCanvas(null);
+        target.ensureSize(width, height);
+
+        BenchmarkRunner runner = new BenchmarkRunner(1, 5, 1);
+        for (final boolean parallel : new boolean[]{false, true}) {
+            final FloodFill fill = parallel ? new FloodFill() : new FloodFill(null);
+            final int[] filled = new int[1];
+            String name = "fill.3840x2160" + (parallel ? ".parallel" : "");
+            BenchmarkRunner.Result result = runner.run(name, new BenchmarkRunner.Operation() {
+                @Override
+                public void run() {
+                    fill.load(source.getTileBitmaps(), TiledCanvas.TILE_SIZE, width, height);
+                    filled[0] = fill.fill(0, 0, FloodFill.DEFAULT_TOLERANCE);
+                    Bitmap region = fill.createRegion(0xFF2040C0);
+                    FloodFill.drawRegion(target, region, fill.getLeft(), fill.getTop(), false);
+                }
+            });
+            System.out.println(String.format(Locale.US, "%-40s %12.0f Mpx/s", name,
+                    filled[0] * 1e3 / result.nanosPerOp));
+        }
+        checkBaseline(runner);
+    }
+
+    /**
+     * Restores an autosave of a canvas painted all over, for growing canvas sizes. The lazy case
+     * opens the journal and draws the first 1080x1920 frame, which is when the canvas can be
+     * used, and the full case reads back every tile. Prints the times against the canvas size.
+     */
+    @Test
+    public void autosaveRestore() throws IOException {
+        int[][] sizes = {{1080, 1920}, {2160, 3840}, {4096, 4096}};
+        BenchmarkRunner runner = new BenchmarkRunner(1, 5, 1);
+        final File file = File.createTempFile("autosave", ".journal");
+        final Canvas frame = new Canvas(Bitmap.createBitmap(1080, 1920, Bitmap.Config.ARGB_8888));
+        final Rect clip = new Rect(0, 0, 1080, 1920);
+        for (int[] size : sizes) {
+            TiledCanvas tiles = new TiledCanvas(null);
+            tiles.ensureSize(size[0], size[1]);
+            Bitmap painted = Bitmap.createBitmap(size[0], size[1], Bitmap.Config.ARGB_8888);
+            painted.eraseColor(0xC0204080);
+            tiles.drawBitmap(painted, 0, 0, null, true);
+            TileJournal journal = TileJournal.open(file);
+            journal.reset();
+            TileJournal.State state = new TileJournal.State(size[0], size[1], 0, 1);
+            state.opacities[0] = 1f;
+            state.visible[0] = true;
+            state.blendModes[0] = PorterDuff.Mode.SRC_OVER;
+            TileJournal.Checkpoint checkpoint = new TileJournal.Checkpoint(state);
+            tiles.takeChanges(checkpoint, 0);
+            journal.write(checkpoint);
+            journal.close();
+
+            for (final boolean full : new boolean[]{false, true}) {
+                String name = String.format(Locale.US, "restore.%dx%d%s", size[0], size[1],
+                        full ? ".full" : ".lazy");
+                BenchmarkRunner.Result result = runner.run(name, new BenchmarkRunner.Operation() {
+                    @Override
+                    public void run() {
+                        try {
+                            restore(file, frame, clip, full);
+                        } catch (IOException e) {
+                            throw new AssertionError(e);
+                        }
+                    }
+                });
+                System.out.println(String.format(Locale.US, "%-40s %12.1f ms %8d tiles", name,
+                        result.nanosPerOp / 1e6, checkpoint.getTileCount()));
+            }
+        }
+        file.delete();
+        checkBaseline(runner);
+    }
+
+    /**
+     * Draws 1080x1920 frames of a canvas four times the size of the view, covered with lines, at
+     * zoom levels from 0.1x to 8x. Prints how many tiles a frame blits at each level.
+     */
+    @Test
+    public void zoomedFrames() throws IOException {
+        StrokeReplay lines = new StrokeReplay(SyntheticStrokes.LINE, 1080, 1920, 20f, Brush.PATH,
+                false);
+        final PaintingView view = lines.view;
+        view.setCanvasSize(4 * 1080, 4 * 1920);
+        // Lines across the whole canvas, drawn while it all fits in the view.
+        view.setZoom(0.25f, 0f, 0f);
+        for (int i = 0; i < STROKE_VARIANTS; i++) {
+            lines.run();
+        }
+        final Canvas frame = new Canvas(Bitmap.createBitmap(1080, 1920, Bitmap.Config.ARGB_8888));
+        BenchmarkRunner runner = new BenchmarkRunner(2, 5, 4);
+        for (float zoom : new float[]{0.1f, 0.25f, 0.5f, 1f, 2f, 4f, 8f}) {
+            view.setZoom(zoom, 0f, 0f);
+            String name = String.format(Locale.US, "zoom.%.2fx", zoom);
+            BenchmarkRunner.Result result = runner.run(name, new BenchmarkRunner.Operation() {
+                @Override
+                public void run() {
+                    view.draw(frame);
+                }
+            });
+            System.out.println(String.format(Locale.US, "%-40s %12.2f ms %4d tiles level %d",
+                    name, result.nanosPerOp / 1e6, view.lastFrameTiles,
+                    MipPyramid.levelFor(zoom)));
+        }
+        view.release();
+        checkBaseline(runner);
+    }
+
+    /**
+     * Writes, reads and replays a stroke log of 1000 strokes on a 1080x1920 canvas, and encodes
+     * and decodes a PNG of the same drawing. Prints the size of the log and of the PNG.
+     */
+    @Test
+    public void strokeLogAgainstPng() throws IOException {
+        final List<StrokeRecord> records = logDrawing(1000, 1080, 1920);
+        final File file = File.createTempFile("strokes", ".log");
+        final Bitmap bitmap = Bitmap.createBitmap(1080, 1920, Bitmap.Config.ARGB_8888);
+        final StrokeReplayer replayer = new StrokeReplayer();
+        final ByteArrayOutputStream png = new ByteArrayOutputStream();
+        BenchmarkRunner runner = new BenchmarkRunner(1, 5, 1);
+        runner.run("log.write.1000", new BenchmarkRunner.Operation() {
+            @Override
+            public void run() {
+                try {
+                    StrokeLogWriter log = StrokeLogWriter.open(file, true);
+                    for (StrokeRecord record : records) {
+                        log.append(record);
+                    }
+                    log.close();
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+        runner.run("log.read.1000", new BenchmarkRunner.Operation() {
+            @Override
+            public void run() {
+                try {
+                    StrokeLogReader.readAll(file);
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+        runner.run("log.replay.1000", new BenchmarkRunner.Operation() {
+            @Override
+            public void run() {
+                replayer.replay(records, bitmap);
+            }
+        });
+        runner.run("png.encode.1080x1920", new BenchmarkRunner.Operation() {
+            @Override
+            public void run() {
+                png.reset();
+                bitmap.compress(Bitmap.CompressFormat.PNG, 100, png);
+            }
+        });
+        final byte[] pngBytes = png.toByteArray();
+        runner.run("png.decode.1080x1920", new BenchmarkRunner.Operation() {
+            @Override
+            public void run() {
+                assertNotNull(BitmapFactory.decodeByteArray(pngBytes, 0, pngBytes.length));
+            }
+        });
+        System.out.println(String.format(Locale.US, "%-40s %12d bytes", "log.size.1000",
+                file.length()));
+        System.out.println(String.format(Locale.US, "%-40s %12d bytes", "png.size.1080x1920",
+                pngBytes.length));
+        file.delete();
+        checkBaseline(runner);
+    }
+
+    /**
+     * Encodes and decodes a sparse sketch, a dense painting and a painting with erased areas on a
+     * 1080x1920 canvas in every export format and quality, and prints the size of each file. Runs
+     * on Android 11 so that lossless WebP has its own encoder.
+     */
+    @Test
+    @Config(sdk = 30)
+    public void exportFormats() throws IOException {
+        String[] names = {"sparse", "dense", "erased"};
+        Bitmap[] drawings = {exportDrawing(30, false), exportDrawing(1000, false),
+                exportDrawing(1000, true)};
+        int[][] qualities = {{100}, {25, 75, 100}, {75, 90, 95}};
+        ExportFormat[] formats = ExportFormat.values();
+        BenchmarkRunner runner = new BenchmarkRunner(1, 3, 1);
+        for (int d = 0; d < drawings.length; d++) {
+            final Bitmap drawing = drawings[d];
+            for (int f = 0; f < formats.length; f++) {
+                final ExportFormat format = formats[f];
+                for (final int quality : qualities[f]) {
+                    String name = String.format(Locale.US, "export.%s.%s.q%d", names[d],
+                            format.name().toLowerCase(Locale.ROOT), quality);
+                    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    runner.run(name + ".encode", new BenchmarkRunner.Operation() {
+                        @Override
+                        public void run() {
+                            out.reset();
+                            assertTrue(format.name(), format.compress(drawing, quality, out));
+                        }
+                    });
+                    final byte[] bytes = out.toByteArray();
+                    runner.run(name + ".decode", new BenchmarkRunner.Operation() {
+                        @Override
+                        public void run() {
+                            assertNotNull(BitmapFactory.decodeByteArray(bytes, 0, bytes.length));
+                        }
+                    });
+                    System.out.println(String.format(Locale.US, "%-40s %12d bytes",
+                            name + ".size", bytes.length));
+                }
+            }
+        }
+        checkBaseline(runner);
+    }
+
+    /**
+     * Replays scribbles on a 1080x1920 canvas and flattens them onto white like ImageSaver does
+     * when transparency is not kept. If asked to, every fourth scribble erases.
+     */
+    private static Bitmap exportDrawing(int strokes, boolean erase) {
+        List<StrokeRecord> records = logDrawing(strokes, 1080, 1920);
+        for (int i = 4; erase && i < records.size(); i += 4) {
+            StrokeRecord stroke = records.get(i);
+            records.set(i, StrokeRecord.stroke(stroke.color, stroke.width,
+                    stroke.flags | StrokeRecord.FLAG_ERASE, stroke.points, stroke.pointCount));
+        }
+        Bitmap bitmap = Bitmap.createBitmap(1080, 1920, Bitmap.Config.ARGB_8888);
+        new StrokeReplayer().replay(records, bitmap);
+        new Canvas(bitmap).drawColor(Color.WHITE, PorterDuff.Mode.DST_OVER);
+        return bitmap;
+    }
+
+    /**
+     * Builds a stroke log of scribbles with the pressure and timing of touch input, snapped to
+     * the precision of the log.
+     */
+    private static List<StrokeRecord> logDrawing(int strokes, int width, int height) {
+        Random random = new Random(99);
+        List<StrokeRecord> records = new ArrayList<>();
+        records.add(StrokeRecord.size(width, height));
+        PointBuffer points = new PointBuffer();
+        for (int i = 0; i < strokes; i++) {
+            float[][] samples = SyntheticStrokes.SCRIBBLE.create(random);
+            points.clear(0L);
+            for (int j = 0; j < samples.length; j++) {
+                points.add(StrokeCodec.quantizePosition(samples[j][0] * width),
+                        StrokeCodec.quantizePosition(samples[j][1] * height),
+                        StrokeCodec.quantizePressure(0.4f + 0.6f * (j % 16) / 15f),
+                        j * SAMPLE_MILLIS);
+            }
+            records.add(StrokeRecord.stroke(random.nextInt(), 5f + random.nextInt(40),
+                    StrokeRecord.FLAG_SMOOTH, points));
+        }
+        return records;
+    }
+
+    private static void restore(File file, Canvas frame, Rect clip, boolean full)
+            throws IOException {
+        TileJournal journal = TileJournal.open(file);
+        TileJournal.Reader reader = journal.openReader();
+        TileJournal.State state = journal.getState();
+        TiledCanvas restored = new TiledCanvas(null);
+        restored.ensureSize(state.width, state.height);
+        journal.restore(0, restored, reader);
+        restored.draw(frame, clip, null);
+        if (full) {
+            restored.getTileBitmaps();
+        }
+        reader.close();
+        journal.close();
+    }
+
+    private static void run(BenchmarkRunner runner, String name, StrokeReplay replay) {
+        runner.run(name, replay);
+        replay.view.release();
+    }
+
+    private static void checkBaseline(BenchmarkRunner runner) throws IOException {
+        File baseline = new File(System.getProperty("benchmark.baseline", "baseline.properties"));
+        double threshold = Double.parseDouble(System.getProperty("benchmark.threshold", "0.5"));
+        boolean record = Boolean.parseBoolean(System.getProperty("benchmark.record", "false"));
+        List<String> failures = runner.checkBaseline(baseline, threshold, record);
+        assertTrue("Baseline check failed:\n" + failures, failures.isEmpty());
+    }
+
+    /**
+     * Draws one stroke per run on a view of its own, cycling through a fixed set of strokes of
+     * the given shape. Every time the set wraps around its strokes are undone, so each round
+     * starts from the same canvas and the undo history does not grow.
+     */
+    private static class StrokeReplay implements BenchmarkRunner.Operation {
+        private final PaintingView view;
+        private final Canvas frame;
+        private final float[][][] strokes = new float[STROKE_VARIANTS][][];
+        private final int width, height;
+        private int next;
+
+        StrokeReplay(SyntheticStrokes shape, int width, int height, float brushDp, Brush brush,
+                     boolean erase) {
+            this.width = width;
+            this.height = height;
+            view = new PaintingView(RuntimeEnvironment.getApplication(), null);
+            view.setBrushSize(brushDp);
+            view.setBrush(brush);
+            view.layout(0, 0, width, height);
+            frame = new Canvas(Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888));
+            Random random = new Random(shape.ordinal());
+            for (int i = 0; i < STROKE_VARIANTS; i++) {
+                strokes[i] = shape.create(random);
+            }
+            if (erase) {
+                // Erase over a painted canvas so the eraser has something to remove.
+                for (float[][] stroke : strokes) {
+                    replay(stroke);
+                }
+                view.setErase(true);
+            }
+        }
+
+        @Override
+        public void run() {
+            if (next == STROKE_VARIANTS) {
+                next = 0;
+                for (int i = 0; i < STROKE_VARIANTS; i++) {
+                    view.undo();
+                }
+            }
+            replay(strokes[next++]);
+        }
+
+        private void replay(float[][] samples) {
+            long down = 1000L;
+            long time = down;
+            dispatch(MotionEvent.obtain(down, time, MotionEvent.ACTION_DOWN,
+                    samples[0][0] * width, samples[0][1] * height, 0));
+            view.draw(frame);
+            for (int i = 1; i < samples.length; i += SAMPLES_PER_MOVE) {
+                time += SAMPLE_MILLIS;
+                MotionEvent move = MotionEvent.obtain(down, time, MotionEvent.ACTION_MOVE,
+                        samples[i][0] * width, samples[i][1] * height, 0);
+                for (int j = i + 1; j < Math.min(samples.length, i + SAMPLES_PER_MOVE); j++) {
+                    time += SAMPLE_MILLIS;
+                    move.addBatch(time, samples[j][0] * width, samples[j][1] * height,
+                            1f, 1f, 0);
+                }
+                dispatch(move);
+                view.draw(frame);
+            }
+            float[] last = samples[samples.length - 1];
+            dispatch(MotionEvent.obtain(down, time, MotionEvent.ACTION_UP,
+                    last[0] * width, last[1] * height, 0));
+            view.draw(frame);
+        }
+
+        private void dispatch(MotionEvent event) {
+            view.onTouchEvent(event);
+            event.recycle();
+        }
+    }
+}
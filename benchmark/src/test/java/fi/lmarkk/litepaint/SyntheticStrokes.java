@@ -0,0 +1,69 @@
+package fi.lmarkk.litepaint;
+
+import java.util.Random;
+
+/**
+ * Deterministic touch input for the benchmarks. Every stroke is a list of samples in coordinates
+ * from 0 to 1, scaled to the view when replayed, so each canvas size gets the same drawing.
+ *
+ * @version 2020.0419
+ */
+enum SyntheticStrokes {
+    /** Quick curly scribbles with a lot of direction changes. */
+    SCRIBBLE {
+        @Override
+        float[][] create(Random random) {
+            float[][] samples = new float[SAMPLES][];
+            float x = 0.2f + random.nextFloat() * 0.6f;
+            float y = 0.2f + random.nextFloat() * 0.6f;
+            float angle = random.nextFloat() * 6.283f;
+            for (int i = 0; i < SAMPLES; i++) {
+                angle += (random.nextFloat() - 0.5f) * 1.5f;
+                x = clamp(x + (float) Math.cos(angle) * 0.02f);
+                y = clamp(y + (float) Math.sin(angle) * 0.02f);
+                samples[i] = new float[]{x, y};
+            }
+            return samples;
+        }
+    },
+    /** Long straight lines across the view. */
+    LINE {
+        @Override
+        float[][] create(Random random) {
+            float x0 = random.nextFloat() * 0.1f;
+            float y0 = random.nextFloat();
+            float x1 = 0.9f + random.nextFloat() * 0.1f;
+            float y1 = random.nextFloat();
+            float[][] samples = new float[SAMPLES][];
+            for (int i = 0; i < SAMPLES; i++) {
+                float t = i / (float) (SAMPLES - 1);
+                samples[i] = new float[]{x0 + (x1 - x0) * t, y0 + (y1 - y0) * t};
+            }
+            return samples;
+        }
+    },
+    /** Short parallel back and forth strokes packed closely together. */
+    HATCH {
+        @Override
+        float[][] create(Random random) {
+            float x = 0.1f + random.nextFloat() * 0.5f;
+            float y = 0.1f + random.nextFloat() * 0.5f;
+            float[][] samples = new float[SAMPLES][];
+            for (int i = 0; i < SAMPLES; i++) {
+                int pass = i / 8;
+                float t = (i % 8) / 7f;
+                float along = pass % 2 == 0 ? t : 1f - t;
+                samples[i] = new float[]{x + along * 0.3f + pass * 0.005f, y + pass * 0.01f};
+            }
+            return samples;
+        }
+    };
+
+    static final int SAMPLES = 64;
+
+    abstract float[][] create(Random random);
+
+    private static float clamp(float value) {
+        return Math.max(0f, Math.min(1f, value));
+    }
+}